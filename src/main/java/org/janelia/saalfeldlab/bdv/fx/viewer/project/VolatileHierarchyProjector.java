@@ -32,6 +32,7 @@ import bdv.viewer.render.VolatileProjector;
 import io.github.oshai.kotlinlogging.KLogger;
 import io.github.oshai.kotlinlogging.KotlinLogging;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
@@ -60,6 +61,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  * {@link VolatileProjector} for a hierarchy of {@link Volatile} inputs.  After each
  * {@link #map()} call, the projector has a {@link #isValid() state} that
  * signalizes whether all projected pixels were perfect.
+ * <p>
+ * If a {@link #tileSize tile size} is set, the target is split into square tiles
+ * that are rendered in parallel. Each tile keeps track of its own best valid
+ * resolution level, and successive {@link #map()} calls only revisit tiles
+ * that were not rendered with valid data from the optimal resolution level.
  *
  * @author Stephan Saalfeld
  * @author Tobias Pietzsch
@@ -68,6 +74,12 @@ public class VolatileHierarchyProjector<A extends Volatile<?>, B extends SetZero
 
 	private static KLogger LOG = KotlinLogging.INSTANCE.logger(() -> null);
 
+	/**
+	 * Edge length of screen tiles when tiled rendering is enabled. Projectors are untiled unless a tile size is
+	 * passed explicitly.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 64;
+
 	/**
 	 * A converter from the source pixel type to the target pixel type.
 	 */
@@ -118,6 +130,18 @@ public class VolatileHierarchyProjector<A extends Volatile<?>, B extends SetZero
 	 */
 	protected final TaskExecutor taskExecutor;
 
+	/**
+	 * Edge length of the screen tiles that are rendered independently, or
+	 * {@code 0} if the whole target is rendered at once.
+	 */
+	protected final int tileSize;
+
+	/**
+	 * Screen tiles of {@link #sourceInterval} if {@link #tileSize} is positive,
+	 * {@code null} otherwise.
+	 */
+	private final List<Tile> tiles;
+
 	/**
 	 * Time needed for rendering the last frame, in nano-seconds.
 	 * This does not include time spent in blocking IO.
@@ -156,6 +180,17 @@ public class VolatileHierarchyProjector<A extends Volatile<?>, B extends SetZero
 			final RandomAccessibleInterval<ByteType> mask,
 			final TaskExecutor taskExecutor) {
 
+		this(sources, converter, target, mask, taskExecutor, 0);
+	}
+
+	public VolatileHierarchyProjector(
+			final List<? extends RandomAccessible<A>> sources,
+			final Converter<? super A, B> converter,
+			final RandomAccessibleInterval<B> target,
+			final RandomAccessibleInterval<ByteType> mask,
+			final TaskExecutor taskExecutor,
+			final int tileSize) {
+
 		this.converter = converter;
 		this.target = target;
 		this.sources = new ArrayList<>(sources);
@@ -172,11 +207,30 @@ public class VolatileHierarchyProjector<A extends Volatile<?>, B extends SetZero
 		sourceInterval = new FinalInterval(min, max);
 
 		this.taskExecutor = taskExecutor;
+		this.tileSize = tileSize;
+		this.tiles = tileSize > 0 ? createTiles(sourceInterval, tileSize) : null;
 
 		lastFrameRenderNanoTime = -1;
 		clearMask();
 	}
 
+	private static List<Tile> createTiles(final Interval interval, final int tileSize) {
+
+		final List<Tile> tiles = new ArrayList<>();
+		final long[] min = Intervals.minAsLongArray(interval);
+		final long[] max = Intervals.maxAsLongArray(interval);
+		for (long y = interval.min(1); y <= interval.max(1); y += tileSize) {
+			for (long x = interval.min(0); x <= interval.max(0); x += tileSize) {
+				min[0] = x;
+				min[1] = y;
+				max[0] = Math.min(x + tileSize - 1, interval.max(0));
+				max[1] = Math.min(y + tileSize - 1, interval.max(1));
+				tiles.add(new Tile(new FinalInterval(min, max)));
+			}
+		}
+		return tiles;
+	}
+
 	@Override
 	public void cancel() {
 
@@ -215,6 +269,12 @@ public class VolatileHierarchyProjector<A extends Volatile<?>, B extends SetZero
 			else throw e;
 		}
 		numInvalidLevels = sources.size();
+		if (tiles != null) {
+			for (final Tile tile : tiles) {
+				tile.numInvalidLevels = sources.size();
+				tile.valid = false;
+			}
+		}
 	}
 
 	/**
@@ -238,6 +298,9 @@ public class VolatileHierarchyProjector<A extends Volatile<?>, B extends SetZero
 	@Override
 	public boolean map(final boolean clearUntouchedTargetPixels) {
 
+		if (tiles != null)
+			return mapTiles(clearUntouchedTargetPixels);
+
 		canceled.set(false);
 		valid = false;
 
@@ -334,4 +397,136 @@ public class VolatileHierarchyProjector<A extends Volatile<?>, B extends SetZero
 		if (myNumInvalidPixels.get() != 0)
 			valid = false;
 	}
+
+	private boolean mapTiles(final boolean clearUntouchedTargetPixels) {
+
+		canceled.set(false);
+		valid = false;
+		numInvalidPixels.set(0);
+
+		final StopWatch stopWatch = StopWatch.createAndStart();
+		final IoStatistics iostat = CacheIoTiming.getIoStatistics();
+		final long startTimeIo = iostat.getIoNanoTime();
+		final long startTimeIoCumulative = iostat.getCumulativeIoNanoTime();
+
+		final List<Tile> incompleteTiles = new ArrayList<>();
+		for (final Tile tile : tiles)
+			if (!tile.valid)
+				incompleteTiles.add(tile);
+
+		try {
+			taskExecutor.forEach(incompleteTiles, tile -> mapTile(tile, clearUntouchedTargetPixels));
+		} catch (final RejectedExecutionException e) {
+			LOG.trace(e, () -> "Rendering tiles rejected");
+			canceled.set(true);
+		}
+		if (canceled.get())
+			return false;
+
+		final long lastFrameTime = stopWatch.nanoTime();
+		lastFrameIoNanoTime = iostat.getIoNanoTime() - startTimeIo;
+		lastFrameRenderNanoTime = lastFrameTime - (iostat.getCumulativeIoNanoTime() - startTimeIoCumulative) / taskExecutor.getParallelism();
+
+		boolean allTilesValid = true;
+		int maxNumInvalidLevels = 0;
+		for (final Tile tile : tiles) {
+			allTilesValid &= tile.valid;
+			maxNumInvalidLevels = Math.max(maxNumInvalidLevels, tile.numInvalidLevels);
+		}
+		numInvalidLevels = maxNumInvalidLevels;
+		valid = allTilesValid;
+
+		return !canceled.get();
+	}
+
+	/**
+	 * Render a single tile, starting at resolution level {@code 0}, until all
+	 * of its pixels are valid or all levels that may still improve it were
+	 * tried.
+	 */
+	private void mapTile(final Tile tile, final boolean clearUntouchedTargetPixels) {
+
+		boolean tileValid = false;
+		int resolutionLevel;
+		for (resolutionLevel = 0; resolutionLevel < tile.numInvalidLevels && !tileValid; ++resolutionLevel) {
+			if (canceled.get())
+				return;
+			final int numInvalid = map((byte) resolutionLevel, tile.interval);
+			numInvalidPixels.addAndGet(numInvalid);
+			tileValid = numInvalid == 0;
+		}
+		if (canceled.get())
+			return;
+
+		if (tileValid)
+			tile.numInvalidLevels = resolutionLevel - 1;
+		tile.valid = tile.numInvalidLevels == 0;
+
+		if (clearUntouchedTargetPixels) {
+			LoopBuilder.setImages(Views.interval(new BundleView<>(target), tile.interval), Views.interval(mask, tile.interval))
+					.forEachPixel((targetRA, maskVal) -> {
+						if (maskVal.get() == Byte.MAX_VALUE) {
+							targetRA.get().setZero();
+						}
+					});
+		}
+	}
+
+	/**
+	 * Copy pixels in {@code tile} from source {@code resolutionIndex} to
+	 * target. The same rules as in {@link #map(byte, int, int)} apply to which
+	 * pixels are copied.
+	 *
+	 * @param resolutionIndex index of source resolution level
+	 * @param tile            tile of {@link #sourceInterval}
+	 * @return number of pixels in {@code tile} that are still invalid
+	 */
+	protected int map(final byte resolutionIndex, final Interval tile) {
+
+		final int[] numInvalid = {0};
+		LoopBuilder.setImages(
+				Views.interval(new BundleView<>(target), tile),
+				Views.interval(new BundleView<>(sources.get(resolutionIndex)), tile),
+				Views.interval(mask, tile)
+		).forEachPixel((targetVal, sourceVal, maskVal) -> {
+			if (maskVal.get() > resolutionIndex) {
+				final A a = sourceVal.get();
+				if (a.isValid()) {
+					convert(a, targetVal.get());
+					maskVal.set(resolutionIndex);
+				} else
+					++numInvalid[0];
+			}
+		});
+		return numInvalid[0];
+	}
+
+	/**
+	 * Convert a valid source value into a target value, used in tiled mode.
+	 */
+	protected void convert(final A source, final B target) {
+
+		converter.convert(source, target);
+	}
+
+	private static final class Tile {
+
+		private final Interval interval;
+
+		/**
+		 * Same as {@link VolatileHierarchyProjector#numInvalidLevels}, for this tile only.
+		 */
+		private volatile int numInvalidLevels;
+
+		/**
+		 * {@code true} iff all pixels of this tile were rendered with valid
+		 * data from the optimal resolution level.
+		 */
+		private volatile boolean valid = false;
+
+		private Tile(final Interval interval) {
+
+			this.interval = interval;
+		}
+	}
 }
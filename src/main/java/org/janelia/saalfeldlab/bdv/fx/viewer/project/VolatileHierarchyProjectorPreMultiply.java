@@ -27,6 +27,24 @@ public class VolatileHierarchyProjectorPreMultiply<A extends Volatile<?>> extend
 		super(sources, converter, target, mask, taskExecutor);
 	}
 
+	public VolatileHierarchyProjectorPreMultiply(
+			final List<? extends RandomAccessible<A>> sources,
+			final Converter<? super A, ARGBType> converter,
+			final RandomAccessibleInterval<ARGBType> target,
+			final RandomAccessibleInterval<ByteType> mask,
+			final TaskExecutor taskExecutor,
+			final int tileSize) {
+
+		super(sources, converter, target, mask, taskExecutor, tileSize);
+	}
+
+	@Override
+	protected void convert(final A source, final ARGBType target) {
+
+		converter.convert(source, target);
+		target.set(PixelUtils.NonPretoPre(target.get()));
+	}
+
 	@Override
 	protected void map(byte resolutionIndex, int startHeight, int endHeight) {
 
@@ -0,0 +1,194 @@
+package org.janelia.saalfeldlab.bdv.fx.viewer.render;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the coarsest screen scale to start rendering at, and the IO budget for a frame, from measured render times.
+ * <p>
+ * For each screen scale, the controller keeps an exponential moving average of the time it takes to render a frame at
+ * that scale. The coarsest screen scale is the finest scale that is expected to render within the
+ * {@link #getTargetFrameNanos() target frame time}. Render times of screen scales that were not measured yet are
+ * extrapolated from measured scales by the number of pixels. Render times of frames that only repaint part of the
+ * screen are extrapolated to the whole screen the same way, and frames that repaint less than
+ * {@link #MIN_MEASURED_FRACTION} of the screen are not measured, as their render time is dominated by fixed costs. To
+ * avoid toggling between two screen scales on every frame, a finer screen scale is only chosen if it is expected to
+ * render well below the target frame time.
+ * <p>
+ * The IO budget is the part of the target frame time that is not needed for rendering at the coarsest screen scale.
+ * <p>
+ * The controller is not {@link #setAdaptive(boolean) adaptive} by default, e.g. it can be enabled through the
+ * {@link RenderingMetricsMXBean}. Repaints of small intervals, e.g. while painting, are not measured, and the render
+ * time of a screen scale that was not measured yet is only an estimate, because render time also depends on the data
+ * and its mipmap levels. If the controller is not adaptive, rendering always starts at the coarsest available screen
+ * scale and the IO budget is {@link #DEFAULT_IO_BUDGET fixed}.
+ */
+public class AdaptiveRenderController {
+
+	/**
+	 * IO budget in nanoseconds of the first and subsequent render passes if not adaptive.
+	 */
+	public static final long[] DEFAULT_IO_BUDGET = {100L * 1000000L, 10L * 1000000L};
+
+	private static final long MIN_IO_BUDGET_NANOS = 2L * 1000000L;
+
+	private static final double SMOOTHING = 0.2;
+
+	/**
+	 * A finer screen scale is only chosen if it is expected to render within this fraction of the target frame time.
+	 */
+	private static final double REFINE_THRESHOLD = 0.75;
+
+	/**
+	 * Frames that repaint a smaller fraction of the screen are not measured.
+	 */
+	public static final double MIN_MEASURED_FRACTION = 0.25;
+
+	private volatile long targetFrameNanos;
+
+	private volatile boolean adaptive = false;
+
+	private double[] renderNanos = new double[0];
+
+	private int maxScreenScaleIndex = -1;
+
+	private final long[] ioBudget = DEFAULT_IO_BUDGET.clone();
+
+	public AdaptiveRenderController(final long targetFrameNanos) {
+
+		this.targetFrameNanos = targetFrameNanos;
+	}
+
+	public long getTargetFrameNanos() {
+
+		return targetFrameNanos;
+	}
+
+	public void setTargetFrameNanos(final long targetFrameNanos) {
+
+		this.targetFrameNanos = Math.max(targetFrameNanos, 1);
+	}
+
+	public boolean isAdaptive() {
+
+		return adaptive;
+	}
+
+	public synchronized void setAdaptive(final boolean adaptive) {
+
+		this.adaptive = adaptive;
+		if (!adaptive) {
+			maxScreenScaleIndex = -1;
+			System.arraycopy(DEFAULT_IO_BUDGET, 0, ioBudget, 0, ioBudget.length);
+		}
+	}
+
+	/**
+	 * Forget all measurements, e.g. when the screen scales change.
+	 */
+	public synchronized void reset() {
+
+		renderNanos = new double[0];
+		maxScreenScaleIndex = -1;
+		System.arraycopy(DEFAULT_IO_BUDGET, 0, ioBudget, 0, ioBudget.length);
+	}
+
+	/**
+	 * Record the time it took to render a frame of the whole screen and update the coarsest screen scale and IO budget.
+	 *
+	 * @param screenScaleIndex index of the screen scale that the frame was rendered at
+	 * @param frameNanos       time it took to render the frame, excluding blocking IO
+	 * @param screenScales     current screen scales
+	 */
+	public void frameRendered(final int screenScaleIndex, final long frameNanos, final double[] screenScales) {
+
+		frameRendered(screenScaleIndex, frameNanos, 1.0, screenScales);
+	}
+
+	/**
+	 * Record the time it took to render a frame and update the coarsest screen scale and IO budget.
+	 *
+	 * @param screenScaleIndex index of the screen scale that the frame was rendered at
+	 * @param nanos            time it took to render the frame, excluding blocking IO
+	 * @param renderedFraction fraction of the screen pixels that were rendered
+	 * @param screenScales     current screen scales
+	 */
+	public synchronized void frameRendered(
+			final int screenScaleIndex,
+			final long nanos,
+			final double renderedFraction,
+			final double[] screenScales) {
+
+		if (!adaptive || screenScaleIndex < 0 || screenScaleIndex >= screenScales.length || renderedFraction < MIN_MEASURED_FRACTION)
+			return;
+		final double frameNanos = nanos / Math.min(renderedFraction, 1.0);
+
+		if (renderNanos.length != screenScales.length) {
+			renderNanos = new double[screenScales.length];
+			Arrays.fill(renderNanos, Double.NaN);
+		}
+		final double previous = renderNanos[screenScaleIndex];
+		renderNanos[screenScaleIndex] = Double.isNaN(previous) ? frameNanos : previous + SMOOTHING * (frameNanos - previous);
+
+		final int coarsest = screenScales.length - 1;
+		final int current = maxScreenScaleIndex < 0 || maxScreenScaleIndex > coarsest ? coarsest : maxScreenScaleIndex;
+		int next = coarsest;
+		for (int index = 0; index < coarsest; ++index) {
+			final double expectedNanos = expectedRenderNanos(index, screenScales);
+			final double threshold = index < current ? REFINE_THRESHOLD * targetFrameNanos : targetFrameNanos;
+			if (expectedNanos <= threshold) {
+				next = index;
+				break;
+			}
+		}
+		maxScreenScaleIndex = next;
+
+		final double expectedNanos = expectedRenderNanos(next, screenScales);
+		final long remainingNanos = Double.isNaN(expectedNanos) ? DEFAULT_IO_BUDGET[0] : (long)(targetFrameNanos - expectedNanos);
+		ioBudget[0] = Math.min(Math.max(remainingNanos, MIN_IO_BUDGET_NANOS), DEFAULT_IO_BUDGET[0]);
+		ioBudget[1] = ioBudget[0] / 10;
+	}
+
+	/**
+	 * @param numScreenScales number of current screen scales
+	 * @return index of the coarsest screen scale to start rendering at
+	 */
+	public synchronized int getMaxScreenScaleIndex(final int numScreenScales) {
+
+		if (!adaptive || maxScreenScaleIndex < 0 || maxScreenScaleIndex >= numScreenScales)
+			return numScreenScales - 1;
+		return maxScreenScaleIndex;
+	}
+
+	/**
+	 * @return IO budget in nanoseconds for the first and subsequent render passes of a frame
+	 */
+	public synchronized long[] getIoBudget() {
+
+		return ioBudget.clone();
+	}
+
+	/**
+	 * @return smoothed render time in nanoseconds at {@code screenScaleIndex}, or {@link Double#NaN} if not measured
+	 */
+	public synchronized double getRenderNanos(final int screenScaleIndex) {
+
+		return screenScaleIndex >= 0 && screenScaleIndex < renderNanos.length ? renderNanos[screenScaleIndex] : Double.NaN;
+	}
+
+	private double expectedRenderNanos(final int screenScaleIndex, final double[] screenScales) {
+
+		if (!Double.isNaN(renderNanos[screenScaleIndex]))
+			return renderNanos[screenScaleIndex];
+
+		/* extrapolate from the closest measured screen scale by number of pixels */
+		for (int distance = 1; distance < screenScales.length; ++distance) {
+			for (final int other : new int[]{screenScaleIndex + distance, screenScaleIndex - distance}) {
+				if (other >= 0 && other < screenScales.length && !Double.isNaN(renderNanos[other])) {
+					final double ratio = screenScales[screenScaleIndex] / screenScales[other];
+					return renderNanos[other] * ratio * ratio;
+				}
+			}
+		}
+		return Double.NaN;
+	}
+}
@@ -113,7 +113,8 @@ public class MultiResolutionRendererFX extends MultiResolutionRendererGeneric<Pi
 			final TaskExecutor renderingTaskExecutor,
 			final boolean useVolatileIfAvailable,
 			final AccumulateProjectorFactory<ARGBType> accumulateProjectorFactory,
-			final CacheControl cacheControl) {
+			final CacheControl cacheControl,
+			final RenderingMetrics metrics) {
 
 		super(
 				display,
@@ -125,6 +126,7 @@ public class MultiResolutionRendererFX extends MultiResolutionRendererGeneric<Pi
 				useVolatileIfAvailable,
 				accumulateProjectorFactory,
 				cacheControl,
+				metrics,
 				PixelBufferWritableImage::asArrayImg,
 				new MakeWritableImage(),
 				img -> (int)img.getWidth(),
@@ -30,6 +30,7 @@
 package org.janelia.saalfeldlab.bdv.fx.viewer.render;
 
 import bdv.cache.CacheControl;
+import bdv.cache.SharedQueue;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.util.MipmapTransforms;
 import bdv.viewer.Interpolation;
@@ -46,6 +47,7 @@ import bdv.viewer.render.SimpleVolatileProjector;
 import bdv.viewer.render.VolatileProjector;
 import javafx.animation.AnimationTimer;
 import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
@@ -56,6 +58,7 @@ import net.imglib2.RealInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.Volatile;
 import net.imglib2.cache.iotiming.CacheIoTiming;
+import net.imglib2.cache.iotiming.IoStatistics;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.img.array.ArrayImg;
@@ -80,7 +83,9 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.function.Function;
@@ -238,10 +243,25 @@ public class MultiResolutionRendererGeneric<T> {
 	 */
 	private int previousTimepoint;
 
-	private long[] iobudget = new long[]{100l * 1000000l, 10l * 1000000l};
-
 	private boolean prefetchCells = true;
 
+	/**
+	 * Extrapolates the viewer transform of new frames to prefetch data along the navigation path.
+	 */
+	private final NavigationPredictor navigationPredictor = new NavigationPredictor();
+
+	/**
+	 * Render cache hints of the images of the current frame, restored after predicted cells are enqueued with other
+	 * hints.
+	 */
+	private final Map<VolatileCachedCellImg<?, ?>, CacheHints> frameRenderCacheHints = new IdentityHashMap<>();
+
+	/**
+	 * Edge length of the screen tiles that {@link VolatileHierarchyProjector}s render and track independently, or
+	 * {@code 0} (the default) to render the whole screen region at once.
+	 */
+	private volatile int projectorTileSize = 0;
+
 	private final Function<T, ArrayImg<ARGBType, ? extends IntAccess>> wrapAsArrayImg;
 
 	private final ToIntFunction<T> width;
@@ -252,6 +272,12 @@ public class MultiResolutionRendererGeneric<T> {
 
 	private final AffineTransform3D currentProjectorTransform = new AffineTransform3D();
 
+	/**
+	 * Frame timing and cache statistics. Its {@link AdaptiveRenderController controller} chooses the
+	 * {@link #maxScreenScaleIndex coarsest screen scale} and the IO budget.
+	 */
+	private final RenderingMetrics metrics;
+
 	final AnimationTimer animation;
 
 	/**
@@ -268,6 +294,9 @@ public class MultiResolutionRendererGeneric<T> {
 	 * @param useVolatileIfAvailable     whether volatile versions of sources should be used if available.
 	 * @param accumulateProjectorFactory can be used to customize how sources are combined.
 	 * @param cacheControl               the cache controls IO budgeting and fetcher queue.
+	 * @param metrics                    frame timing and cache statistics, with the controller of the coarsest screen
+	 *                                   scale and IO budget. Can be shared across renderers, e.g. when a renderer is
+	 *                                   replaced after the display was resized.
 	 */
 	MultiResolutionRendererGeneric(
 			final TransformAwareRenderTargetGeneric<T> display,
@@ -279,6 +308,7 @@ public class MultiResolutionRendererGeneric<T> {
 			final boolean useVolatileIfAvailable,
 			final AccumulateProjectorFactory<ARGBType> accumulateProjectorFactory,
 			final CacheControl cacheControl,
+			final RenderingMetrics metrics,
 			final Function<T, ArrayImg<ARGBType, ? extends IntAccess>> wrapAsArrayImg,
 			final ImageGenerator<T> makeImage,
 			final ToIntFunction<T> width,
@@ -297,6 +327,7 @@ public class MultiResolutionRendererGeneric<T> {
 		this.height = height;
 		this.wrapAsArrayImg = wrapAsArrayImg;
 		this.targetRenderNanos = targetRenderNanos;
+		this.metrics = metrics;
 
 		renderingMayBeCancelled = true;
 		this.renderingTaskExecutor = renderingTaskExecutor;
@@ -441,6 +472,8 @@ public class MultiResolutionRendererGeneric<T> {
 		final boolean clearQueue;
 		final boolean createProjector;
 		final Interval repaintScreenInterval;
+		/* fraction of the render target that a new projector renders */
+		double renderedFraction = 1.0;
 
 		synchronized (this) {
 
@@ -466,7 +499,9 @@ public class MultiResolutionRendererGeneric<T> {
 			if (createProjector) {
 				currentScreenScaleIndex = requestedScreenScaleIndex;
 				renderTarget = getScreenImages(currentScreenScaleIndex).peek();
-
+				/* the viewer transform is shifted to the repaint interval below */
+				final AffineTransform3D frameTransform = viewerTransform.copy();
+				frameRenderCacheHints.clear();
 
 				synchronized (Optional.ofNullable(synchronizationLock).orElse(this)) {
 					final int numSources = sacs.size();
@@ -498,6 +533,7 @@ public class MultiResolutionRendererGeneric<T> {
 					);
 
 					final RandomAccessibleInterval<ARGBType> renderTargetRoi = Views.interval(wrapAsArrayImg.apply(renderTarget), renderTargetPaddedInterval);
+					renderedFraction = (double) Intervals.numElements(renderTargetPaddedInterval) / Intervals.numElements(getImageSize(renderTarget));
 
 					p = createProjector(
 							sacs,
@@ -510,6 +546,10 @@ public class MultiResolutionRendererGeneric<T> {
 
 					lastRenderedScreenInterval = repaintScreenInterval;
 					lastRenderTargetRealInterval = renderTargetRealInterval;
+
+					/* after the cells of the current frame were enqueued while creating the projector */
+					if (clearQueue && prefetchCells)
+						prefetchPredicted(sacs, timepoint, frameTransform, currentScreenScaleIndex, interpolationForSource);
 				}
 				projector = p;
 			} else {
@@ -521,14 +561,34 @@ public class MultiResolutionRendererGeneric<T> {
 
 		// try rendering
 		final boolean success;
+		final IoStatistics ioStatistics = CacheIoTiming.getIoStatistics();
+		final long startIoNanos = ioStatistics.getIoNanoTime();
+		final long startNanos = System.nanoTime();
 		synchronized (renderTarget) {
 			success = p.map(createProjector);
 		}
+		final long ioNanos = ioStatistics.getIoNanoTime() - startIoNanos;
+		final long renderNanos = Math.max(System.nanoTime() - startNanos - ioNanos, 0);
 
 		synchronized (this) {
 			// if rendering was not cancelled...
 			if (success) {
+				final RenderingMetrics metrics = this.metrics;
+				metrics.recordLatency(RenderingMetrics.Stage.PROJECTION, currentScreenScaleIndex, renderNanos);
+				if (ioNanos > 0)
+					metrics.recordLatency(RenderingMetrics.Stage.BLOCKING_IO, currentScreenScaleIndex, ioNanos);
 				if (createProjector) {
+					metrics.frameRendered(p.isValid());
+					/*
+					 * Only the first pass of a frame renders all pixels of the repaint interval, subsequent passes fill
+					 * in missing data. The controller extrapolates the render time to the whole screen by pixel count,
+					 * if it is adaptive.
+					 */
+					final AdaptiveRenderController controller = metrics.getController();
+					controller.frameRendered(currentScreenScaleIndex, renderNanos, renderedFraction, screenScales);
+					maxScreenScaleIndex = controller.getMaxScreenScaleIndex(screenScales.length);
+					metrics.setMaxScreenScaleIndex(maxScreenScaleIndex);
+
 					if (reuseBufferScreenScale >= screenImages.size())
 						return -1;
 
@@ -558,22 +618,6 @@ public class MultiResolutionRendererGeneric<T> {
 						reuseBufferScreenScale = currentScreenScaleIndex;
 					}
 
-					/**
-					 * TODO: design a better algorithm for adjusting maxScreenScaleIndex or remove and always use all screen scales.
-					 *
-					 * The current heuristic does not work well in the following cases:
-					 *
-					 * 1) With vastly different screen scale values such as [1.0, 0.1], it will switch between the two scales every frame.
-					 * At screen scale 0.1 rendering is fast, and after a frame is rendered, it switches maxScreenScaleIndex to 0.
-					 * However, at screen scale 1.0 rendering is slower than targetRenderNanos, so when the next frame is rendered, it switches maxScreenScaleIndex back to 1.
-					 * This causes annoying delays because when maxScreenScaleIndex is switched to 0, renderingMayBeCancelled is in turn set to false, and the algorithm has to wait
-					 * until the current high-res frame is fully rendered.
-					 *
-					 * 2) When the user starts painting, it re-renders only the affected interval which is usually very small compared to the size of the screen.
-					 * Usually rendering is very fast in this case, and maxScreenScaleIndex is quickly changed to 0.
-					 * When the user finishes painting and starts navigating again, there may be a delay in rendering the first few frames because
-					 * it starts from the highest available resolution and then gradually decreases the resolution until the rendertime is within the targetRenderNanos threshold.
-					 */
 				}
 
 				if (currentScreenScaleIndex > 0)
@@ -588,6 +632,7 @@ public class MultiResolutionRendererGeneric<T> {
 					requestRepaint(lastRenderedScreenInterval, currentScreenScaleIndex);
 				}
 			} else {
+				metrics.frameCancelled();
 				// FIXME: there is a race condition that sometimes may cause an ArrayIndexOutOfBounds exception:
 				// Screen scales are first initialized with the default setting (see ViewerRenderUnit),
 				// then the project metadata is loaded, and the screen scales are changed to the saved configuration.
@@ -606,6 +651,20 @@ public class MultiResolutionRendererGeneric<T> {
 		}
 	}
 
+	/**
+	 * @param tileSize edge length of screen tiles that are rendered and tracked independently, or {@code 0} to render
+	 *                 the whole screen region at once. Takes effect for the next frame.
+	 */
+	public void setProjectorTileSize(final int tileSize) {
+
+		this.projectorTileSize = Math.max(tileSize, 0);
+	}
+
+	public int getProjectorTileSize() {
+
+		return projectorTileSize;
+	}
+
 	public synchronized Interval getLastRenderedScreenInterval() {
 
 		return lastRenderedScreenInterval;
@@ -723,7 +782,7 @@ public class MultiResolutionRendererGeneric<T> {
 		}
 		previousTimepoint = timepoint;
 		currentProjectorTransform.set(viewerTransform);
-		CacheIoTiming.getIoTimeBudget().reset(iobudget);
+		CacheIoTiming.getIoTimeBudget().reset(metrics.getController().getIoBudget());
 		return projector;
 	}
 
@@ -824,6 +883,7 @@ public class MultiResolutionRendererGeneric<T> {
 		final List<Level> levels = hints.getLevels();
 
 		if (prefetchCells) {
+			final long startPrefetchNanos = System.nanoTime();
 			Collections.sort(levels, MipmapOrdering.prefetchOrderComparator);
 			for (final Level l : levels) {
 				final CacheHints cacheHints = l.getPrefetchCacheHints();
@@ -839,10 +899,14 @@ public class MultiResolutionRendererGeneric<T> {
 							interpolation
 					);
 			}
+			metrics.recordLatency(RenderingMetrics.Stage.PREFETCH, screenScaleIndex, System.nanoTime() - startPrefetchNanos);
 		}
 
 		Collections.sort(levels, MipmapOrdering.renderOrderComparator);
 		for (final Level l : levels) {
+			final RandomAccessibleInterval<V> img = spimSource.getSource(t, l.getMipmapLevel());
+			if (img instanceof VolatileCachedCellImg<?, ?>)
+				frameRenderCacheHints.put((VolatileCachedCellImg<?, ?>) img, l.getRenderCacheHints());
 			renderList.add(getTransformedSource(
 					spimSource,
 					t,
@@ -865,7 +929,8 @@ public class MultiResolutionRendererGeneric<T> {
 					source.getConverter(),
 					Views.stack(screenImage),
 					Views.stack(mask),
-					renderingTaskExecutor
+					renderingTaskExecutor,
+					projectorTileSize
 			);
 		else
 			return new VolatileHierarchyProjector<>(
@@ -873,7 +938,8 @@ public class MultiResolutionRendererGeneric<T> {
 					source.getConverter(),
 					Views.stack(screenImage),
 					Views.stack(mask),
-					renderingTaskExecutor
+					renderingTaskExecutor,
+					projectorTileSize
 			);
 	}
 
@@ -948,6 +1014,86 @@ public class MultiResolutionRendererGeneric<T> {
 			return df.format(d);
 	}
 
+	/**
+	 * Record {@code viewerTransform} of a new frame and, if the navigation is steady, enqueue the cells for the
+	 * {@link NavigationPredictor predicted} next viewer transforms with the lowest priority. Requests that are not
+	 * loaded by the next frame are moved to the prefetch queue by {@link CacheControl#prepareNextFrame()}. Nothing is
+	 * enqueued if the lowest priority of the cache control is not known.
+	 */
+	private void prefetchPredicted(
+			final List<SourceAndConverter<?>> sacs,
+			final int timepoint,
+			final AffineTransform3D viewerTransform,
+			final int screenScaleIndex,
+			final Function<Source<?>, Interpolation> interpolationForSource) {
+
+		final RenderingMetrics metrics = this.metrics;
+		final long nowNanos = System.nanoTime();
+		final NavigationPredictor.Outcome outcome = navigationPredictor.update(viewerTransform, nowNanos);
+		if (outcome != NavigationPredictor.Outcome.NONE)
+			metrics.predictionEvaluated(outcome == NavigationPredictor.Outcome.HIT);
+
+		final List<AffineTransform3D> predictedTransforms = navigationPredictor.predict(nowNanos);
+		final CacheHints predictedCacheHints = predictedCacheHints(cacheControl);
+		if (predictedTransforms.isEmpty() || predictedCacheHints == null)
+			return;
+
+		final AffineTransform3D screenScaleTransform = screenScaleTransforms[screenScaleIndex];
+		final Dimensions screenSize = new FinalDimensions(getImageSize(getScreenImages(screenScaleIndex).peek()));
+		for (final SourceAndConverter<?> sac : sacs) {
+			final Source<?> source;
+			if (useVolatileIfAvailable && sac.asVolatile() != null)
+				source = sac.asVolatile().getSpimSource();
+			else if (useVolatileIfAvailable && sac.getSpimSource().getType() instanceof Volatile)
+				source = sac.getSpimSource();
+			else
+				continue;
+
+			final MipmapOrdering ordering = MipmapOrdering.class.isInstance(source)
+					? (MipmapOrdering) source
+					: new DefaultMipmapOrdering(source);
+			final Interpolation interpolation = interpolationForSource.apply(sac.getSpimSource());
+			for (final AffineTransform3D predicted : predictedTransforms) {
+				final AffineTransform3D screenTransform = predicted.copy();
+				screenTransform.preConcatenate(screenScaleTransform);
+				for (final Level l : ordering.getMipmapHints(screenTransform, timepoint, timepoint).getLevels()) {
+					final CacheHints levelHints = l.getPrefetchCacheHints();
+					if (levelHints != null && levelHints.getLoadingStrategy() == LoadingStrategy.DONTLOAD)
+						continue;
+					prefetch(
+							source,
+							timepoint,
+							predicted,
+							screenScaleTransform,
+							l.getMipmapLevel(),
+							predictedCacheHints,
+							screenSize,
+							interpolation
+					);
+					/* cache hints are set on the image, restore them for the projector of the current frame */
+					final RandomAccessibleInterval<?> img = source.getSource(timepoint, l.getMipmapLevel());
+					if (img instanceof VolatileCachedCellImg<?, ?>) {
+						final VolatileCachedCellImg<?, ?> cellImg = (VolatileCachedCellImg<?, ?>) img;
+						cellImg.setCacheHints(frameRenderCacheHints.getOrDefault(cellImg, cellImg.getDefaultCacheHints()));
+					}
+				}
+			}
+		}
+		metrics.recordLatency(RenderingMetrics.Stage.PREDICTIVE_PREFETCH, screenScaleIndex, System.nanoTime() - nowNanos);
+	}
+
+	/**
+	 * @return volatile hints with the lowest priority of the fetcher queue, so that predicted cells never delay cells
+	 * of the current frame, or {@code null} if the number of priorities of {@code cacheControl} is not known
+	 */
+	public static CacheHints predictedCacheHints(final CacheControl cacheControl) {
+
+		if (!(cacheControl instanceof SharedQueue))
+			return null;
+		final int lowestPriority = ((SharedQueue) cacheControl).getNumPriorities() - 1;
+		return new CacheHints(LoadingStrategy.VOLATILE, lowestPriority, false);
+	}
+
 	private static <T> void prefetch(
 			final Source<T> source,
 			final int timepoint,
@@ -992,9 +1138,15 @@ public class MultiResolutionRendererGeneric<T> {
 	public synchronized void setScreenScales(final double[] screenScales) {
 
 		this.screenScales = screenScales.clone();
+		metrics.getController().reset();
 		createVariables();
 	}
 
+	public RenderingMetrics getRenderingMetrics() {
+
+		return metrics;
+	}
+
 	/**
 	 * Set {@code screenScaleTransform} to a screen scale transform at a given {@code screenScaleIndex}.
 	 *
@@ -0,0 +1,197 @@
+package org.janelia.saalfeldlab.bdv.fx.viewer.render;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Extrapolates steady navigation, e.g. scrolling through sections with the mouse wheel or panning, from the recent
+ * history of viewer transforms. If the last two steps agree, the next steps are predicted to be the same again.
+ * <p>
+ * Predictions are evaluated when the next distinct transform is {@link #update(AffineTransform3D, long) recorded}:
+ * a prediction is a hit if the new transform is within half a step of any of the pending predicted transforms.
+ */
+public class NavigationPredictor {
+
+	public enum Outcome {
+		/**
+		 * No prediction was pending, or the transform did not change.
+		 */
+		NONE,
+		HIT,
+		MISS
+	}
+
+	public static final int DEFAULT_STEPS = 3;
+
+	/**
+	 * Steps that are further apart in time are not considered part of the same motion.
+	 */
+	public static final long DEFAULT_MAX_STEP_NANOS = 500_000_000L;
+
+	/**
+	 * Maximum absolute difference of the linear parts of consecutive steps.
+	 */
+	private static final double LINEAR_TOLERANCE = 1e-2;
+
+	/**
+	 * Minimum cosine between the translations of consecutive steps.
+	 */
+	private static final double MIN_DIRECTION_COSINE = 0.9;
+
+	/**
+	 * Maximum ratio between the translation lengths of consecutive steps.
+	 */
+	private static final double MAX_SPEED_RATIO = 2.0;
+
+	private final int steps;
+
+	private final long maxStepNanos;
+
+	private final AffineTransform3D last = new AffineTransform3D();
+
+	private long lastNanos;
+
+	private boolean hasLast = false;
+
+	/* step from the second to last to the last transform, or null */
+	private AffineTransform3D lastStep = null;
+
+	private long lastStepNanos;
+
+	/* step before lastStep, or null */
+	private AffineTransform3D previousStep = null;
+
+	private final List<AffineTransform3D> pending = new ArrayList<>();
+
+	private double pendingTolerance;
+
+	public NavigationPredictor() {
+
+		this(DEFAULT_STEPS, DEFAULT_MAX_STEP_NANOS);
+	}
+
+	/**
+	 * @param steps        number of steps to predict ahead
+	 * @param maxStepNanos transforms that are further apart in time are not extrapolated
+	 */
+	public NavigationPredictor(final int steps, final long maxStepNanos) {
+
+		this.steps = steps;
+		this.maxStepNanos = maxStepNanos;
+	}
+
+	/**
+	 * Record the current viewer transform.
+	 *
+	 * @return whether the {@link #predict(long) predictions} that were pending were correct
+	 */
+	public synchronized Outcome update(final AffineTransform3D transform, final long nanos) {
+
+		if (hasLast && isClose(transform, last, 1e-6, 1e-6))
+			return Outcome.NONE;
+
+		Outcome outcome = Outcome.NONE;
+		if (!pending.isEmpty()) {
+			outcome = Outcome.MISS;
+			for (final AffineTransform3D predicted : pending)
+				if (isClose(transform, predicted, LINEAR_TOLERANCE, pendingTolerance)) {
+					outcome = Outcome.HIT;
+					break;
+				}
+			pending.clear();
+		}
+
+		if (hasLast) {
+			final AffineTransform3D step = transform.copy();
+			step.concatenate(last.inverse());
+			final boolean continued = lastStep != null && nanos - lastStepNanos <= maxStepNanos;
+			previousStep = continued ? lastStep : null;
+			lastStep = step;
+			lastStepNanos = nanos;
+		}
+		last.set(transform);
+		lastNanos = nanos;
+		hasLast = true;
+		return outcome;
+	}
+
+	/**
+	 * Extrapolate the last step, if the last two steps were consistent and recent. The returned transforms are
+	 * pending until the next call to {@link #update(AffineTransform3D, long)}.
+	 *
+	 * @return predicted future viewer transforms, nearest first, or an empty list if the motion is not steady
+	 */
+	public synchronized List<AffineTransform3D> predict(final long nanos) {
+
+		pending.clear();
+		if (lastStep == null || previousStep == null || nanos - lastNanos > maxStepNanos || !isConsistent(previousStep, lastStep))
+			return Collections.emptyList();
+
+		final List<AffineTransform3D> predicted = new ArrayList<>(steps);
+		final AffineTransform3D next = last.copy();
+		for (int i = 0; i < steps; ++i) {
+			next.preConcatenate(lastStep);
+			predicted.add(next.copy());
+		}
+		pending.addAll(predicted);
+		pendingTolerance = 0.5 * translationLength(lastStep);
+		return predicted;
+	}
+
+	public synchronized void reset() {
+
+		hasLast = false;
+		lastStep = null;
+		previousStep = null;
+		pending.clear();
+	}
+
+	private static boolean isConsistent(final AffineTransform3D previous, final AffineTransform3D current) {
+
+		for (int r = 0; r < 3; ++r)
+			for (int c = 0; c < 3; ++c)
+				if (Math.abs(previous.get(r, c) - current.get(r, c)) > LINEAR_TOLERANCE)
+					return false;
+
+		final double previousLength = translationLength(previous);
+		final double currentLength = translationLength(current);
+		if (previousLength == 0 || currentLength == 0)
+			return false;
+		if (Math.max(previousLength, currentLength) > MAX_SPEED_RATIO * Math.min(previousLength, currentLength))
+			return false;
+
+		double dot = 0;
+		for (int d = 0; d < 3; ++d)
+			dot += previous.get(d, 3) * current.get(d, 3);
+		return dot / (previousLength * currentLength) >= MIN_DIRECTION_COSINE;
+	}
+
+	private static boolean isClose(
+			final AffineTransform3D transform,
+			final AffineTransform3D other,
+			final double linearTolerance,
+			final double translationTolerance) {
+
+		for (int r = 0; r < 3; ++r)
+			for (int c = 0; c < 3; ++c)
+				if (Math.abs(transform.get(r, c) - other.get(r, c)) > linearTolerance)
+					return false;
+		double distanceSquared = 0;
+		for (int d = 0; d < 3; ++d) {
+			final double diff = transform.get(d, 3) - other.get(d, 3);
+			distanceSquared += diff * diff;
+		}
+		return distanceSquared <= translationTolerance * translationTolerance;
+	}
+
+	private static double translationLength(final AffineTransform3D transform) {
+
+		double lengthSquared = 0;
+		for (int d = 0; d < 3; ++d)
+			lengthSquared += transform.get(d, 3) * transform.get(d, 3);
+		return Math.sqrt(lengthSquared);
+	}
+}
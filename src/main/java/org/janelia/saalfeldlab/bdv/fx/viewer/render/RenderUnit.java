@@ -34,6 +34,8 @@ public abstract class RenderUnit implements PainterThreadFx.Paintable {
 	protected final CacheControl cacheControl;
 	protected final long targetRenderNanos;
 	protected final TaskExecutor renderingTaskExecutor;
+	protected final RenderingMetrics renderingMetrics;
+	private int projectorTileSize = 0;
 	private final long[] dimensions = {0, 0};
 	private final List<Runnable> updateListeners = new ArrayList<>();
 	protected MultiResolutionRendererFX renderer;
@@ -56,6 +58,7 @@ public abstract class RenderUnit implements PainterThreadFx.Paintable {
 		this.accumulateProjectorFactory = accumulateProjectorFactory;
 		this.cacheControl = cacheControl;
 		this.targetRenderNanos = targetRenderNanos;
+		this.renderingMetrics = new RenderingMetrics(new AdaptiveRenderController(targetRenderNanos));
 		this.renderingTaskExecutor = renderingTaskExecutor;
 		this.useVolatileIfAvailable = useVolatileIfAvailable;
 	}
@@ -94,6 +97,22 @@ public abstract class RenderUnit implements PainterThreadFx.Paintable {
 			renderer.setScreenScales(screenScales);
 	}
 
+	/**
+	 * @param tileSize edge length of screen tiles that are rendered and tracked independently, or {@code 0} to render
+	 *                 the whole screen at once. Kept when the renderer is replaced.
+	 */
+	public synchronized void setProjectorTileSize(final int tileSize) {
+
+		this.projectorTileSize = Math.max(tileSize, 0);
+		if (renderer != null)
+			renderer.setProjectorTileSize(projectorTileSize);
+	}
+
+	public synchronized int getProjectorTileSize() {
+
+		return projectorTileSize;
+	}
+
 	public synchronized ObjectProperty<double[]> getScreenScalesProperty() {
 
 		return screenScalesProperty;
@@ -172,6 +191,7 @@ public abstract class RenderUnit implements PainterThreadFx.Paintable {
 
 		renderTarget = new TransformAwareBufferedImageOverlayRendererFX();
 		renderTarget.setCanvasSize((int)dimensions[0], (int)dimensions[1]);
+		renderTarget.setRenderingMetrics(renderingMetrics);
 
 		if (painterThread == null || !painterThread.isAlive()) {
 			painterThread = new PainterThreadFx(threadGroup, "painter-thread", this);
@@ -187,12 +207,22 @@ public abstract class RenderUnit implements PainterThreadFx.Paintable {
 				renderingTaskExecutor,
 				useVolatileIfAvailable,
 				accumulateProjectorFactory,
-				cacheControl
+				cacheControl,
+				renderingMetrics
 		);
+		renderer.setProjectorTileSize(projectorTileSize);
 
 		notifyUpdated();
 	}
 
+	/**
+	 * @return rendering metrics of this render unit, kept across renderer updates
+	 */
+	public RenderingMetrics getRenderingMetrics() {
+
+		return renderingMetrics;
+	}
+
 	public synchronized ReadOnlyObjectProperty<RenderResult> getRenderedImageProperty() {
 
 		return renderResultProperty;
@@ -0,0 +1,367 @@
+package org.janelia.saalfeldlab.bdv.fx.viewer.render;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rendering metrics of a single viewer: latency histograms per {@link Stage stage} and screen scale, the fraction of
+ * frames that could be rendered completely from cached data, and the number of cancelled frames. The metrics also
+ * expose the {@link AdaptiveRenderController} of the viewer, and can be {@link #register(String) registered} with the
+ * platform MBean server.
+ */
+public class RenderingMetrics implements RenderingMetricsMXBean {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	public enum Stage {
+		/**
+		 * Mapping sources to the screen image, excluding blocking IO.
+		 */
+		PROJECTION,
+		/**
+		 * Requesting data for the next frame from the cache.
+		 */
+		PREFETCH,
+		/**
+		 * Requesting data along the {@link NavigationPredictor predicted} navigation path.
+		 */
+		PREDICTIVE_PREFETCH,
+		/**
+		 * Waiting for data during projection.
+		 */
+		BLOCKING_IO,
+		/**
+		 * Handing the rendered image to JavaFX.
+		 */
+		IMAGE_UPLOAD
+	}
+
+	private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+	private final ConcurrentMap<Integer, LatencyHistogram>[] histograms;
+
+	private final AtomicLong framesRendered = new AtomicLong();
+
+	private final AtomicLong framesFromCache = new AtomicLong();
+
+	private final AtomicLong framesCancelled = new AtomicLong();
+
+	private final AtomicLong predictionHits = new AtomicLong();
+
+	private final AtomicLong predictionMisses = new AtomicLong();
+
+	private final AdaptiveRenderController controller;
+
+	private volatile int maxScreenScaleIndex = -1;
+
+	@SuppressWarnings("unchecked")
+	public RenderingMetrics(final AdaptiveRenderController controller) {
+
+		this.controller = controller;
+		this.histograms = new ConcurrentMap[Stage.values().length];
+		for (int i = 0; i < histograms.length; ++i)
+			histograms[i] = new ConcurrentHashMap<>();
+	}
+
+	public AdaptiveRenderController getController() {
+
+		return controller;
+	}
+
+	public void recordLatency(final Stage stage, final int screenScaleIndex, final long nanos) {
+
+		histograms[stage.ordinal()].computeIfAbsent(screenScaleIndex, k -> new LatencyHistogram()).record(nanos);
+	}
+
+	/**
+	 * @param fromCache whether all data for the frame was available in the first pass
+	 */
+	public void frameRendered(final boolean fromCache) {
+
+		framesRendered.incrementAndGet();
+		if (fromCache)
+			framesFromCache.incrementAndGet();
+	}
+
+	public void frameCancelled() {
+
+		framesCancelled.incrementAndGet();
+	}
+
+	/**
+	 * @param hit whether the viewer moved to one of the transforms for which data was prefetched
+	 */
+	public void predictionEvaluated(final boolean hit) {
+
+		if (hit)
+			predictionHits.incrementAndGet();
+		else
+			predictionMisses.incrementAndGet();
+	}
+
+	void setMaxScreenScaleIndex(final int maxScreenScaleIndex) {
+
+		this.maxScreenScaleIndex = maxScreenScaleIndex;
+	}
+
+	/**
+	 * @return histogram of {@code stage} at {@code screenScaleIndex}, or {@code null} if nothing was recorded
+	 */
+	public LatencyHistogram getHistogram(final Stage stage, final int screenScaleIndex) {
+
+		return histograms[stage.ordinal()].get(screenScaleIndex);
+	}
+
+	@Override
+	public long getFramesRendered() {
+
+		return framesRendered.get();
+	}
+
+	@Override
+	public long getFramesCancelled() {
+
+		return framesCancelled.get();
+	}
+
+	@Override
+	public double getCacheHitRate() {
+
+		final long rendered = framesRendered.get();
+		return rendered == 0 ? Double.NaN : framesFromCache.get() / (double)rendered;
+	}
+
+	@Override
+	public long getPredictionsEvaluated() {
+
+		return predictionHits.get() + predictionMisses.get();
+	}
+
+	@Override
+	public double getPredictionAccuracy() {
+
+		final long hits = predictionHits.get();
+		final long total = hits + predictionMisses.get();
+		return total == 0 ? Double.NaN : hits / (double)total;
+	}
+
+	@Override
+	public Map<String, Double> getLatencyPercentilesMillis() {
+
+		final Map<String, Double> percentiles = new TreeMap<>();
+		for (final Stage stage : Stage.values()) {
+			histograms[stage.ordinal()].forEach((scale, histogram) -> {
+				for (final double p : PERCENTILES) {
+					final String key = String.format(Locale.ROOT, "%s/scale-%d/p%d", stage.name().toLowerCase(Locale.ROOT), scale, Math.round(p * 100));
+					percentiles.put(key, histogram.percentileNanos(p) * 1e-6);
+				}
+			});
+		}
+		return percentiles;
+	}
+
+	@Override
+	public double getTargetFrameRate() {
+
+		return 1e9 / controller.getTargetFrameNanos();
+	}
+
+	@Override
+	public void setTargetFrameRate(final double framesPerSecond) {
+
+		if (framesPerSecond > 0)
+			controller.setTargetFrameNanos((long)(1e9 / framesPerSecond));
+	}
+
+	@Override
+	public boolean isAdaptive() {
+
+		return controller.isAdaptive();
+	}
+
+	@Override
+	public void setAdaptive(final boolean adaptive) {
+
+		controller.setAdaptive(adaptive);
+	}
+
+	@Override
+	public int getMaxScreenScaleIndex() {
+
+		return maxScreenScaleIndex;
+	}
+
+	@Override
+	public double getIoBudgetMillis() {
+
+		return controller.getIoBudget()[0] * 1e-6;
+	}
+
+	@Override
+	public void reset() {
+
+		for (final ConcurrentMap<Integer, LatencyHistogram> stageHistograms : histograms)
+			stageHistograms.clear();
+		framesRendered.set(0);
+		framesFromCache.set(0);
+		framesCancelled.set(0);
+		predictionHits.set(0);
+		predictionMisses.set(0);
+	}
+
+	/**
+	 * @return human-readable summary for {@code screenScaleIndex}, one entry per line
+	 */
+	public List<String> summary(final int screenScaleIndex) {
+
+		final List<String> lines = new ArrayList<>();
+		lines.add(String.format(
+				Locale.ROOT,
+				"target %.0f fps, max scale %d, io budget %.1f ms%s",
+				getTargetFrameRate(),
+				maxScreenScaleIndex,
+				getIoBudgetMillis(),
+				isAdaptive() ? "" : " (fixed)"));
+		lines.add(String.format(
+				Locale.ROOT,
+				"frames %d, cancelled %d, cache hits %.0f%%",
+				getFramesRendered(),
+				getFramesCancelled(),
+				100 * getCacheHitRate()));
+		if (getPredictionsEvaluated() > 0)
+			lines.add(String.format(
+					Locale.ROOT,
+					"predictions %d, accuracy %.0f%%",
+					getPredictionsEvaluated(),
+					100 * getPredictionAccuracy()));
+		for (final Stage stage : Stage.values()) {
+			final LatencyHistogram histogram = getHistogram(stage, screenScaleIndex);
+			if (histogram == null || histogram.getCount() == 0)
+				continue;
+			lines.add(String.format(
+					Locale.ROOT,
+					"%-19s p50 %6.1f ms  p95 %6.1f ms",
+					stage.name().toLowerCase(Locale.ROOT),
+					histogram.percentileNanos(0.5) * 1e-6,
+					histogram.percentileNanos(0.95) * 1e-6));
+		}
+		return lines;
+	}
+
+	/**
+	 * Register with the platform MBean server as {@code org.janelia.saalfeldlab.paintera:type=RenderingMetrics,name=<name>}.
+	 *
+	 * @return the registered name, or {@code null} if registration failed
+	 */
+	public ObjectName register(final String name) {
+
+		try {
+			final ObjectName objectName = new ObjectName("org.janelia.saalfeldlab.paintera:type=RenderingMetrics,name=" + ObjectName.quote(name));
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+			return objectName;
+		} catch (final JMException e) {
+			LOG.warn("Unable to register rendering metrics for {}", name, e);
+			return null;
+		}
+	}
+
+	public static void unregister(final ObjectName name) {
+
+		if (name == null)
+			return;
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (final JMException e) {
+			LOG.debug("Unable to unregister rendering metrics {}", name, e);
+		}
+	}
+
+	/**
+	 * Histogram with exponentially growing buckets, starting at {@link #SMALLEST_BUCKET_NANOS}.
+	 */
+	public static class LatencyHistogram {
+
+		private static final long SMALLEST_BUCKET_NANOS = 50_000L;
+
+		private static final int NUM_BUCKETS = 20;
+
+		private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		public void record(final long nanos) {
+
+			counts.incrementAndGet(bucket(nanos));
+			count.incrementAndGet();
+			totalNanos.addAndGet(Math.max(nanos, 0));
+		}
+
+		public long getCount() {
+
+			return count.get();
+		}
+
+		public double meanNanos() {
+
+			final long n = count.get();
+			return n == 0 ? Double.NaN : totalNanos.get() / (double)n;
+		}
+
+		/**
+		 * @return upper bound of the bucket that contains the {@code percentile} (in {@code [0, 1]}) of all
+		 * recorded values, or {@link Double#NaN} if empty
+		 */
+		public double percentileNanos(final double percentile) {
+
+			final long n = count.get();
+			if (n == 0)
+				return Double.NaN;
+			final long rank = (long)Math.ceil(percentile * n);
+			long cumulative = 0;
+			for (int bucket = 0; bucket < NUM_BUCKETS; ++bucket) {
+				cumulative += counts.get(bucket);
+				if (cumulative >= rank)
+					return upperBoundNanos(bucket);
+			}
+			return upperBoundNanos(NUM_BUCKETS - 1);
+		}
+
+		static int bucket(final long nanos) {
+
+			int bucket = 0;
+			long upperBound = SMALLEST_BUCKET_NANOS;
+			while (nanos > upperBound && bucket < NUM_BUCKETS - 1) {
+				upperBound <<= 1;
+				++bucket;
+			}
+			return bucket;
+		}
+
+		static long upperBoundNanos(final int bucket) {
+
+			return SMALLEST_BUCKET_NANOS << bucket;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.janelia.saalfeldlab.bdv.fx.viewer.render;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link RenderingMetrics} of a single viewer.
+ */
+public interface RenderingMetricsMXBean {
+
+	long getFramesRendered();
+
+	long getFramesCancelled();
+
+	/**
+	 * @return fraction of rendered frames that were complete in the first pass, i.e. all data was cached
+	 */
+	double getCacheHitRate();
+
+	/**
+	 * @return number of navigation predictions that were checked against the actual next viewer transform
+	 */
+	long getPredictionsEvaluated();
+
+	/**
+	 * @return fraction of navigation predictions for which the viewer moved to a predicted transform
+	 */
+	double getPredictionAccuracy();
+
+	/**
+	 * @return latency percentiles in milliseconds, keyed by {@code <stage>/scale-<screen scale index>/<percentile>}
+	 */
+	Map<String, Double> getLatencyPercentilesMillis();
+
+	double getTargetFrameRate();
+
+	void setTargetFrameRate(double framesPerSecond);
+
+	boolean isAdaptive();
+
+	/**
+	 * Choose the coarsest screen scale and the IO budget from measured render times. Off by default.
+	 */
+	void setAdaptive(boolean adaptive);
+
+	int getMaxScreenScaleIndex();
+
+	double getIoBudgetMillis();
+
+	void reset();
+}
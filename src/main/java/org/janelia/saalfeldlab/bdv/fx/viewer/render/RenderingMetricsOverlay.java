@@ -0,0 +1,62 @@
+package org.janelia.saalfeldlab.bdv.fx.viewer.render;
+
+import javafx.beans.value.ObservableBooleanValue;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+
+import java.util.List;
+
+/**
+ * Show a {@link RenderingMetrics#summary(int) summary} of {@link RenderingMetrics} in the top left corner of a viewer.
+ */
+public class RenderingMetricsOverlay implements OverlayRendererGeneric<GraphicsContext> {
+
+	private static final Font FONT = Font.font("Monospaced", 11.0);
+
+	private static final Color BACKGROUND = Color.BLACK.deriveColor(0.0, 1.0, 1.0, 0.6);
+
+	private static final double LINE_HEIGHT = 14.0;
+
+	private static final double MARGIN = 6.0;
+
+	private static final double CHARACTER_WIDTH = 7.0;
+
+	private final RenderingMetrics metrics;
+
+	private final ObservableBooleanValue isVisible;
+
+	private int width = 0;
+
+	private int height = 0;
+
+	public RenderingMetricsOverlay(final RenderingMetrics metrics, final ObservableBooleanValue isVisible) {
+
+		this.metrics = metrics;
+		this.isVisible = isVisible;
+	}
+
+	@Override
+	public void drawOverlays(final GraphicsContext g) {
+
+		if (!isVisible.get() || width <= 0 || height <= 0)
+			return;
+
+		final List<String> lines = metrics.summary(0);
+		final int maxLength = lines.stream().mapToInt(String::length).max().orElse(0);
+		g.setFill(BACKGROUND);
+		g.fillRect(MARGIN, MARGIN, maxLength * CHARACTER_WIDTH + 2 * MARGIN, lines.size() * LINE_HEIGHT + MARGIN);
+
+		g.setFont(FONT);
+		g.setFill(Color.WHITE);
+		for (int i = 0; i < lines.size(); ++i)
+			g.fillText(lines.get(i), 2 * MARGIN, MARGIN + (i + 1) * LINE_HEIGHT);
+	}
+
+	@Override
+	public void setCanvasSize(final int width, final int height) {
+
+		this.width = width;
+		this.height = height;
+	}
+}
@@ -58,6 +58,8 @@ public class TransformAwareBufferedImageOverlayRendererFX extends ImageOverlayRe
 	 */
 	protected final CopyOnWriteArrayList<TransformListener<AffineTransform3D>> paintedTransformListeners;
 
+	private volatile RenderingMetrics renderingMetrics;
+
 	public TransformAwareBufferedImageOverlayRendererFX() {
 
 		super();
@@ -77,9 +79,26 @@ public class TransformAwareBufferedImageOverlayRendererFX extends ImageOverlayRe
 		}
 	}
 
+	/**
+	 * @param renderingMetrics record the time it takes to hand rendered images to JavaFX, may be {@code null}
+	 */
+	public void setRenderingMetrics(final RenderingMetrics renderingMetrics) {
+
+		this.renderingMetrics = renderingMetrics;
+	}
+
 	@Override
 	public void drawOverlays(final Consumer<Image> g) {
 
+		drawOverlays(-1, g);
+	}
+
+	/**
+	 * Like {@link #drawOverlays(Consumer)}, and record the {@link RenderingMetrics.Stage#IMAGE_UPLOAD upload} time
+	 * for {@code screenScaleIndex} if {@code screenScaleIndex} is not negative.
+	 */
+	public void drawOverlays(final int screenScaleIndex, final Consumer<Image> g) {
+
 		boolean notifyTransformListeners = !paintedTransform.equals(pendingTransform);
 		final PixelBufferWritableImage sourceImage;
 		synchronized (this) {
@@ -112,8 +131,12 @@ public class TransformAwareBufferedImageOverlayRendererFX extends ImageOverlayRe
 				//	px.set(px.get() | FULL_OPACITY);
 				//}
 
+				final long startNanos = System.nanoTime();
 				sourceImage.setPixelsDirty();
 				g.accept(sourceImage);
+				final RenderingMetrics metrics = renderingMetrics;
+				if (metrics != null && screenScaleIndex >= 0)
+					metrics.recordLatency(RenderingMetrics.Stage.IMAGE_UPLOAD, screenScaleIndex, System.nanoTime() - startNanos);
 				// TODO add countdown latch to wait for setImage to return before notifying listeners
 				if (notify)
 					for (final TransformListener<AffineTransform3D> listener : paintedTransformListeners) {
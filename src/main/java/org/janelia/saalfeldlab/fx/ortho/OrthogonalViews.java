@@ -6,6 +6,8 @@ import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerOptions;
 import javafx.beans.binding.BooleanBinding;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.collections.ListChangeListener;
 import javafx.event.Event;
 import javafx.event.EventHandler;
@@ -17,6 +19,9 @@ import net.imglib2.parallel.TaskExecutor;
 import net.imglib2.parallel.TaskExecutors;
 import net.imglib2.realtransform.AffineTransform3D;
 import org.janelia.saalfeldlab.bdv.fx.viewer.ViewerPanelFX;
+import org.janelia.saalfeldlab.bdv.fx.viewer.project.VolatileHierarchyProjector;
+import org.janelia.saalfeldlab.bdv.fx.viewer.render.RenderingMetrics;
+import org.janelia.saalfeldlab.bdv.fx.viewer.render.RenderingMetricsOverlay;
 import org.janelia.saalfeldlab.paintera.Paintera;
 import org.janelia.saalfeldlab.paintera.PainteraBaseView;
 import org.janelia.saalfeldlab.paintera.control.actions.AllowedActionsProperty;
@@ -27,7 +32,9 @@ import org.janelia.saalfeldlab.paintera.state.GlobalTransformManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ForkJoinPool;
@@ -49,8 +56,16 @@ public class OrthogonalViews<BR extends Node> {
 
 	private final TaskExecutor renderingTaskExecutor;
 
+	private final BooleanProperty renderingMetricsVisible = new SimpleBooleanProperty(false);
+
+	private final BooleanProperty tiledRendering = new SimpleBooleanProperty(false);
+
+	private final List<ObjectName> renderingMetricsNames = new ArrayList<>();
+
 	public void stop() {
 
+		renderingMetricsNames.forEach(RenderingMetrics::unregister);
+		renderingMetricsNames.clear();
 		renderingTaskExecutor.close();
 	}
 
@@ -173,6 +188,14 @@ public class OrthogonalViews<BR extends Node> {
 		this.topRight = create(this.manager, cacheControl, optional, ViewerAxis.X, interpolation, renderingTaskExecutor);
 		this.bottomLeft = create(this.manager, cacheControl, optional, ViewerAxis.Y, interpolation, renderingTaskExecutor);
 		this.bottomRight = bottomRight;
+		addRenderingMetrics(topLeft, ViewerAxis.Z);
+		addRenderingMetrics(topRight, ViewerAxis.X);
+		addRenderingMetrics(bottomLeft, ViewerAxis.Y);
+		tiledRendering.addListener((obs, oldv, tiled) -> {
+			final int tileSize = tiled ? VolatileHierarchyProjector.DEFAULT_TILE_SIZE : 0;
+			applyToAll(viewer -> viewer.getRenderUnit().setProjectorTileSize(tileSize));
+			requestRepaint();
+		});
 		this.pane = new DynamicCellPane();
 		resetPane();
 		Paintera.whenPaintable(() -> {
@@ -182,6 +205,15 @@ public class OrthogonalViews<BR extends Node> {
 		this.queue = cacheControl;
 	}
 
+	private void addRenderingMetrics(final ViewerAndTransforms viewerAndTransforms, final ViewerAxis axis) {
+
+		final RenderingMetrics metrics = viewerAndTransforms.viewer.getRenderUnit().getRenderingMetrics();
+		final ObjectName name = metrics.register("viewer-" + axis.name().toLowerCase());
+		if (name != null)
+			renderingMetricsNames.add(name);
+		viewerAndTransforms.viewer.getDisplay().addOverlayRenderer(new RenderingMetricsOverlay(metrics, renderingMetricsVisible));
+	}
+
 	private void listenOnResizePermissions(DynamicCellPane pane) {
 
 		final PainteraBaseView paintera = Paintera.getPaintera().getBaseView();
@@ -252,6 +284,22 @@ public class OrthogonalViews<BR extends Node> {
 		applyToAll(it -> it.getDisplay().drawOverlays());
 	}
 
+	/**
+	 * @return whether rendering metrics are shown on top of all {@link ViewerPanelFX viewer children}
+	 */
+	public BooleanProperty renderingMetricsVisibleProperty() {
+
+		return renderingMetricsVisible;
+	}
+
+	/**
+	 * @return whether {@link ViewerPanelFX viewer children} render the screen in independent tiles, off by default
+	 */
+	public BooleanProperty tiledRenderingProperty() {
+
+		return tiledRendering;
+	}
+
 	/**
 	 * {@link ViewerPanelFX#setAllSources(Collection)}} for all {@link ViewerPanelFX viewer children} (top left, top right, bottom left)
 	 *
@@ -73,6 +73,14 @@ public class AccessedBlocksRandomAccessible<T> extends AbstractWrappedInterval<R
 		}
 	}
 
+	/**
+	 * Register block {@code id} as accessed, e.g. after writing to it through {@link #getSource()}.
+	 */
+	public void addBlock(final long id) {
+
+		addBlockId(id);
+	}
+
 	public long[] listBlocks() {
 		synchronized (visitedBlocks) {
 			return visitedBlocks.toArray();
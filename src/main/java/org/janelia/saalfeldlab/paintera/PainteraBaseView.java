@@ -344,8 +344,9 @@ public class PainteraBaseView {
 	 * Changes to {@link SourceState#compositeProperty()} trigger
 	 * {@link OrthogonalViews#requestRepaint() a request for repaint} of the underlying viewers.
 	 * <p>
-	 * If {@code state} holds a {@link MaskedSource}, {@link MaskedSource#showCanvasOverBackgroundProperty()}
-	 * and {@link MaskedSource#currentCanvasDirectoryProperty()} trigger {@link OrthogonalViews#requestRepaint()}.
+	 * If {@code state} holds a {@link MaskedSource}, {@link MaskedSource#showCanvasOverBackgroundProperty()},
+	 * {@link MaskedSource#currentCanvasDirectoryProperty()}, and {@link MaskedSource#isCommittingInBackgroundProperty()}
+	 * trigger {@link OrthogonalViews#requestRepaint()}.
 	 *
 	 * @param state generic state
 	 * @param <D>   Data type of {@code state}
@@ -361,6 +362,7 @@ public class PainteraBaseView {
 			final MaskedSource<?, ?> ms = ((MaskedSource<?, ?>)state.getDataSource());
 			ms.showCanvasOverBackgroundProperty().addListener(obs -> orthogonalViews().requestRepaint());
 			ms.currentCanvasDirectoryProperty().addListener(obs -> orthogonalViews().requestRepaint());
+			ms.isCommittingInBackgroundProperty().addListener(obs -> orthogonalViews().requestRepaint());
 		}
 	}
 
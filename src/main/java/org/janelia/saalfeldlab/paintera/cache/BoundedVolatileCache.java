@@ -0,0 +1,86 @@
+package org.janelia.saalfeldlab.paintera.cache;
+
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.volatiles.CreateInvalid;
+
+import java.util.concurrent.Callable;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link WeakRefVolatileCache} that additionally keeps strong references to valid values within the byte budget of a
+ * {@link CellCacheBudget}. Unlike with {@link WeakRefVolatileCache}, the frequently used working set of a source is not
+ * lost whenever the garbage collector runs.
+ */
+public class BoundedVolatileCache<K, V> extends WeakRefVolatileCache<K, V> {
+
+	private final CellCacheBudget budget;
+
+	private final ToLongFunction<? super V> weigher;
+
+	private BoundedVolatileCache(
+			final Cache<K, V> backingCache,
+			final net.imglib2.cache.Invalidate<K> backingInvalidate,
+			final BlockingFetchQueues<Callable<?>> fetchQueue,
+			final CreateInvalid<? super K, ? extends V> createInvalid,
+			final CellCacheBudget budget,
+			final ToLongFunction<? super V> weigher) {
+
+		super(backingCache, backingInvalidate, fetchQueue, createInvalid);
+		this.budget = budget;
+		this.weigher = weigher;
+	}
+
+	public static <K, V> BoundedVolatileCache<K, V> fromCacheAndInvalidate(
+			final Cache<K, V> backingCache,
+			final net.imglib2.cache.Invalidate<K> backingInvalidate,
+			final BlockingFetchQueues<Callable<?>> fetchQueue,
+			final CreateInvalid<? super K, ? extends V> createInvalid,
+			final CellCacheBudget budget,
+			final ToLongFunction<? super V> weigher) {
+
+		return new BoundedVolatileCache<>(backingCache, backingInvalidate, fetchQueue, createInvalid, budget, weigher);
+	}
+
+	/**
+	 * @param weigher size of a value in bytes, e.g. {@link CellWeights#weigh(Object)}
+	 */
+	public static <K, V> BoundedVolatileCache<K, V> fromCache(
+			final Cache<K, V> cacheWithInvalidate,
+			final BlockingFetchQueues<Callable<?>> fetchQueue,
+			final CreateInvalid<? super K, ? extends V> createInvalid,
+			final CellCacheBudget budget,
+			final ToLongFunction<? super V> weigher) {
+
+		return fromCacheAndInvalidate(cacheWithInvalidate, cacheWithInvalidate, fetchQueue, createInvalid, budget, weigher);
+	}
+
+	public CellCacheBudget getBudget() {
+
+		return budget;
+	}
+
+	@Override
+	protected void loaded(final K key, final V value) {
+
+		budget.loaded(this, key, value, weigher.applyAsLong(value));
+	}
+
+	@Override
+	protected void accessed(final K key, final V value) {
+
+		budget.accessed(this, key);
+	}
+
+	@Override
+	protected void invalidated(final K key) {
+
+		budget.invalidate(this, key);
+	}
+
+	@Override
+	protected void invalidatedAll() {
+
+		budget.invalidateAll(this);
+	}
+}
@@ -0,0 +1,427 @@
+package org.janelia.saalfeldlab.paintera.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Byte budget for strongly retained cells of one or more {@link BoundedVolatileCache caches}, e.g. all scale levels of
+ * a source.
+ * <p>
+ * Retention follows W-TinyLFU: newly loaded cells enter a small LRU window. Cells that fall out of the window are only
+ * admitted to the main LRU region if they were requested more often than the cell that would be evicted to make room
+ * for them, as estimated by a count-min sketch. That way, a single pan over a large region does not evict the cells
+ * that are revisited all the time. Cells that are not retained are only weakly reachable from the volatile cache and
+ * may be collected by the garbage collector at any time.
+ */
+public class CellCacheBudget {
+
+	/**
+	 * Fraction of the budget reserved for the LRU window.
+	 */
+	private static final double WINDOW_FRACTION = 0.01;
+
+	private static final int READ_BUFFER_SIZE = 256;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/* access ordered, guarded by lock */
+	private final LinkedHashMap<Key, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+
+	/* access ordered, guarded by lock */
+	private final LinkedHashMap<Key, Node> main = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final ConcurrentHashMap<Key, Node> nodes = new ConcurrentHashMap<>();
+
+	/* accesses are recorded here and replayed under lock to keep the lock off the read path */
+	private final ArrayBlockingQueue<Node> readBuffer = new ArrayBlockingQueue<>(READ_BUFFER_SIZE);
+
+	/* guarded by lock */
+	private final FrequencySketch sketch = new FrequencySketch();
+
+	private volatile long budgetBytes;
+
+	/* guarded by lock */
+	private long windowBytes = 0;
+
+	/* guarded by lock */
+	private long mainBytes = 0;
+
+	private volatile long usedBytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public CellCacheBudget(final long budgetBytes) {
+
+		this.budgetBytes = Math.max(budgetBytes, 0);
+	}
+
+	public long getBudgetBytes() {
+
+		return budgetBytes;
+	}
+
+	/**
+	 * Set the budget and evict cells if necessary.
+	 */
+	public void setBudgetBytes(final long budgetBytes) {
+
+		lock.lock();
+		try {
+			this.budgetBytes = Math.max(budgetBytes, 0);
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return sum of the weights of all retained cells
+	 */
+	public long getUsedBytes() {
+
+		return usedBytes;
+	}
+
+	public int getRetainedCells() {
+
+		return nodes.size();
+	}
+
+	public long getHits() {
+
+		return hits.get();
+	}
+
+	public long getLoads() {
+
+		return loads.get();
+	}
+
+	public long getEvictions() {
+
+		return evictions.get();
+	}
+
+	/**
+	 * @return fraction of requests for valid cells that did not require loading, or {@link Double#NaN} if there were
+	 * no requests yet
+	 */
+	public double getHitRate() {
+
+		final long hits = this.hits.get();
+		final long total = hits + loads.get();
+		return total == 0 ? Double.NaN : hits / (double)total;
+	}
+
+	/**
+	 * Retain {@code value} for {@code key} of {@code owner} if admitted.
+	 *
+	 * @param weight size of {@code value} in bytes
+	 */
+	void loaded(final Object owner, final Object key, final Object value, final long weight) {
+
+		loads.incrementAndGet();
+		final Key k = new Key(owner, key);
+		lock.lock();
+		try {
+			drainReadBuffer();
+			sketch.increment(k.hashCode());
+			final Node previous = nodes.remove(k);
+			if (previous != null)
+				removeFromRegion(previous);
+			if (weight > budgetBytes)
+				return;
+			final Node node = new Node(k, value, weight);
+			nodes.put(k, node);
+			window.put(k, node);
+			windowBytes += weight;
+			sketch.ensureCapacity(nodes.size());
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record an access of {@code key} of {@code owner} that did not require loading.
+	 */
+	void accessed(final Object owner, final Object key) {
+
+		hits.incrementAndGet();
+		final Node node = nodes.get(new Key(owner, key));
+		if (node == null)
+			return;
+		if (!readBuffer.offer(node) && lock.tryLock()) {
+			try {
+				drainReadBuffer();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	boolean isRetained(final Object owner, final Object key) {
+
+		return nodes.containsKey(new Key(owner, key));
+	}
+
+	void invalidate(final Object owner, final Object key) {
+
+		final Node node = nodes.remove(new Key(owner, key));
+		if (node == null)
+			return;
+		lock.lock();
+		try {
+			removeFromRegion(node);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void invalidateAll(final Object owner) {
+
+		invalidateIf(owner, key -> true);
+	}
+
+	void invalidateIf(final Object owner, final Predicate<Object> condition) {
+
+		lock.lock();
+		try {
+			final List<Node> removed = new ArrayList<>();
+			nodes.values().removeIf(node -> {
+				if (node.key.owner == owner && condition.test(node.key.key)) {
+					removed.add(node);
+					return true;
+				}
+				return false;
+			});
+			removed.forEach(this::removeFromRegion);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Precondition: caller must hold lock */
+	private void drainReadBuffer() {
+
+		for (Node node = readBuffer.poll(); node != null; node = readBuffer.poll()) {
+			sketch.increment(node.key.hashCode());
+			/* refresh position in access order, if still retained */
+			if (window.get(node.key) != node)
+				main.get(node.key);
+		}
+	}
+
+	/* Precondition: caller must hold lock */
+	private void removeFromRegion(final Node node) {
+
+		if (window.remove(node.key, node))
+			windowBytes -= node.weight;
+		else if (main.remove(node.key, node))
+			mainBytes -= node.weight;
+		usedBytes = windowBytes + mainBytes;
+	}
+
+	/* Precondition: caller must hold lock */
+	private void evict() {
+
+		final long budget = budgetBytes;
+		final long windowBudget = (long)(WINDOW_FRACTION * budget);
+
+		/* move cells that fall out of the window into main, if admitted */
+		while (windowBytes > windowBudget && !window.isEmpty()) {
+			final Node candidate = removeEldest(window);
+			windowBytes -= candidate.weight;
+			admit(candidate, budget - windowBytes);
+		}
+
+		/* the budget may have shrunk */
+		while (windowBytes + mainBytes > budget && !main.isEmpty()) {
+			final Node node = removeEldest(main);
+			mainBytes -= node.weight;
+			evict(node);
+		}
+		while (windowBytes + mainBytes > budget && !window.isEmpty()) {
+			final Node node = removeEldest(window);
+			windowBytes -= node.weight;
+			evict(node);
+		}
+		usedBytes = windowBytes + mainBytes;
+	}
+
+	/* Precondition: caller must hold lock, candidate is neither in window nor in main */
+	private void admit(final Node candidate, final long mainBudget) {
+
+		final int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+		while (mainBytes + candidate.weight > mainBudget) {
+			if (main.isEmpty() || candidate.weight > mainBudget) {
+				evict(candidate);
+				return;
+			}
+			final Map.Entry<Key, Node> eldest = main.entrySet().iterator().next();
+			final Node victim = eldest.getValue();
+			if (sketch.frequency(victim.key.hashCode()) >= candidateFrequency) {
+				evict(candidate);
+				return;
+			}
+			main.remove(victim.key);
+			mainBytes -= victim.weight;
+			evict(victim);
+		}
+		main.put(candidate.key, candidate);
+		mainBytes += candidate.weight;
+	}
+
+	/* Precondition: caller must hold lock, node is neither in window nor in main */
+	private void evict(final Node node) {
+
+		nodes.remove(node.key, node);
+		evictions.incrementAndGet();
+	}
+
+	private static Node removeEldest(final LinkedHashMap<Key, Node> region) {
+
+		final Iterator<Node> it = region.values().iterator();
+		final Node eldest = it.next();
+		it.remove();
+		return eldest;
+	}
+
+	private static final class Key {
+
+		private final Object owner;
+
+		private final Object key;
+
+		private final int hash;
+
+		private Key(final Object owner, final Object key) {
+
+			this.owner = owner;
+			this.key = key;
+			this.hash = 31 * System.identityHashCode(owner) + key.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+
+			if (this == other)
+				return true;
+			if (!(other instanceof Key))
+				return false;
+			final Key that = (Key)other;
+			return owner == that.owner && Objects.equals(key, that.key);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return hash;
+		}
+	}
+
+	private static final class Node {
+
+		private final Key key;
+
+		/* strong reference that keeps the cell from being collected */
+		@SuppressWarnings("unused")
+		private final Object value;
+
+		private final long weight;
+
+		private Node(final Key key, final Object value, final long weight) {
+
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Count-min sketch with four hash functions and counters that saturate at 15. All counters are halved after
+	 * {@code 10 * width} increments, so that the frequency of cells that are not requested anymore decays.
+	 */
+	static final class FrequencySketch {
+
+		private static final int DEPTH = 4;
+
+		private static final int MAX_COUNT = 15;
+
+		private static final int[] SEEDS = {0x97cb3127, 0xb7b8f0c5, 0x3d73a9e1, 0xe7a04e2b};
+
+		private byte[][] table;
+
+		private int mask;
+
+		private int additions = 0;
+
+		FrequencySketch() {
+
+			resize(64);
+		}
+
+		void ensureCapacity(final int entries) {
+
+			if (entries > table[0].length)
+				resize(Integer.highestOneBit(entries - 1) << 1);
+		}
+
+		void increment(final int hash) {
+
+			boolean added = false;
+			for (int row = 0; row < DEPTH; ++row) {
+				final int index = index(hash, row);
+				if (table[row][index] < MAX_COUNT) {
+					++table[row][index];
+					added = true;
+				}
+			}
+			if (added && ++additions >= 10 * table[0].length)
+				reset();
+		}
+
+		int frequency(final int hash) {
+
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < DEPTH; ++row)
+				frequency = Math.min(frequency, table[row][index(hash, row)]);
+			return frequency;
+		}
+
+		private int index(final int hash, final int row) {
+
+			int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		private void reset() {
+
+			for (final byte[] counts : table)
+				for (int i = 0; i < counts.length; ++i)
+					counts[i] >>= 1;
+			additions /= 2;
+		}
+
+		private void resize(final int width) {
+
+			table = new byte[DEPTH][width];
+			mask = width - 1;
+			additions = 0;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.janelia.saalfeldlab.paintera.cache;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.label.VolatileLabelMultisetArray;
+
+import java.lang.reflect.Array;
+
+/**
+ * Estimate the heap size of cached cells for a {@link CellCacheBudget}.
+ */
+public class CellWeights {
+
+	/**
+	 * Object header, grid position, and dimensions of a {@link Cell}.
+	 */
+	private static final long CELL_OVERHEAD = 96;
+
+	private static final long ARRAY_HEADER = 16;
+
+	/**
+	 * Weight of data that is neither a primitive array access nor a label multiset array.
+	 */
+	private static final long UNKNOWN_DATA_WEIGHT = 64 * 64 * 64;
+
+	private CellWeights() {
+
+	}
+
+	/**
+	 * @return estimated size of {@code value} in bytes, if {@code value} is a {@link Cell} or cell data
+	 */
+	public static long weigh(final Object value) {
+
+		if (value instanceof Cell<?>)
+			return CELL_OVERHEAD + weighData(((Cell<?>)value).getData());
+		return weighData(value);
+	}
+
+	private static long weighData(final Object data) {
+
+		if (data instanceof VolatileLabelMultisetArray) {
+			final VolatileLabelMultisetArray labelMultisets = (VolatileLabelMultisetArray)data;
+			return arrayBytes(labelMultisets.getCurrentStorageArray()) + labelMultisets.getListDataUsedSizeInBytes();
+		}
+		if (data instanceof ArrayDataAccess<?>)
+			return arrayBytes(((ArrayDataAccess<?>)data).getCurrentStorageArray());
+		return data == null ? 0 : UNKNOWN_DATA_WEIGHT;
+	}
+
+	static long arrayBytes(final Object array) {
+
+		if (array == null || !array.getClass().isArray())
+			return 0;
+		final Class<?> componentType = array.getClass().getComponentType();
+		final long elementBytes;
+		if (componentType == byte.class || componentType == boolean.class)
+			elementBytes = 1;
+		else if (componentType == short.class || componentType == char.class)
+			elementBytes = 2;
+		else if (componentType == int.class || componentType == float.class)
+			elementBytes = 4;
+		else
+			elementBytes = 8;
+		return ARRAY_HEADER + elementBytes * Array.getLength(array);
+	}
+}
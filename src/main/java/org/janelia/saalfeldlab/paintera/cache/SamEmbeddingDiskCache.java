@@ -0,0 +1,497 @@
+package org.janelia.saalfeldlab.paintera.cache;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.util.Intervals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Persistent store for SAM image embeddings, one file per embedding.
+ * <p>
+ * Entries are addressed by a stable 64 bit hash of the state that was rendered to compute the embedding (sources,
+ * converters, viewer transform, screen size). Each entry records its key, the shape of the embedding tensor and the
+ * world space bounds of the rendered slice, so that entries can be {@link #invalidate(RealInterval) invalidated} when
+ * the data in that region changes, e.g. when the canvas is committed.
+ * <p>
+ * The total size of all entries is kept within a byte budget. When an entry is added, the least recently used entries
+ * are removed until the store fits into the budget again. Recency is tracked through the modification time of the
+ * entry files and therefore survives restarts.
+ * <p>
+ * Entries are written to a temporary file and moved into place atomically, and read through memory mapped buffers.
+ * Entry files that cannot be deleted, e.g. because they are still mapped on Windows, are marked with an empty tombstone
+ * file next to them. Marked entries are not indexed and deleted again when the store is opened.
+ */
+public class SamEmbeddingDiskCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	private static final int MAGIC = 0x50534531; // "PSE1"
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final String SUFFIX = ".embedding";
+
+	private static final String TOMBSTONE_SUFFIX = ".deleted";
+
+	/* magic, version, key, 6 bounds, number of dimensions; must be a multiple of Float.BYTES */
+	private static final int FIXED_HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES + 6 * Double.BYTES + Integer.BYTES;
+
+	public static final long DEFAULT_BUDGET_BYTES = 1L << 30;
+
+	private final Path directory;
+
+	private long budgetBytes;
+
+	/* access ordered, guarded by this */
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/* guarded by this */
+	private long usedBytes = 0;
+
+	public SamEmbeddingDiskCache(final Path directory) throws IOException {
+
+		this(directory, DEFAULT_BUDGET_BYTES);
+	}
+
+	public SamEmbeddingDiskCache(final Path directory, final long budgetBytes) throws IOException {
+
+		this.directory = directory;
+		this.budgetBytes = Math.max(budgetBytes, 0);
+		Files.createDirectories(directory);
+		scan();
+		synchronized (this) {
+			evict();
+		}
+	}
+
+	public Path getDirectory() {
+
+		return directory;
+	}
+
+	public synchronized long getBudgetBytes() {
+
+		return budgetBytes;
+	}
+
+	/**
+	 * Set the budget and remove entries if necessary.
+	 */
+	public synchronized void setBudgetBytes(final long budgetBytes) {
+
+		this.budgetBytes = Math.max(budgetBytes, 0);
+		evict();
+	}
+
+	/**
+	 * @return sum of the sizes of all entries
+	 */
+	public synchronized long getUsedBytes() {
+
+		return usedBytes;
+	}
+
+	public synchronized int size() {
+
+		return entries.size();
+	}
+
+	/**
+	 * @param key   hash of the rendered state
+	 * @param shape expected shape of the embedding tensor
+	 * @return cached embedding in native byte order, backed by a read only memory mapped buffer, or {@code null} if no
+	 * matching entry exists
+	 */
+	public FloatBuffer get(final long key, final long[] shape) {
+
+		final Path path = pathFor(key);
+		synchronized (this) {
+			if (!entries.containsKey(key))
+				return null;
+			/* refresh position in access order */
+			entries.get(key);
+		}
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			final Header header = Header.read(buffer);
+			if (header == null || header.key != key || !Arrays.equals(header.shape, shape))
+				return null;
+			final long numElements = numElements(shape);
+			if (buffer.remaining() != numElements * Float.BYTES)
+				return null;
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+				return buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			/* the mapped data cannot be handed out as is on big endian platforms */
+			final FloatBuffer data = ByteBuffer.allocateDirect(buffer.remaining()).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			data.put(buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+			return data.flip();
+		} catch (final NoSuchFileException e) {
+			remove(key);
+			return null;
+		} catch (final Exception e) {
+			LOG.debug("Unable to read cached embedding {} from {}", String.format("%016x", key), path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store {@code data} for {@code key}, replacing any previous entry for the same key, and remove the least recently
+	 * used entries if the budget is exceeded. Failures are logged and ignored.
+	 *
+	 * @param worldBounds world space bounds of the rendered slice that the embedding was computed from
+	 */
+	public void put(final long key, final RealInterval worldBounds, final long[] shape, final FloatBuffer data) {
+
+		final long numElements = numElements(shape);
+		final long size = headerBytes(shape.length) + numElements * Float.BYTES;
+		if (size > Integer.MAX_VALUE || data.remaining() != numElements) {
+			LOG.debug("Not caching embedding of shape {} with {} elements", Arrays.toString(shape), data.remaining());
+			return;
+		}
+		synchronized (this) {
+			if (size > budgetBytes)
+				return;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+		new Header(key, worldBounds, shape).write(buffer);
+		buffer.asFloatBuffer().put(data.duplicate());
+		buffer.position(0);
+
+		final Path path = pathFor(key);
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+			try (final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(tombstoneFor(path));
+		} catch (final IOException e) {
+			LOG.debug("Unable to write cached embedding {} to {}", String.format("%016x", key), path, e);
+			if (tmp != null)
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (final IOException ignored) {
+				}
+			return;
+		}
+
+		synchronized (this) {
+			final Entry previous = entries.put(key, new Entry(key, new FinalRealInterval(worldBounds), size));
+			if (previous != null)
+				usedBytes -= previous.size;
+			usedBytes += size;
+			evict();
+		}
+	}
+
+	/**
+	 * Remove all entries whose world space bounds intersect {@code worldInterval}.
+	 *
+	 * @return number of removed entries
+	 */
+	public int invalidate(final RealInterval worldInterval) {
+
+		return invalidate(List.of(worldInterval));
+	}
+
+	/**
+	 * Remove all entries whose world space bounds intersect any of {@code worldIntervals}, in a single pass over the
+	 * entries.
+	 *
+	 * @return number of removed entries
+	 */
+	public int invalidate(final List<? extends RealInterval> worldIntervals) {
+
+		if (worldIntervals.isEmpty())
+			return 0;
+		final RealInterval union = union(worldIntervals);
+		final List<Entry> removed = new ArrayList<>();
+		synchronized (this) {
+			final Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				final Entry entry = it.next();
+				if (intersectsAny(entry.bounds, union, worldIntervals)) {
+					it.remove();
+					usedBytes -= entry.size;
+					removed.add(entry);
+				}
+			}
+		}
+		removed.forEach(entry -> delete(entry.key));
+		return removed.size();
+	}
+
+	/**
+	 * @param union bounding box of {@code intervals}, to reject most non-intersecting {@code interval}s with a single test
+	 */
+	static boolean intersectsAny(final RealInterval interval, final RealInterval union, final List<? extends RealInterval> intervals) {
+
+		if (Intervals.isEmpty(Intervals.intersect(interval, union)))
+			return false;
+		for (final RealInterval other : intervals) {
+			if (!Intervals.isEmpty(Intervals.intersect(interval, other)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return bounding box of non-empty {@code intervals}
+	 */
+	static RealInterval union(final List<? extends RealInterval> intervals) {
+
+		RealInterval union = intervals.get(0);
+		for (int i = 1; i < intervals.size(); ++i)
+			union = Intervals.union(union, intervals.get(i));
+		return union;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+
+		synchronized (this) {
+			entries.clear();
+			usedBytes = 0;
+		}
+		try (final Stream<Path> paths = Files.list(directory)) {
+			paths.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(SamEmbeddingDiskCache::delete);
+		} catch (final IOException e) {
+			LOG.error("Unable to clear embedding cache {}", directory, e);
+		}
+	}
+
+	private void remove(final long key) {
+
+		synchronized (this) {
+			final Entry entry = entries.remove(key);
+			if (entry != null)
+				usedBytes -= entry.size;
+		}
+	}
+
+	/* Precondition: caller must hold lock on this */
+	private void evict() {
+
+		final Iterator<Entry> it = entries.values().iterator();
+		while (usedBytes > budgetBytes && it.hasNext()) {
+			final Entry eldest = it.next();
+			it.remove();
+			usedBytes -= eldest.size;
+			delete(eldest.key);
+		}
+	}
+
+	private void delete(final long key) {
+
+		delete(pathFor(key));
+	}
+
+	/**
+	 * Delete the entry file at {@code path}, or mark it with a tombstone if it cannot be deleted, e.g. because it is
+	 * still mapped on Windows.
+	 */
+	private static void delete(final Path path) {
+
+		try {
+			Files.deleteIfExists(path);
+		} catch (final IOException e) {
+			LOG.debug("Unable to delete cached embedding {}", path, e);
+			try {
+				Files.write(tombstoneFor(path), new byte[0]);
+			} catch (final IOException e2) {
+				LOG.warn("Unable to mark cached embedding {} as deleted, it may be used again after a restart", path, e2);
+			}
+		}
+	}
+
+	/**
+	 * Index existing entries, least recently used first. Files that cannot be read and entries marked with a tombstone
+	 * are removed.
+	 */
+	private void scan() throws IOException {
+
+		final List<Path> paths;
+		final List<Path> tombstones;
+		try (final Stream<Path> files = Files.list(directory)) {
+			paths = files.filter(p -> p.getFileName().toString().endsWith(SUFFIX) || p.getFileName().toString().endsWith(".tmp")).toList();
+		}
+		try (final Stream<Path> files = Files.list(directory)) {
+			tombstones = files.filter(p -> p.getFileName().toString().endsWith(SUFFIX + TOMBSTONE_SUFFIX)).toList();
+		}
+		for (final Path tombstone : tombstones) {
+			final String name = tombstone.getFileName().toString();
+			final Path path = tombstone.resolveSibling(name.substring(0, name.length() - TOMBSTONE_SUFFIX.length()));
+			try {
+				Files.deleteIfExists(path);
+				Files.deleteIfExists(tombstone);
+			} catch (final IOException e) {
+				LOG.debug("Unable to delete cached embedding {} that is marked as deleted", path, e);
+			}
+		}
+		final List<Map.Entry<FileTime, Entry>> found = new ArrayList<>();
+		for (final Path path : paths) {
+			try {
+				if (Files.exists(tombstoneFor(path)) || !Files.exists(path))
+					continue;
+				if (path.getFileName().toString().endsWith(SUFFIX)) {
+					final Entry entry = readEntry(path);
+					if (entry != null && path.equals(pathFor(entry.key))) {
+						found.add(Map.entry(Files.getLastModifiedTime(path), entry));
+						continue;
+					}
+				}
+				Files.deleteIfExists(path);
+			} catch (final IOException e) {
+				LOG.debug("Unable to index cached embedding {}", path, e);
+			}
+		}
+		found.sort(Map.Entry.comparingByKey(Comparator.naturalOrder()));
+		synchronized (this) {
+			for (final Map.Entry<FileTime, Entry> entry : found) {
+				entries.put(entry.getValue().key, entry.getValue());
+				usedBytes += entry.getValue().size;
+			}
+		}
+	}
+
+	private static Entry readEntry(final Path path) throws IOException {
+
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size < FIXED_HEADER_BYTES)
+				return null;
+			final ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (fixed.hasRemaining() && channel.read(fixed) >= 0) ;
+			fixed.flip();
+			final int numDimensions = fixed.getInt(FIXED_HEADER_BYTES - Integer.BYTES);
+			if (numDimensions < 0 || size < headerBytes(numDimensions))
+				return null;
+			final ByteBuffer header = ByteBuffer.allocate(headerBytes(numDimensions)).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(fixed);
+			while (header.hasRemaining() && channel.read(header) >= 0) ;
+			header.flip();
+			final Header h = Header.read(header);
+			if (h == null || size != headerBytes(numDimensions) + numElements(h.shape) * Float.BYTES)
+				return null;
+			return new Entry(h.key, h.bounds, size);
+		}
+	}
+
+	Path pathFor(final long key) {
+
+		return directory.resolve(String.format("%016x%s", key, SUFFIX));
+	}
+
+	static Path tombstoneFor(final Path path) {
+
+		return path.resolveSibling(path.getFileName() + TOMBSTONE_SUFFIX);
+	}
+
+	private static int headerBytes(final int numDimensions) {
+
+		return FIXED_HEADER_BYTES + numDimensions * Long.BYTES;
+	}
+
+	private static long numElements(final long[] shape) {
+
+		long numElements = 1;
+		for (final long s : shape)
+			numElements *= s;
+		return numElements;
+	}
+
+	private static final class Entry {
+
+		private final long key;
+
+		private final RealInterval bounds;
+
+		private final long size;
+
+		private Entry(final long key, final RealInterval bounds, final long size) {
+
+			this.key = key;
+			this.bounds = bounds;
+			this.size = size;
+		}
+	}
+
+	private static final class Header {
+
+		private final long key;
+
+		private final RealInterval bounds;
+
+		private final long[] shape;
+
+		private Header(final long key, final RealInterval bounds, final long[] shape) {
+
+			this.key = key;
+			this.bounds = bounds;
+			this.shape = shape;
+		}
+
+		private void write(final ByteBuffer buffer) {
+
+			buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(key);
+			for (int d = 0; d < 3; ++d)
+				buffer.putDouble(d < bounds.numDimensions() ? bounds.realMin(d) : 0.0);
+			for (int d = 0; d < 3; ++d)
+				buffer.putDouble(d < bounds.numDimensions() ? bounds.realMax(d) : 0.0);
+			buffer.putInt(shape.length);
+			for (final long s : shape)
+				buffer.putLong(s);
+		}
+
+		/**
+		 * @return header at the current position of {@code buffer}, or {@code null} if the magic number or the
+		 * format version do not match
+		 */
+		private static Header read(final ByteBuffer buffer) {
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+				return null;
+			final long key = buffer.getLong();
+			final double[] min = new double[3];
+			final double[] max = new double[3];
+			for (int d = 0; d < 3; ++d)
+				min[d] = buffer.getDouble();
+			for (int d = 0; d < 3; ++d)
+				max[d] = buffer.getDouble();
+			final long[] shape = new long[buffer.getInt()];
+			for (int d = 0; d < shape.length; ++d)
+				shape[d] = buffer.getLong();
+			return new Header(key, new FinalRealInterval(min, max), shape);
+		}
+	}
+}
@@ -95,6 +95,7 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 
 			ref = new CacheWeakReference(value, this, VALID);
 			enqueueFrame = Long.MAX_VALUE;
+			loaded(key, value);
 			notifyAll();
 		}
 
@@ -117,7 +118,7 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 		}
 	}
 
-	private WeakRefVolatileCache(
+	protected WeakRefVolatileCache(
 			final Cache<K, V> backingCache,
 			final net.imglib2.cache.Invalidate<K> backingInvalidate,
 			final BlockingFetchQueues<Callable<?>> fetchQueue,
@@ -155,8 +156,10 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 
 		final CacheWeakReference ref = entry.ref;
 		final V v = ref.get();
-		if (v != null && ref.loaded == VALID)
+		if (v != null && ref.loaded == VALID) {
+			accessed(entry.key, v);
 			return v;
+		}
 
 		cleanUp();
 		switch (hints.getLoadingStrategy()) {
@@ -182,8 +185,10 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 
 		final CacheWeakReference ref = entry.ref;
 		V v = ref.get();
-		if (v != null && ref.loaded == VALID)
+		if (v != null && ref.loaded == VALID) {
+			accessed(key, v);
 			return v;
+		}
 
 		cleanUp();
 		switch (hints.getLoadingStrategy()) {
@@ -225,6 +230,7 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 
 		this.backingInvalidate.invalidateAll(parallelismThreshold);
 		this.map.clear();
+		invalidatedAll();
 		cleanUp();
 	}
 
@@ -236,6 +242,7 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 			keys.forEach(this.map::remove);
 			backingKeys.addAll(keys);
 		}
+		backingKeys.forEach(this::invalidated);
 		cleanUp();
 		return backingKeys;
 	}
@@ -245,6 +252,7 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 
 		this.backingInvalidate.invalidate(key);
 		this.map.remove(key);
+		invalidated(key);
 		cleanUp();
 	}
 
@@ -254,6 +262,36 @@ public class WeakRefVolatileCache<K, V> implements VolatileCache<K, V> {
 		invalidateIfReturnCollection(parallelismThreshold, condition);
 	}
 
+	// ================ hooks for subclasses =====================
+
+	/**
+	 * Called when a valid value for {@code key} was loaded. The lock on the entry of {@code key} is held.
+	 */
+	protected void loaded(final K key, final V value) {
+
+	}
+
+	/**
+	 * Called when a valid value for {@code key} was returned from the cache without loading.
+	 */
+	protected void accessed(final K key, final V value) {
+
+	}
+
+	/**
+	 * Called after {@code key} was removed by {@link #invalidate(Object)} or {@link #invalidateIf(long, Predicate)}.
+	 */
+	protected void invalidated(final K key) {
+
+	}
+
+	/**
+	 * Called after all keys were removed by {@link #invalidateAll(long)}.
+	 */
+	protected void invalidatedAll() {
+
+	}
+
 	// ================ private methods =====================
 
 	private V getDontLoad(final Entry entry) throws ExecutionException {
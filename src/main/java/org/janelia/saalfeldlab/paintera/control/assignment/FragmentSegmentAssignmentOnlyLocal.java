@@ -29,6 +29,28 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 		void persist(long[] keys, long[] values) throws UnableToPersist;
 	}
 
+	/**
+	 * {@link Persister} that can append changed assignments instead of rewriting the whole lookup.
+	 */
+	public interface IncrementalPersister extends Persister {
+
+		/**
+		 * Segment that marks the removal of an assignment in {@link #append(long[], long[])}. {@link Label#INVALID}
+		 * is never a segment.
+		 */
+		long REMOVED = Label.INVALID;
+
+		/**
+		 * Append changed assignments. Later calls take precedence over earlier calls, and {@code values[i] == }
+		 * {@link #REMOVED} removes the assignment of fragment {@code keys[i]}.
+		 *
+		 * @param keys   fragments
+		 * @param values segments
+		 * @throws UnableToPersist if the changes cannot be appended
+		 */
+		void append(long[] keys, long[] values) throws UnableToPersist;
+	}
+
 	public static class DoesNotPersist implements Persister {
 
 		@Expose
@@ -83,6 +105,9 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 			Label.TRANSPARENT
 	);
 
+	/* fragments whose assignment may have changed since the last call to persist */
+	private final TLongHashSet modifiedFragments = new TLongHashSet();
+
 	private final Persister persister;
 
 	private final Supplier<TLongLongMap> initialLut;
@@ -125,10 +150,21 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 
 		try {
 			// TODO Should we reset the LUT first to make sure that all previous changes were loaded?
-			LOG.debug("Persisting assignment {}", this.fragmentToSegmentMap);
 			LOG.debug("Committing actions {}", this.actions);
-			this.persister.persist(this.fragmentToSegmentMap.keys(), this.fragmentToSegmentMap.values());
+			if (this.persister instanceof IncrementalPersister) {
+				final long[] keys = this.modifiedFragments.toArray();
+				final long[] values = new long[keys.length];
+				Arrays.setAll(values, i -> fragmentToSegmentMap.containsKey(keys[i])
+						? fragmentToSegmentMap.get(keys[i])
+						: IncrementalPersister.REMOVED);
+				LOG.debug("Appending {} modified assignments", keys.length);
+				((IncrementalPersister)this.persister).append(keys, values);
+			} else {
+				LOG.debug("Persisting assignment {}", this.fragmentToSegmentMap);
+				this.persister.persist(this.fragmentToSegmentMap.keys(), this.fragmentToSegmentMap.values());
+			}
 			this.actions.clear();
+			this.modifiedFragments.clear();
 		} catch (final Exception e) {
 			throw e instanceof UnableToPersist ? (UnableToPersist)e : new UnableToPersist(e);
 		}
@@ -170,6 +206,7 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 		final long fragmentFrom = detach.fragmentFrom;
 
 		this.fragmentToSegmentMap.remove(fragmentId);
+		this.modifiedFragments.add(fragmentId);
 		LOG.debug("Removed {} from {}", fragmentId, this.fragmentToSegmentMap);
 
 		LOG.debug("Removing fragment={} from segment={}", fragmentId, segmentFrom);
@@ -179,6 +216,7 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 			LOG.debug("Removed {} from {}", fragmentId, fragments);
 			if (fragments.isEmpty()) {
 				this.fragmentToSegmentMap.remove(fragmentFrom);
+				this.modifiedFragments.add(fragmentFrom);
 				this.segmentToFragmentsMap.remove(segmentFrom);
 			}
 		}
@@ -213,6 +251,7 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 		if (!fragmentToSegmentMap.contains(into)) {
 			LOG.debug("Adding segment {} to framgent {}", segmentInto, into);
 			fragmentToSegmentMap.put(into, segmentInto);
+			modifiedFragments.add(into);
 		}
 
 		if (!segmentToFragmentsMap.contains(segmentInto)) {
@@ -228,9 +267,11 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 			LOG.debug("Fragments into {}", fragmentsInto);
 			fragmentsInto.addAll(fragmentsFrom);
 			Arrays.stream(fragmentsFrom.toArray()).forEach(id -> fragmentToSegmentMap.put(id, segmentInto));
+			modifiedFragments.addAll(fragmentsFrom);
 		} else {
 			segmentToFragmentsMap.get(segmentInto).add(from);
 			fragmentToSegmentMap.put(from, segmentInto);
+			modifiedFragments.add(from);
 		}
 	}
 
@@ -340,6 +381,7 @@ public class FragmentSegmentAssignmentOnlyLocal extends FragmentSegmentAssignmen
 		// TODO do not add to fragmentToSegmentMap here. Have the mergeImpl take care of it instead.
 		if (getSegment(intoFragmentId) == intoFragmentId) {
 			fragmentToSegmentMap.put(intoFragmentId, newSegmentId.getAsLong());
+			modifiedFragments.add(intoFragmentId);
 		}
 
 		final Merge merge = new Merge(fromFragmentId, intoFragmentId, fragmentToSegmentMap.get(intoFragmentId));
@@ -0,0 +1,530 @@
+package org.janelia.saalfeldlab.paintera.control.paint;
+
+import gnu.trove.list.array.TIntArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.net.imglib2.util.AccessedBlocksRandomAccessible;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Flood fill with 6-connectivity (in 3D) that fills each block of a {@link CellGrid} as an independent task. Voxels
+ * that a block reaches across one of its faces are handed to the neighbouring block as seeds, and the neighbouring
+ * block is scheduled unless it is already running. At most one task works on a block at any time, so neither the
+ * target nor the per-block bounding boxes need to be locked.
+ * <p>
+ * A voxel is filled if {@code filter} accepts the source value and the current target value. As with
+ * {@link net.imglib2.algorithm.fill.FloodFill}, the filter must reject voxels that were already filled.
+ *
+ * @param <S> source type
+ */
+public class BlockParallelFloodFill<S> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	/**
+	 * Block size if the target does not define a block grid.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	/**
+	 * Number of voxels visited between two checks for cancellation.
+	 */
+	private static final int CANCELLATION_CHECK_INTERVAL = 1 << 12;
+
+	private final RandomAccessible<S> source;
+
+	private final RandomAccessibleInterval<UnsignedLongType> target;
+
+	private final AccessedBlocksRandomAccessible<UnsignedLongType> accessTracker;
+
+	private final CellGrid grid;
+
+	private final long[] offset;
+
+	private final long fillLabel;
+
+	private final BiPredicate<? super S, ? super UnsignedLongType> filter;
+
+	private final ExecutorService executor;
+
+	private final BooleanSupplier isCancelled;
+
+	private final Consumer<Interval> blockFilled;
+
+	private final ConcurrentHashMap<Long, Block> blocks = new ConcurrentHashMap<>();
+
+	private final AtomicInteger pendingTasks = new AtomicInteger();
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+	private final AtomicLongArray filledMin;
+
+	private final AtomicLongArray filledMax;
+
+	private volatile LongPredicate candidateBlocks = null;
+
+	private volatile boolean fillUniformBlocks = false;
+
+	/**
+	 * @param source      extended source, must be safe for concurrent random access
+	 * @param target      filled voxels are set to {@code fillLabel}. If it is an {@link AccessedBlocksRandomAccessible},
+	 *                    blocks follow its grid and all blocks with filled voxels are registered with it.
+	 * @param fillLabel   value of filled voxels
+	 * @param filter      whether to fill a voxel, given its source and target values
+	 * @param executor    executor for the block tasks
+	 * @param isCancelled checked periodically, the fill is aborted with a {@link CancellationException} if true
+	 * @param blockFilled called with the bounding box of the voxels filled by a block task, from the thread that ran
+	 *                    the task
+	 */
+	public BlockParallelFloodFill(
+			final RandomAccessible<S> source,
+			final RandomAccessibleInterval<UnsignedLongType> target,
+			final long fillLabel,
+			final BiPredicate<? super S, ? super UnsignedLongType> filter,
+			final ExecutorService executor,
+			final BooleanSupplier isCancelled,
+			final Consumer<Interval> blockFilled) {
+
+		this(source, target, blockGrid(target), fillLabel, filter, executor, isCancelled, blockFilled);
+	}
+
+	@SuppressWarnings("unchecked")
+	public BlockParallelFloodFill(
+			final RandomAccessible<S> source,
+			final RandomAccessibleInterval<UnsignedLongType> target,
+			final CellGrid grid,
+			final long fillLabel,
+			final BiPredicate<? super S, ? super UnsignedLongType> filter,
+			final ExecutorService executor,
+			final BooleanSupplier isCancelled,
+			final Consumer<Interval> blockFilled) {
+
+		this.source = source;
+		if (target instanceof AccessedBlocksRandomAccessible<?> && grid.equals(((AccessedBlocksRandomAccessible<?>)target).getGrid())) {
+			/* write directly and register filled blocks once, instead of synchronizing on every access */
+			this.accessTracker = (AccessedBlocksRandomAccessible<UnsignedLongType>)target;
+			this.target = accessTracker.getSource();
+		} else {
+			this.accessTracker = null;
+			this.target = target;
+		}
+		this.grid = grid;
+		this.offset = target.minAsLongArray();
+		this.fillLabel = fillLabel;
+		this.filter = filter;
+		this.executor = executor == null ? ForkJoinPool.commonPool() : executor;
+		this.isCancelled = isCancelled == null ? () -> false : isCancelled;
+		this.blockFilled = blockFilled;
+
+		final int n = target.numDimensions();
+		this.filledMin = new AtomicLongArray(n);
+		this.filledMax = new AtomicLongArray(n);
+		for (int d = 0; d < n; ++d) {
+			filledMin.set(d, Long.MAX_VALUE);
+			filledMax.set(d, Long.MIN_VALUE);
+		}
+	}
+
+	public CellGrid getGrid() {
+
+		return grid;
+	}
+
+	/**
+	 * Restrict the fill to blocks that may contain voxels accepted by the filter, e.g. the blocks that the label block
+	 * lookup lists for the fragments of the seed segment. Frontier voxels in other blocks are dropped without visiting
+	 * them. The predicate must accept the block of the seed.
+	 *
+	 * @param candidateBlocks flat index of blocks in {@link #getGrid() the grid}, or {@code null} to consider all blocks
+	 */
+	public void setCandidateBlocks(final LongPredicate candidateBlocks) {
+
+		this.candidateBlocks = candidateBlocks;
+	}
+
+	/**
+	 * If set, each block is first scanned in flat iteration order. If the filter accepts every voxel of the block,
+	 * e.g. because all labels in the block are fragments of the seed segment, the whole block is written at once and
+	 * its faces are handed to the neighbouring blocks, without a voxel-by-voxel traversal. Otherwise, the block is
+	 * traversed from its seeds as usual.
+	 */
+	public void setFillUniformBlocks(final boolean fillUniformBlocks) {
+
+		this.fillUniformBlocks = fillUniformBlocks;
+	}
+
+	/**
+	 * Fill from {@code seed} and block until all blocks are done.
+	 *
+	 * @return bounding box of all filled voxels, or {@code null} if no voxel was filled
+	 * @throws CancellationException if {@code isCancelled} returned true or the calling thread was interrupted
+	 */
+	public Interval fill(final Localizable seed) {
+
+		final long[] position = seed.positionAsLongArray();
+		if (!Intervals.contains(target, seed)) {
+			LOG.debug("Seed {} is outside of target {}", position, target);
+			return null;
+		}
+
+		pendingTasks.incrementAndGet();
+		enqueue(blockAt(position), List.of(position));
+		if (pendingTasks.decrementAndGet() == 0)
+			done.complete(null);
+
+		try {
+			done.get();
+		} catch (final InterruptedException e) {
+			final CancellationException cancelled = new CancellationException("Flood Fill Canceled");
+			failure.compareAndSet(null, cancelled);
+			Thread.currentThread().interrupt();
+			throw cancelled;
+		} catch (final ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+		final Throwable failure = this.failure.get();
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		if (failure instanceof Error)
+			throw (Error)failure;
+		if (failure != null)
+			throw new RuntimeException(failure);
+
+		LOG.debug("Filled {} blocks", blocks.size());
+		return getFilledInterval();
+	}
+
+	/**
+	 * May be called while filling, e.g. to repaint the filled region.
+	 *
+	 * @return bounding box of the voxels filled so far, or {@code null} if no voxel was filled yet
+	 */
+	public Interval getFilledInterval() {
+
+		final int n = filledMin.length();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for (int d = 0; d < n; ++d) {
+			min[d] = filledMin.get(d);
+			max[d] = filledMax.get(d);
+			if (min[d] > max[d])
+				return null;
+		}
+		return new FinalInterval(min, max);
+	}
+
+	private static CellGrid blockGrid(final RandomAccessibleInterval<?> target) {
+
+		if (target instanceof AccessedBlocksRandomAccessible<?>)
+			return ((AccessedBlocksRandomAccessible<?>)target).getGrid();
+		final int[] blockSize = new int[target.numDimensions()];
+		Arrays.fill(blockSize, DEFAULT_BLOCK_SIZE);
+		return new CellGrid(target.dimensionsAsLongArray(), blockSize);
+	}
+
+	private Block blockAt(final long[] position) {
+
+		return blockAt(position, false);
+	}
+
+	/**
+	 * @return the block that contains {@code position}, or {@code null} if {@code onlyCandidates} is set and the block
+	 * is not a {@link #setCandidateBlocks(LongPredicate) candidate}
+	 */
+	private Block blockAt(final long[] position, final boolean onlyCandidates) {
+
+		final long[] gridPosition = new long[position.length];
+		final int[] blockSize = grid.getCellDimensions();
+		for (int d = 0; d < position.length; ++d)
+			gridPosition[d] = (position[d] - offset[d]) / blockSize[d];
+		final long index = indexOf(gridPosition);
+		final LongPredicate candidateBlocks = this.candidateBlocks;
+		if (onlyCandidates && candidateBlocks != null && !candidateBlocks.test(index))
+			return null;
+		return blocks.computeIfAbsent(index, i -> new Block(i, gridPosition));
+	}
+
+	private long indexOf(final long[] gridPosition) {
+
+		final long[] gridDimensions = grid.getGridDimensions();
+		long index = gridPosition[gridPosition.length - 1];
+		for (int d = gridPosition.length - 2; d >= 0; --d)
+			index = index * gridDimensions[d] + gridPosition[d];
+		return index;
+	}
+
+	private void enqueue(final Block block, final List<long[]> seeds) {
+
+		block.seeds.addAll(seeds);
+		if (block.scheduled.compareAndSet(false, true)) {
+			pendingTasks.incrementAndGet();
+			try {
+				executor.execute(() -> run(block));
+			} catch (final RuntimeException e) {
+				failure.compareAndSet(null, e);
+				taskDone();
+			}
+		}
+	}
+
+	private void run(final Block block) {
+
+		try {
+			while (true) {
+				if (failure.get() == null)
+					block.fill();
+				else
+					block.seeds.clear();
+				block.scheduled.set(false);
+				/* seeds may have been added after the last drain, before scheduled was reset */
+				if (block.seeds.isEmpty() || !block.scheduled.compareAndSet(false, true))
+					break;
+			}
+		} catch (final Throwable t) {
+			failure.compareAndSet(null, t);
+			block.seeds.clear();
+			block.scheduled.set(false);
+		} finally {
+			taskDone();
+		}
+	}
+
+	private void taskDone() {
+
+		if (pendingTasks.decrementAndGet() == 0)
+			done.complete(null);
+	}
+
+	private final class Block {
+
+		private final long index;
+
+		private final long[] min;
+
+		private final int[] dimensions;
+
+		private final ConcurrentLinkedQueue<long[]> seeds = new ConcurrentLinkedQueue<>();
+
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		/* guarded by scheduled */
+		private boolean visited = false;
+
+		private Block(final long index, final long[] gridPosition) {
+
+			this.index = index;
+			this.min = new long[gridPosition.length];
+			this.dimensions = new int[gridPosition.length];
+			grid.getCellDimensions(gridPosition, min, dimensions);
+			for (int d = 0; d < min.length; ++d)
+				min[d] += offset[d];
+		}
+
+		/**
+		 * Fill from all pending seeds. Must only be called by the task that holds {@link #scheduled}.
+		 */
+		private void fill() {
+
+			if (isCancelled.getAsBoolean())
+				throw new CancellationException("Flood Fill Canceled");
+
+			final int n = min.length;
+			final long[] blockMax = new long[n];
+			for (int d = 0; d < n; ++d)
+				blockMax[d] = min[d] + dimensions[d] - 1;
+			final Interval blockInterval = new FinalInterval(min, blockMax);
+
+			final boolean firstVisit = !visited;
+			visited = true;
+			if (firstVisit && fillUniformBlocks && fillIfUniform(blockInterval)) {
+				/* seeds that arrive later are rejected by the filter right away */
+				seeds.clear();
+				filled(min, blockMax);
+				enqueueFaces(blockMax);
+				return;
+			}
+
+			final int[] strides = new int[n];
+			strides[0] = 1;
+			for (int d = 1; d < n; ++d)
+				strides[d] = strides[d - 1] * dimensions[d - 1];
+
+			final RandomAccess<S> sourceAccess = source.randomAccess();
+			final RandomAccess<UnsignedLongType> targetAccess = target.randomAccess(blockInterval);
+			final TIntArrayList stack = new TIntArrayList();
+			final Map<Block, List<long[]>> frontier = new HashMap<>();
+			final long[] position = new long[n];
+			final long[] boxMin = new long[n];
+			final long[] boxMax = new long[n];
+			Arrays.fill(boxMin, Long.MAX_VALUE);
+			Arrays.fill(boxMax, Long.MIN_VALUE);
+			boolean filledAny = false;
+			int visitedVoxels = 0;
+
+			for (long[] seed = seeds.poll(); seed != null; seed = seeds.poll()) {
+				stack.add(localIndex(seed, strides));
+
+				while (!stack.isEmpty()) {
+					if (++visitedVoxels % CANCELLATION_CHECK_INTERVAL == 0)
+						checkCancelled();
+
+					int voxel = stack.removeAt(stack.size() - 1);
+					for (int d = n - 1; d >= 0; --d) {
+						position[d] = min[d] + voxel / strides[d];
+						voxel %= strides[d];
+					}
+					sourceAccess.setPosition(position);
+					targetAccess.setPosition(position);
+					final UnsignedLongType targetValue = targetAccess.get();
+					if (!filter.test(sourceAccess.get(), targetValue))
+						continue;
+					targetValue.set(fillLabel);
+					filledAny = true;
+					for (int d = 0; d < n; ++d) {
+						boxMin[d] = Math.min(boxMin[d], position[d]);
+						boxMax[d] = Math.max(boxMax[d], position[d]);
+					}
+
+					final int localIndex = localIndex(position, strides);
+					for (int d = 0; d < n; ++d) {
+						final long local = position[d] - min[d];
+						if (local > 0)
+							stack.add(localIndex - strides[d]);
+						else
+							addToFrontier(frontier, position, d, -1);
+						if (local < dimensions[d] - 1)
+							stack.add(localIndex + strides[d]);
+						else
+							addToFrontier(frontier, position, d, 1);
+					}
+				}
+			}
+
+			if (filledAny)
+				filled(boxMin, boxMax);
+
+			frontier.forEach(BlockParallelFloodFill.this::enqueue);
+		}
+
+		/**
+		 * @return whether the filter accepted all voxels of the block and the block was filled
+		 */
+		private boolean fillIfUniform(final Interval blockInterval) {
+
+			final Cursor<S> sourceCursor = Views.flatIterable(Views.interval(source, blockInterval)).cursor();
+			final Cursor<UnsignedLongType> targetCursor = Views.flatIterable(Views.interval(target, blockInterval)).cursor();
+			int visitedVoxels = 0;
+			while (sourceCursor.hasNext()) {
+				if (++visitedVoxels % CANCELLATION_CHECK_INTERVAL == 0)
+					checkCancelled();
+				if (!filter.test(sourceCursor.next(), targetCursor.next()))
+					return false;
+			}
+			for (final UnsignedLongType value : Views.flatIterable(Views.interval(target, blockInterval)))
+				value.set(fillLabel);
+			return true;
+		}
+
+		/**
+		 * Hand all voxels adjacent to the faces of this block to the neighbouring blocks.
+		 */
+		private void enqueueFaces(final long[] blockMax) {
+
+			final int n = min.length;
+			for (int d = 0; d < n; ++d) {
+				for (final long neighbor : new long[]{min[d] - 1, blockMax[d] + 1}) {
+					if (neighbor < target.min(d) || neighbor > target.max(d))
+						continue;
+					final long[] faceMin = min.clone();
+					final long[] faceMax = blockMax.clone();
+					faceMin[d] = neighbor;
+					faceMax[d] = neighbor;
+					final Block block = blockAt(faceMin, true);
+					if (block == null)
+						continue;
+					final List<long[]> faceSeeds = new ArrayList<>();
+					final LocalizingIntervalIterator face = new LocalizingIntervalIterator(faceMin, faceMax);
+					while (face.hasNext()) {
+						face.fwd();
+						faceSeeds.add(face.positionAsLongArray());
+					}
+					enqueue(block, faceSeeds);
+				}
+			}
+		}
+
+		private void filled(final long[] boxMin, final long[] boxMax) {
+
+			for (int d = 0; d < boxMin.length; ++d) {
+				filledMin.accumulateAndGet(d, boxMin[d], Math::min);
+				filledMax.accumulateAndGet(d, boxMax[d], Math::max);
+			}
+			if (accessTracker != null)
+				accessTracker.addBlock(index);
+			if (blockFilled != null)
+				blockFilled.accept(new FinalInterval(boxMin, boxMax));
+		}
+
+		private void checkCancelled() {
+
+			if (isCancelled.getAsBoolean() || failure.get() != null)
+				throw new CancellationException("Flood Fill Canceled");
+		}
+
+		private int localIndex(final long[] position, final int[] strides) {
+
+			int index = 0;
+			for (int d = 0; d < position.length; ++d)
+				index += (int)(position[d] - min[d]) * strides[d];
+			return index;
+		}
+
+		private void addToFrontier(final Map<Block, List<long[]>> frontier, final long[] position, final int d, final int step) {
+
+			final long neighbor = position[d] + step;
+			if (neighbor < target.min(d) || neighbor > target.max(d))
+				return;
+			final long[] seed = position.clone();
+			seed[d] = neighbor;
+			final Block block = blockAt(seed, true);
+			if (block != null)
+				frontier.computeIfAbsent(block, b -> new ArrayList<>()).add(seed);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package org.janelia.saalfeldlab.paintera.data.mask;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+import org.janelia.saalfeldlab.util.concurrent.BlockPyramidScheduler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Downsamples blocks of a multi-scale canvas, where each level is computed from the next higher resolution level.
+ * <p>
+ * Blocks are scheduled by a {@link BlockPyramidScheduler}, i.e. a block is scheduled as soon as all blocks of the
+ * next higher resolution level that it is computed from are done. Blocks of the lowest level that is part of the
+ * pipeline do not have any dependencies, i.e. the level that they are computed from must be up-to-date when the
+ * pipeline is {@link #start() started}.
+ * <p>
+ * A pipeline can be {@link #cancel() cancelled}, e.g. when new paint supersedes it. Blocks that have not been
+ * downsampled yet are available through {@link #getRemainingBlocks()} and can be handed to the next pipeline.
+ */
+class DownsamplingPipeline {
+
+	@FunctionalInterface
+	interface Dependencies {
+
+		/**
+		 * @return blocks at {@code level - 1} that block {@code blockId} at {@code level} is computed from
+		 */
+		long[] contributingBlocks(int level, long blockId, Interval interval);
+	}
+
+	@FunctionalInterface
+	interface BlockTask {
+
+		/**
+		 * Downsample block {@code blockId} at {@code level}, restricted to {@code interval}.
+		 *
+		 * @return labels that are present in the downsampled block
+		 */
+		TLongSet downsample(int level, long blockId, Interval interval);
+	}
+
+	@FunctionalInterface
+	interface BlockListener {
+
+		/**
+		 * Called once for each block that was downsampled before the pipeline was cancelled.
+		 */
+		void blockDone(int level, long blockId, TLongSet labels);
+	}
+
+	private final Interval[] intervals;
+
+	private final BlockPyramidScheduler<TLongSet> scheduler;
+
+	/**
+	 * @param executor     runs block tasks
+	 * @param blocks       blocks to downsample per level, {@code null} or empty for levels that are not part of the pipeline
+	 * @param intervals    restricts downsampling per level, {@code null} for levels that are not part of the pipeline
+	 * @param dependencies blocks that a block is computed from
+	 * @param task         downsamples a single block
+	 * @param listener     notified for each downsampled block
+	 */
+	DownsamplingPipeline(
+			final ExecutorService executor,
+			final TLongSet[] blocks,
+			final Interval[] intervals,
+			final Dependencies dependencies,
+			final BlockTask task,
+			final BlockListener listener) {
+
+		this.intervals = intervals;
+		this.scheduler = new BlockPyramidScheduler<>(
+				executor,
+				blocks,
+				(level, block) -> dependencies.contributingBlocks(level, block, intervals[level]),
+				(level, block) -> task.downsample(level, block, intervals[level]),
+				listener::blockDone);
+	}
+
+	/**
+	 * Schedule all blocks without dependencies. Remaining blocks are scheduled as their dependencies complete.
+	 *
+	 * @return completes when all blocks are downsampled; is cancelled when the pipeline is {@link #cancel() cancelled}
+	 */
+	CompletableFuture<Void> start() {
+
+		return scheduler.start();
+	}
+
+	/**
+	 * @return completes when all blocks are downsampled; is cancelled when the pipeline is {@link #cancel() cancelled}
+	 */
+	CompletableFuture<Void> getCompletion() {
+
+		return scheduler.getCompletion();
+	}
+
+	/**
+	 * Do not schedule any more blocks. Blocks that are being downsampled continue, see {@link #awaitRunning()}.
+	 */
+	void cancel() {
+
+		scheduler.cancel();
+	}
+
+	/**
+	 * Wait until no more block tasks are running.
+	 */
+	void awaitRunning() throws InterruptedException {
+
+		scheduler.awaitRunning();
+	}
+
+	boolean isCompletedNormally() {
+
+		return scheduler.isCompletedNormally();
+	}
+
+	/**
+	 * @return blocks per level that have not been downsampled (yet). Entries are {@code null} for levels that are not
+	 * part of this pipeline.
+	 */
+	TLongSet[] getRemainingBlocks() {
+
+		return scheduler.getRemainingBlocks();
+	}
+
+	Interval[] getIntervals() {
+
+		return intervals;
+	}
+
+	/**
+	 * @return union of {@code blocks} and {@code otherBlocks} per level
+	 */
+	static TLongSet[] union(final TLongSet[] blocks, final TLongSet[] otherBlocks) {
+
+		final TLongSet[] union = new TLongSet[blocks.length];
+		for (int level = 0; level < blocks.length; ++level) {
+			if (blocks[level] == null && otherBlocks[level] == null)
+				continue;
+			union[level] = new TLongHashSet();
+			if (blocks[level] != null)
+				union[level].addAll(blocks[level]);
+			if (otherBlocks[level] != null)
+				union[level].addAll(otherBlocks[level]);
+		}
+		return union;
+	}
+
+	/**
+	 * @return bounding box of {@code intervals} and {@code otherIntervals} per level
+	 */
+	static Interval[] union(final Interval[] intervals, final Interval[] otherIntervals) {
+
+		final Interval[] union = new Interval[intervals.length];
+		for (int level = 0; level < intervals.length; ++level) {
+			if (intervals[level] == null)
+				union[level] = otherIntervals[level];
+			else if (otherIntervals[level] == null)
+				union[level] = intervals[level];
+			else
+				union[level] = new FinalInterval(Intervals.union(intervals[level], otherIntervals[level]));
+		}
+		return union;
+	}
+}
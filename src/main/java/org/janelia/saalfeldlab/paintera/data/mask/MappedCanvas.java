@@ -0,0 +1,497 @@
+package org.janelia.saalfeldlab.paintera.data.mask;
+
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.DiskCellCache;
+import net.imglib2.type.label.Label;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Paint canvases of all scale levels in a canvas directory: one {@link MappedCanvasStore} file per level, and a
+ * write-ahead log of the blocks that were painted into.
+ * <p>
+ * Every block is appended to the log before its first write, so after a crash, the painted blocks can be restored from
+ * the log alone, without scanning the canvas files. The directory is locked while it is open. A directory with a log
+ * that is not locked belongs to a session that did not shut down, and can be restored; {@link #listRecoverable} finds
+ * such directories. Directories are deleted when the canvases are cleared or committed, and on regular shutdown. The
+ * log is deleted first, so a directory that cannot be deleted completely while its files are still mapped is never
+ * restored, and is deleted by a later {@link #listRecoverable}. Directories with logged blocks are never deleted
+ * automatically, they may hold the only copy of uncommitted paint.
+ */
+public class MappedCanvas implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	private static final long JOURNAL_MAGIC = 0x5041494e544a4e4cL; // PAINTJNL
+
+	private static final int JOURNAL_VERSION = 1;
+
+	private static final String JOURNAL_FILE = "blocks.wal";
+
+	private static final String LOCK_FILE = "lock";
+
+	private static final String LEVEL_FILE_FORMAT = "level-%d.canvas";
+
+	/* level and block */
+	private static final int JOURNAL_RECORD_BYTES = 12;
+
+	/*
+	 * Canvas directories that this JVM has opened or is probing. Closing any channel of a file releases all locks of
+	 * the JVM on that file on some platforms, so a lock file is never opened on a second channel while it is held.
+	 */
+	private static final Set<Path> HELD_DIRECTORIES = ConcurrentHashMap.newKeySet();
+
+	private final Path directory;
+
+	private final FileChannel lockChannel;
+
+	private final FileLock lock;
+
+	private final FileChannel journal;
+
+	private final ByteBuffer record = ByteBuffer.allocate(JOURNAL_RECORD_BYTES);
+
+	private final MappedCanvasStore[] stores;
+
+	private boolean isClosed = false;
+
+	/**
+	 * Open the canvases in {@code directory}, or create them if they do not exist.
+	 *
+	 * @param sourceId identifies the source of the canvases, for {@link #listRecoverable}
+	 * @throws IOException if the directory is in use, or has canvases that do not match the dimensions
+	 */
+	public MappedCanvas(
+			final Path directory,
+			final String sourceId,
+			final long[][] dimensions,
+			final int[][] blockSizes) throws IOException {
+
+		this.directory = directory;
+		if (!HELD_DIRECTORIES.add(heldKey(directory)))
+			throw new IOException("Canvas directory is in use: " + directory);
+		try {
+			Files.createDirectories(directory);
+			this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		} catch (final IOException | RuntimeException e) {
+			HELD_DIRECTORIES.remove(heldKey(directory));
+			throw e;
+		}
+		this.lock = tryLock(lockChannel);
+		if (lock == null) {
+			/* locked by another process, this JVM holds no lock on the file that closing the channel could release */
+			lockChannel.close();
+			HELD_DIRECTORIES.remove(heldKey(directory));
+			throw new IOException("Canvas directory is in use: " + directory);
+		}
+
+		final List<AutoCloseable> opened = new ArrayList<>();
+		try {
+			final Path journalFile = directory.resolve(JOURNAL_FILE);
+			final boolean isNew = !Files.exists(journalFile) || Files.size(journalFile) == 0;
+			this.journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			opened.add(journal);
+			if (isNew)
+				writeJournalHeader(sourceId);
+			else
+				truncateIncompleteRecord();
+			journal.position(journal.size());
+
+			this.stores = new MappedCanvasStore[dimensions.length];
+			for (int level = 0; level < stores.length; ++level) {
+				final int storeLevel = level;
+				stores[level] = new MappedCanvasStore(
+						directory.resolve(String.format(LEVEL_FILE_FORMAT, level)),
+						dimensions[level],
+						blockSizes[level],
+						block -> log(storeLevel, block));
+				opened.add(stores[level]);
+			}
+		} catch (final IOException | RuntimeException e) {
+			for (final AutoCloseable closeable : opened)
+				closeQuietly(closeable);
+			lock.release();
+			lockChannel.close();
+			HELD_DIRECTORIES.remove(heldKey(directory));
+			throw e;
+		}
+	}
+
+	public Path getDirectory() {
+
+		return directory;
+	}
+
+	public int getNumLevels() {
+
+		return stores.length;
+	}
+
+	public CachedCellImg<UnsignedLongType, MappedLongAccess> getImg(final int level) {
+
+		return stores[level].getImg();
+	}
+
+	/**
+	 * @return {@code true} if anything was painted into the canvases
+	 */
+	public boolean hasPaint() {
+
+		return Arrays.stream(stores).anyMatch(store -> store.numAllocated() > 0);
+	}
+
+	/**
+	 * @return painted blocks at the highest resolution, from the write-ahead log
+	 */
+	public long[] paintedBlocks() throws IOException {
+
+		final TLongHashSet blocks = new TLongHashSet();
+		forEachLogged((level, block) -> {
+			if (level == 0 && stores[0].isAllocated(block))
+				blocks.add(block);
+		});
+		return blocks.toArray();
+	}
+
+	/**
+	 * @return painted blocks of each label for each level, as expected by {@link MaskedSource#affectBlocks(long[], Map[])}
+	 */
+	public Map<Long, long[]>[] paintedBlocksByLabel() throws IOException {
+
+		@SuppressWarnings("unchecked") final Map<Long, TLongHashSet>[] blocksByLabel = new HashMap[stores.length];
+		Arrays.setAll(blocksByLabel, level -> new HashMap<>());
+		forEachLogged((level, block) -> {
+			if (level >= stores.length || !stores[level].isAllocated(block))
+				return;
+			final LongBuffer data = stores[level].slot(block);
+			final TLongHashSet labels = new TLongHashSet();
+			for (int i = 0; i < data.capacity(); ++i)
+				labels.add(data.get(i));
+			labels.remove(Label.INVALID);
+			labels.forEach(label -> {
+				blocksByLabel[level].computeIfAbsent(label, k -> new TLongHashSet()).add(block);
+				return true;
+			});
+		});
+		@SuppressWarnings("unchecked") final Map<Long, long[]>[] maps = new HashMap[stores.length];
+		Arrays.setAll(maps, level -> {
+			final Map<Long, long[]> map = new HashMap<>();
+			blocksByLabel[level].forEach((label, blocks) -> map.put(label, blocks.toArray()));
+			return map;
+		});
+		return maps;
+	}
+
+	/**
+	 * Force all canvases and the log to the storage device.
+	 */
+	public void sync() throws IOException {
+
+		for (final MappedCanvasStore store : stores)
+			store.sync();
+		synchronized (journal) {
+			journal.force(true);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+
+		if (isClosed)
+			return;
+		isClosed = true;
+		for (final MappedCanvasStore store : stores)
+			closeQuietly(store);
+		synchronized (journal) {
+			journal.close();
+		}
+		try {
+			lock.release();
+			lockChannel.close();
+		} finally {
+			HELD_DIRECTORIES.remove(heldKey(directory));
+		}
+	}
+
+	/**
+	 * Close the canvases and delete the directory. Files that are still mapped cannot be deleted on some platforms, their
+	 * deletion is retried on shutdown.
+	 */
+	public void delete() {
+
+		try {
+			close();
+		} catch (final IOException e) {
+			LOG.warn("Unable to close canvases in {}", directory, e);
+		}
+		if (!deleteDirectory(directory)) {
+			LOG.debug("Retrying deletion of {} on shutdown", directory);
+			DiskCellCache.addDeleteHook(directory);
+		}
+	}
+
+	/**
+	 * List the canvas directories in {@code root} that were painted into for {@code sourceId} and are not in use by a
+	 * running session. The directories are not modified, as they may belong to other projects on the same source.
+	 * Canvas directories without paint that are not in use are deleted.
+	 *
+	 * @return directories that can be passed to the constructor to restore the canvases, most recently modified first
+	 */
+	public static List<Path> listRecoverable(final Path root, final String sourceId) {
+
+		if (!Files.isDirectory(root))
+			return List.of();
+		final List<Path> candidates = new ArrayList<>();
+		try (final Stream<Path> directories = Files.list(root)) {
+			directories.forEach(directory -> {
+				if (isRecoverable(directory, sourceId))
+					candidates.add(directory);
+				else if (isStale(directory)) {
+					LOG.debug("Deleting canvas directory without paint {}", directory);
+					deleteDirectory(directory);
+				}
+			});
+		} catch (final IOException e) {
+			LOG.warn("Unable to list canvas directories in {}", root, e);
+			return List.of();
+		}
+		candidates.sort(Comparator.comparing(MappedCanvas::lastModified).reversed());
+		return candidates;
+	}
+
+	/**
+	 * @return {@code true} if {@code directory} was painted into for {@code sourceId} and is not in use by a running
+	 * session
+	 */
+	public static boolean isRecoverable(final Path directory, final String sourceId) {
+
+		return Files.isDirectory(directory)
+				&& sourceId.equals(readSourceId(directory))
+				&& hasLoggedBlocks(directory)
+				&& !isLocked(directory);
+	}
+
+	private void log(final int level, final long block) {
+
+		synchronized (journal) {
+			try {
+				record.clear();
+				record.putInt(level).putLong(block).flip();
+				while (record.hasRemaining())
+					journal.write(record);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private interface LoggedBlockConsumer {
+
+		void accept(int level, long block);
+	}
+
+	private void forEachLogged(final LoggedBlockConsumer consumer) throws IOException {
+
+		final Path journalFile = directory.resolve(JOURNAL_FILE);
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+			readJournalHeader(in);
+			while (true) {
+				final int level;
+				final long block;
+				try {
+					level = in.readInt();
+					block = in.readLong();
+				} catch (final EOFException e) {
+					break;
+				}
+				consumer.accept(level, block);
+			}
+		}
+	}
+
+	private void writeJournalHeader(final String sourceId) throws IOException {
+
+		final byte[] id = sourceId.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer header = ByteBuffer.allocate(16 + id.length);
+		header.putLong(JOURNAL_MAGIC).putInt(JOURNAL_VERSION).putInt(id.length).put(id).flip();
+		journal.truncate(0);
+		while (header.hasRemaining())
+			journal.write(header, header.position());
+		journal.force(true);
+	}
+
+	/* a crash may have left a partially written record at the end of the log */
+	private void truncateIncompleteRecord() throws IOException {
+
+		final long headerBytes;
+		try (final DataInputStream in = new DataInputStream(Files.newInputStream(directory.resolve(JOURNAL_FILE)))) {
+			headerBytes = 16 + readJournalHeader(in).getBytes(StandardCharsets.UTF_8).length;
+		}
+		final long recordBytes = journal.size() - headerBytes;
+		journal.truncate(headerBytes + recordBytes / JOURNAL_RECORD_BYTES * JOURNAL_RECORD_BYTES);
+	}
+
+	private static String readJournalHeader(final DataInputStream in) throws IOException {
+
+		if (in.readLong() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION)
+			throw new IOException("Not a canvas log or unsupported version");
+		final byte[] id = new byte[in.readInt()];
+		in.readFully(id);
+		return new String(id, StandardCharsets.UTF_8);
+	}
+
+	private static String readSourceId(final Path directory) {
+
+		final Path journalFile = directory.resolve(JOURNAL_FILE);
+		if (!Files.isRegularFile(journalFile))
+			return null;
+		try (final DataInputStream in = new DataInputStream(Files.newInputStream(journalFile))) {
+			return readJournalHeader(in);
+		} catch (final IOException e) {
+			LOG.debug("Unable to read canvas log in {}", directory, e);
+			return null;
+		}
+	}
+
+	private static boolean hasLoggedBlocks(final Path directory) {
+
+		final String sourceId = readSourceId(directory);
+		try {
+			return sourceId != null && Files.size(directory.resolve(JOURNAL_FILE)) >= 16 + sourceId.getBytes(StandardCharsets.UTF_8).length + JOURNAL_RECORD_BYTES;
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	/* left behind by a canvas that was not restored or not deleted completely, the log is created after the lock */
+	private static boolean isStale(final Path directory) {
+
+		if (!Files.isDirectory(directory) || hasLoggedBlocks(directory))
+			return false;
+		final boolean isCanvas;
+		try (final Stream<Path> files = Files.list(directory)) {
+			isCanvas = files
+					.map(file -> file.getFileName().toString())
+					.anyMatch(name -> name.equals(JOURNAL_FILE) || name.matches("level-\\d+\\.canvas"));
+		} catch (final IOException e) {
+			return false;
+		}
+		return isCanvas && !isLocked(directory);
+	}
+
+	private static boolean isLocked(final Path directory) {
+
+		final Path lockFile = directory.resolve(LOCK_FILE);
+		if (!Files.exists(lockFile))
+			return false;
+		/* held by this JVM, or probed by another thread: do not open a second channel on the lock file */
+		final Path key = heldKey(directory);
+		if (!HELD_DIRECTORIES.add(key))
+			return true;
+		try (final FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+			final FileLock lock = tryLock(channel);
+			if (lock == null)
+				return true;
+			lock.release();
+			return false;
+		} catch (final IOException e) {
+			return true;
+		} finally {
+			HELD_DIRECTORIES.remove(key);
+		}
+	}
+
+	private static Path heldKey(final Path directory) {
+
+		return directory.toAbsolutePath().normalize();
+	}
+
+	private static FileLock tryLock(final FileChannel channel) throws IOException {
+
+		try {
+			return channel.tryLock();
+		} catch (final OverlappingFileLockException e) {
+			/* locked by this JVM */
+			return null;
+		}
+	}
+
+	/**
+	 * @return time in milliseconds that was last painted into the canvases in {@code directory}
+	 */
+	public static long lastModified(final Path directory) {
+
+		try {
+			return Files.getLastModifiedTime(directory.resolve(JOURNAL_FILE)).toMillis();
+		} catch (final IOException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Delete the log first, so the directory cannot be restored if some files cannot be deleted.
+	 *
+	 * @return {@code true} if the directory was deleted completely
+	 */
+	private static boolean deleteDirectory(final Path directory) {
+
+		try {
+			Files.deleteIfExists(directory.resolve(JOURNAL_FILE));
+		} catch (final IOException e) {
+			LOG.warn("Unable to delete canvas log in {}", directory, e);
+			return false;
+		}
+		final boolean[] isDeleted = {true};
+		try (final Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> {
+				try {
+					Files.deleteIfExists(path);
+				} catch (final IOException e) {
+					/* mapped files cannot be deleted on some platforms */
+					LOG.debug("Unable to delete {}", path, e);
+					isDeleted[0] = false;
+				}
+			});
+		} catch (final IOException e) {
+			LOG.warn("Unable to delete canvas directory {}", directory, e);
+			return false;
+		}
+		return isDeleted[0];
+	}
+
+	private static void closeQuietly(final AutoCloseable closeable) {
+
+		try {
+			closeable.close();
+		} catch (final Exception e) {
+			LOG.warn("Unable to close {}", closeable, e);
+		}
+	}
+}
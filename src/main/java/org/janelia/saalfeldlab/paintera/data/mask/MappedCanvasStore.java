@@ -0,0 +1,354 @@
+package org.janelia.saalfeldlab.paintera.data.mask;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongLongHashMap;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.label.Label;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Canvas of a single scale level in one memory-mapped file.
+ * <p>
+ * The file starts with a header that describes the cell grid, followed by the data slots of all cells that were written
+ * to. Slots are allocated on the first write into a cell, filled with {@link Label#INVALID}, and never moved. The data
+ * region is mapped in segments that start small and double in size up to a limit, so the file only grows with the
+ * painted cells, and the heap only holds the cell objects, never the cell data.
+ * <p>
+ * A second file lists the cell of each slot. The index from cells to slots is rebuilt from it when the store is
+ * opened, so its size depends on the number of painted cells, not on the size of the grid.
+ * <p>
+ * Allocation is crash-safe: the cell is reported to {@code beforeAllocate} first (the write-ahead log of the canvas),
+ * the slot is reserved in the header next, and the cell of the slot is only written when the slot is initialized. All
+ * writes go to the page cache, so they survive a crash of the JVM. {@link #sync()} forces them to the device.
+ */
+public class MappedCanvasStore implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	private static final long MAGIC = 0x5041494e54435653L; // PAINTCVS
+
+	private static final int VERSION = 2;
+
+	private static final int PAGE_BYTES = 4096;
+
+	private static final int MAX_DIMENSIONS = 5;
+
+	private static final long MIN_SEGMENT_BYTES = 1L << 20;
+
+	private static final long MAX_SEGMENT_BYTES = 1L << 28;
+
+	private static final int NUM_SLOTS_OFFSET = 16;
+
+	private static final int DIMENSIONS_OFFSET = 24;
+
+	private static final String SLOT_CELLS_SUFFIX = ".cells";
+
+	/* cell of each slot, plus one, so that slots that were reserved but not initialized are 0 */
+	private static final int SLOT_CELL_BYTES = 8;
+
+	private final Path file;
+
+	private final CellGrid grid;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer header;
+
+	private final FileChannel slotCells;
+
+	/* slot of each cell that was written to */
+	private final TLongLongHashMap index = new TLongLongHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1);
+
+	private final long dataStart;
+
+	private final long slotBytes;
+
+	private final int minSlotsPerSegment;
+
+	private final int maxSlotsPerSegment;
+
+	private final LongConsumer beforeAllocate;
+
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	private final CachedCellImg<UnsignedLongType, MappedLongAccess> img;
+
+	/**
+	 * Open the store in {@code file}, or create it if it does not exist.
+	 *
+	 * @param beforeAllocate called with the index of a cell before its slot is allocated
+	 * @throws IOException if the file cannot be opened, or does not match {@code dimensions} and {@code cellDimensions}
+	 */
+	public MappedCanvasStore(
+			final Path file,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final LongConsumer beforeAllocate) throws IOException {
+
+		if (dimensions.length > MAX_DIMENSIONS)
+			throw new IllegalArgumentException("At most " + MAX_DIMENSIONS + " dimensions supported but got " + dimensions.length);
+		this.file = file;
+		this.grid = new CellGrid(dimensions, cellDimensions);
+		this.beforeAllocate = beforeAllocate;
+
+		final long headerBytes = DIMENSIONS_OFFSET + 12L * dimensions.length;
+		this.dataStart = alignToPage(headerBytes);
+		this.slotBytes = alignToPage(8L * Intervals.numElements(cellDimensions));
+		this.minSlotsPerSegment = (int)Math.max(1, MIN_SEGMENT_BYTES / slotBytes);
+		this.maxSlotsPerSegment = (int)Math.max(1, MAX_SEGMENT_BYTES / slotBytes);
+
+		final boolean exists = Files.exists(file);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes);
+			this.header.order(ByteOrder.nativeOrder());
+			final boolean isNew = !exists || channel.size() == 0;
+			if (isNew)
+				writeHeader(dimensions, cellDimensions);
+			else
+				validateHeader(dimensions, cellDimensions);
+			this.slotCells = FileChannel.open(file.resolveSibling(file.getFileName() + SLOT_CELLS_SUFFIX), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		try {
+			readIndex();
+		} catch (final IOException | RuntimeException e) {
+			slotCells.close();
+			channel.close();
+			throw e;
+		}
+
+		final Cache<Long, Cell<MappedLongAccess>> cache = new SoftRefLoaderCache<Long, Cell<MappedLongAccess>>().withLoader(this::loadCell);
+		this.img = new CachedCellImg<>(grid, new UnsignedLongType(), cache, MappedLongAccess.detached(0));
+	}
+
+	/**
+	 * @return view of the canvas, all values are {@link Label#INVALID} until written
+	 */
+	public CachedCellImg<UnsignedLongType, MappedLongAccess> getImg() {
+
+		return img;
+	}
+
+	public CellGrid getCellGrid() {
+
+		return grid;
+	}
+
+	public Path getFile() {
+
+		return file;
+	}
+
+	/**
+	 * @return {@code true} if anything was written to {@code cell}
+	 */
+	public synchronized boolean isAllocated(final long cell) {
+
+		return index.containsKey(cell);
+	}
+
+	/**
+	 * @return number of cells that were written to
+	 */
+	public synchronized long numAllocated() {
+
+		return header.getLong(NUM_SLOTS_OFFSET);
+	}
+
+	/**
+	 * Force all writes to the storage device.
+	 */
+	public synchronized void sync() {
+
+		header.force();
+		for (final MappedByteBuffer segment : segments)
+			if (segment != null)
+				segment.force();
+		try {
+			slotCells.force(true);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Close the file. The mappings are only released when they are garbage collected, until then, the file cannot be
+	 * deleted on some platforms.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+
+		img.getCache().invalidateAll();
+		segments = new MappedByteBuffer[0];
+		try {
+			slotCells.close();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return data of {@code cell}, or {@code null} if it was not written to yet
+	 */
+	synchronized LongBuffer slot(final long cell) {
+
+		if (cell < 0)
+			return null;
+		final long slot = index.get(cell);
+		return slot < 0 ? null : slotBuffer(slot);
+	}
+
+	/**
+	 * @return data of {@code cell}, allocated and filled with {@link Label#INVALID} if it was not written to yet
+	 */
+	synchronized LongBuffer allocate(final long cell) {
+
+		final LongBuffer existing = slot(cell);
+		if (existing != null)
+			return existing;
+
+		beforeAllocate.accept(cell);
+		final long slot = header.getLong(NUM_SLOTS_OFFSET);
+		header.putLong(NUM_SLOTS_OFFSET, slot + 1);
+		final LongBuffer data = slotBuffer(slot);
+		for (int i = 0; i < data.capacity(); ++i)
+			data.put(i, Label.INVALID);
+		writeSlotCell(slot, cell);
+		index.put(cell, slot);
+		LOG.trace("Allocated slot {} for cell {} in {}", slot, cell, file);
+		return data;
+	}
+
+	private void writeSlotCell(final long slot, final long cell) {
+
+		final ByteBuffer slotCell = ByteBuffer.allocate(SLOT_CELL_BYTES).order(ByteOrder.nativeOrder()).putLong(0, cell + 1);
+		try {
+			while (slotCell.hasRemaining())
+				slotCells.write(slotCell, slot * SLOT_CELL_BYTES + slotCell.position());
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/* slots that were reserved but not initialized before a crash stay unused */
+	private void readIndex() throws IOException {
+
+		final long numSlots = header.getLong(NUM_SLOTS_OFFSET);
+		final long numSlotCells = Math.min(numSlots, slotCells.size() / SLOT_CELL_BYTES);
+		final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+		for (long slot = 0; slot < numSlotCells; ) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), (numSlotCells - slot) * SLOT_CELL_BYTES));
+			while (buffer.hasRemaining())
+				if (slotCells.read(buffer, slot * SLOT_CELL_BYTES + buffer.position()) < 0)
+					throw new IOException("Unexpected end of " + file + SLOT_CELLS_SUFFIX);
+			buffer.flip();
+			for (; buffer.hasRemaining(); ++slot) {
+				final long cell = buffer.getLong() - 1;
+				if (cell >= 0)
+					index.put(cell, slot);
+			}
+		}
+	}
+
+	private Cell<MappedLongAccess> loadCell(final Long cell) {
+
+		final long[] cellMin = new long[grid.numDimensions()];
+		final int[] cellDimensions = new int[grid.numDimensions()];
+		grid.getCellDimensions(cell, cellMin, cellDimensions);
+		return new Cell<>(cellDimensions, cellMin, new MappedLongAccess(this, cell, (int)Intervals.numElements(cellDimensions)));
+	}
+
+	private LongBuffer slotBuffer(final long slot) {
+
+		int segmentIndex = 0;
+		long segmentStart = 0;
+		while (slot >= segmentStart + segmentSlots(segmentIndex))
+			segmentStart += segmentSlots(segmentIndex++);
+		if (segmentIndex >= segments.length)
+			segments = Arrays.copyOf(segments, segmentIndex + 1);
+		if (segments[segmentIndex] == null) {
+			try {
+				/* mapping beyond the end of the file grows the file */
+				segments[segmentIndex] = channel.map(FileChannel.MapMode.READ_WRITE, dataStart + segmentStart * slotBytes, slotBytes * segmentSlots(segmentIndex));
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		final int offset = (int)((slot - segmentStart) * slotBytes);
+		final int numEntities = (int)Intervals.numElements(grid.cellDimensions());
+		return segments[segmentIndex].slice(offset, 8 * numEntities).order(ByteOrder.nativeOrder()).asLongBuffer();
+	}
+
+	/* segments double in size, slots are contiguous in the file across segments */
+	private int segmentSlots(final int segmentIndex) {
+
+		return segmentIndex >= Integer.SIZE - 1
+				? maxSlotsPerSegment
+				: (int)Math.min(maxSlotsPerSegment, (long)minSlotsPerSegment << segmentIndex);
+	}
+
+	private void writeHeader(final long[] dimensions, final int[] cellDimensions) {
+
+		header.putLong(0, MAGIC);
+		header.putInt(8, VERSION);
+		header.putInt(12, dimensions.length);
+		header.putLong(NUM_SLOTS_OFFSET, 0);
+		for (int d = 0; d < dimensions.length; ++d) {
+			header.putLong(DIMENSIONS_OFFSET + 8 * d, dimensions[d]);
+			header.putInt(DIMENSIONS_OFFSET + 8 * dimensions.length + 4 * d, cellDimensions[d]);
+		}
+	}
+
+	private void validateHeader(final long[] dimensions, final int[] cellDimensions) throws IOException {
+
+		if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION)
+			throw new IOException("Not a canvas file or unsupported version: " + file);
+		final int n = header.getInt(12);
+		if (n != dimensions.length)
+			throw new IOException("Canvas file " + file + " has " + n + " dimensions but expected " + dimensions.length);
+		final long[] storedDimensions = new long[n];
+		final int[] storedCellDimensions = new int[n];
+		for (int d = 0; d < n; ++d) {
+			storedDimensions[d] = header.getLong(DIMENSIONS_OFFSET + 8 * d);
+			storedCellDimensions[d] = header.getInt(DIMENSIONS_OFFSET + 8 * n + 4 * d);
+		}
+		if (!Arrays.equals(storedDimensions, dimensions) || !Arrays.equals(storedCellDimensions, cellDimensions))
+			throw new IOException(String.format(
+					"Canvas file %s has dimensions %s and cell dimensions %s but expected %s and %s",
+					file,
+					Arrays.toString(storedDimensions),
+					Arrays.toString(storedCellDimensions),
+					Arrays.toString(dimensions),
+					Arrays.toString(cellDimensions)));
+	}
+
+	private static long alignToPage(final long bytes) {
+
+		return (bytes + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+	}
+}
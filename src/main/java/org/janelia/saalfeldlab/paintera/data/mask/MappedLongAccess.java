@@ -0,0 +1,105 @@
+package org.janelia.saalfeldlab.paintera.data.mask;
+
+import net.imglib2.img.basictypeaccess.volatiles.VolatileArrayDataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileLongAccess;
+import net.imglib2.type.label.Label;
+
+import java.nio.LongBuffer;
+
+/**
+ * Canvas cell data in a slot of a {@link MappedCanvasStore}. The slot is only allocated on the first write, until then
+ * all values read as {@link Label#INVALID}. Writes go directly to the memory-mapped file, so cells are never dirty on
+ * the heap and do not need to be written back on eviction.
+ */
+public final class MappedLongAccess implements VolatileLongAccess, VolatileArrayDataAccess<MappedLongAccess> {
+
+	private final MappedCanvasStore store;
+
+	private final long cell;
+
+	private final int numEntities;
+
+	private volatile LongBuffer buffer;
+
+	MappedLongAccess(final MappedCanvasStore store, final long cell, final int numEntities) {
+
+		this.store = store;
+		this.cell = cell;
+		this.numEntities = numEntities;
+		this.buffer = store.slot(cell);
+	}
+
+	/**
+	 * @return access that is not backed by a store, with all values set to {@link Label#INVALID}
+	 */
+	static MappedLongAccess detached(final int numEntities) {
+
+		return new MappedLongAccess(numEntities);
+	}
+
+	private MappedLongAccess(final int numEntities) {
+
+		this.store = null;
+		this.cell = -1;
+		this.numEntities = numEntities;
+		this.buffer = LongBuffer.allocate(numEntities);
+		for (int i = 0; i < numEntities; ++i)
+			this.buffer.put(i, Label.INVALID);
+	}
+
+	@Override
+	public long getValue(final int index) {
+
+		final LongBuffer buffer = this.buffer;
+		return buffer == null ? Label.INVALID : buffer.get(index);
+	}
+
+	@Override
+	public void setValue(final int index, final long value) {
+
+		LongBuffer buffer = this.buffer;
+		if (buffer == null) {
+			buffer = store.allocate(cell);
+			this.buffer = buffer;
+		}
+		buffer.put(index, value);
+	}
+
+	/**
+	 * @return {@code true} if anything was written to this cell
+	 */
+	public boolean isAllocated() {
+
+		return buffer != null;
+	}
+
+	@Override
+	public boolean isValid() {
+
+		return true;
+	}
+
+	@Override
+	public MappedLongAccess createArray(final int numEntities) {
+
+		return detached(numEntities);
+	}
+
+	@Override
+	public MappedLongAccess createArray(final int numEntities, final boolean isValid) {
+
+		return createArray(numEntities);
+	}
+
+	@Override
+	public Object getCurrentStorageArray() {
+
+		return buffer;
+	}
+
+	@Override
+	public int getArrayLength() {
+
+		return numEntities;
+	}
+}
@@ -6,6 +6,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import gnu.trove.iterator.TLongIterator;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
 import javafx.animation.KeyFrame;
@@ -67,8 +68,6 @@ import net.imglib2.img.cell.CellGrid;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.loops.LoopBuilder;
-import net.imglib2.parallel.TaskExecutor;
-import net.imglib2.parallel.TaskExecutors;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.Scale3D;
@@ -111,19 +110,19 @@ import org.janelia.saalfeldlab.util.TmpVolatileHelpers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -182,7 +181,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 	private final SharedQueue queue;
 
-	private final DiskCachedCellImg<UnsignedLongType, LongAccess>[] dataCanvases;
+	private final CachedCellImg<UnsignedLongType, LongAccess>[] dataCanvases;
 
 	private final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType>[] canvases;
 
@@ -217,10 +216,24 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 	private final BooleanProperty isPersistingProperty = new SimpleBooleanProperty(false);
 
+	private final BooleanProperty isCommittingInBackgroundProperty = new SimpleBooleanProperty(false);
+
+	/**
+	 * Canvases that are committed in the background, rendered below the current canvases until the commit is done.
+	 */
+	private volatile CanvasGeneration committingGeneration = null;
+
+	private CompletableFuture<Void> backgroundCommit = CompletableFuture.completedFuture(null);
+
 	private final BooleanProperty isCreatingMaskProperty = new SimpleBooleanProperty(false);
 
 	private final BooleanProperty isApplyingMask = new SimpleBooleanProperty();
 
+	/**
+	 * Completes when the mask that is currently applied, if any, is done.
+	 */
+	private CompletableFuture<Void> maskApplied = CompletableFuture.completedFuture(null);
+
 	private final BooleanBinding isMaskInUseBinding = Bindings.createBooleanBinding(() ->
 					isCreatingMask() || getCurrentMask() != null || isApplyingMask.get() || isPersisting(), isCreatingMaskProperty, currentMaskProperty,
 			isApplyingMaskProperty(),
@@ -228,13 +241,22 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 	private final BooleanProperty isBusy = new SimpleBooleanProperty(null, "Masked Source Is Busy");
 
-	private final ConcurrentHashMap<Long, TLongHashSet>[] affectedBlocksByLabel;
+	/* each map is guarded by itself */
+	private final TLongObjectHashMap<TLongHashSet>[] affectedBlocksByLabel;
+
+	private final Object downsamplingLock = new Object();
+
+	private DownsamplingPipeline downsampling = null;
 
 	private final List<Runnable> canvasClearedListeners = new ArrayList<>();
 
+	private final List<Consumer<long[][]>> canvasPersistedListeners = new ArrayList<>();
+
 	private final BooleanProperty showCanvasOverBackground = new SimpleBooleanProperty(this, "show canvas", true);
 	private final AtomicInteger busyAlertCount = new AtomicInteger();
 
+	private final CanvasBaseDirChangeListener canvasBaseDirChangeListener;
+
 	public MaskedSource(
 			final DataSource<D, T> source,
 			final SharedQueue queue,
@@ -284,7 +306,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 				.mapToObj(level -> Intervals.dimensionsAsLongArray(this.source.getSource(0, level)))
 				.toArray(long[][]::new);
 		this.blockSizes = blockSizes;
-		this.dataCanvases = new DiskCachedCellImg[source.getNumMipmapLevels()];
+		this.dataCanvases = new CachedCellImg[source.getNumMipmapLevels()];
 		this.canvases = new TmpVolatileHelpers.RaiWithInvalidate[source.getNumMipmapLevels()];
 		this.dMasks = new RealRandomAccessible[this.canvases.length];
 		this.tMasks = new RealRandomAccessible[this.canvases.length];
@@ -298,18 +320,21 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 		this.propagationExecutor = propagationExecutor;
 
-		this.cacheDirectory.addListener(new CanvasBaseDirChangeListener(
+		this.canvasBaseDirChangeListener = new CanvasBaseDirChangeListener(
 				this.queue,
+				Masks.canvasSourceId(source),
 				dataCanvases,
 				canvases,
 				this.dimensions,
-				this.blockSizes));
+				this.blockSizes);
+		this.cacheDirectory.addListener(this.canvasBaseDirChangeListener);
 		this.cacheDirectory.set(initialCacheDirectory);
 
-		this.affectedBlocksByLabel = new ConcurrentHashMap[canvases.length];
+		this.affectedBlocksByLabel = new TLongObjectHashMap[canvases.length];
 		for (int level = 0; level < canvases.length; level++) {
-			affectedBlocksByLabel[level] = new ConcurrentHashMap<>();
+			affectedBlocksByLabel[level] = new TLongObjectHashMap<>();
 		}
+		restorePaintedBlocks();
 
 		isBusyProperty().addListener((obs, oldv, busy) -> {
 			if (!busy) {
@@ -320,6 +345,25 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		setMasksConstant();
 	}
 
+	/**
+	 * Restore the painted blocks from the write-ahead log of the initial canvas directory, if it holds canvases of a
+	 * session that did not shut down.
+	 */
+	private void restorePaintedBlocks() {
+
+		final MappedCanvas canvas = this.canvasBaseDirChangeListener.canvas;
+		if (canvas == null || !canvas.hasPaint())
+			return;
+		try {
+			final long[] blocks = canvas.paintedBlocks();
+			final Map<Long, long[]>[] blocksById = canvas.paintedBlocksByLabel();
+			LOG.info("Restoring {} painted blocks from {}", blocks.length, canvas.getDirectory());
+			affectBlocks(blocks, blocksById);
+		} catch (final IOException e) {
+			LOG.error("Unable to restore painted blocks from {}", canvas.getDirectory(), e);
+		}
+	}
+
 	public ReadOnlyBooleanProperty isApplyingMaskProperty() {
 
 		return isApplyingMask;
@@ -498,7 +542,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 					this.isBusy.set(false);
 					return;
 				}
-				this.isApplyingMask.set(true);
+				startApplyingMask();
 			}
 
 			LOG.debug("Applying mask: {}", mask);
@@ -513,6 +557,9 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 			final TLongSet affectedBlocks = affectedBlocks(mask.getRai(), canvas.getCellGrid(), paintedIntervalOverCanvas);
 
+			/* downsampling of previous paint must not overwrite the new paint */
+			interruptDownsampling();
+
 			final var labelToBlocks = paintAffectedPixels(
 					affectedBlocks,
 					mask,
@@ -521,8 +568,11 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 					paintedIntervalOverCanvas,
 					acceptAsPainted);
 
-			for (var label : labelToBlocks.entrySet()) {
-				this.affectedBlocksByLabel[maskInfo.level].computeIfAbsent(label.getKey(), k -> new TLongHashSet()).addAll(label.getValue());
+			final TLongObjectHashMap<TLongHashSet> blocksByLabel = this.affectedBlocksByLabel[maskInfo.level];
+			synchronized (blocksByLabel) {
+				for (var label : labelToBlocks.entrySet()) {
+					blocksFor(blocksByLabel, label.getKey()).addAll(label.getValue());
+				}
 			}
 
 			final SourceMask currentMaskBeforePropagation = this.getCurrentMask();
@@ -535,37 +585,36 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 					maskInfo.level,
 					0);
 
-			LOG.debug("Added affected block: {}", affectedBlocksByLabel[maskInfo.level]);
+			LOG.debug("Added affected block: {}", blocksByLabel);
 			this.affectedBlocks.addAll(paintedBlocksAtHighestResolution);
 
-			propagationExecutor.submit(() -> {
-				try {
-					propagateMask(
-							mask.getRai(),
-							affectedBlocks,
-							maskInfo.level,
-							paintedIntervalOverCanvas,
-							acceptAsPainted,
-							propagationExecutor);
-				} finally {
-					setMasksConstant();
-					synchronized (this) {
-						LOG.debug("Done applying mask!");
-						this.isApplyingMask.set(false);
-					}
-					// free resources
-					if (currentMaskBeforePropagation != null) {
-						if (currentMaskBeforePropagation.getShutdown() != null)
-							currentMaskBeforePropagation.getShutdown().run();
-						if (currentMaskBeforePropagation.getInvalidate() != null)
-							currentMaskBeforePropagation.getInvalidate().invalidateAll();
-						if (currentMaskBeforePropagation.getInvalidateVolatile() != null)
-							currentMaskBeforePropagation.getInvalidateVolatile().invalidateAll();
-					}
-
-					this.isBusy.set(false);
+			/* Only upsampling needs the mask. Lower resolution levels are downsampled in the background. */
+			try {
+				upsampleMask(
+						mask.getRai(),
+						affectedBlocks,
+						maskInfo.level,
+						paintedIntervalOverCanvas,
+						acceptAsPainted);
+				startDownsampling(affectedBlocks, maskInfo.level, paintedIntervalOverCanvas);
+			} finally {
+				setMasksConstant();
+				synchronized (this) {
+					LOG.debug("Done applying mask!");
+					finishApplyingMask();
 				}
-			});
+				// free resources
+				if (currentMaskBeforePropagation != null) {
+					if (currentMaskBeforePropagation.getShutdown() != null)
+						currentMaskBeforePropagation.getShutdown().run();
+					if (currentMaskBeforePropagation.getInvalidate() != null)
+						currentMaskBeforePropagation.getInvalidate().invalidateAll();
+					if (currentMaskBeforePropagation.getInvalidateVolatile() != null)
+						currentMaskBeforePropagation.getInvalidateVolatile().invalidateAll();
+				}
+
+				this.isBusy.set(false);
+			}
 
 		});
 		/* Start as busy, so a new mask isn't generated until we are done applying this one. */
@@ -606,7 +655,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 				this.isBusy.set(false);
 				return;
 			}
-			this.isApplyingMask.set(true);
+			startApplyingMask();
 		}
 		var expectedTasks = intervals.size() * 2;
 		final var completedTasks = new AtomicInteger();
@@ -619,6 +668,12 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		/* Start as busy, so a new mask isn't generated until we are done applying this one. */
 		this.isBusy.set(true);
 
+		/* downsampling of previous paint must not overwrite the new paint */
+		interruptDownsampling();
+
+		final TLongSet paintedBlocks = new TLongHashSet();
+		final AtomicReference<Interval> paintedInterval = new AtomicReference<>();
+
 		for (Interval interval : intervals) {
 			final FinalInterval intervalOverCanvas = Intervals.intersect(canvas, interval);
 			if (Intervals.isEmpty(intervalOverCanvas))
@@ -644,10 +699,10 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 					progressBinding.set(progress);
 				});
 
-				final Map<Long, TLongHashSet> blocksByLabelByLevel = this.affectedBlocksByLabel[maskInfo.level];
+				final TLongObjectHashMap<TLongHashSet> blocksByLabelByLevel = this.affectedBlocksByLabel[maskInfo.level];
 				synchronized (blocksByLabelByLevel) {
 					for (var label : labelToBlocks.entrySet()) {
-						blocksByLabelByLevel.computeIfAbsent(label.getKey(), k -> new TLongHashSet()).addAll(label.getValue());
+						blocksFor(blocksByLabelByLevel, label.getKey()).addAll(label.getValue());
 					}
 				}
 
@@ -661,23 +716,20 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 					affectedBlocks.addAll(paintedBlocksAtHighestResolution);
 				}
 
-				try {
-					propagationExecutor.submit(
-							() -> propagateMask(
-									maskRai,
-									directlyAffectedBlocks,
-									maskInfo.level,
-									intervalOverCanvas,
-									acceptAsPainted,
-									propagationExecutor)
-					).get();
-					InvokeOnJavaFXApplicationThread.invoke(() -> {
-						final double progress = completedTasks.incrementAndGet() / (double)expectedTasks;
-						progressBinding.set(progress);
-					});
-				} catch (InterruptedException | ExecutionException e) {
-					throw new RuntimeException(e);
+				upsampleMask(
+						maskRai,
+						directlyAffectedBlocks,
+						maskInfo.level,
+						intervalOverCanvas,
+						acceptAsPainted);
+				synchronized (paintedBlocks) {
+					paintedBlocks.addAll(directlyAffectedBlocks);
 				}
+				paintedInterval.accumulateAndGet(intervalOverCanvas, (i1, i2) -> i1 == null ? i2 : Intervals.union(i1, i2));
+				InvokeOnJavaFXApplicationThread.invoke(() -> {
+					final double progress = completedTasks.incrementAndGet() / (double)expectedTasks;
+					progressBinding.set(progress);
+				});
 
 			});
 			applies.add(applyFuture);
@@ -689,13 +741,17 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 				throw new RuntimeException(e);
 			}
 		}
+		if (!paintedBlocks.isEmpty()) {
+			startDownsampling(paintedBlocks, maskInfo.level, paintedInterval.get());
+			awaitDownsampling();
+		}
 		InvokeOnJavaFXApplicationThread.invoke(() -> progressBinding.set(1.0));
 
 		synchronized (this) {
 			setCurrentMask(null);
 			setMasksConstant();
 			LOG.debug("Done applying mask!");
-			this.isApplyingMask.set(false);
+			finishApplyingMask();
 		}
 
 		if (mask.getShutdown() != null)
@@ -799,7 +855,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 	public void forgetCanvases() throws CannotClearCanvas {
 
 		synchronized (this) {
-			if (this.isPersisting())
+			if (this.isPersisting() || this.committingGeneration != null)
 				throw new CannotClearCanvas("Currently persisting canvas -- try again later.");
 			setCurrentMask(null);
 		}
@@ -811,8 +867,27 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		persistCanvas(true);
 	}
 
+	/**
+	 * Commit the canvas and show the progress in a dialog. If a commit in the background is still running, the commit
+	 * is started on the application thread once that is done, as its blocks must reach the backend first.
+	 *
+	 * @param clearCanvas clear the canvas after the commit
+	 * @throws CannotPersist if a mask is in use
+	 */
 	public void persistCanvas(final boolean clearCanvas) throws CannotPersist {
 
+		final CompletableFuture<Void> backgroundCommit = getBackgroundCommit();
+		if (!backgroundCommit.isDone()) {
+			LOG.info("Committing canvas once the commit in the background is done");
+			backgroundCommit.whenComplete((result, cause) -> InvokeOnJavaFXApplicationThread.invoke(() -> {
+				try {
+					persistCanvas(clearCanvas);
+				} catch (final CannotPersist e) {
+					LOG.error("Unable to commit canvas after commit in the background", e);
+				}
+			}));
+			return;
+		}
 		synchronized (this) {
 			if (isMaskInUse()) {
 				LOG.error(
@@ -906,6 +981,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 				final List<TLongObjectMap<PersistCanvas.BlockDiff>> blockDiffs = this.persistCanvas.persistCanvas(canvas, affectedBlocks);
 				updateState.accept("Persisting painted labels...   Done");
+				notifyCanvasPersisted(blockDiffs);
 
 				InvokeOnJavaFXApplicationThread.invoke(() -> {
 					this.persistCanvas.getProgressProperty().removeListener(animateProgressBarListener);
@@ -945,6 +1021,206 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		});
 	}
 
+	public ReadOnlyBooleanProperty isCommittingInBackgroundProperty() {
+
+		return this.isCommittingInBackgroundProperty;
+	}
+
+	/**
+	 * Commit the canvas without blocking painting. The current canvases are handed over to the commit, and painting
+	 * continues into fresh canvases, which are rendered on top of the canvases that are being committed. When the
+	 * commit is done, the committed canvases are dropped, as their labels are part of the background by then. If the
+	 * commit fails, the committed canvases are merged back below the new paint, so that no paint is lost.
+	 *
+	 * @return completes when the commit is done, or exceptionally if it failed
+	 * @throws CannotPersist if a mask is in use, or a previous commit has not finished yet
+	 */
+	public CompletableFuture<Void> persistCanvasInBackground() throws CannotPersist {
+
+		final CanvasGeneration generation;
+		final CompletableFuture<Void> commit = new CompletableFuture<>();
+		synchronized (this) {
+			if (!canPersistInBackground())
+				throw new CannotPersist("Can not persist canvas!");
+		}
+		/* lower resolution levels of the committed canvases must be complete while they are rendered */
+		while (true) {
+			awaitDownsampling();
+			synchronized (this) {
+				if (!canPersistInBackground())
+					throw new CannotPersist("Can not persist canvas!");
+				synchronized (downsamplingLock) {
+					/* downsampling of paint after waiting must be awaited as well */
+					if (downsampling != null && !downsampling.isCompletedNormally())
+						continue;
+					downsampling = null;
+				}
+				break;
+			}
+		}
+		synchronized (this) {
+			generation = new CanvasGeneration(
+					this.canvasBaseDirChangeListener.canvas,
+					this.dataCanvases.clone(),
+					this.canvases.clone(),
+					this.affectedBlocks.toArray(),
+					getAffectedBlocksById());
+			this.committingGeneration = generation;
+			this.canvasBaseDirChangeListener.retainPreviousCanvases = true;
+			try {
+				this.cacheDirectory.set(this.nextCacheDirectory.get());
+			} finally {
+				this.canvasBaseDirChangeListener.retainPreviousCanvases = false;
+			}
+			this.affectedBlocks.clear();
+			clearAffectedBlocksByLabel();
+			this.backgroundCommit = commit;
+		}
+		updateIsCommittingInBackground();
+
+		LOG.info("Committing {} blocks in the background", generation.affectedBlocks.length);
+		/* Completion is handled in the task itself, not in callbacks on the application thread, which may not run
+		 * while the application shuts down */
+		Tasks.createTask(() -> {
+			try {
+				final List<TLongObjectMap<PersistCanvas.BlockDiff>> blockDiffs = this.persistCanvas.persistCanvas(generation.dataCanvases[0], generation.affectedBlocks);
+				notifyCanvasPersisted(blockDiffs);
+				if (this.persistCanvas.supportsLabelBlockLookupUpdate())
+					this.persistCanvas.updateLabelBlockLookup(blockDiffs);
+				/* the committed canvases still cover the background until it is reloaded */
+				this.source.invalidateAll();
+			} catch (UnableToPersistCanvas | UnableToUpdateLabelBlockLookup | RuntimeException e) {
+				LOG.error("Unable to commit canvas in the background, keeping paint in the canvas", e);
+				mergeIntoCanvas(generation);
+				finishBackgroundCommit(commit, e);
+				return;
+			}
+			synchronized (this) {
+				this.committingGeneration = null;
+			}
+			generation.release();
+			this.canvasClearedListeners.forEach(Runnable::run);
+			LOG.info("Successfully committed canvas in the background");
+			finishBackgroundCommit(commit, null);
+		});
+		return commit;
+	}
+
+	/* called while holding the lock of this source */
+	private boolean canPersistInBackground() {
+
+		if (isMaskInUse() || this.committingGeneration != null) {
+			LOG.error(
+					"Cannot persist canvas in background: is persisting? {} is committing in background? {} has mask? {} is creating mask? {} is applying mask? {}",
+					this.isPersisting(),
+					this.committingGeneration != null,
+					this.getCurrentMask() != null,
+					this.isCreatingMask(),
+					this.isApplyingMask
+			);
+			return false;
+		}
+		return true;
+	}
+
+	private void updateIsCommittingInBackground() {
+
+		InvokeOnJavaFXApplicationThread.invoke(() -> this.isCommittingInBackgroundProperty.set(this.committingGeneration != null));
+	}
+
+	private void finishBackgroundCommit(final CompletableFuture<Void> commit, final Throwable cause) {
+
+		updateIsCommittingInBackground();
+		if (cause == null)
+			commit.complete(null);
+		else
+			commit.completeExceptionally(cause);
+	}
+
+	/**
+	 * @return completes when the most recent commit in the background is done, or exceptionally if it failed
+	 */
+	public synchronized CompletableFuture<Void> getBackgroundCommit() {
+
+		return this.backgroundCommit;
+	}
+
+	/**
+	 * Merge the canvases of a failed commit back into the current canvas, below any paint since the commit started.
+	 * Applying masks is blocked during the merge.
+	 */
+	private void mergeIntoCanvas(final CanvasGeneration generation) {
+
+		while (true) {
+			final CompletableFuture<Void> applied;
+			synchronized (this) {
+				if (!this.isApplyingMask.get()) {
+					startApplyingMask();
+					break;
+				}
+				applied = this.maskApplied;
+			}
+			try {
+				applied.get();
+			} catch (final InterruptedException e) {
+				/* the committed canvases stay visible, but can only be committed after restarting */
+				LOG.error("Interrupted while merging canvases of failed commit", e);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (final ExecutionException e) {
+				/* never completed exceptionally */
+			}
+		}
+		try {
+			interruptDownsampling();
+			final CachedCellImg<UnsignedLongType, LongAccess> canvas = this.dataCanvases[0];
+			final RandomAccessibleInterval<UnsignedLongType> committed = generation.dataCanvases[0];
+			final BlockSpec blockSpec = new BlockSpec(canvas.getCellGrid());
+			final long[] min = new long[canvas.numDimensions()];
+			final long[] max = new long[canvas.numDimensions()];
+			Arrays.fill(min, Long.MAX_VALUE);
+			Arrays.fill(max, Long.MIN_VALUE);
+			for (final long block : generation.affectedBlocks) {
+				blockSpec.fromLinearIndex(block);
+				LoopBuilder
+						.setImages(Views.interval(committed, blockSpec.min, blockSpec.max), Views.interval(canvas, blockSpec.min, blockSpec.max))
+						.forEachPixel((committedLabel, label) -> {
+							if (label.get() == Label.INVALID)
+								label.set(committedLabel);
+						});
+				Arrays.setAll(min, d -> Math.min(min[d], blockSpec.min[d]));
+				Arrays.setAll(max, d -> Math.max(max[d], blockSpec.max[d]));
+			}
+			final TLongHashSet blocks = new TLongHashSet(generation.affectedBlocks);
+			/* labels of all levels are kept, lower resolution levels are downsampled from the merged canvas */
+			synchronized (this) {
+				affectBlocks(generation.affectedBlocks, generation.affectedBlocksById);
+				this.committingGeneration = null;
+			}
+			if (!blocks.isEmpty())
+				startDownsampling(blocks, 0, new FinalInterval(min, max));
+		} finally {
+			synchronized (this) {
+				finishApplyingMask();
+			}
+			generation.release();
+		}
+	}
+
+	/* called while holding the lock of this source */
+	private void startApplyingMask() {
+
+		this.isApplyingMask.set(true);
+		this.maskApplied = new CompletableFuture<>();
+	}
+
+	/* called while holding the lock of this source */
+	private void finishApplyingMask() {
+
+		this.isApplyingMask.set(false);
+		this.maskApplied.complete(null);
+	}
+
 	@Override
 	public boolean isPresent(final int t) {
 
@@ -965,13 +1241,13 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 		// ignore interpolation method because we cannot use linear interpolation on LabelMultisetType
 		final RealRandomAccessible<T> interpolatedSource = source.getInterpolatedSource(time, level, Interpolation.NEARESTNEIGHBOR);
-		if (!showCanvasOverBackground.get() || affectedBlocks.isEmpty() && getCurrentMask() == null) {
+		if (!showCanvasOverBackground.get() || !hasCanvasData()) {
 			LOG.trace("Hide canvas or no mask/canvas data present -- delegate to underlying source");
 			sourceToExtend = interpolatedSource;
 		} else {
 			final RealRandomAccessible<VolatileUnsignedLongType> canvas = Views.interpolate(
 					Views.extendValue(
-							this.canvases[level].getRai(),
+							volatileCanvasOverCommitting(level),
 							new VolatileUnsignedLongType(Label.INVALID)
 					), new NearestNeighborInterpolatorFactory<>()
 			);
@@ -1053,13 +1329,13 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 		// ignore interpolation method because we cannot use linear interpolation on LabelMultisetType
 		final RealRandomAccessible<D> interpolatedDataSource = source.getInterpolatedDataSource(t, level, Interpolation.NEARESTNEIGHBOR);
-		if (!showCanvasOverBackground.get() || affectedBlocks.isEmpty() && getCurrentMask() == null) {
+		if (!showCanvasOverBackground.get() || !hasCanvasData()) {
 			LOG.trace("Hide canvas or no mask/canvas data present -- delegate to underlying source");
 			dataSourceToExtend = interpolatedDataSource;
 		} else {
 			final RealRandomAccessible<UnsignedLongType> dataCanvas = Views.interpolate(
 					Views.extendValue(
-							dataCanvases[level],
+							dataCanvasOverCommitting(level),
 							new UnsignedLongType(Label.INVALID)
 					),
 					new NearestNeighborInterpolatorFactory<>()
@@ -1087,81 +1363,64 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 	public RandomAccessibleInterval<UnsignedLongType> getReadOnlyDataCanvas(final int t, final int level) {
 
 		return Converters.convert(
-				(RandomAccessibleInterval<UnsignedLongType>)this.dataCanvases[level],
+				dataCanvasOverCommitting(level),
 				new TypeIdentity<>(),
 				new UnsignedLongType()
 		);
 	}
 
-	public RandomAccessibleInterval<D> getReadOnlyDataBackground(final int t, final int level) {
+	private boolean hasCanvasData() {
 
-		return Converters.convert(
-				this.source.getDataSource(t, level),
-				new TypeIdentity<>(),
-				this.source.getDataType().createVariable()
-		);
+		return !affectedBlocks.isEmpty() || getCurrentMask() != null || committingGeneration != null;
 	}
 
 	/**
-	 * Downsample affected blocks of img.
-	 *
-	 * @param source
-	 * @param img
-	 * @param affectedBlocks
-	 * @param steps
-	 * @param interval
-	 * @param propagationExecutor
-	 * @return map of labels to modified block ids
+	 * @return the data canvas at {@code level}, with the canvas that is committed in the background, if any, below it
 	 */
-	private static Map<Long, Set<Long>> downsampleBlocks(
-			final RandomAccessible<UnsignedLongType> source,
-			final CachedCellImg<UnsignedLongType, LongAccess> img,
-			final TLongSet affectedBlocks,
-			final int[] steps,
-			final Interval interval,
-			final ExecutorService propagationExecutor) {
+	private RandomAccessibleInterval<UnsignedLongType> dataCanvasOverCommitting(final int level) {
 
-		final TaskExecutor taskExecutor = TaskExecutors.forExecutorService(propagationExecutor);
-
-		final BlockSpec blockSpec = new BlockSpec(img.getCellGrid());
-
-		final long[] intersectedCellMin = new long[blockSpec.grid.numDimensions()];
-		final long[] intersectedCellMax = new long[blockSpec.grid.numDimensions()];
+		final CanvasGeneration committing = this.committingGeneration;
+		if (committing == null)
+			return this.dataCanvases[level];
+		return Converters.convert(
+				(RandomAccessibleInterval<UnsignedLongType>)this.dataCanvases[level],
+				(RandomAccessibleInterval<UnsignedLongType>)committing.dataCanvases[level],
+				(current, committed, output) -> output.set(current.get() == Label.INVALID ? committed.get() : current.get()),
+				new UnsignedLongType()
+		);
+	}
 
-		final Map<Long, Set<Long>> blocksModifiedByLabel = new HashMap<>();
-		LOG.debug("Initializing affected blocks: {}", affectedBlocks);
-		final var labelsForBlockFutures = new ArrayList<Future<Pair<Long, Set<Long>>>>();
-		for (final TLongIterator it = affectedBlocks.iterator(); it.hasNext(); ) {
-			final long blockId = it.next();
-			blockSpec.fromLinearIndex(blockId);
+	/**
+	 * @return the volatile canvas at {@code level}, with the canvas that is committed in the background, if any, below it
+	 */
+	private RandomAccessibleInterval<VolatileUnsignedLongType> volatileCanvasOverCommitting(final int level) {
 
-			Arrays.setAll(intersectedCellMin, d -> blockSpec.min[d]);
-			Arrays.setAll(intersectedCellMax, d -> blockSpec.max[d]);
+		final CanvasGeneration committing = this.committingGeneration;
+		if (committing == null)
+			return this.canvases[level].getRai();
+		return Converters.convert(
+				this.canvases[level].getRai(),
+				committing.canvases[level].getRai(),
+				(current, committed, output) -> {
+					if (current.isValid() && current.get().get() == Label.INVALID) {
+						output.set(committed.get().get());
+						output.setValid(committed.isValid());
+					} else {
+						output.set(current.get().get());
+						output.setValid(current.isValid());
+					}
+				},
+				new VolatileUnsignedLongType()
+		);
+	}
 
-			intersect(intersectedCellMin, intersectedCellMax, interval);
+	public RandomAccessibleInterval<D> getReadOnlyDataBackground(final int t, final int level) {
 
-			if (isNonEmpty(intersectedCellMin, intersectedCellMax)) {
-				LOG.trace("Downsampling for intersected min/max: {} {}", intersectedCellMin, intersectedCellMax);
-				final long[] min = new long[intersectedCellMin.length];
-				final long[] max = new long[intersectedCellMax.length];
-				System.arraycopy(intersectedCellMin, 0, min, 0, min.length);
-				System.arraycopy(intersectedCellMax, 0, max, 0, max.length);
-				final var future = propagationExecutor.submit(() -> new Pair<>(blockId, downsample(source, Views.interval(img, min, max), steps)));
-				labelsForBlockFutures.add(future);
-			}
-		}
-		for (Future<Pair<Long, Set<Long>>> labelsForBlockFuture : labelsForBlockFutures) {
-			try {
-				final Pair<Long, Set<Long>> futurePair = labelsForBlockFuture.get();
-				final var blockId = futurePair.getKey();
-				final Set<Long> labelsForBlock = futurePair.getValue();
-				labelsForBlock.forEach(label -> blocksModifiedByLabel.computeIfAbsent(label, k -> new HashSet<>()).add(blockId));
-			} catch (InterruptedException | ExecutionException e) {
-				e.printStackTrace();
-				throw new RuntimeException(e);
-			}
-		}
-		return blocksModifiedByLabel;
+		return Converters.convert(
+				this.source.getDataSource(t, level),
+				new TypeIdentity<>(),
+				this.source.getDataType().createVariable()
+		);
 	}
 
 	/**
@@ -1169,7 +1428,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 	 * @param target
 	 * @param steps
 	 */
-	private static <T extends IntegerType<T>> Set<Long> downsample(
+	private static <T extends IntegerType<T>> TLongHashSet downsample(
 			final RandomAccessible<T> source,
 			final RandomAccessibleInterval<T> target,
 			final int[] steps) {
@@ -1184,7 +1443,7 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		final var zeroMinTarget = Views.zeroMin(target);
 		final var sourceInterval = IntervalHelpers.scale(target, steps, true);
 		final IntervalView<T> zeroMinSource = Views.zeroMin(Views.interval(source, sourceInterval));
-		final HashSet<Long> labels = new HashSet<>();
+		final TLongHashSet labels = new TLongHashSet();
 
 		final RandomAccess<T> zeroMinSourceRA = zeroMinSource.randomAccess();
 		final RandomAccess<T> zeroMinTargetRA = zeroMinTarget.randomAccess();
@@ -1229,61 +1488,224 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		return labels;
 	}
 
+	/**
+	 * @return all blocks at {@code level} that have uncommitted modifications for any label
+	 */
+	public TLongSet getModifiedBlocks(final int level) {
+
+		final TLongHashSet blocks = new TLongHashSet();
+		final TLongObjectHashMap<TLongHashSet> blocksByLabel = this.affectedBlocksByLabel[level];
+		synchronized (blocksByLabel) {
+			blocksByLabel.forEachValue(blocksForId -> {
+				blocks.addAll(blocksForId);
+				return true;
+			});
+		}
+		final CanvasGeneration committing = this.committingGeneration;
+		if (committing != null)
+			committing.affectedBlocksById[level].values().forEach(blocks::addAll);
+		return blocks;
+	}
+
 	public TLongSet getModifiedBlocks(final int level, final long id) {
 
 		LOG.debug("Getting modified blocks for level={} and id={}", level, id);
-		return Optional.ofNullable(this.affectedBlocksByLabel[level].get(id)).map(TLongHashSet::new).orElseGet(
-				TLongHashSet::new);
+		final TLongHashSet blocks = new TLongHashSet();
+		final TLongObjectHashMap<TLongHashSet> blocksByLabel = this.affectedBlocksByLabel[level];
+		synchronized (blocksByLabel) {
+			final TLongHashSet blocksForId = blocksByLabel.get(id);
+			if (blocksForId != null)
+				blocks.addAll(blocksForId);
+		}
+		final CanvasGeneration committing = this.committingGeneration;
+		if (committing != null)
+			Optional.ofNullable(committing.affectedBlocksById[level].get(id)).ifPresent(blocks::addAll);
+		return blocks;
 	}
 
-	private void propagateMask(
-			final RandomAccessibleInterval<UnsignedLongType> mask,
-			final TLongSet paintedBlocksAtPaintedScale,
+	/**
+	 * Downsample {@code paintedBlocks} into all lower resolution levels in the background. Each level is downsampled
+	 * from the next higher resolution level, and a block is scheduled as soon as all blocks that it is computed from are
+	 * done. If a previous downsampling has not finished yet, it is cancelled and its remaining blocks are downsampled as
+	 * part of the new one.
+	 *
+	 * @return completes when all blocks are downsampled; is cancelled when superseded by new paint
+	 */
+	private CompletableFuture<Void> startDownsampling(
+			final TLongSet paintedBlocks,
 			final int paintedLevel,
-			final Interval intervalAtPaintedScale,
-			final Predicate<Long> isPaintedForeground,
-			final ExecutorService propagationExecutor) {
-
-		final RandomAccessibleInterval<UnsignedLongType> atPaintedLevel = dataCanvases[paintedLevel];
-		for (int lowerResLevel = paintedLevel + 1; lowerResLevel < getNumMipmapLevels(); ++lowerResLevel) {
-			final CachedCellImg<UnsignedLongType, LongAccess> lowerResCanvas = dataCanvases[lowerResLevel];
-			final double[] paintedToLowerScales = DataSource.getRelativeScales(this, 0, paintedLevel, lowerResLevel);
-			final Interval intervalAtLowerRes = scaleIntervalToLevel(intervalAtPaintedScale, paintedLevel, lowerResLevel);
-
-			LOG.debug("Downsampling level {} of {}", lowerResLevel, getNumMipmapLevels());
-
-			if (DoubleStream.of(paintedToLowerScales).filter(d -> Math.round(d) != d).count() > 0) {
+			final Interval intervalAtPaintedLevel) {
+
+		final int numLevels = getNumMipmapLevels();
+		final int[][] steps = new int[numLevels][];
+		TLongSet[] blocks = new TLongSet[numLevels];
+		Interval[] intervals = new Interval[numLevels];
+		for (int level = paintedLevel + 1; level < numLevels; ++level) {
+			final double[] relativeScales = DataSource.getRelativeScales(this, 0, level - 1, level);
+			if (DoubleStream.of(relativeScales).filter(d -> Math.round(d) != d).count() > 0) {
 				LOG.error(
 						"Non-integer relative scales found for levels {} and {}: {} -- this does not make sense for label data -- aborting.",
-						paintedLevel,
-						lowerResLevel,
-						paintedToLowerScales
+						level - 1,
+						level,
+						relativeScales
 				);
-				throw new RuntimeException("Non-integer relative scales: " + Arrays.toString(paintedToLowerScales));
+				throw new RuntimeException("Non-integer relative scales: " + Arrays.toString(relativeScales));
+			}
+			steps[level] = DoubleStream.of(relativeScales).mapToInt(d -> (int)d).toArray();
+			blocks[level] = this.scaleBlocksToLevel(paintedBlocks, paintedLevel, level);
+			intervals[level] = scaleIntervalToLevel(intervalAtPaintedLevel, paintedLevel, level);
+			LOG.debug("Affected blocks at level {}: {}", level, blocks[level]);
+		}
+		for (int level = 1; level < numLevels; ++level) {
+			if (steps[level] == null)
+				steps[level] = DoubleStream.of(DataSource.getRelativeScales(this, 0, level - 1, level)).mapToInt(d -> (int)Math.round(d)).toArray();
+		}
+
+		final CachedCellImg<UnsignedLongType, LongAccess>[] canvases = dataCanvases.clone();
+		synchronized (downsamplingLock) {
+			if (downsampling != null && !downsampling.isCompletedNormally()) {
+				downsampling.cancel();
+				awaitRunningDownsampling(downsampling);
+				blocks = DownsamplingPipeline.union(blocks, downsampling.getRemainingBlocks());
+				intervals = DownsamplingPipeline.union(intervals, downsampling.getIntervals());
 			}
-			final TLongSet affectedBlocksAtLowerRes = this.scaleBlocksToLevel(paintedBlocksAtPaintedScale, paintedLevel, lowerResLevel);
-			LOG.debug("Affected blocks at level {}: {}", lowerResLevel, affectedBlocksAtLowerRes);
-			LOG.debug("Interval at lower resolution level: {} {}", Intervals.minAsLongArray(intervalAtLowerRes), Intervals.maxAsLongArray(intervalAtLowerRes));
-
-			// downsample
-			final int[] steps = DoubleStream.of(paintedToLowerScales).mapToInt(d -> (int)d).toArray();
-			LOG.debug("Downsample step size: {}", steps);
-			final var blocksModifiedByLabel = downsampleBlocks(
-					Views.extendValue(atPaintedLevel, new UnsignedLongType(Label.INVALID)),
-					lowerResCanvas,
-					affectedBlocksAtLowerRes,
-					steps,
-					intervalAtLowerRes,
-					propagationExecutor);
-			for (Entry<Long, Set<Long>> entry : blocksModifiedByLabel.entrySet()) {
-				final Long labelId = entry.getKey();
-				final Set<Long> blocks = entry.getValue();
-				synchronized (affectedBlocksByLabel) {
-					affectedBlocksByLabel[lowerResLevel].computeIfAbsent(labelId, k -> new TLongHashSet()).addAll(blocks);
+			downsampling = new DownsamplingPipeline(
+					propagationExecutor,
+					blocks,
+					intervals,
+					(level, blockId, interval) -> contributingBlocks(canvases, steps[level], level, blockId, interval),
+					(level, blockId, interval) -> downsampleBlock(canvases, steps[level], level, blockId, interval),
+					this::addDownsampledBlock);
+			return downsampling.start();
+		}
+	}
+
+	/**
+	 * Cancel downsampling and wait for running block tasks, e.g. before painting into the canvas. Remaining blocks are
+	 * picked up by the next call to {@link #startDownsampling(TLongSet, int, Interval)}.
+	 */
+	private void interruptDownsampling() {
+
+		synchronized (downsamplingLock) {
+			if (downsampling != null) {
+				downsampling.cancel();
+				awaitRunningDownsampling(downsampling);
+			}
+		}
+	}
+
+	/**
+	 * Block until the most recent downsampling has finished, including downsampling that supersedes it.
+	 */
+	private void awaitDownsampling() {
+
+		while (true) {
+			final DownsamplingPipeline pipeline;
+			synchronized (downsamplingLock) {
+				pipeline = downsampling;
+			}
+			if (pipeline == null)
+				return;
+			try {
+				pipeline.getCompletion().get();
+				return;
+			} catch (final CancellationException e) {
+				synchronized (downsamplingLock) {
+					if (downsampling == pipeline)
+						return;
 				}
+			} catch (final InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
 			}
-			LOG.debug("Downsampled level {}", lowerResLevel);
 		}
+	}
+
+	private static void awaitRunningDownsampling(final DownsamplingPipeline pipeline) {
+
+		try {
+			pipeline.awaitRunning();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long[] contributingBlocks(
+			final CachedCellImg<UnsignedLongType, LongAccess>[] canvases,
+			final int[] steps,
+			final int level,
+			final long blockId,
+			final Interval interval) {
+
+		final BlockSpec blockSpec = new BlockSpec(canvases[level].getCellGrid());
+		blockSpec.fromLinearIndex(blockId);
+		intersect(blockSpec.min, blockSpec.max, interval);
+		if (!isNonEmpty(blockSpec.min, blockSpec.max))
+			return new long[0];
+		final long[] sourceMin = new long[steps.length];
+		final long[] sourceMax = new long[steps.length];
+		Arrays.setAll(sourceMin, d -> blockSpec.min[d] * steps[d]);
+		Arrays.setAll(sourceMax, d -> (blockSpec.max[d] + 1) * steps[d] - 1);
+		return org.janelia.saalfeldlab.util.grids.Grids.getIntersectingBlocks(sourceMin, sourceMax, canvases[level - 1].getCellGrid());
+	}
+
+	private static TLongSet downsampleBlock(
+			final CachedCellImg<UnsignedLongType, LongAccess>[] canvases,
+			final int[] steps,
+			final int level,
+			final long blockId,
+			final Interval interval) {
+
+		final BlockSpec blockSpec = new BlockSpec(canvases[level].getCellGrid());
+		blockSpec.fromLinearIndex(blockId);
+		intersect(blockSpec.min, blockSpec.max, interval);
+		if (!isNonEmpty(blockSpec.min, blockSpec.max))
+			return new TLongHashSet();
+		LOG.trace("Downsampling for intersected min/max: {} {}", blockSpec.min, blockSpec.max);
+		return downsample(
+				Views.extendValue(canvases[level - 1], new UnsignedLongType(Label.INVALID)),
+				Views.interval(canvases[level], blockSpec.min, blockSpec.max),
+				steps);
+	}
+
+	private void addDownsampledBlock(final int level, final long blockId, final TLongSet labels) {
+
+		final TLongObjectHashMap<TLongHashSet> blocksByLabel = this.affectedBlocksByLabel[level];
+		synchronized (blocksByLabel) {
+			for (final TLongIterator it = labels.iterator(); it.hasNext(); )
+				blocksFor(blocksByLabel, it.next()).add(blockId);
+		}
+	}
+
+	/* Precondition: caller must hold lock on blocksByLabel */
+	private static TLongHashSet blocksFor(final TLongObjectHashMap<TLongHashSet> blocksByLabel, final long label) {
+
+		TLongHashSet blocks = blocksByLabel.get(label);
+		if (blocks == null) {
+			blocks = new TLongHashSet();
+			blocksByLabel.put(label, blocks);
+		}
+		return blocks;
+	}
+
+	private void clearAffectedBlocksByLabel() {
+
+		for (final TLongObjectHashMap<TLongHashSet> blocksByLabel : this.affectedBlocksByLabel) {
+			synchronized (blocksByLabel) {
+				blocksByLabel.clear();
+			}
+		}
+	}
+
+	/**
+	 * Upsample the mask into all higher resolution levels.
+	 */
+	private void upsampleMask(
+			final RandomAccessibleInterval<UnsignedLongType> mask,
+			final TLongSet paintedBlocksAtPaintedScale,
+			final int paintedLevel,
+			final Interval intervalAtPaintedScale,
+			final Predicate<Long> isPaintedForeground) {
 
 		for (int higherResLevel = paintedLevel - 1; higherResLevel >= 0; --higherResLevel) {
 
@@ -1360,19 +1782,24 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 					final Interval interval = new FinalInterval(intersectionMin, intersectionMax);
 					final RandomAccessibleInterval<RandomAccess<UnsignedLongType>> canvasAtHighResInterval = Views.interval(new BundleView<>(higherResCanvas), interval);
 					final RandomAccessibleInterval<RandomAccess<UnsignedLongType>> maskOverInterval = Views.interval(new BundleView<>(Views.raster(higherResMask)), interval);
-					final HashSet<Long> labels = new HashSet<>();
-
-					LoopBuilder.setImages(canvasAtHighResInterval, maskOverInterval)
+					final List<TLongHashSet> labelsPerChunk = LoopBuilder.setImages(canvasAtHighResInterval, maskOverInterval)
 							.multiThreaded()
-							.forEachPixel((canvasRa, maskVal) -> {
-								final long maskLabel = maskVal.get().get();
-								if (maskLabel != Label.INVALID) {
-									canvasRa.get().set(maskLabel);
-									labels.add(maskLabel);
-								}
+							.forEachChunk(chunk -> {
+								final TLongHashSet labels = new TLongHashSet();
+								chunk.forEachPixel((canvasRa, maskVal) -> {
+									final long maskLabel = maskVal.get().get();
+									if (maskLabel != Label.INVALID) {
+										canvasRa.get().set(maskLabel);
+										labels.add(maskLabel);
+									}
+								});
+								return labels;
 							});
-					for (Long modifiedLabel : labels) {
-						this.affectedBlocksByLabel[higherResLevel].computeIfAbsent(modifiedLabel, key -> new TLongHashSet()).add(blockId);
+					final TLongObjectHashMap<TLongHashSet> blocksByLabel = this.affectedBlocksByLabel[higherResLevel];
+					synchronized (blocksByLabel) {
+						for (final TLongHashSet labels : labelsPerChunk)
+							for (final TLongIterator it = labels.iterator(); it.hasNext(); )
+								blocksFor(blocksByLabel, it.next()).add(blockId);
 					}
 				}
 			}
@@ -1570,9 +1997,16 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 	private void clearCanvases() {
 
+		synchronized (downsamplingLock) {
+			if (downsampling != null) {
+				downsampling.cancel();
+				awaitRunningDownsampling(downsampling);
+				downsampling = null;
+			}
+		}
 		this.cacheDirectory.set(this.nextCacheDirectory.get());
 		this.affectedBlocks.clear();
-		Arrays.stream(this.affectedBlocksByLabel).forEach(Map::clear);
+		clearAffectedBlocksByLabel();
 		this.canvasClearedListeners.forEach(Runnable::run);
 	}
 
@@ -1610,7 +2044,9 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 		private final SharedQueue queue;
 
-		private final DiskCachedCellImg<UnsignedLongType, ?>[] dataCanvases;
+		private final String sourceId;
+
+		private final CachedCellImg<UnsignedLongType, ?>[] dataCanvases;
 
 		private final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType>[] canvases;
 
@@ -1618,15 +2054,23 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 		private final int[][] blockSizes;
 
+		/* memory-mapped store of the current canvases */
+		private MappedCanvas canvas = null;
+
+		/* hand over the canvases of the previous directory to a commit instead of shutting them down */
+		private boolean retainPreviousCanvases = false;
+
 		public CanvasBaseDirChangeListener(
 				final SharedQueue queue,
-				final DiskCachedCellImg<UnsignedLongType, ?>[] dataCanvases,
+				final String sourceId,
+				final CachedCellImg<UnsignedLongType, ?>[] dataCanvases,
 				final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType>[] canvases,
 				final long[][] dimensions,
 				final int[][] blockSizes) {
 
 			super();
 			this.queue = queue;
+			this.sourceId = Optional.ofNullable(sourceId).orElse("");
 			this.dataCanvases = dataCanvases;
 			this.canvases = canvases;
 			this.dimensions = dimensions;
@@ -1636,50 +2080,86 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		@Override
 		public void changed(final ObservableValue<? extends String> observable, final String oldValue, final String newValue) {
 
-			Optional.ofNullable(oldValue).map(Paths::get).ifPresent(DiskCellCache::addDeleteHook);
-			// TODO add clean-up job that already starts deleting before jvm shutdown
-
 			LOG.info("Updating cache directory: observable={} oldValue={} newValue={}", observable, oldValue,
 					newValue);
 
-			final DiskCachedCellImgOptions opts = DiskCachedCellImgOptions
-					.options()
-					.volatileAccesses(true)
-					.dirtyAccesses(true);
+			if (newValue == null)
+				return;
+
+			final MappedCanvas previous = this.canvas;
+			final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType>[] previousCanvases = this.canvases.clone();
+			try {
+				this.canvas = new MappedCanvas(Paths.get(newValue), sourceId, dimensions, blockSizes);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			/* canvases are only kept after a crash, not on regular shutdown */
+			DiskCellCache.addDeleteHook(this.canvas.getDirectory());
 
 			for (int level = 0; level < canvases.length; ++level) {
-				if (newValue != null) {
-					final Path cacheDir = Paths.get(newValue, String.format("%d", level));
-					final DiskCachedCellImgOptions o = opts
-							.volatileAccesses(true)
-							.dirtyAccesses(true)
-							.cacheDirectory(cacheDir)
-							.deleteCacheDirectoryOnExit(true)
-							.cellDimensions(blockSizes[level]);
-					final DiskCachedCellImgFactory<UnsignedLongType> f = new DiskCachedCellImgFactory<>(new UnsignedLongType(), o);
-					final CellLoader<UnsignedLongType> loader = img -> img.forEach(t -> t.set(Label.INVALID));
-					final DiskCachedCellImg<UnsignedLongType, ?> store = f.create(dimensions[level], loader, o);
-					final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType> vstore = TmpVolatileHelpers.createVolatileCachedCellImgWithInvalidate((
-									DiskCachedCellImg)store,
-							queue,
-							new CacheHints(LoadingStrategy.VOLATILE, canvases.length - 1 - level, true));
-
-					if (dataCanvases[level] != null) {
-						this.dataCanvases[level].shutdown();
-						this.dataCanvases[level].getCache().invalidateAll();
-						this.dataCanvases[level].getCache().invalidateAll();
-					}
-					// TODO how to invalidate volatile canvases?
-					if (canvases[level] != null && canvases[level].getInvalidate() != null)
-						canvases[level].getInvalidate().invalidateAll();
-					this.dataCanvases[level] = store;
-					this.canvases[level] = vstore;
-				}
+				final CachedCellImg<UnsignedLongType, MappedLongAccess> store = this.canvas.getImg(level);
+				final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType> vstore = TmpVolatileHelpers.createVolatileCachedCellImgWithInvalidate(
+						store,
+						queue,
+						new CacheHints(LoadingStrategy.VOLATILE, canvases.length - 1 - level, true));
+				this.dataCanvases[level] = store;
+				this.canvases[level] = vstore;
 			}
+
+			if (!retainPreviousCanvases)
+				release(previous, previousCanvases);
+		}
+
+		private static void release(
+				final MappedCanvas canvas,
+				final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType>[] canvases) {
+
+			// TODO how to invalidate volatile canvases?
+			for (final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType> vcanvas : canvases)
+				if (vcanvas != null && vcanvas.getInvalidate() != null)
+					vcanvas.getInvalidate().invalidateAll();
+			/* the paint is committed or discarded, nothing to restore after a crash */
+			if (canvas != null)
+				canvas.delete();
 		}
 
 	}
 
+	/**
+	 * Canvases of all levels with the blocks that were painted into them, taken over by a commit in the background.
+	 */
+	private static final class CanvasGeneration {
+
+		private final MappedCanvas store;
+
+		private final CachedCellImg<UnsignedLongType, LongAccess>[] dataCanvases;
+
+		private final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType>[] canvases;
+
+		private final long[] affectedBlocks;
+
+		private final Map<Long, long[]>[] affectedBlocksById;
+
+		private CanvasGeneration(
+				final MappedCanvas store,
+				final CachedCellImg<UnsignedLongType, LongAccess>[] dataCanvases,
+				final TmpVolatileHelpers.RaiWithInvalidate<VolatileUnsignedLongType>[] canvases,
+				final long[] affectedBlocks,
+				final Map<Long, long[]>[] affectedBlocksById) {
+
+			this.store = store;
+			this.dataCanvases = dataCanvases;
+			this.canvases = canvases;
+			this.affectedBlocks = affectedBlocks;
+			this.affectedBlocksById = affectedBlocksById;
+		}
+
+		private void release() {
+
+			CanvasBaseDirChangeListener.release(store, canvases);
+		}
+	}
+
 	public DataSource<D, T> underlyingSource() {
 
 		return this.source;
@@ -1721,6 +2201,32 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		this.canvasClearedListeners.add(listener);
 	}
 
+	/**
+	 * @param listener is notified with the blocks that were written for each level, after the canvas was persisted and
+	 *                 before it is cleared. The blocks for a level are {@code null} if they are not known, in which case
+	 *                 any block of that level may have been written.
+	 */
+	public void addOnCanvasPersistedListener(final Consumer<long[][]> listener) {
+
+		this.canvasPersistedListeners.add(listener);
+	}
+
+	private void notifyCanvasPersisted(final List<TLongObjectMap<PersistCanvas.BlockDiff>> blockDiffs) {
+
+		final long[][] blocksPerLevel = new long[getNumMipmapLevels()][];
+		for (int level = 0; level < blocksPerLevel.length; ++level)
+			blocksPerLevel[level] = blockDiffs != null && level < blockDiffs.size() && blockDiffs.get(level) != null
+					? blockDiffs.get(level).keys()
+					: null;
+		for (final Consumer<long[][]> listener : this.canvasPersistedListeners) {
+			try {
+				listener.accept(blocksPerLevel);
+			} catch (final RuntimeException e) {
+				LOG.error("Canvas persisted listener failed", e);
+			}
+		}
+	}
+
 	Map<Long, long[]>[] getAffectedBlocksById() {
 
 		@SuppressWarnings("unchecked") final Map<Long, long[]>[] maps = new HashMap[this.affectedBlocksByLabel.length];
@@ -1728,8 +2234,12 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 		for (int level = 0; level < maps.length; ++level) {
 			maps[level] = new HashMap<>();
 			final Map<Long, long[]> map = maps[level];
-			for (final Entry<Long, TLongHashSet> entry : this.affectedBlocksByLabel[level].entrySet()) {
-				map.put(entry.getKey(), entry.getValue().toArray());
+			final TLongObjectHashMap<TLongHashSet> blocksByLabel = this.affectedBlocksByLabel[level];
+			synchronized (blocksByLabel) {
+				blocksByLabel.forEachEntry((id, blocks) -> {
+					map.put(id, blocks.toArray());
+					return true;
+				});
 			}
 		}
 
@@ -1749,9 +2259,11 @@ public class MaskedSource<D extends RealType<D>, T extends Type<T>> implements D
 
 		LOG.debug("Affected blocks by id: {} to add: {}", this.affectedBlocksByLabel, blocksById);
 		for (int level = 0; level < blocksById.length; ++level) {
-			final Map<Long, TLongHashSet> map = this.affectedBlocksByLabel[level];
-			for (final Entry<Long, long[]> entry : blocksById[level].entrySet()) {
-				map.computeIfAbsent(entry.getKey(), key -> new TLongHashSet()).addAll(entry.getValue());
+			final TLongObjectHashMap<TLongHashSet> map = this.affectedBlocksByLabel[level];
+			synchronized (map) {
+				for (final Entry<Long, long[]> entry : blocksById[level].entrySet()) {
+					blocksFor(map, entry.getKey()).addAll(entry.getValue());
+				}
 			}
 		}
 		LOG.debug("Affected blocks by id: {}", this.affectedBlocksByLabel, null);
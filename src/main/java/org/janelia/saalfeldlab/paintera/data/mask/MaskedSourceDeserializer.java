@@ -11,16 +11,22 @@ import javafx.scene.control.ButtonType;
 import org.janelia.saalfeldlab.paintera.Paintera;
 import org.janelia.saalfeldlab.paintera.data.DataSource;
 import org.janelia.saalfeldlab.paintera.data.mask.persist.PersistCanvas;
+import org.janelia.saalfeldlab.paintera.data.n5.N5DataSource;
 import org.janelia.saalfeldlab.paintera.serialization.StatefulSerializer;
 import org.janelia.saalfeldlab.paintera.serialization.StatefulSerializer.Arguments;
 import org.janelia.saalfeldlab.paintera.state.SourceState;
+import org.janelia.saalfeldlab.paintera.ui.PainteraAlerts;
 import org.scijava.plugin.Plugin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
@@ -83,20 +89,45 @@ public class MaskedSourceDeserializer implements JsonDeserializer<MaskedSource<?
 							Class.forName(persisterClass)
 					);
 
-			final String initialCanvasPath = canvasDirSupplier.get();
-			// TODO re-use canvas
-			//					Optional
-			//					.ofNullable( map.get( CURRENT_CACHE_DIR_KEY ) )
-			//					.map( JsonElement::getAsString )
-			//					.orElseGet( canvasDirSupplier );
-
-			final DataSource<?, ?> masked = Masks.maskedSource(
-					source,
-					queue,
-					initialCanvasPath,
-					canvasDirSupplier,
-					mergeCanvasIntoBackground,
-					propagationExecutor);
+			/*
+			 * Restore uncommitted paint of a session that did not shut down from the canvas directory stored in the
+			 * project. The application cache is shared by all projects, so other canvas directories of the same container
+			 * and dataset are only restored if the user chooses one.
+			 */
+			final String canvasSourceId = Masks.canvasSourceId(source);
+			final Optional<String> recoverableCanvasPath = Optional
+					.ofNullable(map.get(CURRENT_CACHE_DIR_KEY))
+					.filter(JsonElement::isJsonPrimitive)
+					.map(JsonElement::getAsString)
+					.map(Paths::get)
+					.filter(directory -> MappedCanvas.isRecoverable(directory, canvasSourceId))
+					.or(() -> source instanceof N5DataSource<?, ?>
+							? chooseCanvasToRestore(source, MappedCanvas.listRecoverable(Masks.canvasRootDirectory(appCacheDir), canvasSourceId))
+							: Optional.<Path>empty())
+					.map(Path::toString);
+			recoverableCanvasPath.ifPresent(path -> LOG.info("Restoring uncommitted canvas of {} from {}", source.getName(), path));
+
+			DataSource<?, ?> masked;
+			try {
+				masked = Masks.maskedSource(
+						source,
+						queue,
+						recoverableCanvasPath.orElseGet(canvasDirSupplier),
+						canvasDirSupplier,
+						mergeCanvasIntoBackground,
+						propagationExecutor);
+			} catch (final UncheckedIOException e) {
+				if (recoverableCanvasPath.isEmpty())
+					throw e;
+				LOG.error("Unable to restore canvas from {}, starting with an empty canvas", recoverableCanvasPath.get(), e);
+				masked = Masks.maskedSource(
+						source,
+						queue,
+						canvasDirSupplier.get(),
+						canvasDirSupplier,
+						mergeCanvasIntoBackground,
+						propagationExecutor);
+			}
 			final MaskedSource<?, ?> returnVal = masked instanceof MaskedSource<?, ?>
 					? (MaskedSource<?, ?>)masked
 					: null;
@@ -126,6 +157,16 @@ public class MaskedSourceDeserializer implements JsonDeserializer<MaskedSource<?
 		}
 	}
 
+	private static Optional<Path> chooseCanvasToRestore(final DataSource<?, ?> source, final List<Path> candidates) {
+
+		if (candidates.isEmpty())
+			return Optional.empty();
+		final Optional<Path> choice = PainteraAlerts.chooseCanvasToRestore(source.getName(), candidates);
+		if (choice.isEmpty())
+			LOG.warn("Not restoring uncommitted paint of {}, keeping canvas directories {}", source.getName(), candidates);
+		return choice;
+	}
+
 	@Plugin(type = StatefulSerializer.DeserializerFactory.class)
 	public static class Factory implements StatefulSerializer.DeserializerFactory<MaskedSource<?, ?>, MaskedSourceDeserializer> {
 
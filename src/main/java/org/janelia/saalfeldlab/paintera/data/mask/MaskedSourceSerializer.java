@@ -39,12 +39,8 @@ public class MaskedSourceSerializer implements PainteraSerialization.PainteraSer
 		LOG.debug("Not using relative directory for canvas directory!");
 		map.addProperty(PERSIST_CANVAS_CLASS_KEY, src.getPersister().getClass().getName());
 		map.add(PERSIST_CANVAS_KEY, context.serialize(src.getPersister(), src.getPersister().getClass()));
-		// TODO re-use canvas
-		//		map.addProperty( CURRENT_CACHE_DIR_KEY, src.currentCanvasDirectory() );
-		//		LOG.debug( "Trying to relativize '{}' and '{}'", currentProjectDirectory.get(), src.currentCanvasDirectory() );
-		//		map.addProperty( CURRENT_CACHE_DIR_KEY, Paths.get( currentProjectDirectory.get() ).relativize( Paths.get( src.currentCanvasDirectory() ) ).toString() );
-		//		map.add( DIRTY_BLOCKS_KEY, context.serialize( src.getAffectedBlocks() ) );
-		//		map.add( DIRTY_BLOCKS_BY_ID_KEY, context.serialize( src.getAffectedBlocksById() ) );
+		/* painted blocks are restored from the log in the canvas directory */
+		map.addProperty(CURRENT_CACHE_DIR_KEY, src.currentCanvasDirectory());
 		return map;
 	}
 
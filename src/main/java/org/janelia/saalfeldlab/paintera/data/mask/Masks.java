@@ -14,10 +14,13 @@ import net.imglib2.type.volatiles.AbstractVolatileRealType;
 import net.imglib2.type.volatiles.VolatileUnsignedLongType;
 import org.janelia.saalfeldlab.paintera.data.DataSource;
 import org.janelia.saalfeldlab.paintera.data.mask.persist.PersistCanvas;
+import org.janelia.saalfeldlab.paintera.data.n5.N5DataSource;
+import org.janelia.saalfeldlab.paintera.state.metadata.MetadataState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
@@ -232,7 +235,28 @@ public class Masks {
 
 	public static Supplier<String> canvasTmpDirDirectorySupplier(final String projectCacheDir) {
 
-		return new TmpDirectoryCreator(Paths.get(projectCacheDir, "canvases"), "canvas-");
+		return new TmpDirectoryCreator(canvasRootDirectory(projectCacheDir), "canvas-");
+	}
+
+	/**
+	 * Identifies the data of {@code source} in the write-ahead log of its canvases, so that paint is only ever restored
+	 * into the dataset it was painted into. N5 sources are identified by container and dataset, other sources by name.
+	 */
+	public static String canvasSourceId(final DataSource<?, ?> source) {
+
+		if (source instanceof N5DataSource<?, ?>) {
+			final MetadataState metadataState = ((N5DataSource<?, ?>)source).getMetadataState();
+			return metadataState.getN5ContainerState().getUri() + "?" + metadataState.getDataset();
+		}
+		return Optional.ofNullable(source.getName()).orElse("");
+	}
+
+	/**
+	 * @return directory that holds the canvas directories created by {@link #canvasTmpDirDirectorySupplier(String)}
+	 */
+	public static Path canvasRootDirectory(final String projectCacheDir) {
+
+		return Paths.get(projectCacheDir, "canvases");
 	}
 
 }
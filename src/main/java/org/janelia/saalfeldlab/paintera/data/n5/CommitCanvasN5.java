@@ -3,6 +3,7 @@ package org.janelia.saalfeldlab.paintera.data.n5;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import gnu.trove.iterator.TLongIterator;
 import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.TLongSet;
@@ -60,10 +61,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 
@@ -240,28 +239,21 @@ public class CommitCanvasN5 implements PersistCanvas {
 
 			LOG.debug(() -> "Persisting canvas with grid=%s into background with grid=%s".formatted(canvasGrid, highestResolutionDataset.grid));
 
-			final List<TLongObjectMap<BlockDiff>> blockDiffs = new ArrayList<>();
-			final TLongObjectHashMap<BlockDiff> blockDiffsAtHighestLevel = new TLongObjectHashMap<>();
-			blockDiffs.add(blockDiffsAtHighestLevel);
+			final List<PipelinedBlockCommit.Level> levels = new ArrayList<>();
 
-			/* Writer the highest resolution first*/
+			/* Write the highest resolution first*/
 			if (isLabelMultiset())
-				writeBlocksLabelMultisetType(canvas, blocks, highestResolutionDataset, highestResolutionBlockSpec, blockDiffsAtHighestLevel);
-			else {
-				writeBlocksLabelIntegerType(canvas, blocks, highestResolutionDataset, highestResolutionBlockSpec, blockDiffsAtHighestLevel);
-			}
+				levels.add(new PipelinedBlockCommit.Level(blocks, null, writeBlockLabelMultisetTypeTask(canvas, highestResolutionDataset, highestResolutionBlockSpec)));
+			else
+				levels.add(new PipelinedBlockCommit.Level(blocks, null, writeBlockLabelIntegerTypeTask(canvas, highestResolutionDataset, highestResolutionBlockSpec)));
 
-			progress.set(0.4);
-
-			/* If multiscale, downscale and write the lower scales*/
+			/* If multiscale, downscale and write the lower scales as soon as the blocks they depend on are written */
 			if (isMultiscale()) {
 				final String[] scaleDatasets = N5Helpers.listAndSortScaleDatasets(getN5(), datasetPath);
 
+				TLongSet affectedSourceBlocks = new TLongHashSet(blocks);
 				for (int targetLevel = 1; targetLevel < scaleDatasets.length; ++targetLevel) {
 
-					final TLongObjectHashMap<BlockDiff> blockDiffsAt = new TLongObjectHashMap<>();
-					blockDiffs.add(blockDiffsAt);
-
 					final int sourceLevel = targetLevel - 1;
 					final DatasetSpec sourceDataset = DatasetSpec.of(getN5(), N5URI.normalizeGroupPath("%s/%s".formatted(datasetPath, scaleDatasets[sourceLevel])));
 
@@ -288,10 +280,15 @@ public class CommitCanvasN5 implements PersistCanvas {
 					LOG.debug(() -> "targetLevel=%d: Got %d blocks".formatted(finalTargetLevel, affectedLowResBlocks.length));
 
 					final BlockSpec targetBlockSpec = new BlockSpec(targetDataset.grid);
-
-					if (isLabelMultiset())
-						downsampleAndWriteBlocksLabelMultisetType(
-								affectedLowResBlocks,
+					final TLongObjectMap<long[]> sourceBlocks = getAffectedSourceBlocks(affectedLowResBlocks, affectedSourceBlocks, sourceDataset, targetBlockSpec, targetToPrevious);
+
+					final PipelinedBlockCommit.BlockCommitTask task;
+					if (isLabelMultiset()) {
+						// In older converted data the "isLabelMultiset" attribute may not be present in s1,s2,... datasets.
+						// Make sure the attribute is set to avoid "is not a label multiset" exception.
+						getN5().setAttribute(sourceDataset.dataset, N5Helpers.IS_LABEL_MULTISET_KEY, true);
+						getN5().setAttribute(targetDataset.dataset, N5Helpers.IS_LABEL_MULTISET_KEY, true);
+						task = downsampleAndWriteBlockLabelMultisetTypeTask(
 								getN5(),
 								sourceDataset,
 								targetDataset,
@@ -299,25 +296,36 @@ public class CommitCanvasN5 implements PersistCanvas {
 								targetToPrevious,
 								relativeFactors,
 								targetMaxNumEntries,
-								targetLevel,
-								blockDiffsAt,
-								Optional.of(progress));
-					else
-						downsampleAndWriteBlocksIntegerType(
-								affectedLowResBlocks,
+								finalTargetLevel);
+					} else {
+						task = downsampleAndWriteBlockIntegerTypeTask(
 								getN5(),
 								sourceDataset,
 								targetDataset,
 								targetBlockSpec,
 								targetToPrevious,
 								relativeFactors,
-								targetLevel,
-								blockDiffsAt);
-
+								finalTargetLevel);
+					}
+					levels.add(new PipelinedBlockCommit.Level(affectedLowResBlocks, sourceBlocks, task));
+					affectedSourceBlocks = new TLongHashSet(affectedLowResBlocks);
 				}
-				progress.set(1.0);
+			}
 
+			final ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("commit-canvas-%d").build();
+			final ExecutorService threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threadFactory);
+			final List<TLongObjectMap<BlockDiff>> blockDiffs;
+			try {
+				final Object progressLock = new Object();
+				blockDiffs = new PipelinedBlockCommit(threadPool, levels, fraction -> {
+					synchronized (progressLock) {
+						progress.set(Math.max(progress.get(), 0.1 + 0.8 * fraction));
+					}
+				}).run();
+			} finally {
+				threadPool.shutdownNow();
 			}
+			progress.set(1.0);
 			LOG.info(() -> "Finished commiting canvas");
 			return blockDiffs;
 
@@ -647,70 +655,107 @@ public class CommitCanvasN5 implements PersistCanvas {
 		return t;
 	}
 
+	/**
+	 * For each affected block in the target grid, collect the affected blocks of the source level that it is downsampled from.
+	 * Only those need to be written before the target block can be downsampled; all other source blocks are unchanged.
+	 */
+	private static TLongObjectMap<long[]> getAffectedSourceBlocks(
+			final long[] affectedTargetBlocks,
+			final TLongSet affectedSourceBlocks,
+			final DatasetSpec sourceDataset,
+			final BlockSpec targetBlockSpec,
+			final Scale3D targetToPrevious) {
+
+		final TLongObjectMap<long[]> sourceBlocksByTargetBlock = new TLongObjectHashMap<>();
+		final BlockSpec blockSpec = new BlockSpec(targetBlockSpec);
+		final BlockSpec sourceBlockSpec = new BlockSpec(sourceDataset.grid);
+		final long[] sourceGridMax = ArrayMath.add3(sourceDataset.grid.getGridDimensions(), -1);
+		for (final long targetBlock : affectedTargetBlocks) {
+			blockSpec.fromLinearIndex(targetBlock);
+			final Interval sourceInterval = getSourceInterval(blockSpec, sourceDataset, targetToPrevious);
+			final long[] minPos = ArrayMath.minOf3(ArrayMath.divide3(Intervals.minAsLongArray(sourceInterval), sourceDataset.blockSize), sourceGridMax);
+			final long[] maxPos = ArrayMath.minOf3(ArrayMath.divide3(Intervals.maxAsLongArray(sourceInterval), sourceDataset.blockSize), sourceGridMax);
+			final TLongArrayList sourceBlocks = new TLongArrayList();
+			for (long z = minPos[2]; z <= maxPos[2]; ++z) {
+				for (long y = minPos[1]; y <= maxPos[1]; ++y) {
+					for (long x = minPos[0]; x <= maxPos[0]; ++x) {
+						sourceBlockSpec.pos[0] = x;
+						sourceBlockSpec.pos[1] = y;
+						sourceBlockSpec.pos[2] = z;
+						final long sourceBlock = sourceBlockSpec.asLinearIndex();
+						if (affectedSourceBlocks.contains(sourceBlock))
+							sourceBlocks.add(sourceBlock);
+					}
+				}
+			}
+			sourceBlocksByTargetBlock.put(targetBlock, sourceBlocks.toArray());
+		}
+		return sourceBlocksByTargetBlock;
+	}
+
+	/**
+	 * @return interval in the source level that contributes to the target block specified by {@code targetBlockSpec}
+	 */
+	private static Interval getSourceInterval(
+			final BlockSpec targetBlockSpec,
+			final DatasetSpec sourceDataset,
+			final Scale3D targetToPrevious) {
+
+		final double[] realSourceMin = ArrayMath.asDoubleArray3(targetBlockSpec.min);
+		final double[] realSourceMax = ArrayMath.asDoubleArray3(ArrayMath.add3(targetBlockSpec.max, 1));
+		targetToPrevious.apply(realSourceMin, realSourceMin);
+		targetToPrevious.apply(realSourceMax, realSourceMax);
+
+		final long[] sourceMin = ArrayMath.minOf3(ArrayMath.asLong3(ArrayMath.floor3(realSourceMin, realSourceMin)), sourceDataset.dimensions);
+		final long[] sourceMax = ArrayMath.minOf3(ArrayMath.asLong3(ArrayMath.ceil3(realSourceMax, realSourceMax)), sourceDataset.dimensions);
+		ArrayMath.add3(sourceMax, -1, sourceMax);
+		return new FinalInterval(sourceMin, sourceMax);
+	}
+
 	// TODO: switch to N5LabelMultisets for writing label multiset data
-	private static void writeBlocksLabelMultisetType(
+	private static PipelinedBlockCommit.BlockCommitTask writeBlockLabelMultisetTypeTask(
 			final RandomAccessibleInterval<UnsignedLongType> canvas,
-			final long[] blocks,
 			final DatasetSpec datasetSpec,
-			final BlockSpec blockSpec,
-			final TLongObjectHashMap<BlockDiff> blockDiff) throws IOException {
+			final BlockSpec blockSpec) throws IOException {
 
 		final RandomAccessibleInterval<LabelMultisetType> highestResolutionData = N5LabelMultisets.openLabelMultiset(datasetSpec.container, datasetSpec.dataset);
-		final ThreadFactory build = new ThreadFactoryBuilder().setNameFormat("write-blocks-label-multiset-%d").build();
-		final ExecutorService threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), build);
-		final ArrayList<Future<?>> futures = new ArrayList<>();
-		for (final long blockId : blocks) {
-			final Future<?> submit = threadPool.submit(() -> {
-				final var blockSpecCopy = new BlockSpec(blockSpec);
-				blockSpecCopy.fromLinearIndex(blockId);
-				final IntervalView<Pair<LabelMultisetType, UnsignedLongType>> backgroundWithCanvas = Views.interval(Views.pair(highestResolutionData, canvas), blockSpecCopy.asInterval());
-				final int numElements = (int)Intervals.numElements(backgroundWithCanvas);
-				final byte[] byteData = LabelUtils.serializeLabelMultisetTypes(new BackgroundCanvasIterable(Views.flatIterable(backgroundWithCanvas)), numElements);
-				if (byteData == null)
-					datasetSpec.container.deleteBlock(datasetSpec.dataset, blockSpecCopy.pos);
-				else {
-					final ByteArrayDataBlock dataBlock = new ByteArrayDataBlock(Intervals.dimensionsAsIntArray(backgroundWithCanvas), blockSpecCopy.pos, byteData);
-					datasetSpec.container.writeBlock(datasetSpec.dataset, datasetSpec.attributes, dataBlock);
-				}
-				synchronized (blockDiff) {
-					blockDiff.put(blockId, createBlockDiffFromCanvas(backgroundWithCanvas));
-				}
-			});
-			futures.add(submit);
-		}
-		for (Future<?> future : futures) {
-			try {
-				future.get();
-			} catch (InterruptedException | ExecutionException e) {
-				throw new RuntimeException(e);
+		return blockId -> {
+			final var blockSpecCopy = new BlockSpec(blockSpec);
+			blockSpecCopy.fromLinearIndex(blockId);
+			final IntervalView<Pair<LabelMultisetType, UnsignedLongType>> backgroundWithCanvas = Views.interval(Views.pair(highestResolutionData, canvas), blockSpecCopy.asInterval());
+			final int numElements = (int)Intervals.numElements(backgroundWithCanvas);
+			final byte[] byteData = LabelUtils.serializeLabelMultisetTypes(new BackgroundCanvasIterable(Views.flatIterable(backgroundWithCanvas)), numElements);
+			if (byteData == null)
+				datasetSpec.container.deleteBlock(datasetSpec.dataset, blockSpecCopy.pos);
+			else {
+				final ByteArrayDataBlock dataBlock = new ByteArrayDataBlock(Intervals.dimensionsAsIntArray(backgroundWithCanvas), blockSpecCopy.pos, byteData);
+				datasetSpec.container.writeBlock(datasetSpec.dataset, datasetSpec.attributes, dataBlock);
 			}
-		}
-		threadPool.shutdown();
+			return createBlockDiffFromCanvas(backgroundWithCanvas);
+		};
 	}
 
 	// TODO the integer type implementation does not need to iterate over all pixels per block but could intersect with bounding box first
-	private static <I extends IntegerType<I> & NativeType<I>> void writeBlocksLabelIntegerType(
+	private static <I extends IntegerType<I> & NativeType<I>> PipelinedBlockCommit.BlockCommitTask writeBlockLabelIntegerTypeTask(
 			final RandomAccessibleInterval<UnsignedLongType> canvas,
-			final long[] blocks,
 			final DatasetSpec datasetSpec,
-			final BlockSpec blockSpec,
-			final TLongObjectHashMap<BlockDiff> blockDiff) throws IOException {
+			final BlockSpec blockSpec) throws IOException {
 
 		final RandomAccessibleInterval<I> highestResolutionData = N5Utils.open(datasetSpec.container, datasetSpec.dataset);
 		final I i = highestResolutionData.getType().createVariable();
-		for (final long blockId : blocks) {
-			blockSpec.fromLinearIndex(blockId);
+		return blockId -> {
+			final var blockSpecCopy = new BlockSpec(blockSpec);
+			blockSpecCopy.fromLinearIndex(blockId);
 			final RandomAccessibleInterval<Pair<I, UnsignedLongType>> backgroundWithCanvas = Views
-					.interval(Views.pair(highestResolutionData, canvas), blockSpec.asInterval());
+					.interval(Views.pair(highestResolutionData, canvas), blockSpecCopy.asInterval());
 			final RandomAccessibleInterval<I> mergedData = Converters
 					.convert(backgroundWithCanvas, (s, t) -> pickFirstIfSecondIsInvalid(s.getA(), s.getB(), t), i.createVariable());
-			N5Utils.saveBlock(mergedData, datasetSpec.container, datasetSpec.dataset, datasetSpec.attributes, blockSpec.pos);
-			blockDiff.put(blockId, createBlockDiffFromCanvasIntegerType(backgroundWithCanvas));
-		}
+			N5Utils.saveBlock(mergedData, datasetSpec.container, datasetSpec.dataset, datasetSpec.attributes, blockSpecCopy.pos);
+			return createBlockDiffFromCanvasIntegerType(backgroundWithCanvas);
+		};
 	}
 
-	private static void downsampleAndWriteBlocksLabelMultisetType(
-			final long[] affectedTargetBlocks,
+	private static PipelinedBlockCommit.BlockCommitTask downsampleAndWriteBlockLabelMultisetTypeTask(
 			final N5Writer n5,
 			final DatasetSpec sourceDataset,
 			final DatasetSpec targetDataset,
@@ -718,144 +763,71 @@ public class CommitCanvasN5 implements PersistCanvas {
 			final Scale3D targetToPrevious,
 			final int[] relativeFactors,
 			final int targetMaxNumEntries,
-			final int level,
-			final TLongObjectHashMap<BlockDiff> blockDiffsAt,
-			Optional<ReadOnlyDoubleWrapper> progressOpt) throws IOException {
-
-		// In older converted data the "isLabelMultiset" attribute may not be present in s1,s2,... datasets.
-		// Make sure the attribute is set to avoid "is not a label multiset" exception.
-		n5.setAttribute(sourceDataset.dataset, N5Helpers.IS_LABEL_MULTISET_KEY, true);
-		n5.setAttribute(targetDataset.dataset, N5Helpers.IS_LABEL_MULTISET_KEY, true);
+			final int level) throws IOException {
 
 		final RandomAccessibleInterval<LabelMultisetType> sourceData = LabelMultisetUtilsKt.openLabelMultiset(n5, sourceDataset.dataset);
 
-		final double increment;
-		if (progressOpt.isPresent()) {
-			final var progress = progressOpt.get();
-			final var delta = Math.max(0.0, .9 - progress.get());
-			increment = delta / affectedTargetBlocks.length;
-		} else {
-			increment = 0.0;
-		}
+		return targetBlock -> {
+			final var blockSpecCopy = new BlockSpec(targetBlockSpec);
+			blockSpecCopy.fromLinearIndex(targetBlock);
+			final Interval sourceInterval = getSourceInterval(blockSpecCopy, sourceDataset, targetToPrevious);
+			final int[] size = Intervals.dimensionsAsIntArray(new FinalInterval(blockSpecCopy.min, blockSpecCopy.max));
 
-		final ThreadFactory build = new ThreadFactoryBuilder().setNameFormat("downsample-and-write-blocks-label-multiset-%d").build();
-		try (ExecutorService threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), build)) {
-			final ArrayList<Future<?>> futures = new ArrayList<>();
-			for (final long targetBlock : affectedTargetBlocks) {
-				var future = threadPool.submit(() -> {
-					final var blockSpecCopy = new BlockSpec(targetBlockSpec);
-					blockSpecCopy.fromLinearIndex(targetBlock);
-					final double[] realSourceMin = ArrayMath.asDoubleArray3(blockSpecCopy.min);
-					final double[] realSourceMax = ArrayMath.asDoubleArray3(ArrayMath.add3(blockSpecCopy.max, 1));
-					targetToPrevious.apply(realSourceMin, realSourceMin);
-					targetToPrevious.apply(realSourceMax, realSourceMax);
-
-					LOG.debug(() -> "level=%d: realSourceMin=%s realSourceMax=%s".formatted(level, realSourceMin, realSourceMax));
-
-					final long[] sourceMin = ArrayMath.minOf3(ArrayMath.asLong3(ArrayMath.floor3(realSourceMin, realSourceMin)), sourceDataset.dimensions);
-					final long[] sourceMax = ArrayMath.minOf3(ArrayMath.asLong3(ArrayMath.ceil3(realSourceMax, realSourceMax)), sourceDataset.dimensions);
-					final int[] size = Intervals.dimensionsAsIntArray(new FinalInterval(blockSpecCopy.min, blockSpecCopy.max));
-
-					final long[] previousRelevantIntervalMin = sourceMin.clone();
-					final long[] previousRelevantIntervalMax = ArrayMath.add3(sourceMax, -1);
-
-					ArrayMath.divide3(sourceMin, sourceDataset.blockSize, sourceMin);
-					ArrayMath.divide3(sourceMax, sourceDataset.blockSize, sourceMax);
-					ArrayMath.add3(sourceMax, -1, sourceMax);
-					ArrayMath.minOf3(sourceMax, sourceMin, sourceMax);
-
-					LOG.trace(() -> "Reading existing access at position %s and size %s. (%s %s)".formatted(blockSpecCopy.pos, size, blockSpecCopy.min, blockSpecCopy.max));
-					final DataBlock<?> block = n5.readBlock(targetDataset.dataset, targetDataset.attributes, blockSpecCopy.pos);
-					final VolatileLabelMultisetArray oldAccess = block != null && block.getData() instanceof byte[]
-							? LabelUtils.fromBytes((byte[])block.getData(), (int)Intervals.numElements(size))
-							: null;
-
-					final VolatileLabelMultisetArray newAccess;
-					try {
-						newAccess = downsampleVolatileLabelMultisetArrayAndSerialize(
-								n5,
-								targetDataset.dataset,
-								targetDataset.attributes,
-								Views.interval(sourceData, previousRelevantIntervalMin, previousRelevantIntervalMax),
-								relativeFactors,
-								targetMaxNumEntries,
-								size,
-								blockSpecCopy.pos);
-					} catch (IOException e) {
-						throw new RuntimeException(e);
-					}
-					final int numElements = (int)Intervals.numElements(size);
-					synchronized (blockDiffsAt) {
-						blockDiffsAt.put(
-								targetBlock,
-								oldAccess == null
-										? createBlockDiffOldDoesNotExist(newAccess, numElements)
-										: createBlockDiff(oldAccess, newAccess, numElements));
-						progressOpt.ifPresent(prop -> prop.set(prop.get() + increment));
-					}
-				});
-				futures.add(future);
-			}
-			for (Future<?> future : futures) {
-				try {
-					future.get();
-				} catch (InterruptedException | ExecutionException e) {
-					throw new RuntimeException(e);
-				}
-			}
-		}
+			LOG.debug(() -> "level=%d: sourceInterval=%s".formatted(level, sourceInterval));
+
+			LOG.trace(() -> "Reading existing access at position %s and size %s. (%s %s)".formatted(blockSpecCopy.pos, size, blockSpecCopy.min, blockSpecCopy.max));
+			final DataBlock<?> block = n5.readBlock(targetDataset.dataset, targetDataset.attributes, blockSpecCopy.pos);
+			final VolatileLabelMultisetArray oldAccess = block != null && block.getData() instanceof byte[]
+					? LabelUtils.fromBytes((byte[])block.getData(), (int)Intervals.numElements(size))
+					: null;
+
+			final VolatileLabelMultisetArray newAccess = downsampleVolatileLabelMultisetArrayAndSerialize(
+					n5,
+					targetDataset.dataset,
+					targetDataset.attributes,
+					Views.interval(sourceData, sourceInterval),
+					relativeFactors,
+					targetMaxNumEntries,
+					size,
+					blockSpecCopy.pos);
+			final int numElements = (int)Intervals.numElements(size);
+			return oldAccess == null
+					? createBlockDiffOldDoesNotExist(newAccess, numElements)
+					: createBlockDiff(oldAccess, newAccess, numElements);
+		};
 	}
 
-	//TODO add progress updates to this when data is available to test against
-	private static <I extends IntegerType<I> & NativeType<I>> void downsampleAndWriteBlocksIntegerType(
-			final long[] affectedBlocks,
+	private static <I extends IntegerType<I> & NativeType<I>> PipelinedBlockCommit.BlockCommitTask downsampleAndWriteBlockIntegerTypeTask(
 			final N5Writer n5,
 			final DatasetSpec previousDataset,
 			final DatasetSpec targetDataset,
 			final BlockSpec blockSpec,
 			final Scale3D targetToPrevious,
 			final int[] relativeFactors,
-			final int level,
-			final TLongObjectHashMap<BlockDiff> blockDiffsAt
-	) throws IOException {
+			final int level) throws IOException {
 
 		final RandomAccessibleInterval<I> previousData = N5Utils.open(n5, previousDataset.dataset);
 
-		for (final long targetBlock : affectedBlocks) {
-			blockSpec.fromLinearIndex(targetBlock);
-			final double[] blockMinDouble = ArrayMath.asDoubleArray3(blockSpec.min);
-			final double[] blockMaxDouble = ArrayMath.asDoubleArray3(ArrayMath.add3(blockSpec.max, 1));
-			targetToPrevious.apply(blockMinDouble, blockMinDouble);
-			targetToPrevious.apply(blockMaxDouble, blockMaxDouble);
-
-			LOG.debug(() -> "level=%d: blockMinDouble=%s blockMaxDouble=%s".formatted(level, blockMinDouble, blockMaxDouble));
-
-			final long[] blockMin = ArrayMath.minOf3(ArrayMath.asLong3(ArrayMath.floor3(blockMinDouble, blockMinDouble)), previousDataset.dimensions);
-			final long[] blockMax = ArrayMath.minOf3(ArrayMath.asLong3(ArrayMath.ceil3(blockMaxDouble, blockMaxDouble)), previousDataset.dimensions);
-			final Interval targetInterval = new FinalInterval(blockSpec.min, blockSpec.max);
+		return targetBlock -> {
+			final var blockSpecCopy = new BlockSpec(blockSpec);
+			blockSpecCopy.fromLinearIndex(targetBlock);
+			final Interval sourceInterval = getSourceInterval(blockSpecCopy, previousDataset, targetToPrevious);
+			final Interval targetInterval = new FinalInterval(blockSpecCopy.min, blockSpecCopy.max);
 			final int[] size = Intervals.dimensionsAsIntArray(targetInterval);
 
-			final long[] previousRelevantIntervalMin = blockMin.clone();
-			final long[] previousRelevantIntervalMax = ArrayMath.add3(blockMax, -1);
+			LOG.debug(() -> "level=%d: sourceInterval=%s".formatted(level, sourceInterval));
+			LOG.trace(() -> "Reading old access at position %s and size %s. (%s %s)".formatted(blockSpecCopy.pos, size, blockSpecCopy.min, blockSpecCopy.max));
 
-			ArrayMath.divide3(blockMin, previousDataset.blockSize, blockMin);
-			ArrayMath.divide3(blockMax, previousDataset.blockSize, blockMax);
-			ArrayMath.add3(blockMax, -1, blockMax);
-			ArrayMath.minOf3(blockMax, blockMin, blockMax);
-
-			LOG.trace(() -> "Reading old access at position %s and size %s. (%s %s)".formatted(blockSpec.pos, size, blockSpec.min, blockSpec.max));
-
-			final BlockDiff blockDiff = downsampleIntegerTypeAndSerialize(
+			return downsampleIntegerTypeAndSerialize(
 					n5,
 					targetDataset.dataset,
 					targetDataset.attributes,
-					Views.interval(previousData, previousRelevantIntervalMin, previousRelevantIntervalMax),
+					Views.interval(previousData, sourceInterval),
 					relativeFactors,
 					size,
 					targetInterval,
-					blockSpec.pos);
-			blockDiffsAt.put(targetBlock, blockDiff);
-		}
+					blockSpecCopy.pos);
+		};
 	}
 
 	private static <I extends IntegerType<I>, C extends IntegerType<C>> void pickFirstIfSecondIsInvalid(final I s1, final C s2, final I t) {
@@ -0,0 +1,136 @@
+package org.janelia.saalfeldlab.paintera.data.n5;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.janelia.saalfeldlab.paintera.data.mask.persist.PersistCanvas.BlockDiff;
+import org.janelia.saalfeldlab.util.concurrent.BlockPyramidScheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Commits the blocks of a scale pyramid on a shared, bounded worker pool.
+ * <p>
+ * All blocks of the highest resolution level are submitted immediately. A block at level {@code n + 1} is submitted
+ * as soon as all affected blocks at level {@code n} that it is downsampled from have been written, i.e. a level does
+ * not wait for the whole previous level to finish. Each block task reads, merges, diffs, compresses, and writes a
+ * single block, so all of those stages run concurrently across blocks. Blocks are scheduled by a
+ * {@link BlockPyramidScheduler}.
+ */
+public class PipelinedBlockCommit {
+
+	@FunctionalInterface
+	public interface BlockCommitTask {
+
+		/**
+		 * Write block {@code blockId} and return the diff of its unique labels.
+		 *
+		 * @param blockId linear index of the block in the grid of the level
+		 * @return diff of unique labels before and after the write
+		 * @throws IOException if the block cannot be read or written
+		 */
+		BlockDiff commit(long blockId) throws IOException;
+	}
+
+	public static class Level {
+
+		private final long[] blocks;
+
+		private final TLongObjectMap<long[]> sourceBlocks;
+
+		private final BlockCommitTask task;
+
+		/**
+		 * @param blocks       affected blocks at this level
+		 * @param sourceBlocks for each block in {@code blocks}, the affected blocks of the previous level that it depends on.
+		 *                     {@code null} for the highest resolution level. Blocks without entry do not depend on any block.
+		 * @param task         commit task for a single block at this level
+		 */
+		public Level(final long[] blocks, final TLongObjectMap<long[]> sourceBlocks, final BlockCommitTask task) {
+
+			this.blocks = blocks;
+			this.sourceBlocks = sourceBlocks;
+			this.task = task;
+		}
+	}
+
+	private final ExecutorService executor;
+
+	private final List<Level> levels;
+
+	private final DoubleConsumer progress;
+
+	private final List<TLongObjectMap<BlockDiff>> blockDiffs = new ArrayList<>();
+
+	private final int numBlocks;
+
+	private int numCommitted = 0;
+
+	/**
+	 * @param executor bounded worker pool that runs the block tasks. Not shut down by this class.
+	 * @param levels   levels, ordered from highest to lowest resolution
+	 * @param progress notified with the fraction of committed blocks, in {@code [0, 1]}, after each block
+	 */
+	public PipelinedBlockCommit(final ExecutorService executor, final List<Level> levels, final DoubleConsumer progress) {
+
+		this.executor = executor;
+		this.levels = levels;
+		this.progress = progress;
+
+		int numBlocks = 0;
+		for (final Level level : levels) {
+			numBlocks += level.blocks.length;
+			blockDiffs.add(new TLongObjectHashMap<>());
+		}
+		this.numBlocks = numBlocks;
+	}
+
+	/**
+	 * Commit all blocks and wait for completion.
+	 *
+	 * @return block diffs, one map per level
+	 * @throws IOException if any of the block tasks fails. Remaining tasks are not submitted anymore after a failure.
+	 */
+	public List<TLongObjectMap<BlockDiff>> run() throws IOException {
+
+		final TLongSet[] blocks = new TLongSet[levels.size()];
+		for (int level = 0; level < blocks.length; ++level)
+			blocks[level] = new TLongHashSet(levels.get(level).blocks);
+
+		final BlockPyramidScheduler<BlockDiff> scheduler = new BlockPyramidScheduler<>(
+				executor,
+				blocks,
+				(level, block) -> levels.get(level).sourceBlocks == null ? null : levels.get(level).sourceBlocks.get(block),
+				(level, block) -> levels.get(level).task.commit(block),
+				this::onCommitted);
+
+		try {
+			scheduler.start().get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			scheduler.cancel();
+			throw new IOException("Interrupted while committing blocks", e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+		return blockDiffs;
+	}
+
+	/* calls are serialized by the scheduler */
+	private void onCommitted(final int level, final long block, final BlockDiff blockDiff) {
+
+		blockDiffs.get(level).put(block, blockDiff);
+		progress.accept((double)++numCommitted / numBlocks);
+	}
+}
@@ -1,26 +1,81 @@
 package org.janelia.saalfeldlab.paintera.id;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.github.oshai.kotlinlogging.KLogger;
+import io.github.oshai.kotlinlogging.KotlinLogging;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.LongStream;
 
+/**
+ * {@link IdService} that persists the max id in the {@code "maxId"} attribute of {@code dataset}.
+ * <p>
+ * By default, the attribute is written every time an id is requested. With a positive {@code leaseSize}, the service
+ * instead reserves a block of {@code leaseSize} ids with a single write of the {@code "leasedMaxId"} attribute, hands
+ * them out from memory, and reserves the next block in the background once the current block runs low. The reserved
+ * upper bound is written before any id of a block is handed out, so a crash can skip ids but never reuse them. The max
+ * id that was actually handed out is written to {@code "maxId"} in the background, so that {@code "maxId"} keeps
+ * describing the ids in use, e.g. to pick the data type of an export.
+ */
 public class N5IdService implements IdService {
 
+	private static final KLogger LOG = KotlinLogging.INSTANCE.logger(() -> null);
+
+	public static final int DEFAULT_LEASE_SIZE = 10_000;
+
+	public static final String MAX_ID_KEY = "maxId";
+
+	public static final String LEASED_MAX_ID_KEY = "leasedMaxId";
+
+	private static final ExecutorService LEASE_EXECUTOR = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("n5-id-service-lease-%d").setDaemon(true).build());
+
 	private final N5Reader n5;
 
 	private final String dataset;
 
-	private long next;
+	/* last id that was handed out */
+	private final AtomicLong next;
 	private long nextTemp = IdService.FIRST_TEMPORARY_ID;
 
+	private final int leaseSize;
+
+	/* all ids up to and including leasedUpTo are reserved in the "leasedMaxId" attribute */
+	private volatile long leasedUpTo;
+
+	/* value of the "maxId" attribute */
+	private long persistedMaxId;
+
+	private final AtomicBoolean isRefilling = new AtomicBoolean(false);
+
+	private final AtomicBoolean isPersistingMaxId = new AtomicBoolean(false);
+
 	public N5IdService(final N5Reader n5, final String dataset, final long next) {
 
+		this(n5, dataset, next, 0);
+	}
+
+	/**
+	 * @param n5        container
+	 * @param dataset   dataset that holds the {@code "maxId"} attribute
+	 * @param next      max id that was handed out or leased previously
+	 * @param leaseSize number of ids to reserve with a single attribute write. Ids are not leased if {@code leaseSize <= 0}.
+	 */
+	public N5IdService(final N5Reader n5, final String dataset, final long next, final int leaseSize) {
+
 		super();
 		this.n5 = n5;
 		this.dataset = dataset;
-		this.next = next;
+		this.next = new AtomicLong(next);
+		this.leaseSize = n5 instanceof N5Writer ? Math.max(leaseSize, 0) : 0;
+		this.leasedUpTo = next;
+		this.persistedMaxId = next;
 	}
 
 	public String getDataset() {
@@ -28,31 +83,62 @@ public class N5IdService implements IdService {
 		return dataset;
 	}
 
+	public boolean isLeasing() {
+
+		return leaseSize > 0;
+	}
+
 	@Override
-	public synchronized void invalidate(final long id) {
+	public void invalidate(final long id) {
 
-		final long oldNext = next;
-		next = IdService.max(next, id + 1);
-		if (next != oldNext) {
-			serializeMaxId();
+		if (isLeasing()) {
+			final long updated = next.accumulateAndGet(id + 1, IdService::max);
+			ensureLeased(updated);
+			persistMaxIdInBackground();
+			return;
+		}
+
+		synchronized (this) {
+			final long oldNext = next.get();
+			next.set(IdService.max(oldNext, id + 1));
+			if (next.get() != oldNext) {
+				serializeMaxId(next.get());
+			}
 		}
 	}
 
 	@Override
-	public synchronized long next() {
+	public long next() {
+
+		if (isLeasing()) {
+			final long id = next.incrementAndGet();
+			ensureLeased(id);
+			persistMaxIdInBackground();
+			return id;
+		}
 
-		++next;
-		serializeMaxId();
-		return next;
+		synchronized (this) {
+			final long id = next.incrementAndGet();
+			serializeMaxId(id);
+			return id;
+		}
 	}
 
 	@Override
-	public synchronized long[] next(final int n) {
+	public long[] next(final int n) {
 
-		final long[] ids = LongStream.range(next, next + n).toArray();
-		next += n;
-		serializeMaxId();
-		return ids;
+		if (isLeasing()) {
+			final long first = next.getAndAdd(n) + 1;
+			ensureLeased(first + n - 1);
+			persistMaxIdInBackground();
+			return LongStream.range(first, first + n).toArray();
+		}
+
+		synchronized (this) {
+			final long first = next.getAndAdd(n) + 1;
+			serializeMaxId(next.get());
+			return LongStream.range(first, first + n).toArray();
+		}
 	}
 
 	@Override public long nextTemporary() {
@@ -69,16 +155,101 @@ public class N5IdService implements IdService {
 		return tempIds;
 	}
 
-	private void serializeMaxId() {
+	/**
+	 * Make sure that {@code id} is covered by the persisted lease. Only blocks if the current lease is exhausted;
+	 * otherwise, a refill is requested in the background once less than half of the lease remains.
+	 *
+	 * @param id that is about to be handed out
+	 */
+	private void ensureLeased(final long id) {
+
+		final long upTo = leasedUpTo;
+		if (!IdService.greaterThan(id, upTo)) {
+			if (IdService.greaterThan(id, upTo - leaseSize / 2))
+				refillInBackground();
+			return;
+		}
+
+		synchronized (this) {
+			if (IdService.greaterThan(id, leasedUpTo))
+				lease(id);
+		}
+	}
+
+	private void refillInBackground() {
+
+		if (!isRefilling.compareAndSet(false, true))
+			return;
+
+		LEASE_EXECUTOR.submit(() -> {
+			try {
+				synchronized (this) {
+					if (IdService.greaterThan(next.get(), leasedUpTo - leaseSize / 2))
+						lease(next.get());
+				}
+			} catch (final Exception e) {
+				LOG.error(e, () -> "Unable to lease ids for dataset %s".formatted(dataset));
+			} finally {
+				isRefilling.set(false);
+			}
+		});
+	}
+
+	/**
+	 * Reserve {@code leaseSize} ids past {@code id}. Must be called while holding the lock of this service.
+	 */
+	private void lease(final long id) {
+
+		final long upTo = IdService.max(leasedUpTo, id) + leaseSize;
+		((N5Writer)n5).setAttribute(dataset, LEASED_MAX_ID_KEY, upTo);
+		leasedUpTo = upTo;
+		LOG.debug(() -> "Leased ids up to %d for dataset %s".formatted(upTo, dataset));
+	}
+
+	/**
+	 * Write the max id that was handed out to {@code "maxId"} in the background. Requests are coalesced while a write
+	 * is pending.
+	 */
+	private void persistMaxIdInBackground() {
+
+		if (!isPersistingMaxId.compareAndSet(false, true))
+			return;
+
+		LEASE_EXECUTOR.submit(() -> {
+			/* ids that are handed out from here on need another write */
+			isPersistingMaxId.set(false);
+			try {
+				synchronized (this) {
+					final long maxId = next.get();
+					if (maxId != persistedMaxId) {
+						serializeMaxId(maxId);
+						persistedMaxId = maxId;
+					}
+				}
+			} catch (final Exception e) {
+				LOG.error(e, () -> "Unable to persist max id for dataset %s".formatted(dataset));
+			}
+		});
+	}
+
+	/**
+	 * Block until pending background writes of this and all other services are done.
+	 */
+	void awaitBackgroundWrites() throws InterruptedException, ExecutionException {
+
+		LEASE_EXECUTOR.submit(() -> {}).get();
+	}
+
+	private void serializeMaxId(final long maxId) {
 		if (n5 instanceof N5Writer) {
-			((N5Writer)n5).setAttribute(dataset, "maxId", next);
+			((N5Writer)n5).setAttribute(dataset, MAX_ID_KEY, maxId);
 		}
 	}
 
 	@Override
 	public boolean isInvalidated(final long id) {
 
-		return id < next;
+		return !IdService.greaterThan(id, next.get());
 	}
 
 }
@@ -1,15 +1,20 @@
 package org.janelia.saalfeldlab.paintera.meshes;
 
 import gnu.trove.list.array.TFloatArrayList;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.BooleanType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.janelia.saalfeldlab.net.imglib2.view.BundleView;
 
+import java.util.Arrays;
+
 /**
  * This class implements the marching cubes algorithm. Based on http://paulbourke.net/geometry/polygonise/
  *
@@ -328,6 +333,24 @@ public class MarchingCubes<B extends BooleanType<B>> {
 			{INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID, INVALID}
 	};
 
+	/**
+	 * Offsets {x, y, z} of the cube vertices in the order used by {@link #MC_EDGE_TABLE}, see
+	 * {@link #calculateIntersection}.
+	 */
+	private static final int[][] CUBE_VERTEX_OFFSETS = {
+			{1, 0, 1}, {1, 1, 1}, {1, 1, 0}, {1, 0, 0},
+			{0, 0, 1}, {0, 1, 1}, {0, 1, 0}, {0, 0, 0}};
+
+	/**
+	 * Each cube edge expressed as the edge {x, y, z, direction} of the lattice, i.e. the edge that starts at
+	 * cube offset {x, y, z} and points along {@code direction}. Shared between neighboring cubes, which is what allows
+	 * to cache vertices per lattice edge.
+	 */
+	private static final int[][] CUBE_EDGE_TO_LATTICE_EDGE = {
+			{1, 0, 1, 1}, {1, 1, 0, 2}, {1, 0, 0, 1}, {1, 0, 0, 2},
+			{0, 0, 1, 1}, {0, 1, 0, 2}, {0, 0, 0, 1}, {0, 0, 0, 2},
+			{0, 0, 1, 0}, {0, 1, 1, 0}, {0, 1, 0, 0}, {0, 0, 0, 0}};
+
 	/**
 	 * logger
 	 */
@@ -433,6 +456,153 @@ public class MarchingCubes<B extends BooleanType<B>> {
 		return vertices.toArray();
 	}
 
+	/**
+	 * Creates the same surface as {@link #generateMesh()}, but with shared vertices: each vertex is emitted once and
+	 * triangles refer to vertices by index. The input is read into a primitive mask once, and vertices are cached per
+	 * lattice edge for the two slices that the current layer of cubes touches, so that no objects are allocated per
+	 * voxel or per vertex.
+	 * <p>
+	 * The input is usually a label to mask conversion of a cached cell image, so there is no primitive array to read
+	 * from. It is read row by row with a single {@link RandomAccess} that is moved forward along x, which lets the
+	 * converted and cell accesses step within a cell instead of localizing every voxel.
+	 */
+	public IndexedMesh generateIndexedMesh() {
+
+		final long[] min = Intervals.minAsLongArray(interval);
+		final long[] max = Intervals.maxAsLongArray(interval);
+		final int[] dims = new int[3];
+		for (int d = 0; d < 3; ++d) {
+			/* cubes at the max of the interval read one voxel past the max */
+			++max[d];
+			dims[d] = (int)(max[d] - min[d] + 1);
+		}
+
+		final byte[] mask = new byte[dims[0] * dims[1] * dims[2]];
+		final RandomAccess<B> access = input.randomAccess(new FinalInterval(min, max));
+		int i = 0;
+		for (int z = 0; z < dims[2]; ++z) {
+			for (int y = 0; y < dims[1]; ++y) {
+				access.setPosition(min[0], 0);
+				access.setPosition(min[1] + y, 1);
+				access.setPosition(min[2] + z, 2);
+				for (int x = 0; x < dims[0]; ++x, access.fwd(0))
+					mask[i++] = access.get().get() ? (byte)1 : 0;
+			}
+		}
+
+		return generateIndexedMesh(mask, dims, min);
+	}
+
+	/**
+	 * Marching cubes on a flat, x-fastest mask.
+	 *
+	 * @param mask   non-zero for voxels inside of the surface
+	 * @param dims   dimensions of {@code mask}
+	 * @param offset world position of the first voxel in {@code mask}
+	 * @return indexed mesh with vertices in the same coordinates as {@link #generateMesh()}
+	 */
+	public static IndexedMesh generateIndexedMesh(final byte[] mask, final int[] dims, final long[] offset) {
+
+		final int nx = dims[0];
+		final int ny = dims[1];
+		final int nz = dims[2];
+		final int sliceSize = nx * ny;
+
+		final int[] cornerOffsets = new int[8];
+		for (int i = 0; i < 8; ++i)
+			cornerOffsets[i] = CUBE_VERTEX_OFFSETS[i][0] + CUBE_VERTEX_OFFSETS[i][1] * nx + CUBE_VERTEX_OFFSETS[i][2] * sliceSize;
+
+		/* vertex index per lattice edge (3 per lattice point), for the two slices of lattice points touched by the current layer of cubes */
+		final int[][] edgeVertexCache = {new int[3 * sliceSize], new int[3 * sliceSize]};
+		Arrays.fill(edgeVertexCache[0], INVALID);
+		Arrays.fill(edgeVertexCache[1], INVALID);
+
+		float[] vertices = new float[3 * 1024];
+		int numVertexCoordinates = 0;
+		int[] indices = new int[3 * 1024];
+		int numIndices = 0;
+
+		for (int z = 0; z < nz - 1; ++z) {
+			if (z > 0)
+				/* slice z + 1 reuses the cache of slice z - 1 */
+				Arrays.fill(edgeVertexCache[(z + 1) & 1], INVALID);
+
+			for (int y = 0; y < ny - 1; ++y) {
+				int index = z * sliceSize + y * nx;
+				for (int x = 0; x < nx - 1; ++x, ++index) {
+
+					int cubeIndex = 0;
+					for (int i = 0; i < 8; ++i)
+						if (mask[index + cornerOffsets[i]] != 0)
+							cubeIndex |= 1 << i;
+
+					if (MC_EDGE_TABLE[cubeIndex] == 0)
+						continue;
+
+					final int[] triangles = MC_TRI_TABLE[cubeIndex];
+					for (int t = 0; triangles[t] != INVALID; ++t) {
+						final int[] latticeEdge = CUBE_EDGE_TO_LATTICE_EDGE[triangles[t]];
+						final int lx = x + latticeEdge[0];
+						final int ly = y + latticeEdge[1];
+						final int lz = z + latticeEdge[2];
+						final int direction = latticeEdge[3];
+						final int[] cache = edgeVertexCache[lz & 1];
+						final int cacheIndex = 3 * (ly * nx + lx) + direction;
+
+						int vertex = cache[cacheIndex];
+						if (vertex == INVALID) {
+							if (numVertexCoordinates + 3 > vertices.length)
+								vertices = Arrays.copyOf(vertices, 2 * vertices.length);
+							/* same arithmetic as calculateIntersection to get identical coordinates */
+							vertices[numVertexCoordinates] = 0.5f * (2 * (offset[0] + lx) + (direction == 0 ? 1 : 0));
+							vertices[numVertexCoordinates + 1] = 0.5f * (2 * (offset[1] + ly) + (direction == 1 ? 1 : 0));
+							vertices[numVertexCoordinates + 2] = 0.5f * (2 * (offset[2] + lz) + (direction == 2 ? 1 : 0));
+							vertex = numVertexCoordinates / 3;
+							numVertexCoordinates += 3;
+							cache[cacheIndex] = vertex;
+						}
+
+						if (numIndices == indices.length)
+							indices = Arrays.copyOf(indices, 2 * indices.length);
+						indices[numIndices++] = vertex;
+					}
+				}
+			}
+		}
+
+		return new IndexedMesh(Arrays.copyOf(vertices, numVertexCoordinates), Arrays.copyOf(indices, numIndices));
+	}
+
+	/**
+	 * Triangle mesh with shared vertices.
+	 */
+	public static class IndexedMesh {
+
+		private final float[] vertices;
+
+		private final int[] indices;
+
+		/**
+		 * @param vertices vertex coordinates [x_0, y_0, z_0, x_1, y_1, z_1, ... , x_n, y_n, z_n]
+		 * @param indices  vertex indices forming triangles [t0_v0, t0_v1, t0_v2, ... , tn_v0, tn_v1, tn_v2]
+		 */
+		public IndexedMesh(final float[] vertices, final int[] indices) {
+
+			this.vertices = vertices;
+			this.indices = indices;
+		}
+
+		public float[] getVertices() {
+
+			return vertices;
+		}
+
+		public int[] getIndices() {
+
+			return indices;
+		}
+	}
+
 	/**
 	 * Given the values of the vertices (in a specific order) identifies which of them are inside the mesh. For each
 	 * one
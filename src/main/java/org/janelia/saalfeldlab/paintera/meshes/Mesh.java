@@ -103,19 +103,7 @@ public class Mesh {
 		final ArrayList<TIntArrayList> trianglesPerVertex = new ArrayList<>();
 		final TIntArrayList triangleVertexIndices = new TIntArrayList();
 
-		final double minX = interval.min(0) - 1;
-		final double minY = interval.min(1) - 1;
-		final double minZ = interval.min(2) - 1;
-
-		final double overlapOffset = overlap ? 1 : .5;
-		final double maxX = interval.max(0) + overlapOffset;
-		final double maxY = interval.max(1) + overlapOffset;
-		final double maxZ = interval.max(2) + overlapOffset;
-
-		final RealInterval vertexBounds = new FinalRealInterval(
-				new double[]{minX, minY, minZ},
-				new double[]{maxX, maxY, maxZ}
-		);
+		final RealInterval vertexBounds = vertexBounds(interval, overlap);
 
 		final float[] vertex1Position = new float[3];
 		final float[] vertex2Position = new float[3];
@@ -186,6 +174,63 @@ public class Mesh {
 		}
 	}
 
+	/**
+	 * @param mesh      indexed mesh in voxel coordinates, as generated by {@link MarchingCubes#generateIndexedMesh()}
+	 * @param interval  block that {@code mesh} was generated for
+	 * @param transform transforms voxel coordinates into world coordinates
+	 * @param overlap   whether vertices that are up to one voxel past {@code interval} belong to the block
+	 */
+	public Mesh(final MarchingCubes.IndexedMesh mesh, final Interval interval, final AffineTransform3D transform, final boolean overlap) {
+
+		final float[] voxelVertices = mesh.getVertices();
+		final int[] indices = mesh.getIndices();
+		final int numVertices = voxelVertices.length / 3;
+		assert indices.length % 3 == 0;
+
+		final RealInterval vertexBounds = vertexBounds(interval, overlap);
+		final float[] vertexPosition = new float[3];
+		final FloatLocalizable vertex = new FloatLocalizable(vertexPosition);
+		final float[] transformedPos = new float[3];
+
+		vertices = new float[voxelVertices.length];
+		for (int v = 0, i = 0; v < numVertices; ++v, i += 3) {
+			System.arraycopy(voxelVertices, i, vertexPosition, 0, 3);
+			if (!Intervals.contains(vertexBounds, vertex))
+				overhangingVertexIndices.add(v);
+			transform.apply(vertexPosition, transformedPos);
+			System.arraycopy(transformedPos, 0, vertices, i, 3);
+		}
+
+		final int[] numTrianglesPerVertex = new int[numVertices];
+		for (final int index : indices)
+			++numTrianglesPerVertex[index];
+		for (int v = 0; v < numVertices; ++v)
+			trianglesPerVertex.add(new int[numTrianglesPerVertex[v]]);
+		Arrays.fill(numTrianglesPerVertex, 0);
+		for (int i = 0; i < indices.length; ++i)
+			trianglesPerVertex.get(indices[i])[numTrianglesPerVertex[indices[i]]++] = i / 3;
+
+		vertexIndices = indices;
+		normals = new float[vertices.length];
+	}
+
+	private static RealInterval vertexBounds(final Interval interval, final boolean overlap) {
+
+		final double minX = interval.min(0) - 1;
+		final double minY = interval.min(1) - 1;
+		final double minZ = interval.min(2) - 1;
+
+		final double overlapOffset = overlap ? 1 : .5;
+		final double maxX = interval.max(0) + overlapOffset;
+		final double maxY = interval.max(1) + overlapOffset;
+		final double maxZ = interval.max(2) + overlapOffset;
+
+		return new FinalRealInterval(
+				new double[]{minX, minY, minZ},
+				new double[]{maxX, maxY, maxZ}
+		);
+	}
+
 	public void averageNormals() {
 
 		final double[] triangleNormals = new double[vertexIndices.length]; // coincidental match 3 vertices and 3 coordinates
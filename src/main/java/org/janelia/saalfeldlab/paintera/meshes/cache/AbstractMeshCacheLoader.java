@@ -59,12 +59,12 @@ public abstract class AbstractMeshCacheLoader<T, K>
 
 		int smoothingIterations = key.smoothingIterations();
 
-		final float[] vertices = new MarchingCubes<>(
+		final MarchingCubes.IndexedMesh indexedMesh = new MarchingCubes<>(
 				Views.extendZero(mask),
 				Intervals.expand(key.interval(), smoothingIterations + 2)
-		).generateMesh();
+		).generateIndexedMesh();
 
-		Mesh meshMesh = new Mesh(vertices, key.interval(), transform, key.overlap());
+		Mesh meshMesh = new Mesh(indexedMesh, key.interval(), transform, key.overlap());
 		if (smoothingIterations > 0)
 			meshMesh.smooth(key.smoothingLambda(), smoothingIterations);
 
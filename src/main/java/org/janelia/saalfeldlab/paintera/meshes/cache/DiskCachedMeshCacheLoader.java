@@ -0,0 +1,111 @@
+package org.janelia.saalfeldlab.paintera.meshes.cache;
+
+import gnu.trove.set.TLongSet;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+import org.janelia.saalfeldlab.paintera.meshes.PainteraTriangleMesh;
+import org.janelia.saalfeldlab.paintera.meshes.ShapeKey;
+import org.janelia.saalfeldlab.util.grids.Grids;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link CacheLoader} that looks up meshes in a {@link MeshDiskCache} before generating them with a delegate, and
+ * stores generated meshes in the {@link MeshDiskCache}.
+ * <p>
+ * Meshes of blocks that overlap with uncommitted (canvas) modifications are neither read from nor written to the disk
+ * cache, because the disk cache is only versioned by committed data.
+ *
+ * @param <K> shape id
+ */
+public class DiskCachedMeshCacheLoader<K> implements CacheLoader<ShapeKey<K>, PainteraTriangleMesh> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	private final CacheLoader<ShapeKey<K>, PainteraTriangleMesh> delegate;
+
+	private final MeshDiskCache cache;
+
+	private final int level;
+
+	private final CellGrid grid;
+
+	private final long sourceFingerprint;
+
+	private final ToLongFunction<K> shapeFingerprint;
+
+	private final Supplier<TLongSet> uncommittedBlocks;
+
+	/**
+	 * @param delegate          generates meshes that are not in {@code cache}
+	 * @param cache             disk cache
+	 * @param level             mipmap level of {@code delegate}
+	 * @param grid              block grid of the data at {@code level}; data versions are tracked per block of this grid
+	 * @param sourceFingerprint identifies everything besides the data and the shape that meshes depend on, e.g. the
+	 *                          source transform at {@code level}
+	 * @param shapeFingerprint  identifies the voxels that make up a shape, e.g. hash of all fragments of a segment
+	 * @param uncommittedBlocks blocks at {@code level} that have uncommitted modifications
+	 */
+	public DiskCachedMeshCacheLoader(
+			final CacheLoader<ShapeKey<K>, PainteraTriangleMesh> delegate,
+			final MeshDiskCache cache,
+			final int level,
+			final CellGrid grid,
+			final long sourceFingerprint,
+			final ToLongFunction<K> shapeFingerprint,
+			final Supplier<TLongSet> uncommittedBlocks) {
+
+		this.delegate = delegate;
+		this.cache = cache;
+		this.level = level;
+		this.grid = grid;
+		this.sourceFingerprint = sourceFingerprint;
+		this.shapeFingerprint = shapeFingerprint;
+		this.uncommittedBlocks = uncommittedBlocks;
+	}
+
+	@Override
+	public PainteraTriangleMesh get(final ShapeKey<K> key) throws Exception {
+
+		/* mesh generation reads data in the block expanded by smoothingIterations + 2, see AbstractMeshCacheLoader */
+		final Interval dataInterval = Intervals.intersect(
+				Intervals.expand(key.interval(), key.smoothingIterations() + 2),
+				new FinalInterval(grid.getImgDimensions()));
+		final long[] blocks = Grids.getIntersectingBlocks(
+				Intervals.minAsLongArray(dataInterval),
+				Intervals.maxAsLongArray(dataInterval),
+				grid);
+		if (hasUncommittedModifications(blocks))
+			return delegate.get(key);
+
+		final long fingerprint = MeshDiskCache.hash(sourceFingerprint, shapeFingerprint.applyAsLong(key.shapeId()));
+		final long dataVersion = cache.getVersions().version(level, blocks);
+		final PainteraTriangleMesh cached = cache.get(key, fingerprint, dataVersion);
+		if (cached != null) {
+			LOG.trace("Found mesh for key {} in disk cache", key);
+			return cached;
+		}
+
+		final PainteraTriangleMesh mesh = delegate.get(key);
+		cache.put(key, fingerprint, dataVersion, mesh);
+		return mesh;
+	}
+
+	private boolean hasUncommittedModifications(final long[] blocks) {
+
+		final TLongSet uncommitted = uncommittedBlocks.get();
+		if (uncommitted.isEmpty())
+			return false;
+		for (final long block : blocks)
+			if (uncommitted.contains(block))
+				return true;
+		return false;
+	}
+}
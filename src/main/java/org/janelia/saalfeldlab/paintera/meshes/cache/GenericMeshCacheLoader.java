@@ -43,12 +43,12 @@ public class GenericMeshCacheLoader<K, B extends BooleanType<B>> implements Cach
 
 		final int smoothingIterations = key.smoothingIterations();
 
-		final float[] vertices = new MarchingCubes<>(
+		final MarchingCubes.IndexedMesh indexedMesh = new MarchingCubes<>(
 				Views.extendZero(mask),
 				Intervals.expand(key.interval(), smoothingIterations + 2)
-		).generateMesh();
+		).generateIndexedMesh();
 
-		final Mesh meshMesh = new Mesh(vertices, key.interval(), transform, key.overlap());
+		final Mesh meshMesh = new Mesh(indexedMesh, key.interval(), transform, key.overlap());
 		if (smoothingIterations > 0)
 			meshMesh.smooth(key.smoothingLambda(), smoothingIterations);
 
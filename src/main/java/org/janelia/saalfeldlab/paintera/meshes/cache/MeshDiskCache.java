@@ -0,0 +1,436 @@
+package org.janelia.saalfeldlab.paintera.meshes.cache;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import org.janelia.saalfeldlab.paintera.meshes.PainteraTriangleMesh;
+import org.janelia.saalfeldlab.paintera.meshes.ShapeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent store for {@link PainteraTriangleMesh meshes} of {@link ShapeKey mesh blocks}, one file per block.
+ * <p>
+ * Entries are addressed by a hash of the {@link ShapeKey} parameters and a fingerprint of the shape (e.g. the fragments
+ * of a segment). Each entry records the full key and the data version of the blocks the mesh was generated from. An
+ * entry is only returned if both match, so stale entries are never used and are overwritten the next time the mesh is
+ * generated. Data versions are tracked per level and block in {@link BlockDataVersions} and must be
+ * {@link BlockDataVersions#bump bumped} whenever blocks of the underlying data are written.
+ * <p>
+ * Entries are written to a temporary file and moved into place atomically. The total size of all entries is bounded by
+ * a byte budget: once it is exceeded, the least recently used entries are deleted. The order of use survives restarts
+ * through the last modified times of the entry files.
+ */
+public class MeshDiskCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	private static final int MAGIC = 0x504d4331; // "PMC1"
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final String SUFFIX = ".mesh";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	public static final long DEFAULT_MAX_BYTES = 512L << 20;
+
+	private final Path directory;
+
+	private final long maxBytes;
+
+	/* size of each entry, in order of use, least recently used first */
+	private final LinkedHashMap<Path, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long totalBytes = 0;
+
+	private final BlockDataVersions versions;
+
+	public MeshDiskCache(final Path directory) throws IOException {
+
+		this(directory, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param directory entries are stored in this directory
+	 * @param maxBytes  least recently used entries are deleted once all entries together exceed this size
+	 */
+	public MeshDiskCache(final Path directory, final long maxBytes) throws IOException {
+
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+		this.versions = new BlockDataVersions(directory.resolve("data-versions.bin"), this::clear);
+		loadEntries();
+	}
+
+	public Path getDirectory() {
+
+		return directory;
+	}
+
+	public BlockDataVersions getVersions() {
+
+		return versions;
+	}
+
+	/**
+	 * @param key              mesh block
+	 * @param shapeFingerprint identifies the voxels that make up the shape of {@code key}, e.g. hash of all fragments
+	 *                         of a segment
+	 * @param dataVersion      data version of the blocks that {@code key} was generated from
+	 * @return cached mesh, or {@code null} if no matching entry exists
+	 */
+	public PainteraTriangleMesh get(final ShapeKey<?> key, final long shapeFingerprint, final long dataVersion) {
+
+		final long[] serializedKey = serializeKey(key, shapeFingerprint);
+		final Path path = pathFor(serializedKey);
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(channel.size())).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) < 0)
+					return null;
+			buffer.flip();
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+				return null;
+			final long[] storedKey = new long[buffer.getInt()];
+			buffer.asLongBuffer().get(storedKey);
+			buffer.position(buffer.position() + storedKey.length * Long.BYTES);
+			if (!Arrays.equals(serializedKey, storedKey) || buffer.getLong() != dataVersion)
+				return null;
+
+			final float[] vertices = new float[buffer.getInt()];
+			final float[] normals = new float[buffer.getInt()];
+			final int[] indices = new int[buffer.getInt()];
+			buffer.asFloatBuffer().get(vertices);
+			buffer.position(buffer.position() + vertices.length * Float.BYTES);
+			buffer.asFloatBuffer().get(normals);
+			buffer.position(buffer.position() + normals.length * Float.BYTES);
+			buffer.asIntBuffer().get(indices);
+			touch(path);
+			return new PainteraTriangleMesh(vertices, normals, indices);
+		} catch (final NoSuchFileException e) {
+			forget(path);
+			return null;
+		} catch (final Exception e) {
+			LOG.debug("Unable to read cached mesh for key {} from {}", key, path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store {@code mesh} for {@code key}, replacing any previous entry for the same key. Failures are logged and ignored.
+	 */
+	public void put(final ShapeKey<?> key, final long shapeFingerprint, final long dataVersion, final PainteraTriangleMesh mesh) {
+
+		final long[] serializedKey = serializeKey(key, shapeFingerprint);
+		final Path path = pathFor(serializedKey);
+		final float[] vertices = mesh.getVertices();
+		final float[] normals = mesh.getNormals();
+		final int[] indices = mesh.getIndices();
+		final int size = 3 * Integer.BYTES + serializedKey.length * Long.BYTES + Long.BYTES + 3 * Integer.BYTES
+				+ (vertices.length + normals.length) * Float.BYTES + indices.length * Integer.BYTES;
+		final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(serializedKey.length);
+		for (final long k : serializedKey)
+			buffer.putLong(k);
+		buffer.putLong(dataVersion);
+		buffer.putInt(vertices.length).putInt(normals.length).putInt(indices.length);
+		for (final float v : vertices)
+			buffer.putFloat(v);
+		for (final float n : normals)
+			buffer.putFloat(n);
+		for (final int i : indices)
+			buffer.putInt(i);
+		buffer.flip();
+
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(directory, path.getFileName().toString(), TMP_SUFFIX);
+			try (final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			added(path, size);
+		} catch (final IOException e) {
+			LOG.debug("Unable to write cached mesh for key {} to {}", key, path, e);
+			if (tmp != null)
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (final IOException ignored) {
+				}
+		}
+	}
+
+	/**
+	 * @return size of all entries in bytes
+	 */
+	public synchronized long getTotalBytes() {
+
+		return totalBytes;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+
+		synchronized (this) {
+			entrySizes.clear();
+			totalBytes = 0;
+		}
+		try (final var paths = Files.list(directory)) {
+			paths.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(p -> {
+				try {
+					Files.deleteIfExists(p);
+				} catch (final IOException e) {
+					LOG.debug("Unable to delete cached mesh {}", p, e);
+				}
+			});
+		} catch (final IOException e) {
+			LOG.error("Unable to clear mesh cache {}", directory, e);
+		}
+	}
+
+	/**
+	 * Index the entries in {@link #directory}, least recently used first, and remove left-over temporary files.
+	 */
+	private void loadEntries() throws IOException {
+
+		final List<Path> entries = new ArrayList<>();
+		try (final var paths = Files.list(directory)) {
+			paths.forEach(p -> {
+				final String name = p.getFileName().toString();
+				if (name.endsWith(SUFFIX))
+					entries.add(p);
+				else if (name.endsWith(TMP_SUFFIX))
+					deleteQuietly(p);
+			});
+		}
+		final Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+		for (final Path entry : entries) {
+			try {
+				attributes.put(entry, Files.readAttributes(entry, BasicFileAttributes.class));
+			} catch (final IOException e) {
+				LOG.debug("Unable to read attributes of cached mesh {}", entry, e);
+			}
+		}
+		attributes.entrySet().stream()
+				.sorted(Comparator.comparing(e -> e.getValue().lastModifiedTime()))
+				.forEach(e -> added(e.getKey(), e.getValue().size()));
+	}
+
+	private synchronized void added(final Path path, final long size) {
+
+		final Long previousSize = entrySizes.put(path, size);
+		totalBytes += size - (previousSize == null ? 0 : previousSize);
+		final Iterator<Map.Entry<Path, Long>> leastRecentlyUsed = entrySizes.entrySet().iterator();
+		while (totalBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+			final Map.Entry<Path, Long> evicted = leastRecentlyUsed.next();
+			leastRecentlyUsed.remove();
+			totalBytes -= evicted.getValue();
+			deleteQuietly(evicted.getKey());
+			LOG.trace("Evicted cached mesh {}", evicted.getKey());
+		}
+	}
+
+	private void touch(final Path path) {
+
+		synchronized (this) {
+			entrySizes.get(path);
+		}
+		try {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (final IOException e) {
+			LOG.trace("Unable to update last modified time of cached mesh {}", path, e);
+		}
+	}
+
+	private synchronized void forget(final Path path) {
+
+		final Long size = entrySizes.remove(path);
+		if (size != null)
+			totalBytes -= size;
+	}
+
+	private static void deleteQuietly(final Path path) {
+
+		try {
+			Files.deleteIfExists(path);
+		} catch (final IOException e) {
+			LOG.debug("Unable to delete {}", path, e);
+		}
+	}
+
+	private Path pathFor(final long[] serializedKey) {
+
+		return directory.resolve(String.format("%016x%s", hash(serializedKey), SUFFIX));
+	}
+
+	private static long[] serializeKey(final ShapeKey<?> key, final long shapeFingerprint) {
+
+		final long[] min = key.min();
+		final long[] max = key.max();
+		final long[] serialized = new long[7 + min.length + max.length];
+		serialized[0] = shapeFingerprint;
+		serialized[1] = key.scaleIndex();
+		serialized[2] = key.simplificationIterations();
+		serialized[3] = Double.doubleToLongBits(key.smoothingLambda());
+		serialized[4] = key.smoothingIterations();
+		serialized[5] = Double.doubleToLongBits(key.minLabelRatio());
+		serialized[6] = key.overlap() ? 1 : 0;
+		System.arraycopy(min, 0, serialized, 7, min.length);
+		System.arraycopy(max, 0, serialized, 7 + min.length, max.length);
+		return serialized;
+	}
+
+	/**
+	 * 64 bit hash of {@code values}.
+	 */
+	public static long hash(final long... values) {
+
+		long hash = 0x9e3779b97f4a7c15L;
+		for (final long value : values)
+			hash = mix(hash ^ mix(value));
+		return hash;
+	}
+
+	private static long mix(long z) {
+
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Data version per level and block. Versions are only ever incremented and are persisted to a file so that they
+	 * survive restarts. Blocks without an explicit version share the level's base version. If the versions cannot be
+	 * read or written, all cached entries are dropped because they can no longer be validated.
+	 */
+	public static class BlockDataVersions {
+
+		private final Path file;
+
+		private final Runnable invalidateEntries;
+
+		private TLongLongHashMap[] versions = new TLongLongHashMap[0];
+
+		private long[] baseVersions = new long[0];
+
+		BlockDataVersions(final Path file, final Runnable invalidateEntries) {
+
+			this.file = file;
+			this.invalidateEntries = invalidateEntries;
+			try {
+				load();
+			} catch (final IOException e) {
+				LOG.warn("Unable to read mesh cache data versions from {}. Dropping all cached meshes.", file, e);
+				versions = new TLongLongHashMap[0];
+				baseVersions = new long[0];
+				invalidateEntries.run();
+			}
+		}
+
+		/**
+		 * @return combined version of {@code blocks} at {@code level}
+		 */
+		public synchronized long version(final int level, final long[] blocks) {
+
+			ensureLevel(level);
+			final long[] blockVersions = new long[blocks.length + 1];
+			blockVersions[0] = baseVersions[level];
+			for (int i = 0; i < blocks.length; ++i)
+				blockVersions[i + 1] = versions[level].get(blocks[i]);
+			return hash(blockVersions);
+		}
+
+		/**
+		 * Increment the versions of {@code blocks} at {@code level}, or of all blocks at {@code level} if {@code blocks}
+		 * is {@code null}, and persist the versions.
+		 */
+		public synchronized void bump(final int level, final long[] blocks) {
+
+			ensureLevel(level);
+			if (blocks == null)
+				++baseVersions[level];
+			else
+				for (final long block : blocks)
+					versions[level].adjustOrPutValue(block, 1, 1);
+			save();
+		}
+
+		private void ensureLevel(final int level) {
+
+			if (level < versions.length)
+				return;
+			final int oldLength = versions.length;
+			versions = Arrays.copyOf(versions, level + 1);
+			baseVersions = Arrays.copyOf(baseVersions, level + 1);
+			for (int l = oldLength; l <= level; ++l)
+				versions[l] = new TLongLongHashMap();
+		}
+
+		private void load() throws IOException {
+
+			if (!Files.exists(file))
+				return;
+			try (final InputStream is = Files.newInputStream(file); final DataInputStream in = new DataInputStream(is)) {
+				final int numLevels = in.readInt();
+				ensureLevel(numLevels - 1);
+				for (int level = 0; level < numLevels; ++level) {
+					baseVersions[level] = in.readLong();
+					final int numBlocks = in.readInt();
+					for (int i = 0; i < numBlocks; ++i)
+						versions[level].put(in.readLong(), in.readLong());
+				}
+			}
+		}
+
+		private void save() {
+
+			try {
+				final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+				try (final OutputStream os = Files.newOutputStream(tmp); final DataOutputStream out = new DataOutputStream(os)) {
+					out.writeInt(versions.length);
+					for (int level = 0; level < versions.length; ++level) {
+						out.writeLong(baseVersions[level]);
+						out.writeInt(versions[level].size());
+						final long[] keys = versions[level].keys();
+						for (final long key : keys) {
+							out.writeLong(key);
+							out.writeLong(versions[level].get(key));
+						}
+					}
+				}
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (final IOException e) {
+				LOG.error("Unable to persist mesh cache data versions to {}. Dropping all cached meshes.", file, e);
+				invalidateEntries.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package org.janelia.saalfeldlab.paintera.meshes.cache;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.TLongSet;
+import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignmentState;
+
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
+/**
+ * Fingerprints of segments for the {@link DiskCachedMeshCacheLoader}: the hash of the sorted fragments of a segment.
+ * <p>
+ * Fingerprints are computed once per segment and cached until the fragment-segment assignment changes, so that loading
+ * a mesh block does not copy and sort all fragments of its segment.
+ */
+public class SegmentFingerprints implements ToLongFunction<Long> {
+
+	private final FragmentSegmentAssignmentState assignment;
+
+	/* guarded by this */
+	private final TLongLongHashMap fingerprints = new TLongLongHashMap();
+
+	/* incremented when the assignment changes, guarded by this */
+	private long generation = 0;
+
+	public SegmentFingerprints(final FragmentSegmentAssignmentState assignment) {
+
+		this.assignment = assignment;
+		assignment.addListener(obs -> invalidateAll());
+	}
+
+	@Override
+	public long applyAsLong(final Long segment) {
+
+		final long generation;
+		synchronized (this) {
+			if (fingerprints.containsKey(segment))
+				return fingerprints.get(segment);
+			generation = this.generation;
+		}
+		final long fingerprint = fingerprint(assignment.getFragments(segment));
+		synchronized (this) {
+			/* do not cache fingerprints of an assignment that changed in the meantime */
+			if (generation == this.generation)
+				fingerprints.put(segment, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	public synchronized void invalidateAll() {
+
+		fingerprints.clear();
+		++generation;
+	}
+
+	static long fingerprint(final TLongSet fragments) {
+
+		final long[] sorted = fragments.toArray();
+		Arrays.sort(sorted);
+		return MeshDiskCache.hash(sorted);
+	}
+}
@@ -14,8 +14,11 @@
 package org.janelia.saalfeldlab.paintera.stream;
 
 import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.hash.TLongIntHashMap;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import net.imglib2.type.label.Label;
@@ -26,9 +29,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generates and caches a stream of colors.
+ * <p>
+ * With the {@link #setCompiledColorTable(boolean) compiled color table} (default), final colors are looked up in an
+ * immutable {@link CompiledColorTable} without locking. Ids that are not in the table are colored under a lock and
+ * added to the next table. Whenever selection, assignment, locked segments, or any color setting changes, the table is
+ * recompiled for the ids that were looked up since the previous change, i.e. the ids that were recently in view, and
+ * swapped in atomically. Ids that were not looked up since the change before are dropped, so the cost of a recompile
+ * on the application thread is bounded by the ids in view, not by all ids seen since startup.
  *
  * @author Stephan Saalfeld
  * @author Philipp Hanslovsky
@@ -45,6 +56,23 @@ public abstract class AbstractHighlightingARGBStream extends ObservableWithListe
 
 	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+	/**
+	 * Ids that were colored outside of the table are added to the table in batches of at least this size, or half the
+	 * size of the table, so that copying the table is amortized.
+	 */
+	private static final int MIN_TABLE_UPDATE = 256;
+
+	/**
+	 * Ids that were colored outside of the table are added to the table at the latest on the first lookup after this
+	 * delay, so that ids that are newly in view do not stay on the locked path when there are only a few of them.
+	 */
+	private static final long MAX_TABLE_UPDATE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * Tables with more recent ids than this are not recompiled but cleared on changes.
+	 */
+	private static final int MAX_RECOMPILED_TABLE_SIZE = 1 << 20;
+
 	final static protected double[] rs = new double[]{1, 1, 0, 0, 0, 1, 1};
 
 	final static protected double[] gs = new double[]{0, 1, 1, 1, 0, 0, 0};
@@ -69,6 +97,23 @@ public abstract class AbstractHighlightingARGBStream extends ObservableWithListe
 
 	private final BooleanProperty colorFromSegmentId = new SimpleBooleanProperty();
 
+	/* guards argbCache and all state that argbImpl reads from this stream */
+	private final Object colorLock = new Object();
+
+	private volatile boolean useCompiledColorTable = true;
+
+	private volatile CompiledColorTable colorTable = CompiledColorTable.EMPTY;
+
+	/* guarded by colorLock: colors of ids that are not in colorTable yet */
+	private final TLongIntHashMap colorTableUpdates = new TLongIntHashMap();
+
+	/* guarded by colorLock: time at which the oldest entry in colorTableUpdates was added */
+	private long colorTableUpdatesSince = 0;
+
+	private final InvalidationListener recompileColorTable = obs -> recompileColorTable();
+
+	private volatile long colorGeneration = 0;
+
 	protected final TLongIntHashMap explicitlySpecifiedColors = new TLongIntHashMap();
 	public final TLongIntHashMap overrideAlpha = new TLongIntHashMap(
 			Constants.DEFAULT_CAPACITY,
@@ -84,6 +129,9 @@ public abstract class AbstractHighlightingARGBStream extends ObservableWithListe
 		this.selectedSegments = selectedSegments;
 		this.lockedSegments = lockedSegments;
 		this.colorFromSegmentId.addListener((obs, oldv, newv) -> stateChanged());
+		addListener(recompileColorTable);
+		observe(null, selectedSegments);
+		observe(null, lockedSegments);
 	}
 
 	protected TLongIntHashMap argbCache = new TLongIntHashMap(
@@ -123,7 +171,102 @@ public abstract class AbstractHighlightingARGBStream extends ObservableWithListe
 	@Override
 	public int argb(final long id) {
 
-		return id == Label.TRANSPARENT ? ZERO : argbImpl(id, colorFromSegmentId.get());
+		if (id == Label.TRANSPARENT)
+			return ZERO;
+		if (useCompiledColorTable) {
+			final CompiledColorTable table = this.colorTable;
+			final int index = table.indexOf(id);
+			if (index >= 0) {
+				table.markUsed(index);
+				return table.valueAt(index);
+			}
+		}
+		return argbNotCompiled(id);
+	}
+
+	private int argbNotCompiled(final long id) {
+
+		synchronized (colorLock) {
+			final int argb = argbImpl(id, colorFromSegmentId.get());
+			if (useCompiledColorTable) {
+				final long now = System.nanoTime();
+				if (colorTableUpdates.isEmpty())
+					colorTableUpdatesSince = now;
+				colorTableUpdates.put(id, argb);
+				if (colorTableUpdates.size() >= Math.max(MIN_TABLE_UPDATE, colorTable.size() / 2) || now - colorTableUpdatesSince >= MAX_TABLE_UPDATE_DELAY_NANOS)
+					updateColorTable();
+			}
+			return argb;
+		}
+	}
+
+	/* Precondition: caller must hold colorLock */
+	private void updateColorTable() {
+
+		final CompiledColorTable table = this.colorTable;
+		final TLongIntHashMap colors = new TLongIntHashMap(table.size() + colorTableUpdates.size());
+		table.forEachId(id -> colors.put(id, table.valueAt(table.indexOf(id))));
+		colors.putAll(colorTableUpdates);
+		colorTableUpdates.clear();
+		this.colorTable = CompiledColorTable.of(colors).withMarksAfterUpdate(table);
+	}
+
+	boolean isInColorTable(final long id) {
+
+		return this.colorTable.indexOf(id) >= 0;
+	}
+
+	/**
+	 * Recompute the colors of the recently used ids in the compiled color table with the current state, and swap in the
+	 * new table.
+	 */
+	protected void recompileColorTable() {
+
+		synchronized (colorLock) {
+			final CompiledColorTable table = this.colorTable;
+			colorTableUpdates.clear();
+			final TLongArrayList recentIds = new TLongArrayList();
+			if (useCompiledColorTable)
+				table.forEachRecentId(recentIds::add);
+			if (!useCompiledColorTable || recentIds.size() > MAX_RECOMPILED_TABLE_SIZE) {
+				this.colorTable = CompiledColorTable.EMPTY;
+				/* only after the swap, so that derived colors are not cached for the old table with the new generation */
+				++colorGeneration;
+				return;
+			}
+			final boolean colorFromSegmentId = this.colorFromSegmentId.get();
+			final TLongIntHashMap colors = new TLongIntHashMap(recentIds.size());
+			recentIds.forEach(id -> {
+				colors.put(id, argbImpl(id, colorFromSegmentId));
+				return true;
+			});
+			this.colorTable = CompiledColorTable.of(colors).withMarksAfterRecompile(table);
+			++colorGeneration;
+			LOG.trace("Recompiled color table with {} of {} ids", colors.size(), table.size());
+		}
+	}
+
+	/**
+	 * @return counter that is incremented whenever the colors may have changed, for caches of derived colors
+	 */
+	public long getColorGeneration() {
+
+		return this.colorGeneration;
+	}
+
+	/**
+	 * Look up final colors in an immutable table that is recompiled on changes, instead of computing them for each
+	 * pixel under a lock.
+	 */
+	public void setCompiledColorTable(final boolean useCompiledColorTable) {
+
+		this.useCompiledColorTable = useCompiledColorTable;
+		recompileColorTable();
+	}
+
+	public boolean isCompiledColorTable() {
+
+		return this.useCompiledColorTable;
 	}
 
 	protected abstract int argbImpl(long id, boolean colorFromSegmentId);
@@ -231,7 +374,7 @@ public abstract class AbstractHighlightingARGBStream extends ObservableWithListe
 	public void clearCache() {
 
 		LOG.debug("Before clearing cache: {}", argbCache);
-		synchronized (argbCache) {
+		synchronized (colorLock) {
 			argbCache.clear();
 			argbCache.putAll(this.explicitlySpecifiedColors);
 		}
@@ -260,12 +403,14 @@ public abstract class AbstractHighlightingARGBStream extends ObservableWithListe
 
 	public void setSelectedSegments(final SelectedSegments selectedSegments) {
 
+		observe(this.selectedSegments, selectedSegments);
 		this.selectedSegments = selectedSegments;
 		clearCache();
 	}
 
 	public void setLockedSegments(final LockedSegments lockedSegments) {
 
+		observe(this.lockedSegments, lockedSegments);
 		this.lockedSegments = lockedSegments;
 		clearCache();
 	}
@@ -274,11 +419,22 @@ public abstract class AbstractHighlightingARGBStream extends ObservableWithListe
 			final SelectedSegments selectedSegments,
 			final LockedSegments lockedSegments) {
 
+		observe(this.selectedSegments, selectedSegments);
+		observe(this.lockedSegments, lockedSegments);
 		this.selectedSegments = selectedSegments;
 		this.lockedSegments = lockedSegments;
 		clearCache();
 	}
 
+	/* selection, assignment, and locked segments are not part of the stream state, but change the colors */
+	private void observe(final Object previous, final Object current) {
+
+		if (previous instanceof Observable)
+			((Observable)previous).removeListener(recompileColorTable);
+		if (current instanceof Observable)
+			((Observable)current).addListener(recompileColorTable);
+	}
+
 	public void setHideLockedSegments(final boolean hideLockedSegments) {
 
 		if (hideLockedSegments != this.hideLockedSegments) {
@@ -0,0 +1,176 @@
+package org.janelia.saalfeldlab.paintera.stream;
+
+import gnu.trove.map.TLongIntMap;
+import net.imglib2.type.label.Label;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Immutable open addressing table from fragment id to final ARGB color. Lookups do not lock and do not allocate, so it
+ * can be shared by all render threads and replaced atomically when the colors change.
+ * <p>
+ * {@link Label#TRANSPARENT} marks empty slots and cannot be stored, it is always rendered as transparent anyway.
+ * <p>
+ * Lookups {@link #markUsed(int) mark} the ids they find. Marks are written without synchronization, so a mark may be
+ * lost, which only means that an id is dropped from a later table and colored outside of the table once more.
+ */
+final class CompiledColorTable {
+
+	static final CompiledColorTable EMPTY = new CompiledColorTable(new long[]{Label.TRANSPARENT}, new int[1], 0);
+
+	private static final long EMPTY_KEY = Label.TRANSPARENT;
+
+	private final long[] keys;
+
+	private final int[] values;
+
+	/* ids that were looked up in this table */
+	private final boolean[] used;
+
+	/* ids that were looked up in the table that this table was recompiled from */
+	private final boolean[] usedBefore;
+
+	private final int mask;
+
+	private final int size;
+
+	private CompiledColorTable(final long[] keys, final int[] values, final int size) {
+
+		this.keys = keys;
+		this.values = values;
+		this.used = new boolean[keys.length];
+		this.usedBefore = new boolean[keys.length];
+		this.mask = keys.length - 1;
+		this.size = size;
+	}
+
+	/**
+	 * @return table with the same colors as {@code colors}, without {@link Label#TRANSPARENT}
+	 */
+	static CompiledColorTable of(final TLongIntMap colors) {
+
+		/* at most half full */
+		final int capacity = Integer.highestOneBit(Math.max(colors.size(), 1) * 2 - 1) << 1;
+		final long[] keys = new long[capacity];
+		final int[] values = new int[capacity];
+		Arrays.fill(keys, EMPTY_KEY);
+		final int mask = capacity - 1;
+		final int[] size = {0};
+		colors.forEachEntry((id, argb) -> {
+			if (id == EMPTY_KEY)
+				return true;
+			int index = hash(id) & mask;
+			while (keys[index] != EMPTY_KEY)
+				index = (index + 1) & mask;
+			keys[index] = id;
+			values[index] = argb;
+			++size[0];
+			return true;
+		});
+		return new CompiledColorTable(keys, values, size[0]);
+	}
+
+	/**
+	 * @return slot of {@code id}, or {@code -1} if {@code id} is not in the table
+	 */
+	int indexOf(final long id) {
+
+		int index = hash(id) & mask;
+		while (true) {
+			final long key = keys[index];
+			if (key == EMPTY_KEY)
+				return -1;
+			if (key == id)
+				return index;
+			index = (index + 1) & mask;
+		}
+	}
+
+	int valueAt(final int index) {
+
+		return values[index];
+	}
+
+	void markUsed(final int index) {
+
+		if (!used[index])
+			used[index] = true;
+	}
+
+	/**
+	 * @return {@code true} if the id in slot {@code index} was looked up in this table or in the table it was
+	 * recompiled from
+	 */
+	boolean isRecent(final int index) {
+
+		return used[index] || usedBefore[index];
+	}
+
+	/**
+	 * Take over the marks of {@code previous} for ids that are in both tables, after ids were added to
+	 * {@code previous}. The added ids are marked as used.
+	 *
+	 * @return this table
+	 */
+	CompiledColorTable withMarksAfterUpdate(final CompiledColorTable previous) {
+
+		for (int index = 0; index < keys.length; ++index) {
+			if (keys[index] == EMPTY_KEY)
+				continue;
+			final int previousIndex = previous.indexOf(keys[index]);
+			used[index] = previousIndex < 0 || previous.used[previousIndex];
+			usedBefore[index] = previousIndex >= 0 && previous.usedBefore[previousIndex];
+		}
+		return this;
+	}
+
+	/**
+	 * Remember which ids were used in {@code previous}, after this table was recompiled from the
+	 * {@link #forEachRecentId recent ids} of {@code previous}. Ids that are not used in this table either are dropped in
+	 * the next recompilation.
+	 *
+	 * @return this table
+	 */
+	CompiledColorTable withMarksAfterRecompile(final CompiledColorTable previous) {
+
+		for (int index = 0; index < keys.length; ++index) {
+			if (keys[index] == EMPTY_KEY)
+				continue;
+			final int previousIndex = previous.indexOf(keys[index]);
+			usedBefore[index] = previousIndex >= 0 && previous.used[previousIndex];
+		}
+		return this;
+	}
+
+	int size() {
+
+		return size;
+	}
+
+	void forEachId(final LongConsumer action) {
+
+		for (final long key : keys)
+			if (key != EMPTY_KEY)
+				action.accept(key);
+	}
+
+	void forEachRecentId(final LongConsumer action) {
+
+		for (int index = 0; index < keys.length; ++index)
+			if (keys[index] != EMPTY_KEY && isRecent(index))
+				action.accept(keys[index]);
+	}
+
+	/* finalizer of MurmurHash3, consecutive ids are spread over the table */
+	private static int hash(final long id) {
+
+		long h = id;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+}
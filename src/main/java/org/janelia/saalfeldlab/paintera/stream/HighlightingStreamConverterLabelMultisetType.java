@@ -1,11 +1,31 @@
 package org.janelia.saalfeldlab.paintera.stream;
 
+import gnu.trove.map.hash.TIntIntHashMap;
 import net.imglib2.type.label.LabelMultisetType;
+import net.imglib2.type.label.VolatileLabelMultisetArray;
 import net.imglib2.type.numeric.ARGBType;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Blends the colors of all entries of a multiset, weighted by alpha and count.
+ * <p>
+ * Multisets with more than one entry only occur in loaded cells, where many pixels share the same entry list. The
+ * blended color is cached per cell and list offset, for each render thread, and the cache is dropped whenever the
+ * {@link AbstractHighlightingARGBStream#getColorGeneration() colors of the stream} change. Cells are only referenced
+ * weakly, so that render threads do not keep evicted cells from being garbage collected. Single entries are not
+ * cached, their color is the color of the entry.
+ */
 public class HighlightingStreamConverterLabelMultisetType extends HighlightingStreamConverter<LabelMultisetType> {
 
-	final static private double ONE_OVER_255 = 1.0 / 255.0;
+	/**
+	 * Cached colors of at most this many cells are kept per thread.
+	 */
+	private static final int MAX_CACHED_CELLS = 32;
+
+	private final ThreadLocal<BlendedColors> blendedColors = ThreadLocal.withInitial(BlendedColors::new);
 
 	public HighlightingStreamConverterLabelMultisetType(final AbstractHighlightingARGBStream stream) {
 
@@ -19,29 +39,97 @@ public class HighlightingStreamConverterLabelMultisetType extends HighlightingSt
 		if (numEntries == 0) {
 			final long emptyValue = 0;
 			output.set(stream.argb(emptyValue));
+		} else if (numEntries == 1) {
+			final int argb = stream.argb(entries.iterator().next().getElement().id());
+			output.set(ARGBType.alpha(argb) == 0 ? 0 : argb);
 		} else {
-			double a = 0;
-			double r = 0;
-			double g = 0;
-			double b = 0;
-			double alphaCountSize = 0;
-			for (final var entry : entries) {
-				final int argb = stream.argb(entry.getElement().id());
-				final double alpha = ARGBType.alpha(argb);
-				final int count = numEntries == 1 ? 1 : entry.getCount();
-				final double alphaCount = alpha * ONE_OVER_255 * count;
-				a += alphaCount * alpha;
-				r += alphaCount * ARGBType.red(argb);
-				g += alphaCount * ARGBType.green(argb);
-				b += alphaCount * ARGBType.blue(argb);
-				alphaCountSize += alphaCount;
+			final VolatileLabelMultisetArray access = input.getAccess();
+			final int listOffset = access.getCurrentStorageArray()[input.index().get()];
+			final TIntIntHashMap colors = blendedColors.get().forCell(access, stream.getColorGeneration());
+			int argb = colors.get(listOffset);
+			if (argb == colors.getNoEntryValue() && !colors.containsKey(listOffset)) {
+				argb = blend(input);
+				colors.put(listOffset, argb);
+			}
+			output.set(argb);
+		}
+	}
+
+	/**
+	 * Average the colors of all entries, weighted by alpha times count, in integer arithmetic. All weights are scaled
+	 * by 255, so that they are integers. This does not change the weighted average.
+	 */
+	private int blend(final LabelMultisetType input) {
+
+		long a = 0;
+		long r = 0;
+		long g = 0;
+		long b = 0;
+		long weights = 0;
+		for (final var entry : input.entrySet()) {
+			final int argb = stream.argb(entry.getElement().id());
+			final int alpha = ARGBType.alpha(argb);
+			final long weight = (long)alpha * entry.getCount();
+			a += weight * alpha;
+			r += weight * ARGBType.red(argb);
+			g += weight * ARGBType.green(argb);
+			b += weight * ARGBType.blue(argb);
+			weights += weight;
+		}
+		if (weights == 0)
+			return 0;
+		final int aInt = (int)Math.min(255, a / weights);
+		final int rInt = (int)Math.min(255, r / weights);
+		final int gInt = (int)Math.min(255, g / weights);
+		final int bInt = (int)Math.min(255, b / weights);
+		return ((aInt << 8 | rInt) << 8 | gInt) << 8 | bInt;
+	}
+
+	private static final class BlendedColors {
+
+		/* in the order the cells were first seen, compared by identity */
+		private final List<CellColors> colorsByCell = new ArrayList<>();
+
+		private long generation = -1;
+
+		/* most recent cell, consecutive pixels are mostly in the same cell */
+		private CellColors last = null;
+
+		private TIntIntHashMap forCell(final VolatileLabelMultisetArray cell, final long generation) {
+
+			if (generation != this.generation) {
+				colorsByCell.clear();
+				last = null;
+				this.generation = generation;
 			}
-			final double iAlphaCountSize = 1.0 / alphaCountSize;
-			final int aInt = Math.min(255, (int)(a * iAlphaCountSize));
-			final int rInt = Math.min(255, (int)(r * iAlphaCountSize));
-			final int gInt = Math.min(255, (int)(g * iAlphaCountSize));
-			final int bInt = Math.min(255, (int)(b * iAlphaCountSize));
-			output.set(((aInt << 8 | rInt) << 8 | gInt) << 8 | bInt);
+			if (last != null && last.cell.get() == cell)
+				return last.colors;
+			for (final CellColors cellColors : colorsByCell) {
+				if (cellColors.cell.get() == cell) {
+					last = cellColors;
+					return cellColors.colors;
+				}
+			}
+			if (colorsByCell.size() >= MAX_CACHED_CELLS) {
+				colorsByCell.removeIf(cellColors -> cellColors.cell.get() == null);
+				if (colorsByCell.size() >= MAX_CACHED_CELLS)
+					colorsByCell.clear();
+			}
+			last = new CellColors(cell);
+			colorsByCell.add(last);
+			return last.colors;
+		}
+	}
+
+	private static final class CellColors {
+
+		private final WeakReference<VolatileLabelMultisetArray> cell;
+
+		private final TIntIntHashMap colors = new TIntIntHashMap();
+
+		private CellColors(final VolatileLabelMultisetArray cell) {
+
+			this.cell = new WeakReference<>(cell);
 		}
 	}
 }
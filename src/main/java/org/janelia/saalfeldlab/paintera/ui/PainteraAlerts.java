@@ -1,6 +1,7 @@
 package org.janelia.saalfeldlab.paintera.ui;
 
 import com.pivovarit.function.ThrowingConsumer;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.BooleanBinding;
 import javafx.beans.binding.DoubleBinding;
@@ -15,11 +16,13 @@ import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleLongProperty;
 import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.FXCollections;
 import javafx.geometry.Pos;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
@@ -30,6 +33,7 @@ import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Modality;
 import javafx.stage.Window;
+import javafx.util.StringConverter;
 import net.imglib2.Dimensions;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
@@ -52,6 +56,7 @@ import org.janelia.saalfeldlab.paintera.LockFile;
 import org.janelia.saalfeldlab.paintera.ProjectDirectory;
 import org.janelia.saalfeldlab.paintera.Version;
 import org.janelia.saalfeldlab.paintera.data.DataSource;
+import org.janelia.saalfeldlab.paintera.data.mask.MappedCanvas;
 import org.janelia.saalfeldlab.paintera.id.IdService;
 import org.janelia.saalfeldlab.paintera.id.N5IdService;
 import org.janelia.saalfeldlab.util.grids.LabelBlockLookupAllBlocks;
@@ -64,6 +69,8 @@ import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -452,6 +459,60 @@ public class PainteraAlerts {
 		return useItProperty.get();
 	}
 
+	/**
+	 * Ask which canvas with uncommitted paint of a session that did not shut down to restore. Canvases that are not
+	 * restored are kept, they may belong to another project on the same data.
+	 *
+	 * @param candidates canvas directories, most recently painted into first
+	 * @return the directory to restore, or empty to start with an empty canvas
+	 */
+	public static Optional<Path> chooseCanvasToRestore(final String sourceName, final List<Path> candidates) {
+
+		final AtomicReference<Optional<Path>> choice = new AtomicReference<>(Optional.empty());
+		final Runnable ask = () -> {
+			final Alert alert = PainteraAlerts.confirmation("_Restore", "_Start Empty", true);
+			alert.setHeaderText("Uncommitted paint found for " + sourceName);
+			final TextArea ta = new TextArea(String.format("" +
+					"Found %d canvas(es) with uncommitted paint for `%s' that are not part of this project. " +
+					"They were left behind by sessions that did not shut down, possibly of other projects on the same data. " +
+					"Select a canvas to restore its paint into this project, or start with an empty canvas. " +
+					"Canvases that are not restored are kept.", candidates.size(), sourceName));
+			ta.setEditable(false);
+			ta.setWrapText(true);
+			final ComboBox<Path> canvases = new ComboBox<>(FXCollections.observableArrayList(candidates));
+			canvases.setConverter(new StringConverter<>() {
+
+				@Override
+				public String toString(final Path directory) {
+
+					return directory == null ? "" : String.format("%s (last painted %s)", directory, Instant.ofEpochMilli(MappedCanvas.lastModified(directory)));
+				}
+
+				@Override
+				public Path fromString(final String string) {
+
+					return null;
+				}
+			});
+			canvases.getSelectionModel().selectFirst();
+			canvases.setMaxWidth(Double.MAX_VALUE);
+			alert.getDialogPane().setContent(new VBox(ta, canvases));
+			if (alert.showAndWait().filter(ButtonType.OK::equals).isPresent())
+				choice.set(Optional.ofNullable(canvases.getValue()));
+		};
+		if (Platform.isFxApplicationThread())
+			ask.run();
+		else {
+			try {
+				InvokeOnJavaFXApplicationThread.invokeAndWait(ask);
+			} catch (final InterruptedException e) {
+				LOG.error("Interrupted while asking for a canvas to restore", e);
+				Thread.currentThread().interrupt();
+			}
+		}
+		return choice.get();
+	}
+
 	public static Alert versionDialog() {
 
 		final TextField versionField = new TextField(Version.VERSION_STRING);
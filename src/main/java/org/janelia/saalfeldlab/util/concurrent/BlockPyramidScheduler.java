@@ -0,0 +1,268 @@
+package org.janelia.saalfeldlab.util.concurrent;
+
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs one task per block of a scale pyramid, where blocks at level {@code n} depend on blocks at level {@code n - 1}.
+ * <p>
+ * Instead of processing one level after the other, a block is submitted as soon as all blocks of the previous level
+ * that it depends on are done. Only dependencies that are blocks of the previous level of the scheduler are taken into
+ * account, all other blocks are submitted when the scheduler is {@link #start() started}.
+ * <p>
+ * After a failure or {@link #cancel() cancellation}, no more blocks are submitted. Blocks that have not been done are
+ * available through {@link #getRemainingBlocks()}.
+ *
+ * @param <T> result of a block task
+ */
+public class BlockPyramidScheduler<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	@FunctionalInterface
+	public interface Dependencies {
+
+		/**
+		 * @return blocks at {@code level - 1} that block {@code blockId} at {@code level} depends on, may be {@code null}
+		 */
+		long[] sourceBlocks(int level, long blockId);
+	}
+
+	@FunctionalInterface
+	public interface BlockTask<T> {
+
+		T run(int level, long blockId) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface BlockListener<T> {
+
+		/**
+		 * Called once for each block that was done before the scheduler was cancelled or failed. Calls are serialized.
+		 */
+		void blockDone(int level, long blockId, T result);
+	}
+
+	private final Executor executor;
+
+	private final TLongSet[] blocks;
+
+	private final Dependencies dependencies;
+
+	private final BlockTask<T> task;
+
+	private final BlockListener<T> listener;
+
+	private final TLongIntHashMap[] remainingDependencies;
+
+	private final TLongObjectHashMap<TLongArrayList>[] dependents;
+
+	private final TLongHashSet[] finished;
+
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+	private int numRemaining;
+
+	private int numInFlight = 0;
+
+	private boolean isCancelled = false;
+
+	/**
+	 * @param executor     runs block tasks. Not shut down by this class.
+	 * @param blocks       blocks per level, {@code null} for levels without blocks
+	 * @param dependencies blocks at the previous level that a block depends on
+	 * @param task         task for a single block
+	 * @param listener     notified for each block that is done
+	 */
+	@SuppressWarnings("unchecked")
+	public BlockPyramidScheduler(
+			final Executor executor,
+			final TLongSet[] blocks,
+			final Dependencies dependencies,
+			final BlockTask<T> task,
+			final BlockListener<T> listener) {
+
+		this.executor = executor;
+		this.blocks = blocks;
+		this.dependencies = dependencies;
+		this.task = task;
+		this.listener = listener;
+		this.remainingDependencies = new TLongIntHashMap[blocks.length];
+		this.dependents = new TLongObjectHashMap[blocks.length];
+		this.finished = new TLongHashSet[blocks.length];
+		int numBlocks = 0;
+		for (int level = 0; level < blocks.length; ++level) {
+			remainingDependencies[level] = new TLongIntHashMap();
+			dependents[level] = new TLongObjectHashMap<>();
+			finished[level] = new TLongHashSet();
+			numBlocks += blocks[level] == null ? 0 : blocks[level].size();
+		}
+		this.numRemaining = numBlocks;
+	}
+
+	/**
+	 * Submit all blocks without dependencies. Remaining blocks are submitted as their dependencies complete.
+	 *
+	 * @return completes when all blocks are done; completes exceptionally if a block task fails; is cancelled when the
+	 * scheduler is {@link #cancel() cancelled}
+	 */
+	public CompletableFuture<Void> start() {
+
+		final TLongArrayList readyBlocks = new TLongArrayList();
+		final TLongArrayList readyLevels = new TLongArrayList();
+		synchronized (this) {
+			for (int level = 0; level < blocks.length; ++level) {
+				if (blocks[level] == null)
+					continue;
+				final TLongSet sourceBlocks = level > 0 ? blocks[level - 1] : null;
+				for (final TLongIterator it = blocks[level].iterator(); it.hasNext(); ) {
+					final long block = it.next();
+					int numDependencies = 0;
+					if (sourceBlocks != null && !sourceBlocks.isEmpty()) {
+						final long[] blockSources = dependencies.sourceBlocks(level, block);
+						for (final long sourceBlock : blockSources == null ? new long[0] : blockSources) {
+							if (!sourceBlocks.contains(sourceBlock))
+								continue;
+							++numDependencies;
+							TLongArrayList blockDependents = dependents[level - 1].get(sourceBlock);
+							if (blockDependents == null) {
+								blockDependents = new TLongArrayList();
+								dependents[level - 1].put(sourceBlock, blockDependents);
+							}
+							blockDependents.add(block);
+						}
+					}
+					if (numDependencies == 0) {
+						readyBlocks.add(block);
+						readyLevels.add(level);
+					} else
+						remainingDependencies[level].put(block, numDependencies);
+				}
+			}
+			if (numRemaining == 0)
+				completion.complete(null);
+			numInFlight += readyBlocks.size();
+		}
+		LOG.debug("Starting {} blocks, {} without dependencies", numRemaining, readyBlocks.size());
+		for (int i = 0; i < readyBlocks.size(); ++i)
+			submit((int)readyLevels.get(i), readyBlocks.get(i));
+		return completion;
+	}
+
+	/**
+	 * @return completes when all blocks are done, see {@link #start()}
+	 */
+	public CompletableFuture<Void> getCompletion() {
+
+		return completion;
+	}
+
+	/**
+	 * Do not submit any more blocks. Blocks that are running continue, see {@link #awaitRunning()}.
+	 */
+	public synchronized void cancel() {
+
+		if (isCancelled || completion.isDone())
+			return;
+		isCancelled = true;
+		completion.cancel(false);
+	}
+
+	/**
+	 * Wait until no more block tasks are running.
+	 */
+	public synchronized void awaitRunning() throws InterruptedException {
+
+		while (numInFlight > 0)
+			wait();
+	}
+
+	public synchronized boolean isCompletedNormally() {
+
+		return completion.isDone() && !completion.isCompletedExceptionally();
+	}
+
+	/**
+	 * @return blocks per level that have not been done (yet). Entries are {@code null} for levels without blocks.
+	 */
+	public synchronized TLongSet[] getRemainingBlocks() {
+
+		final TLongSet[] remaining = new TLongSet[blocks.length];
+		for (int level = 0; level < blocks.length; ++level) {
+			if (blocks[level] == null)
+				continue;
+			remaining[level] = new TLongHashSet(blocks[level]);
+			remaining[level].removeAll(finished[level]);
+		}
+		return remaining;
+	}
+
+	private void submit(final int level, final long block) {
+
+		executor.execute(() -> run(level, block));
+	}
+
+	private void run(final int level, final long block) {
+
+		T result = null;
+		boolean isDone = false;
+		Throwable failure = null;
+		try {
+			if (!isCancelledSynchronized()) {
+				result = task.run(level, block);
+				isDone = true;
+			}
+		} catch (final Throwable e) {
+			failure = e;
+		}
+
+		final TLongArrayList readyBlocks = new TLongArrayList();
+		synchronized (this) {
+			--numInFlight;
+			if (failure == null && !isCancelled && isDone) {
+				try {
+					listener.blockDone(level, block, result);
+				} catch (final Throwable e) {
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				LOG.error("Unable to process block {} at level {}", block, level, failure);
+				isCancelled = true;
+				completion.completeExceptionally(failure);
+			} else if (!isCancelled && isDone) {
+				finished[level].add(block);
+				final TLongArrayList blockDependents = level + 1 < blocks.length ? dependents[level].get(block) : null;
+				if (blockDependents != null) {
+					for (int i = 0; i < blockDependents.size(); ++i) {
+						final long dependent = blockDependents.get(i);
+						if (remainingDependencies[level + 1].adjustOrPutValue(dependent, -1, 0) == 0)
+							readyBlocks.add(dependent);
+					}
+				}
+				if (--numRemaining == 0)
+					completion.complete(null);
+			}
+			numInFlight += readyBlocks.size();
+			notifyAll();
+		}
+
+		for (int i = 0; i < readyBlocks.size(); ++i)
+			submit(level + 1, readyBlocks.get(i));
+	}
+
+	private synchronized boolean isCancelledSynchronized() {
+
+		return isCancelled;
+	}
+}
@@ -36,6 +36,9 @@ import org.janelia.saalfeldlab.n5.imglib2.N5LabelMultisets;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.metadata.N5SpatialDatasetMetadata;
 import org.janelia.saalfeldlab.n5.universe.metadata.SpatialMultiscaleMetadata;
+import org.janelia.saalfeldlab.paintera.cache.BoundedVolatileCache;
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget;
+import org.janelia.saalfeldlab.paintera.cache.CellWeights;
 import org.janelia.saalfeldlab.paintera.cache.WeakRefVolatileCache;
 import org.janelia.saalfeldlab.paintera.data.DataSource;
 import org.janelia.saalfeldlab.paintera.data.n5.LabelMultisetUtilsKt;
@@ -253,7 +256,13 @@ public class N5Data {
 			final SharedQueue queue,
 			final int priority /* TODO use priority, probably in wrapAsVolatile? */) throws IOException {
 
-		return openRaw(metadataState.getReader(), metadataState.getGroup(), metadataState.getTransform(), queue, priority);
+		return openRaw(
+				metadataState.getReader(),
+				metadataState.getGroup(),
+				metadataState.getTransform(),
+				queue,
+				priority,
+				metadataState.getCellCacheBudget());
 	}
 
 	/**
@@ -266,7 +275,6 @@ public class N5Data {
 	 * @return image data with cache invalidation
 	 * @throws IOException if any N5 operation throws {@link IOException}
 	 */
-	@SuppressWarnings("unchecked")
 	public static <T extends NativeType<T>, V extends Volatile<T> & NativeType<V>, A extends ArrayDataAccess<A>>
 	ImagesWithTransform<T, V> openRaw(
 			final N5Reader reader,
@@ -275,13 +283,38 @@ public class N5Data {
 			final SharedQueue queue,
 			final int priority) throws IOException {
 
+		return openRaw(reader, dataset, transform, queue, priority, null);
+	}
+
+	/**
+	 * @param reader      N5Reader
+	 * @param dataset     dataset
+	 * @param transform   transforms voxel data into real world coordinates
+	 * @param priority    in fetching queue
+	 * @param cacheBudget retain cells within this budget, or use a {@link net.imglib2.cache.ref.WeakRefVolatileCache} if {@code null}
+	 * @param <T>         data type
+	 * @param <V>         viewer type
+	 * @return image data with cache invalidation
+	 * @throws IOException if any N5 operation throws {@link IOException}
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends NativeType<T>, V extends Volatile<T> & NativeType<V>, A extends ArrayDataAccess<A>>
+	ImagesWithTransform<T, V> openRaw(
+			final N5Reader reader,
+			final String dataset,
+			final AffineTransform3D transform,
+			final SharedQueue queue,
+			final int priority,
+			@Nullable final CellCacheBudget cacheBudget) throws IOException {
+
 
 		try {
 			final CachedCellImg<T, ?> raw = N5Utils.openVolatile(reader, dataset);
 			final TmpVolatileHelpers.RaiWithInvalidate<V> vraw = TmpVolatileHelpers.createVolatileCachedCellImgWithInvalidate(
 					(CachedCellImg)raw,
 					queue,
-					new CacheHints(LoadingStrategy.VOLATILE, priority, true));
+					new CacheHints(LoadingStrategy.VOLATILE, priority, true),
+					cacheBudget);
 				return new ImagesWithTransform<>(raw, vraw.getRai(), transform, raw.getCache(), vraw.getInvalidate());
 		} catch (final Exception e) {
 			throw e instanceof IOException ? (IOException)e : new IOException(e);
@@ -366,7 +399,7 @@ public class N5Data {
 		IntStream.range(0, ssPaths.length).forEach(scaleIdx -> futures.add(es.submit(ThrowingSupplier.unchecked(() -> {
 			/* get the metadata state for the respective child */
 			LOG.debug("Populating scale level {}", scaleIdx);
-			imagesWithInvalidate[scaleIdx] = openRaw(reader, ssPaths[scaleIdx], ssTransforms[scaleIdx], queue, priority);
+			imagesWithInvalidate[scaleIdx] = openRaw(reader, ssPaths[scaleIdx], ssTransforms[scaleIdx], queue, priority, metadataState.getCellCacheBudget());
 				LOG.debug("Populated scale level {}", scaleIdx);
 			return true;
 		})::get)));
@@ -488,7 +521,13 @@ public class N5Data {
 			final SharedQueue queue,
 			final int priority) throws IOException {
 
-		return openLabelMultiset(metadataState.getReader(), metadataState.getGroup(), metadataState.getTransform(), queue, priority);
+		return openLabelMultiset(
+				metadataState.getReader(),
+				metadataState.getGroup(),
+				metadataState.getTransform(),
+				queue,
+				priority,
+				metadataState.getCellCacheBudget());
 	}
 
 	/**
@@ -547,14 +586,34 @@ public class N5Data {
 			final SharedQueue queue,
 			final int priority) {
 
+		return openLabelMultiset(n5, dataset, transform, queue, priority, null);
+	}
+
+	/**
+	 * @param n5          N5Reader
+	 * @param dataset     dataset
+	 * @param transform   transforms voxel data into real world coordinates
+	 * @param priority    in fetching queue
+	 * @param cacheBudget retain cells within this budget, or only keep weak references if {@code null}
+	 * @return image data with cache invalidation
+	 */
+	public static ImagesWithTransform<LabelMultisetType, VolatileLabelMultisetType> openLabelMultiset(
+			final N5Reader n5,
+			final String dataset,
+			final AffineTransform3D transform,
+			final SharedQueue queue,
+			final int priority,
+			@Nullable final CellCacheBudget cacheBudget) {
+
 		final CachedCellImg<LabelMultisetType, VolatileLabelMultisetArray> cachedLabelMultisetImage
 				= N5LabelMultisets.openLabelMultiset(n5, dataset, LabelMultisetUtilsKt.constantNullReplacementEmptyArgMax(Label.BACKGROUND));
 
 		final boolean isDirty = AccessFlags.ofAccess(cachedLabelMultisetImage.getAccessType()).contains(AccessFlags.DIRTY);
-		final WeakRefVolatileCache<Long, Cell<VolatileLabelMultisetArray>> vcache = WeakRefVolatileCache.fromCache(
-				cachedLabelMultisetImage.getCache(),
-				queue,
-				new VolatileHelpers.CreateInvalidVolatileLabelMultisetArray(cachedLabelMultisetImage.getCellGrid()));
+		final VolatileHelpers.CreateInvalidVolatileLabelMultisetArray createInvalid =
+				new VolatileHelpers.CreateInvalidVolatileLabelMultisetArray(cachedLabelMultisetImage.getCellGrid());
+		final WeakRefVolatileCache<Long, Cell<VolatileLabelMultisetArray>> vcache = cacheBudget == null
+				? WeakRefVolatileCache.fromCache(cachedLabelMultisetImage.getCache(), queue, createInvalid)
+				: BoundedVolatileCache.fromCache(cachedLabelMultisetImage.getCache(), queue, createInvalid, cacheBudget, CellWeights::weigh);
 		final UncheckedVolatileCache<Long, Cell<VolatileLabelMultisetArray>> unchecked = vcache.unchecked();
 
 		final CacheHints cacheHints = new CacheHints(LoadingStrategy.VOLATILE, priority, true);
@@ -653,7 +712,7 @@ public class N5Data {
 		IntStream.range(0, ssPaths.length).forEach(scaleIdx -> futures.add(es.submit(ThrowingSupplier.unchecked(() -> {
 			/* get the metadata state for the respective child */
 			LOG.debug("Populating scale level {}", scaleIdx);
-			imagesWithInvalidate[scaleIdx] = openLabelMultiset(reader, ssPaths[scaleIdx], ssTransforms[scaleIdx], queue, priority);
+			imagesWithInvalidate[scaleIdx] = openLabelMultiset(reader, ssPaths[scaleIdx], ssTransforms[scaleIdx], queue, priority, metadataState.getCellCacheBudget());
 			LOG.debug("Populated scale level {}", scaleIdx);
 			return true;
 		})::get)));
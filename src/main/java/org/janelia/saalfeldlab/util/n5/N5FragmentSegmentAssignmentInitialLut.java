@@ -1,5 +1,6 @@
 package org.janelia.saalfeldlab.util.n5;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import gnu.trove.map.TLongLongMap;
 import gnu.trove.map.hash.TLongLongHashMap;
 import net.imglib2.Cursor;
@@ -9,15 +10,26 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.view.Views;
-import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Exception;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignmentOnlyLocal;
 import org.janelia.saalfeldlab.paintera.data.n5.ReflectionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 
 public class N5FragmentSegmentAssignmentInitialLut implements Supplier<TLongLongMap> {
@@ -36,36 +48,131 @@ public class N5FragmentSegmentAssignmentInitialLut implements Supplier<TLongLong
 	public TLongLongMap get() {
 
 		try {
-			RandomAccessibleInterval<UnsignedLongType> data = openDatasetSafe(container, dataset);
-			final long[] keys = new long[(int)data.dimension(0)];
-			final long[] values = new long[keys.length];
-			LOG.debug("Found {} assignments", keys.length);
-			/* May happen in the case of detaching all existing mappings.
-			 * I would prefer flatIterable to work correctly over an empty interval, but it doesn't (yet) */
-			if (data.dimension(0) <= 0)
-				return new TLongLongHashMap();
-			final Cursor<UnsignedLongType> keyCursor = Views.flatIterable(Views.hyperSlice(data, 1, 0L)).cursor();
-			final Cursor<UnsignedLongType> valueCursor = Views.flatIterable(Views.hyperSlice(data, 1, 1L)).cursor();
-			for (int i = 0; i < keys.length; ++i) {
-				keys[i] = keyCursor.next().getIntegerLong();
-				values[i] = valueCursor.next().getIntegerLong();
-			}
-			return new TLongLongHashMap(keys, values);
-		} catch (IOException e) {
+			if (N5FragmentSegmentAssignmentPersister.isJournaled(container, dataset))
+				return readLut(container, dataset, container.getDatasetAttributes(dataset));
+			return readLegacyLut(container, dataset);
+		} catch (N5Exception | IOException e) {
 			LOG.debug("Exception while trying to return initial lut from N5", e);
 			LOG.info("Unable to read initial lut from {} -- returning empty map", container + ": " + dataset);
 			return new TLongLongHashMap();
 		}
 	}
 
-	private static RandomAccessibleInterval<UnsignedLongType> openDatasetSafe(
+	/**
+	 * Read the fragment-segment lookup stored as {@code {n, 2}} dataset of fragment/segment rows, starting at the row
+	 * stored in attribute {@link N5FragmentSegmentAssignmentPersister#JOURNAL_OFFSET_KEY} (or 0, if not present).
+	 * Later rows take precedence over earlier rows, and rows that map a fragment onto
+	 * {@link FragmentSegmentAssignmentOnlyLocal.IncrementalPersister#REMOVED} remove the assignment. Blocks are read in
+	 * parallel.
+	 *
+	 * @param reader     container
+	 * @param dataset    fragment-segment-assignment dataset
+	 * @param attributes attributes of {@code dataset}
+	 * @return fragment-segment lookup
+	 * @throws IOException if any of the blocks cannot be read
+	 */
+	public static TLongLongHashMap readLut(final N5Reader reader, final String dataset, final DatasetAttributes attributes) throws IOException {
+
+		final long offset = Optional.ofNullable(reader.getAttribute(dataset, N5FragmentSegmentAssignmentPersister.JOURNAL_OFFSET_KEY, Long.class)).orElse(0L);
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		readRows(reader, dataset, attributes, offset, attributes.getDimensions()[0], lut);
+		return lut;
+	}
+
+	/**
+	 * Apply rows {@code [fromRow, toRow)} of the fragment-segment-assignment {@code dataset} to {@code lut}.
+	 *
+	 * @see #readLut(N5Reader, String, DatasetAttributes)
+	 */
+	static void readRows(
 			final N5Reader reader,
-			final String dataset
-	) throws IOException {
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long fromRow,
+			final long toRow,
+			final TLongLongMap lut) throws IOException {
+
+		if (toRow <= fromRow)
+			return;
+
+		final int rowsPerBlock = attributes.getBlockSize()[0];
+		final long firstBlock = fromRow / rowsPerBlock;
+		final long lastBlock = (toRow - 1) / rowsPerBlock;
+		final int numBlocks = (int)(lastBlock - firstBlock + 1);
+		LOG.debug("Reading rows [{}, {}) of {} from {} blocks", fromRow, toRow, dataset, numBlocks);
+
+		final ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("read-fragment-segment-assignment-%d").build();
+		final ExecutorService threadPool = Executors.newFixedThreadPool(Math.min(numBlocks, Runtime.getRuntime().availableProcessors()), threadFactory);
+		try {
+			final List<Future<long[][]>> futures = new ArrayList<>();
+			for (long block = firstBlock; block <= lastBlock; ++block) {
+				final long[] keyPosition = {block, 0};
+				final long[] valuePosition = {block, 1};
+				futures.add(threadPool.submit(() -> new long[][]{
+						readLongs(reader, dataset, attributes, keyPosition),
+						readLongs(reader, dataset, attributes, valuePosition)}));
+			}
 
-		return DataType.UINT64.equals(reader.getDatasetAttributes(dataset).getDataType())
-				? N5Utils.open(reader, dataset)
-				: openAnyIntegerTypeAsUnsignedLongType(reader, dataset);
+			/* apply in order, later rows take precedence */
+			for (int i = 0; i < numBlocks; ++i) {
+				final long[][] keysAndValues = futures.get(i).get();
+				final long[] keys = keysAndValues[0];
+				final long[] values = keysAndValues[1];
+				final long blockStart = (firstBlock + i) * rowsPerBlock;
+				final int start = (int)Math.max(fromRow - blockStart, 0);
+				final int stop = (int)Math.min(Math.min(toRow - blockStart, keys.length), values.length);
+				for (int row = start; row < stop; ++row) {
+					/* containers that store full chunks pad partial blocks with 0 */
+					if (keys[row] == 0 && values[row] == 0)
+						continue;
+					if (values[row] == FragmentSegmentAssignmentOnlyLocal.IncrementalPersister.REMOVED)
+						lut.remove(keys[row]);
+					else
+						lut.put(keys[row], values[row]);
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (final ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			threadPool.shutdown();
+		}
+	}
+
+	private static long[] readLongs(final N5Reader reader, final String dataset, final DatasetAttributes attributes, final long[] gridPosition) {
+
+		final DataBlock<?> block = reader.readBlock(dataset, attributes, gridPosition);
+		return block == null ? new long[0] : (long[])block.getData();
+	}
+
+	/**
+	 * Read a fragment-segment lookup that was not written by {@link N5FragmentSegmentAssignmentPersister}, stored as
+	 * {@code {n, 2}} dataset of any integer type. Later rows take precedence over earlier rows.
+	 *
+	 * @param reader  container
+	 * @param dataset fragment-segment-assignment dataset
+	 * @return fragment-segment lookup
+	 * @throws IOException if the dataset cannot be read
+	 */
+	public static TLongLongHashMap readLegacyLut(final N5Reader reader, final String dataset) throws IOException {
+
+		RandomAccessibleInterval<UnsignedLongType> data = openAnyIntegerTypeAsUnsignedLongType(reader, dataset);
+		final long[] keys = new long[(int)data.dimension(0)];
+		final long[] values = new long[keys.length];
+		LOG.debug("Found {} assignments", keys.length);
+		/* May happen in the case of detaching all existing mappings.
+		 * I would prefer flatIterable to work correctly over an empty interval, but it doesn't (yet) */
+		if (data.dimension(0) <= 0)
+			return new TLongLongHashMap();
+		final Cursor<UnsignedLongType> keyCursor = Views.flatIterable(Views.hyperSlice(data, 1, 0L)).cursor();
+		final Cursor<UnsignedLongType> valueCursor = Views.flatIterable(Views.hyperSlice(data, 1, 1L)).cursor();
+		for (int i = 0; i < keys.length; ++i) {
+			keys[i] = keyCursor.next().getIntegerLong();
+			values[i] = valueCursor.next().getIntegerLong();
+		}
+		return new TLongLongHashMap(keys, values);
 	}
 
 	private static <T extends IntegerType<T> & NativeType<T>> RandomAccessibleInterval<UnsignedLongType> openAnyIntegerTypeAsUnsignedLongType(
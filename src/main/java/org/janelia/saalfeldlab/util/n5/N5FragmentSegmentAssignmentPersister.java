@@ -1,26 +1,71 @@
 package org.janelia.saalfeldlab.util.n5;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import gnu.trove.map.hash.TLongLongHashMap;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignmentOnlyLocal;
 import org.janelia.saalfeldlab.paintera.control.assignment.UnableToPersist;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class N5FragmentSegmentAssignmentPersister implements FragmentSegmentAssignmentOnlyLocal.Persister {
+/**
+ * Persists the fragment-segment assignment as {@code {n, 2}} dataset of fragment/segment rows.
+ * <p>
+ * Datasets written by this persister are marked with {@link #FORMAT_KEY}. Rows are stored in blocks of up to
+ * {@link #ROWS_PER_BLOCK} rows. Changes are appended as new blocks, sized to the changes, that start at the next block
+ * boundary after the existing rows, and committed by updating the dataset dimensions; later rows take precedence over
+ * earlier rows, and a row with segment {@link FragmentSegmentAssignmentOnlyLocal.IncrementalPersister#REMOVED} removes
+ * the assignment of its fragment. Rows between the end of a block and the next block boundary do not exist. Once the
+ * journal has considerably more blocks than the lookup it describes, it is compacted in the background: the compacted
+ * lookup is written into a region of the dataset that is not live and then committed by a single attribute write that
+ * sets dimensions and {@link #JOURNAL_OFFSET_KEY}, so that an interrupted compaction leaves the previous state intact.
+ * <p>
+ * Datasets without {@link #FORMAT_KEY} are read as a plain lookup, and converted on the first change.
+ */
+public class N5FragmentSegmentAssignmentPersister implements FragmentSegmentAssignmentOnlyLocal.IncrementalPersister {
 
 	private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+	/**
+	 * Attribute that holds the first live row of the fragment-segment-assignment dataset. Rows before are stale.
+	 */
+	public static final String JOURNAL_OFFSET_KEY = "journalOffset";
+
+	/**
+	 * Attribute that marks the layout of the fragment-segment-assignment dataset, {@link #JOURNAL_FORMAT} for datasets
+	 * written by this persister.
+	 */
+	public static final String FORMAT_KEY = "fragmentSegmentAssignmentFormat";
+
+	public static final String JOURNAL_FORMAT = "journal";
+
+	public static final int ROWS_PER_BLOCK = 1 << 16;
+
+	/* compaction is considered once the live rows span this many blocks */
+	private static final long COMPACTION_BLOCKS = 16;
+
+	private static final ExecutorService COMPACTION_EXECUTOR = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("fragment-segment-assignment-compaction-%d").setDaemon(true).build());
+
 	private final N5Writer writer;
 
 	private final String dataset;
 
+	private transient volatile boolean isCompactionScheduled = false;
+
 	public N5FragmentSegmentAssignmentPersister(N5Writer writer, String dataset) {
 
 		this.writer = writer;
@@ -37,35 +82,194 @@ public class N5FragmentSegmentAssignmentPersister implements FragmentSegmentAssi
 	public void persist(long[] keys, long[] values) throws UnableToPersist {
 
 		try {
-
 			LOG.debug("Persisting fragment-segment-lookup: {} {}", keys, values);
+			synchronized (this) {
+				final DatasetAttributes attributes = writer.datasetExists(dataset) ? writer.getDatasetAttributes(dataset) : null;
+				if (attributes == null || !isJournaled(writer, dataset)) {
+					writeSnapshot(keys, values);
+					return;
+				}
+				writeCompacted(keys, values, attributes);
+			}
+		} catch (final Exception e) {
+			throw e instanceof UnableToPersist ? (UnableToPersist)e : new UnableToPersist(e);
+		}
+	}
 
-			final DatasetAttributes attrs = new DatasetAttributes(
-					new long[]{keys.length, 2},
-					new int[]{Math.max(keys.length, 1), 1},
-					DataType.UINT64,
-					new GzipCompression()
-			);
-			writer.createDataset(dataset, attrs);
+	@Override
+	public void append(final long[] keys, final long[] values) throws UnableToPersist {
 
-			if (keys.length == 0) {
-				LOG.debug("Zero-length-lookup: Will not write any data.");
-			}
+		if (keys.length == 0)
+			return;
+
+		try {
+			LOG.debug("Appending {} rows to fragment-segment-lookup", keys.length);
+			synchronized (this) {
+				final DatasetAttributes attributes = writer.datasetExists(dataset) ? writer.getDatasetAttributes(dataset) : null;
+				if (attributes == null || !isJournaled(writer, dataset)) {
+					/* Legacy layout: convert to the journaled layout once. */
+					final TLongLongHashMap lut = attributes == null
+							? new TLongLongHashMap()
+							: N5FragmentSegmentAssignmentInitialLut.readLegacyLut(writer, dataset);
+					applyRows(lut, keys, values);
+					writeSnapshot(lut.keys(), lut.values());
+					return;
+				}
 
-			final DataBlock<long[]> keyBlock = new LongArrayDataBlock(
-					new int[]{keys.length, 1},
-					new long[]{0, 0},
-					keys
-			);
-			final DataBlock<long[]> valueBlock = new LongArrayDataBlock(
-					new int[]{values.length, 1},
-					new long[]{0, 1},
-					values
-			);
-			writer.writeBlock(dataset, attrs, keyBlock);
-			writer.writeBlock(dataset, attrs, valueBlock);
+				final long start = alignToBlock(attributes.getDimensions()[0]);
+				final long writtenRows = writeRows(keys, values, start, attributes);
+				final long offset = getOffset();
+				commit(start + writtenRows, offset);
+				scheduleCompactionIfNecessary(start + writtenRows, offset);
+			}
 		} catch (final Exception e) {
-			throw new UnableToPersist(e);
+			throw e instanceof UnableToPersist ? (UnableToPersist)e : new UnableToPersist(e);
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@code dataset} is marked with {@link #FORMAT_KEY} as written by this persister
+	 */
+	public static boolean isJournaled(final N5Reader reader, final String dataset) {
+
+		return JOURNAL_FORMAT.equals(reader.getAttribute(dataset, FORMAT_KEY, String.class));
+	}
+
+	private static DatasetAttributes journalAttributes(final long numRows) {
+
+		return new DatasetAttributes(new long[]{numRows, 2}, new int[]{ROWS_PER_BLOCK, 1}, DataType.UINT64, new GzipCompression());
+	}
+
+	private long getOffset() {
+
+		final Long offset = writer.getAttribute(dataset, JOURNAL_OFFSET_KEY, Long.class);
+		return offset == null ? 0 : offset;
+	}
+
+	/**
+	 * Recreate the dataset with only {@code keys} and {@code values}.
+	 */
+	private void writeSnapshot(final long[] keys, final long[] values) {
+
+		final DatasetAttributes attributes = journalAttributes(0);
+		writer.createDataset(dataset, attributes);
+		final long writtenRows = writeRows(keys, values, 0, attributes);
+		commit(writtenRows, 0);
+	}
+
+	/**
+	 * Write the compacted lookup into rows that are not live, i.e. before the current offset if they fit, otherwise
+	 * after the current end, and commit.
+	 */
+	private void writeCompacted(final long[] keys, final long[] values, final DatasetAttributes attributes) {
+
+		final long numRows = attributes.getDimensions()[0];
+		final long offset = getOffset();
+		final long start = alignToBlock(keys.length) <= offset ? 0 : alignToBlock(numRows);
+		final long writtenRows = writeRows(keys, values, start, attributes);
+		commit(start + writtenRows, start);
+		LOG.debug("Compacted fragment-segment-lookup {} from rows [{}, {}) to {} rows", dataset, offset, numRows, writtenRows);
+
+		/* remove stale blocks past the new end, if any */
+		for (long block = alignToBlock(start + writtenRows) / ROWS_PER_BLOCK; block < alignToBlock(numRows) / ROWS_PER_BLOCK; ++block) {
+			writer.deleteBlock(dataset, block, 0);
+			writer.deleteBlock(dataset, block, 1);
+		}
+	}
+
+	private static long alignToBlock(final long numRows) {
+
+		return (numRows + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK * ROWS_PER_BLOCK;
+	}
+
+	/**
+	 * Write rows starting at {@code startRow}, which must be a multiple of {@link #ROWS_PER_BLOCK}. The last block only
+	 * holds the remaining rows.
+	 *
+	 * @return number of rows written
+	 */
+	private long writeRows(final long[] keys, final long[] values, final long startRow, final DatasetAttributes attributes) {
+
+		final long firstBlock = startRow / ROWS_PER_BLOCK;
+		for (int from = 0, block = 0; from < keys.length; from += ROWS_PER_BLOCK, ++block) {
+			final int to = Math.min(from + ROWS_PER_BLOCK, keys.length);
+			final long[] keyData = Arrays.copyOfRange(keys, from, to);
+			final long[] valueData = Arrays.copyOfRange(values, from, to);
+			final DataBlock<long[]> keyBlock = new LongArrayDataBlock(new int[]{to - from, 1}, new long[]{firstBlock + block, 0}, keyData);
+			final DataBlock<long[]> valueBlock = new LongArrayDataBlock(new int[]{to - from, 1}, new long[]{firstBlock + block, 1}, valueData);
+			writer.writeBlock(dataset, attributes, keyBlock);
+			writer.writeBlock(dataset, attributes, valueBlock);
+		}
+		return keys.length;
+	}
+
+	/**
+	 * Make rows {@code [offset, numRows)} live with a single attribute write.
+	 */
+	private void commit(final long numRows, final long offset) {
+
+		final HashMap<String, Object> attributes = new HashMap<>(journalAttributes(numRows).asMap());
+		attributes.put(JOURNAL_OFFSET_KEY, offset);
+		attributes.put(FORMAT_KEY, JOURNAL_FORMAT);
+		writer.setAttributes(dataset, attributes);
+	}
+
+	private void scheduleCompactionIfNecessary(final long numRows, final long offset) {
+
+		/* called while holding the lock of this persister */
+		final long liveBlocks = alignToBlock(numRows) / ROWS_PER_BLOCK - offset / ROWS_PER_BLOCK;
+		if (liveBlocks < COMPACTION_BLOCKS || isCompactionScheduled)
+			return;
+		isCompactionScheduled = true;
+
+		COMPACTION_EXECUTOR.submit(() -> {
+			try {
+				compact();
+			} catch (final Exception e) {
+				LOG.error("Unable to compact fragment-segment-lookup {}", dataset, e);
+			} finally {
+				isCompactionScheduled = false;
+			}
+		});
+	}
+
+	private void compact() throws IOException {
+
+		/* Read without holding the lock, and only write if nothing was committed in the meantime. */
+		final long snapshotOffset;
+		final long snapshotRows;
+		synchronized (this) {
+			snapshotOffset = getOffset();
+			snapshotRows = writer.getDatasetAttributes(dataset).getDimensions()[0];
+		}
+		final DatasetAttributes snapshotAttributes = journalAttributes(snapshotRows);
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		N5FragmentSegmentAssignmentInitialLut.readRows(writer, dataset, snapshotAttributes, snapshotOffset, snapshotRows, lut);
+		final long liveBlocks = alignToBlock(snapshotRows) / ROWS_PER_BLOCK - snapshotOffset / ROWS_PER_BLOCK;
+		if (alignToBlock(lut.size()) / ROWS_PER_BLOCK * 2 > liveBlocks) {
+			LOG.debug("Not compacting fragment-segment-lookup {}: {} live blocks for {} assignments", dataset, liveBlocks, lut.size());
+			return;
+		}
+
+		synchronized (this) {
+			if (!isJournaled(writer, dataset))
+				return;
+			final DatasetAttributes attributes = writer.getDatasetAttributes(dataset);
+			if (getOffset() != snapshotOffset || attributes.getDimensions()[0] != snapshotRows) {
+				LOG.debug("Not compacting fragment-segment-lookup {}: changed while reading", dataset);
+				return;
+			}
+			writeCompacted(lut.keys(), lut.values(), attributes);
+		}
+	}
+
+	private static void applyRows(final TLongLongHashMap lut, final long[] keys, final long[] values) {
+
+		for (int i = 0; i < keys.length; ++i) {
+			if (values[i] == REMOVED)
+				lut.remove(keys[i]);
+			else
+				lut.put(keys[i], values[i]);
 		}
 	}
 
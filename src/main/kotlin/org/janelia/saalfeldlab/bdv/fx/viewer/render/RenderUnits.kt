@@ -101,7 +101,7 @@ open class BaseRenderUnit(
 						renderedScreenScaleIndex
 					)
 				)
-			} else target.drawOverlays { img: Image? ->
+			} else target.drawOverlays(renderedScreenScaleIndex) { img: Image? ->
 				renderResultProperty.set(
 					RenderResult(
 						img,
@@ -33,7 +33,7 @@ abstract class AsyncCacheWithLoader<K : Any, V>(
 		request(key, clear = true).await()
 	}
 
-	fun request(key: K, clear : Boolean = false): Deferred<V> = runBlocking {
+	open fun request(key: K, clear : Boolean = false): Deferred<V> = runBlocking {
 		cache.get(key) {
 			if (clear) cancelUnfinishedRequests()
 			loaderScope.async { loader(key) }
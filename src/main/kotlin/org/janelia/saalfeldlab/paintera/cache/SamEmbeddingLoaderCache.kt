@@ -7,45 +7,53 @@ import bdv.fx.viewer.render.BaseRenderUnit
 import bdv.fx.viewer.render.RenderUnitState
 import bdv.viewer.Interpolation
 import bdv.viewer.TransformListener
-import com.amazonaws.util.Base64
 import io.github.oshai.kotlinlogging.KotlinLogging
 import javafx.animation.AnimationTimer
 import javafx.embed.swing.SwingFXUtils
+import javafx.scene.image.Image
 import kotlinx.coroutines.*
 import net.imglib2.cache.LoaderCache
+import net.imglib2.FinalRealInterval
+import net.imglib2.RealInterval
 import net.imglib2.cache.ref.SoftRefLoaderCache
 import net.imglib2.parallel.TaskExecutors
 import net.imglib2.realtransform.AffineTransform3D
+import net.imglib2.util.Intervals
 import org.apache.commons.lang.builder.HashCodeBuilder
 import org.apache.http.HttpException
 import org.apache.http.client.HttpClient
 import org.apache.http.client.config.RequestConfig
 import org.apache.http.client.methods.HttpGet
 import org.apache.http.client.methods.HttpPost
-import org.apache.http.entity.ContentType
 import org.apache.http.entity.mime.MultipartEntityBuilder
 import org.apache.http.impl.client.BasicCookieStore
 import org.apache.http.impl.client.HttpClientBuilder
 import org.apache.http.util.EntityUtils
 import org.janelia.saalfeldlab.bdv.fx.viewer.ViewerPanelFX
 import org.janelia.saalfeldlab.bdv.fx.viewer.getDataSourceAndConverter
+import org.janelia.saalfeldlab.net.imglib2.converter.ARGBColorConverter
 import org.janelia.saalfeldlab.fx.extensions.LazyForeignValue
 import org.janelia.saalfeldlab.fx.ortho.OrthogonalViews.ViewerAndTransforms
 import org.janelia.saalfeldlab.paintera.PainteraBaseView
+import org.janelia.saalfeldlab.paintera.cache.SamEmbeddingTransport.Companion.toRgbImage
 import org.janelia.saalfeldlab.paintera.cache.SessionRenderUnitState.Companion.withSessionId
 import org.janelia.saalfeldlab.paintera.composition.CompositeProjectorPreMultiply
 import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig
 import org.janelia.saalfeldlab.paintera.control.tools.paint.SamPredictor
+import org.janelia.saalfeldlab.paintera.data.mask.MaskedSource
+import org.janelia.saalfeldlab.paintera.meshes.cache.MeshDiskCache
 import org.janelia.saalfeldlab.paintera.paintera
 import org.janelia.saalfeldlab.paintera.properties
+import org.janelia.saalfeldlab.paintera.stream.HighlightingStreamConverter
 import java.io.IOException
 import java.io.PipedInputStream
 import java.io.PipedOutputStream
 import java.net.SocketTimeoutException
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
+import java.nio.FloatBuffer
 import java.nio.file.Files
 import java.nio.file.Paths
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicInteger
 import javax.imageio.ImageIO
 import kotlin.coroutines.cancellation.CancellationException
@@ -67,6 +75,15 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 		return loader(key)
 	}
 
+	/**
+	 * Whether embeddings can be computed, either by the in-process encoder or by the service.
+	 */
+	val canComputeEmbeddings: Boolean
+		get() = usesLocalEncoder || canReachServer
+
+	private val usesLocalEncoder: Boolean
+		get() = paintera.properties.segmentAnythingConfig.localEncoder
+
 	//TODO Caleb: May want to be smarter about this, server side health check maybe
 	val canReachServer by LazyForeignValue({ paintera.properties.segmentAnythingConfig.serviceUrl }) {
 		try {
@@ -132,6 +149,7 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 
 	fun stopNavigationBasedRequests() {
 		navigationBasedRequestTimer = null
+		prefetcher.reset()
 	}
 
 	fun startNavigationBasedRequests(viewerAndTransforms: ViewerAndTransforms) {
@@ -193,7 +211,10 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 		return min(highestScreenScale, SamPredictor.MAX_DIM_TARGET / maxEdge)
 	}
 
-	private fun saveImage(state: RenderUnitState): PipedInputStream {
+	/**
+	 * Render [state] without overlays and pass the rendered image to [onRendered], which must not hold on to the image.
+	 */
+	private fun renderImage(state: RenderUnitState, onRendered: (Image) -> Unit) {
 		val threadGroup = ThreadGroup(this.toString())
 		val sharedQueue = SharedQueue(PainteraBaseView.reasonableNumFetcherThreads(), 50)
 
@@ -212,21 +233,33 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 			useVolatileIfAvailable = false
 		)
 
-		val predictionImagePngInputStream = PipedInputStream()
-		val predictionImagePngOutputStream = PipedOutputStream(predictionImagePngInputStream)
-
 		imageRenderer.renderedImageProperty.subscribe { _, result ->
 			result.image?.let { img ->
-				ImageIO.write(SwingFXUtils.fromFXImage(img, null), "png", predictionImagePngOutputStream)
-				predictionImagePngOutputStream.close()
+				onRendered(img)
 				sharedQueue.shutdown()
 				imageRenderer.stopRendering()
 			}
 		}
 		imageRenderer.requestRepaint()
+	}
+
+	private fun saveImage(state: RenderUnitState): PipedInputStream {
+		val predictionImagePngInputStream = PipedInputStream()
+		val predictionImagePngOutputStream = PipedOutputStream(predictionImagePngInputStream)
+
+		renderImage(state) { img ->
+			ImageIO.write(SwingFXUtils.fromFXImage(img, null), "png", predictionImagePngOutputStream)
+			predictionImagePngOutputStream.close()
+		}
 		return predictionImagePngInputStream
 	}
 
+	private fun renderRgbImage(state: RenderUnitState): SamEmbeddingTransport.RgbImage {
+		val rgbImage = CompletableFuture<SamEmbeddingTransport.RgbImage>()
+		renderImage(state) { img -> rgbImage.complete(img.toRgbImage()) }
+		return rgbImage.get()
+	}
+
 	fun request(viewer: ViewerPanelFX, globalToViewerTransform: AffineTransform3D): Deferred<OnnxTensor> {
 		return request(viewer.getSamRenderState(globalToViewerTransform))
 	}
@@ -246,6 +279,10 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 	}
 
 	override fun load(key: RenderUnitState): Job {
+		/* sessions only exist on the service */
+		if (usesLocalEncoder)
+			return super.load(key)
+
 		val sessionState = (key as? SessionRenderUnitState) ?: key.withSessionId(getSessionId())
 
 		synchronized(currentSessions) {
@@ -284,9 +321,138 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 	}
 
 	private fun getImageEmbedding(it: RenderUnitState): OnnxTensor {
-		return getImageEmbedding(saveImage(it), (it as? SessionRenderUnitState)?.sessionId)
+		val diskCache = embeddingDiskCache()
+		val diskCacheKey = diskCache?.let { _ -> it.embeddingCacheKey() }
+		if (diskCache != null && diskCacheKey == null)
+			LOG.trace { "Not caching embedding on disk, the rendered image includes label sources" }
+		diskCacheKey?.let { key -> diskCache?.get(key, EMBEDDING_SHAPE) }?.let { cached ->
+			LOG.trace { "Using embedding ${"%016x".format(diskCacheKey)} from disk cache" }
+			return createEmbeddingTensor(cached)
+		}
+		val embedding = localEncoder?.let { encoder ->
+			if (it in prefetching)
+				encoder.prefetch(renderRgbImage(it))
+			else
+				encoder.encode(renderRgbImage(it))
+		} ?: requestImageEmbedding(it, (it as? SessionRenderUnitState)?.sessionId)
+		diskCacheKey?.let { key -> diskCache?.put(key, it.worldBounds(), EMBEDDING_SHAPE, embedding) }
+		return createEmbeddingTensor(embedding)
+	}
+
+	/**
+	 * In-process image encoder, if selected in the [SegmentAnythingConfig].
+	 */
+	private val localEncoder: SamLocalImageEncoder? by LazyForeignValue({ properties.segmentAnythingConfig.let { config -> config.encoderModelLocation.takeIf { config.localEncoder } } }) { modelLocation ->
+		modelLocation?.let { SamLocalImageEncoder(it) }
+	}.beforeValueChange { it?.close() }
+
+	/* states that are currently prefetched */
+	private val prefetching: MutableSet<RenderUnitState> = ConcurrentHashMap.newKeySet()
+
+	/**
+	 * Prefetches the embeddings of the slices that the user is likely to step to next. Prefetches are requested without
+	 * a session, so that they do not cancel interactive requests on the service, and with low priority on the local
+	 * encoder.
+	 */
+	val prefetcher = SamEmbeddingPrefetcher(
+		::requestPrefetch,
+		{ state -> cache.getIfPresent(state) != null },
+		{ state -> cache.getIfPresent(state)?.let { it.isCompleted && !it.isCancelled } == true }
+	)
+
+	private fun requestPrefetch(state: RenderUnitState): Job {
+		prefetching += state
+		return super.request(state, false).also { it.invokeOnCompletion { prefetching -= state } }
 	}
 
+	/**
+	 * Interactive requests, i.e. all requests but prefetches, update the [prefetcher].
+	 */
+	override fun request(key: RenderUnitState, clear: Boolean): Deferred<OnnxTensor> {
+		return super.request(key, clear).also {
+			prefetcher.maxConcurrent = if (usesLocalEncoder) max(1, SamLocalImageEncoder.DEFAULT_PARALLELISM - 1) else SamEmbeddingPrefetcher.DEFAULT_MAX_CONCURRENT
+			prefetcher.requested((key as? SessionRenderUnitState)?.state ?: key)
+		}
+	}
+
+	private fun createEmbeddingTensor(embedding: FloatBuffer): OnnxTensor {
+		runBlocking {
+			/* need the ortEnv to be initialized, which is done during session initialization; So block and wait here. */
+			/* But we don't actually need the session here. */
+			createOrtSessionTask.await()
+		}
+		return OnnxTensor.createTensor(ortEnv, embedding, EMBEDDING_SHAPE)!!
+	}
+
+	/**
+	 * Embeddings are persisted in the project directory, if there is one, so that they survive garbage collection and restarts.
+	 */
+	private val embeddingDiskCache: SamEmbeddingDiskCache? by LazyForeignValue({ paintera.projectDirectory.actualDirectory }) { directory ->
+		directory ?: return@LazyForeignValue null
+		try {
+			SamEmbeddingDiskCache(directory.toPath().resolve("sam-embeddings"))
+		} catch (e: IOException) {
+			LOG.warn(e) { "Unable to create SAM embedding disk cache in $directory. Embeddings will not be cached on disk." }
+			null
+		}
+	}
+
+	private fun embeddingDiskCache(): SamEmbeddingDiskCache? {
+		return embeddingDiskCache?.apply {
+			budgetBytes = properties.segmentAnythingConfig.embeddingCacheSize.toLong() shl 20
+		}
+	}
+
+	/**
+	 * Remove embeddings of slices that intersect [worldInterval], e.g. because the data in that region changed.
+	 */
+	fun invalidateRegion(worldInterval: RealInterval) = invalidateRegions(listOf(worldInterval))
+
+	/**
+	 * Remove embeddings of slices that intersect any of [worldIntervals]. Each embedding is tested against all
+	 * intervals in a single pass over the cached embeddings.
+	 */
+	fun invalidateRegions(worldIntervals: List<RealInterval>) {
+		if (worldIntervals.isEmpty())
+			return
+		val removed = embeddingDiskCache?.invalidate(worldIntervals) ?: 0
+		LOG.trace { "Invalidated $removed embeddings on disk" }
+		val union = SamEmbeddingDiskCache.union(worldIntervals)
+		invalidateIf { SamEmbeddingDiskCache.intersectsAny(it.worldBounds(), union, worldIntervals) }
+	}
+
+	/**
+	 * Invalidate embeddings of slices through the blocks of [source] that were written when committing the canvas.
+	 * Blocks at level `0` are `null` if they are not known, in which case the entire [source] is invalidated.
+	 *
+	 * @see MaskedSource.addOnCanvasPersistedListener
+	 */
+	fun invalidatePersistedBlocks(source: MaskedSource<*, *>, blocksPerLevel: Array<out LongArray?>) {
+		val sourceToWorld = AffineTransform3D().also { source.getSourceTransform(0, 0, it) }
+		val grid = source.getCellGrid(0, 0)
+		val blocks = blocksPerLevel.getOrNull(0)
+		if (blocks == null) {
+			invalidateRegion(sourceToWorld.estimateBounds(voxelBounds(LongArray(grid.numDimensions()), grid.imgDimensions)))
+			return
+		}
+		val gridPosition = LongArray(grid.numDimensions())
+		val blockMin = LongArray(grid.numDimensions())
+		val blockSize = IntArray(grid.numDimensions())
+		val worldIntervals = blocks.map { block ->
+			grid.getCellGridPositionFlat(block, gridPosition)
+			grid.getCellDimensions(gridPosition, blockMin, blockSize)
+			val blockDimensions = LongArray(blockSize.size) { blockSize[it].toLong() }
+			sourceToWorld.estimateBounds(voxelBounds(blockMin, blockDimensions))
+		}
+		invalidateRegions(worldIntervals)
+	}
+
+	/* include the full extent of the voxels at the boundary */
+	private fun voxelBounds(min: LongArray, dimensions: LongArray) = FinalRealInterval(
+		DoubleArray(min.size) { min[it] - 0.5 },
+		DoubleArray(min.size) { min[it] + dimensions[it] - 0.5 }
+	)
+
 	private fun cancelPendingRequests(id: String) {
 		val url = with(paintera.properties.segmentAnythingConfig) {
 			with(SegmentAnythingConfig) {
@@ -318,58 +484,95 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 		}
 	}
 
-	private fun getImageEmbedding(inputImage: PipedInputStream, sessionId: String? = null): OnnxTensor {
-		val entityBuilder = MultipartEntityBuilder.create()
-		entityBuilder.addBinaryBody("image", inputImage, ContentType.APPLICATION_OCTET_STREAM, "null")
+	private val transport = SamEmbeddingTransport { HttpClientBuilder.create().useSystemProperties().setDefaultRequestConfig(requestConfig).build() }
+
+	private fun requestImageEmbedding(state: RenderUnitState, sessionId: String? = null): FloatBuffer {
 		sessionId?.let { id ->
-			entityBuilder.addTextBody("session_id", id);
-			entityBuilder.addTextBody("cancel_pending", "true");
 			synchronized(currentSessions) {
 				currentSessions.remove(id)
 			}
 		}
 
-		val url = with(paintera.properties.segmentAnythingConfig) {
-			with(SegmentAnythingConfig) {
-				val compress = if (compressEncoding) COMPRESS_ENCODING_PARAMETER else ""
-				"$serviceUrl/$EMBEDDING_REQUEST_ENDPOINT?$compress"
-			}
+		return with(paintera.properties.segmentAnythingConfig) {
+			transport.requestEmbedding(
+				serviceUrl,
+				if (rawTransport) SamEmbeddingTransport.Protocol.RAW else SamEmbeddingTransport.Protocol.PNG,
+				compressEncoding,
+				sessionId,
+				EMBEDDING_SHAPE,
+				{ renderRgbImage(state) },
+				{ saveImage(state) }
+			)
 		}
-		val post = HttpPost(url)
-		post.entity = entityBuilder.build()
-
-		val client = HttpClientBuilder.create().useSystemProperties().setDefaultRequestConfig(requestConfig).build()
-
-		val response = client.execute(post)
-		when (response.statusLine.statusCode) {
-			HTTP_CANCELLED -> {
-				throw CancellationException("Cancelled Embedding Request")
-			}
-
-			HTTP_SUCCESS -> {
+	}
 
-			}
+	/**
+	 * Identifies the encoder that computes embeddings: the model file of the in-process encoder, including its size
+	 * and modification time so that a replaced model is not mistaken for the previous one, or the service URL.
+	 */
+	private fun encoderIdentity(): String = with(paintera.properties.segmentAnythingConfig) {
+		if (localEncoder) {
+			val modelVersion = runCatching {
+				val modelFile = Paths.get(encoderModelLocation).takeIf { Files.isRegularFile(it) }
+				modelFile?.let { "${Files.size(it)}:${Files.getLastModifiedTime(it).toMillis()}" }
+			}.getOrNull() ?: "resource"
+			"local:$encoderModelLocation:$modelVersion"
+		} else
+			"service:$serviceUrl"
+	}
 
-			else -> {
-				response.entity?.let {
-					throw HttpException(EntityUtils.toString(it))
-				} ?: throw HttpException("Received Error Code: ${response.statusLine.statusCode}")
-			}
-		}
-		EntityUtils.toByteArray(response.entity!!).let {
-			val decodedEmbedding = Base64.decode(it)
-			val directBuffer = ByteBuffer.allocateDirect(decodedEmbedding.size).order(ByteOrder.nativeOrder())
-			directBuffer.put(decodedEmbedding, 0, decodedEmbedding.size)
-			directBuffer.position(0)
-			val floatBuffEmbedding = directBuffer.asFloatBuffer()
-			floatBuffEmbedding.position(0)
-			runBlocking {
-				/* need the ortEnv to be initialized, which is done during session initialization; So block and wait here. */
-				/* But we don't actually need the session here. */
-				createOrtSessionTask.await()
+	/**
+	 * Stable hash of everything that determines the embedding, i.e. the [encoder][encoderIdentity] and the rendered
+	 * image: screen size and scale, transform, and the sources and their converter settings. In contrast to
+	 * [RenderUnitState.hashCode], this is the same across sessions, as long as the sources keep their names.
+	 *
+	 * Label sources are rendered with the current selection, fragment-segment assignment, locked segments and canvas, none
+	 * of which is versioned across sessions. Rendered images that include label sources have no key, so their
+	 * embeddings are not persisted.
+	 *
+	 * @return the key, or `null` if the rendered image includes a label source
+	 */
+	internal fun RenderUnitState.embeddingCacheKey(encoderId: String = encoderIdentity()): Long? {
+		val state = (this as? SessionRenderUnitState)?.state ?: this
+		val values = mutableListOf<Long>()
+		values += encoderId.hashCode().toLong()
+		values += encoderId.length.toLong()
+		values += state.timepoint.toLong()
+		values += state.width
+		values += state.height
+		values += state.calculateTargetSamScreenScaleFactor().toRawBits()
+		for (row in 0 until 3)
+			for (col in 0 until 4)
+				values += state.transform[row, col].toFloat().toRawBits().toLong()
+		for (sac in state.sources) {
+			val source = sac.spimSource
+			values += source.name.hashCode().toLong()
+			values += source.javaClass.name.hashCode().toLong()
+			val sourceTransform = AffineTransform3D().also { source.getSourceTransform(state.timepoint, 0, it) }
+			for (row in 0 until 3)
+				for (col in 0 until 4)
+					values += sourceTransform[row, col].toRawBits()
+			source.getSource(state.timepoint, 0).dimensionsAsLongArray().forEach { values += it }
+			val converter = sac.converter
+			values += converter.javaClass.name.hashCode().toLong()
+			when (converter) {
+				is ARGBColorConverter<*> -> {
+					values += converter.min.toRawBits()
+					values += converter.max.toRawBits()
+					values += converter.color.get().toLong()
+				}
+				is HighlightingStreamConverter<*> -> return null
 			}
-			return OnnxTensor.createTensor(ortEnv, floatBuffEmbedding, longArrayOf(1, 256, 64, 64))!!
 		}
+		return MeshDiskCache.hash(*values.toLongArray())
+	}
+
+	/**
+	 * World space bounds of the slice that is rendered for this state.
+	 */
+	private fun RenderUnitState.worldBounds(): RealInterval {
+		val screen = FinalRealInterval(doubleArrayOf(0.0, 0.0, 0.0), doubleArrayOf(width.toDouble(), height.toDouble(), 0.0))
+		return transform.inverse().estimateBounds(screen)
 	}
 
 	fun ViewerPanelFX.getSamRenderState(globalToViewerTransform: AffineTransform3D? = null, size: Pair<Long, Long>? = null): RenderUnitState {
@@ -387,9 +590,10 @@ object SamEmbeddingLoaderCache : AsyncCacheWithLoader<RenderUnitState, OnnxTenso
 		)
 	}
 
+	private val EMBEDDING_SHAPE = longArrayOf(1, 256, 64, 64)
+
 	private val LOG = KotlinLogging.logger { }
 	private const val HTTP_SUCCESS = 200
-	private const val HTTP_CANCELLED = 499
 }
 
 private data class SessionRenderUnitState(val sessionId: String, val state: RenderUnitState) : RenderUnitState(state.transform, state.timepoint, state.sources, state.width, state.height) {
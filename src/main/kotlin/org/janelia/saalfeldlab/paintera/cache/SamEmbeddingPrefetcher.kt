@@ -0,0 +1,213 @@
+package org.janelia.saalfeldlab.paintera.cache
+
+import bdv.fx.viewer.render.RenderUnitState
+import io.github.oshai.kotlinlogging.KotlinLogging
+import kotlinx.coroutines.Job
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.abs
+import kotlin.math.max
+
+/**
+ * Speculatively loads the embeddings of the slices that are likely to be requested next.
+ *
+ * Every [requested] state is compared to the previously requested one. If the two only differ by a translation along
+ * the normal of the viewer plane, i.e. the user steps through the stack, the next [lookahead] slices in the same
+ * direction and with the same step size are prefetched. Otherwise, the direction is unknown and the slices directly
+ * before and after the requested state are prefetched. At most [maxConcurrent] prefetches run at a time. Predictions
+ * that do not match the current direction anymore are dropped, and running prefetches for them are cancelled. An encode
+ * may not stop when its job is cancelled, so cancelled prefetches count against [maxConcurrent] until their jobs finish.
+ *
+ * A requested state counts as a [hit][hits] if it was predicted by the previous request and its embedding is ready, and
+ * as a [miss][misses] otherwise.
+ *
+ * @param prefetch start loading a state with low priority
+ * @param isLoaded whether a state is already loaded or being loaded
+ * @param isReady whether the embedding of a state is loaded completely
+ */
+class SamEmbeddingPrefetcher(
+	private val prefetch: (RenderUnitState) -> Job,
+	private val isLoaded: (RenderUnitState) -> Boolean,
+	private val isReady: (RenderUnitState) -> Boolean = isLoaded,
+	lookahead: Int = DEFAULT_LOOKAHEAD,
+	maxConcurrent: Int = DEFAULT_MAX_CONCURRENT
+) {
+
+	var lookahead: Int = lookahead
+		@Synchronized set(value) {
+			field = max(value, 0)
+		}
+
+	var maxConcurrent: Int = maxConcurrent
+		@Synchronized set(value) {
+			field = max(value, 1)
+			drain()
+		}
+
+	private val hitCount = AtomicLong()
+
+	private val missCount = AtomicLong()
+
+	private val cancelledCount = AtomicLong()
+
+	/* guarded by this */
+	private var last: RenderUnitState? = null
+
+	/* guarded by this */
+	private val predicted = LinkedHashSet<RenderUnitState>()
+
+	/* guarded by this */
+	private val queue = ArrayDeque<RenderUnitState>()
+
+	/* guarded by this */
+	private val running = HashMap<RenderUnitState, Job>()
+
+	/* cancelled prefetches that did not finish yet; guarded by this */
+	private val cancelling = HashSet<Job>()
+
+	/**
+	 * Number of requested states that were predicted by the previous request and were ready when requested.
+	 */
+	val hits: Long
+		get() = hitCount.get()
+
+	/**
+	 * Number of requested states that were not predicted by the previous request, or were not ready when requested.
+	 */
+	val misses: Long
+		get() = missCount.get()
+
+	/**
+	 * Number of prefetches that were cancelled because the direction of navigation changed.
+	 */
+	val cancelled: Long
+		get() = cancelledCount.get()
+
+	/**
+	 * Fraction of requested states that were [hits], or [Double.NaN] if there were no requests yet.
+	 */
+	val hitRate: Double
+		get() {
+			val hits = hits
+			val total = hits + misses
+			return if (total == 0L) Double.NaN else hits.toDouble() / total
+		}
+
+	/**
+	 * Record that the embedding for [state] was requested interactively, and update the prefetches.
+	 */
+	@Synchronized
+	fun requested(state: RenderUnitState) {
+		val previous = last
+		if (previous == state)
+			return
+		last = state
+
+		if (predicted.isNotEmpty()) {
+			val hit = state in predicted && isReady(state)
+			if (hit) hitCount.incrementAndGet() else missCount.incrementAndGet()
+			LOG.trace { "Prefetch ${if (hit) "hit" else "miss"}, hit rate ${"%.2f".format(hitRate)}" }
+		}
+
+		/* the requested state may be prefetched already, it is loaded interactively from now on */
+		running.remove(state)
+
+		val step = previous?.let { stepAlongNormal(it, state) } ?: 0.0
+		predicted.clear()
+		if (step == 0.0) {
+			predicted += state.shiftedAlongNormal(1.0)
+			predicted += state.shiftedAlongNormal(-1.0)
+		} else {
+			for (i in 1..lookahead)
+				predicted += state.shiftedAlongNormal(i * step)
+		}
+
+		queue.clear()
+		queue.addAll(predicted.filterNot { it in running || isLoaded(it) })
+		val stale = running.keys.filterNot { it in predicted }
+		for (key in stale) {
+			running.remove(key)?.let { cancel(it) }
+			cancelledCount.incrementAndGet()
+		}
+		drain()
+	}
+
+	/**
+	 * Cancel all prefetches and forget the navigation history.
+	 */
+	@Synchronized
+	fun reset() {
+		last = null
+		predicted.clear()
+		queue.clear()
+		val jobs = running.values.toList()
+		running.clear()
+		jobs.forEach { cancel(it) }
+	}
+
+	/* Precondition: caller must hold lock on this */
+	private fun cancel(job: Job) {
+		if (!job.isCompleted)
+			cancelling += job
+		job.cancel()
+	}
+
+	/* Precondition: caller must hold lock on this */
+	private fun drain() {
+		while (running.size + cancelling.size < maxConcurrent) {
+			val next = queue.removeFirstOrNull() ?: return
+			if (isLoaded(next))
+				continue
+			val job = prefetch(next)
+			running[next] = job
+			job.invokeOnCompletion {
+				synchronized(this) {
+					if (running[next] === job) {
+						running.remove(next)
+						drain()
+					} else if (cancelling.remove(job)) {
+						drain()
+					}
+				}
+			}
+		}
+	}
+
+	companion object {
+
+		private val LOG = KotlinLogging.logger { }
+
+		const val DEFAULT_LOOKAHEAD = 3
+
+		const val DEFAULT_MAX_CONCURRENT = 2
+
+		/* relative tolerance for comparing transforms */
+		private const val TOLERANCE = 1e-6
+
+		/**
+		 * @return the translation along the normal of the viewer plane from [from] to [to], in viewer coordinates, or
+		 * `0` if the states differ in any other way
+		 */
+		internal fun stepAlongNormal(from: RenderUnitState, to: RenderUnitState): Double {
+			if (from.timepoint != to.timepoint || from.width != to.width || from.height != to.height || from.sources != to.sources)
+				return 0.0
+			val a = from.transform
+			val b = to.transform
+			for (row in 0 until 3) {
+				for (col in 0 until 3)
+					if (!isClose(a[row, col], b[row, col]))
+						return 0.0
+				if (row < 2 && !isClose(a[row, 3], b[row, 3]))
+					return 0.0
+			}
+			val step = b[2, 3] - a[2, 3]
+			return if (isClose(step, 0.0)) 0.0 else step
+		}
+
+		internal fun RenderUnitState.shiftedAlongNormal(offset: Double): RenderUnitState {
+			val shifted = transform.copy().apply { set(get(2, 3) + offset, 2, 3) }
+			return RenderUnitState(shifted, timepoint, sources, width, height)
+		}
+
+		private fun isClose(a: Double, b: Double) = abs(a - b) <= TOLERANCE * max(1.0, max(abs(a), abs(b)))
+	}
+}
@@ -0,0 +1,213 @@
+package org.janelia.saalfeldlab.paintera.cache
+
+import com.amazonaws.util.Base64
+import io.github.oshai.kotlinlogging.KotlinLogging
+import javafx.scene.image.Image
+import javafx.scene.image.PixelFormat
+import org.apache.http.HttpEntity
+import org.apache.http.HttpException
+import org.apache.http.HttpResponse
+import org.apache.http.client.HttpClient
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.client.utils.URIBuilder
+import org.apache.http.entity.ByteArrayEntity
+import org.apache.http.entity.ContentType
+import org.apache.http.entity.mime.MultipartEntityBuilder
+import org.apache.http.util.EntityUtils
+import org.janelia.saalfeldlab.bdv.fx.viewer.render.PixelBufferWritableImage
+import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.COMPRESS_ENCODING_PARAMETER
+import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.EMBEDDING_REQUEST_ENDPOINT
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.nio.IntBuffer
+import java.nio.channels.Channels
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.coroutines.cancellation.CancellationException
+
+/**
+ * Posts images to the SAM service and reads the image embeddings from the responses.
+ *
+ * Two wire formats are supported:
+ *  - [Protocol.RAW]: the request body is the interleaved 8 bit RGB pixels of the image, and the response body is the
+ *  embedding as little-endian 32 bit floats. Neither side has to encode or decode images or base64.
+ *  - [Protocol.PNG]: the image is posted as PNG in a multipart form, and the response is the base64 encoded embedding.
+ *  This is supported by all versions of the service.
+ *
+ * If a service rejects a [Protocol.RAW] request, e.g. because it predates the raw format, the request is repeated with
+ * [Protocol.PNG], which is then used for all further requests to that service.
+ */
+class SamEmbeddingTransport(private val createClient: () -> HttpClient) {
+
+	enum class Protocol {
+		PNG,
+		RAW
+	}
+
+	/**
+	 * Interleaved 8 bit RGB pixels, row by row.
+	 */
+	class RgbImage(val width: Int, val height: Int, val pixels: ByteArray) {
+		init {
+			require(pixels.size == 3 * width * height) { "Expected ${3 * width * height} bytes for $width x $height RGB image but got ${pixels.size}" }
+		}
+	}
+
+	private val rawUnsupported: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+	/**
+	 * @param serviceUrl base url of the service
+	 * @param protocol preferred protocol; [Protocol.PNG] is used if the service does not support [Protocol.RAW]
+	 * @param compressEncoding request compressed encoding of the embedding, only applies to [Protocol.PNG]
+	 * @param sessionId pending requests of the same session are cancelled by the service
+	 * @param shape shape of the embedding
+	 * @param rgb renders the image for [Protocol.RAW]
+	 * @param png renders the image as PNG for [Protocol.PNG]
+	 * @return embedding in native byte order
+	 */
+	fun requestEmbedding(
+		serviceUrl: String,
+		protocol: Protocol,
+		compressEncoding: Boolean,
+		sessionId: String?,
+		shape: LongArray,
+		rgb: () -> RgbImage,
+		png: () -> InputStream
+	): FloatBuffer {
+		if (protocol == Protocol.RAW && serviceUrl !in rawUnsupported) {
+			try {
+				return requestRawEmbedding(serviceUrl, sessionId, shape, rgb())
+			} catch (e: RawProtocolUnsupportedException) {
+				LOG.info { "SAM service at $serviceUrl does not support raw embedding requests (${e.message}). Falling back to PNG." }
+				rawUnsupported += serviceUrl
+			}
+		}
+		return requestPngEmbedding(serviceUrl, compressEncoding, sessionId, png())
+	}
+
+	private fun requestRawEmbedding(serviceUrl: String, sessionId: String?, shape: LongArray, image: RgbImage): FloatBuffer {
+		val uri = URIBuilder(embeddingUrl(serviceUrl))
+			.addParameter(FORMAT_PARAMETER, RAW_FORMAT)
+			.addParameter("width", "${image.width}")
+			.addParameter("height", "${image.height}")
+			.apply {
+				sessionId?.let {
+					addParameter("session_id", it)
+					addParameter("cancel_pending", "true")
+				}
+			}
+			.build()
+		val post = HttpPost(uri)
+		post.entity = ByteArrayEntity(image.pixels, ContentType.APPLICATION_OCTET_STREAM)
+
+		val response = createClient().execute(post)
+		if (response.statusLine.statusCode in RAW_UNSUPPORTED_CODES) {
+			EntityUtils.consumeQuietly(response.entity)
+			throw RawProtocolUnsupportedException("Received Error Code: ${response.statusLine.statusCode}")
+		}
+		val entity = response.checkStatus()
+
+		val numBytes = Float.SIZE_BYTES * shape.fold(1L) { n, s -> n * s }
+		if (entity.contentLength >= 0 && entity.contentLength != numBytes) {
+			EntityUtils.consumeQuietly(entity)
+			throw RawProtocolUnsupportedException("Expected $numBytes bytes but got ${entity.contentLength}")
+		}
+		val embedding = ByteBuffer.allocateDirect(numBytes.toInt()).order(ByteOrder.LITTLE_ENDIAN)
+		entity.content.use { content ->
+			val channel = Channels.newChannel(content)
+			while (embedding.hasRemaining() && channel.read(embedding) >= 0) Unit
+			if (embedding.hasRemaining() || content.read() != -1)
+				throw RawProtocolUnsupportedException("Response size does not match $numBytes bytes")
+		}
+		embedding.flip()
+		return embedding.toNativeOrder().asFloatBuffer()
+	}
+
+	private fun requestPngEmbedding(serviceUrl: String, compressEncoding: Boolean, sessionId: String?, inputImage: InputStream): FloatBuffer {
+		val entityBuilder = MultipartEntityBuilder.create()
+		entityBuilder.addBinaryBody("image", inputImage, ContentType.APPLICATION_OCTET_STREAM, "null")
+		sessionId?.let { id ->
+			entityBuilder.addTextBody("session_id", id)
+			entityBuilder.addTextBody("cancel_pending", "true")
+		}
+
+		val compress = if (compressEncoding) COMPRESS_ENCODING_PARAMETER else ""
+		val post = HttpPost("${embeddingUrl(serviceUrl)}?$compress")
+		post.entity = entityBuilder.build()
+
+		val entity = createClient().execute(post).checkStatus()
+		val decodedEmbedding = Base64.decode(EntityUtils.toByteArray(entity))
+		val directBuffer = ByteBuffer.allocateDirect(decodedEmbedding.size).order(ByteOrder.nativeOrder())
+		directBuffer.put(decodedEmbedding, 0, decodedEmbedding.size)
+		directBuffer.position(0)
+		val floatBuffEmbedding = directBuffer.asFloatBuffer()
+		floatBuffEmbedding.position(0)
+		return floatBuffEmbedding
+	}
+
+	private class RawProtocolUnsupportedException(message: String) : Exception(message)
+
+	companion object {
+
+		private val LOG = KotlinLogging.logger { }
+
+		internal const val FORMAT_PARAMETER = "format"
+		internal const val RAW_FORMAT = "raw"
+
+		private const val HTTP_SUCCESS = 200
+		private const val HTTP_CANCELLED = 499
+
+		/* bad request, not found, method not allowed, unsupported media type, not implemented */
+		private val RAW_UNSUPPORTED_CODES = setOf(400, 404, 405, 415, 501)
+
+		private fun embeddingUrl(serviceUrl: String) = "$serviceUrl/$EMBEDDING_REQUEST_ENDPOINT"
+
+		private fun HttpResponse.checkStatus(): HttpEntity {
+			when (statusLine.statusCode) {
+				HTTP_CANCELLED -> {
+					EntityUtils.consumeQuietly(entity)
+					throw CancellationException("Cancelled Embedding Request")
+				}
+
+				HTTP_SUCCESS -> return entity ?: throw HttpException("Received empty response")
+				else -> {
+					entity?.let {
+						throw HttpException(EntityUtils.toString(it))
+					} ?: throw HttpException("Received Error Code: ${statusLine.statusCode}")
+				}
+			}
+		}
+
+		private fun ByteBuffer.toNativeOrder(): ByteBuffer {
+			if (order() == ByteOrder.nativeOrder())
+				return this
+			val floats = asFloatBuffer()
+			val nativeBuffer = ByteBuffer.allocateDirect(capacity()).order(ByteOrder.nativeOrder())
+			nativeBuffer.asFloatBuffer().put(floats)
+			return nativeBuffer
+		}
+
+		/**
+		 * Extract the RGB pixels of [image], without alpha. Premultiplied images are thereby composited over black.
+		 */
+		fun Image.toRgbImage(): RgbImage {
+			val width = width.toInt()
+			val height = height.toInt()
+			val argb = (this as? PixelBufferWritableImage)?.buffer
+				?: IntArray(width * height).let { pixels ->
+					pixelReader.getPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, 0, width)
+					IntBuffer.wrap(pixels)
+				}
+			val rgb = ByteArray(3 * width * height)
+			var index = 0
+			for (i in 0 until width * height) {
+				val pixel = argb.get(i)
+				rgb[index++] = (pixel shr 16).toByte()
+				rgb[index++] = (pixel shr 8).toByte()
+				rgb[index++] = pixel.toByte()
+			}
+			return RgbImage(width, height, rgb)
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.janelia.saalfeldlab.paintera.cache
+
+import ai.onnxruntime.OnnxTensor
+import ai.onnxruntime.OrtEnvironment
+import ai.onnxruntime.OrtSession
+import ai.onnxruntime.TensorInfo
+import io.github.oshai.kotlinlogging.KotlinLogging
+import org.janelia.saalfeldlab.paintera.cache.SamEmbeddingTransport.RgbImage
+import org.janelia.saalfeldlab.paintera.control.tools.paint.SamPredictor
+import org.janelia.saalfeldlab.util.NamedThreadFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Computes SAM image embeddings in process on the CPU with the ONNX export of the SAM image encoder, as an alternative
+ * to the SAM service.
+ *
+ * Encodings run on a fixed number of [parallelism] threads that share one [OrtSession]. The intra-op parallelism of the
+ * session is tuned so that concurrent encodings do not oversubscribe the available cores. Interactive requests are
+ * queued ahead of [prefetches][prefetch]. Callers should keep fewer than [parallelism] prefetches pending, so that an
+ * interactive request does not have to wait for a prefetch to finish.
+ *
+ * Two kinds of encoder exports are supported:
+ *  - the plain encoder with input `[1, 3, 1024, 1024]`, that expects the image to be resized, normalized and padded as
+ *  in the reference SAM implementation, which is done by [preprocess]
+ *  - encoders with preprocessing included in the graph, with input `[height, width, 3]` of raw RGB values
+ */
+class SamLocalImageEncoder(
+	modelLocation: String,
+	val parallelism: Int = DEFAULT_PARALLELISM,
+	intraOpThreads: Int = max(1, Runtime.getRuntime().availableProcessors() / parallelism)
+) : AutoCloseable {
+
+	private val environment: OrtEnvironment = OrtEnvironment.getEnvironment()
+
+	private val session: OrtSession
+
+	private val inputName: String
+
+	private val preprocessingInGraph: Boolean
+
+	private val executor = object : ThreadPoolExecutor(
+		parallelism,
+		parallelism,
+		0L,
+		TimeUnit.MILLISECONDS,
+		PriorityBlockingQueue(),
+		NamedThreadFactory("sam-local-encoder-%d", true)
+	) {
+		/* running encodings cannot be interrupted in native code, so the session is closed once the last one finished */
+		override fun terminated() {
+			session.close()
+			LOG.debug { "Closed SAM image encoder session" }
+		}
+	}
+
+	private val sequence = AtomicLong()
+
+	init {
+		require(parallelism > 0) { "Parallelism must be positive but was $parallelism" }
+		val model = try {
+			this::class.java.classLoader.getResourceAsStream(modelLocation)!!.readAllBytes()
+		} catch (e: Exception) {
+			Files.readAllBytes(Paths.get(modelLocation))
+		}
+		val options = OrtSession.SessionOptions().apply {
+			setIntraOpNumThreads(intraOpThreads)
+			setInterOpNumThreads(1)
+			setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT)
+		}
+		session = environment.createSession(model, options)
+		val (name, info) = session.inputInfo.entries.first()
+		inputName = name
+		val shape = (info.info as TensorInfo).shape
+		preprocessingInGraph = shape.size == 3 && shape[2] == 3L
+		LOG.info { "Loaded SAM image encoder from $modelLocation with $parallelism x $intraOpThreads threads (input $inputName ${shape.contentToString()})" }
+	}
+
+	/**
+	 * Compute the embedding of [image], waiting for a free thread if necessary.
+	 *
+	 * @return embedding in native byte order
+	 */
+	fun encode(image: RgbImage): FloatBuffer = submit(INTERACTIVE_PRIORITY) { run(image) }.get()
+
+	/**
+	 * Compute the embedding of [image] once no interactive requests are queued.
+	 *
+	 * @return embedding in native byte order
+	 */
+	fun prefetch(image: RgbImage): FloatBuffer = submit(PREFETCH_PRIORITY) { run(image) }.get()
+
+	private fun submit(priority: Int, task: () -> FloatBuffer) = PrioritizedTask(priority, sequence.getAndIncrement(), task).also { executor.execute(it) }
+
+	private fun run(image: RgbImage): FloatBuffer {
+		val start = System.nanoTime()
+		val input = if (preprocessingInGraph)
+			OnnxTensor.createTensor(environment, rawPixels(image), longArrayOf(image.height.toLong(), image.width.toLong(), 3))
+		else
+			OnnxTensor.createTensor(environment, preprocess(image), longArrayOf(1, 3, INPUT_SIZE.toLong(), INPUT_SIZE.toLong()))
+		input.use {
+			session.run(mapOf(inputName to input)).use { result ->
+				val output = (result[0] as OnnxTensor).floatBuffer
+				val embedding = ByteBuffer.allocateDirect(output.remaining() * Float.SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer()
+				embedding.put(output)
+				embedding.flip()
+				LOG.debug { "Encoded ${image.width}x${image.height} image in ${(System.nanoTime() - start) / 1000000} ms" }
+				return embedding
+			}
+		}
+	}
+
+	/**
+	 * Cancel queued encodings and close the session as soon as running encodings are finished, without waiting for them.
+	 */
+	override fun close() {
+		executor.shutdownNow().forEach { (it as? Future<*>)?.cancel(false) }
+	}
+
+	private class PrioritizedTask(
+		private val priority: Int,
+		private val sequence: Long,
+		task: () -> FloatBuffer
+	) : FutureTask<FloatBuffer>(task), Comparable<PrioritizedTask> {
+
+		override fun compareTo(other: PrioritizedTask) = compareValuesBy(this, other, { it.priority }, { it.sequence })
+	}
+
+	companion object {
+
+		private val LOG = KotlinLogging.logger { }
+
+		const val DEFAULT_PARALLELISM = 2
+
+		private const val INTERACTIVE_PRIORITY = 0
+
+		private const val PREFETCH_PRIORITY = 1
+
+		/* the encoder input is square */
+		private const val INPUT_SIZE = SamPredictor.MAX_DIM_TARGET
+
+		private val PIXEL_MEAN = floatArrayOf(123.675f, 116.28f, 103.53f)
+
+		private val PIXEL_STD = floatArrayOf(58.395f, 57.12f, 57.375f)
+
+		private fun rawPixels(image: RgbImage): FloatBuffer {
+			val pixels = ByteBuffer.allocateDirect(image.pixels.size * Float.SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer()
+			for (value in image.pixels)
+				pixels.put(java.lang.Byte.toUnsignedInt(value).toFloat())
+			return pixels.flip()
+		}
+
+		/**
+		 * Resize [image] so that its longest side is `1024` with bilinear interpolation, normalize each channel with
+		 * the pixel mean and standard deviation that SAM was trained with, and pad with zeros at the bottom and right
+		 * to `1024 x 1024`.
+		 *
+		 * @return `[1, 3, 1024, 1024]` input of the encoder in native byte order
+		 */
+		@JvmStatic
+		fun preprocess(image: RgbImage): FloatBuffer {
+			val scale = INPUT_SIZE.toDouble() / max(image.width, image.height)
+			val width = min(INPUT_SIZE, (image.width * scale).roundToInt())
+			val height = min(INPUT_SIZE, (image.height * scale).roundToInt())
+			val planeSize = INPUT_SIZE * INPUT_SIZE
+			val input = ByteBuffer.allocateDirect(3 * planeSize * Float.SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer()
+			val pixels = image.pixels
+			for (y in 0 until height) {
+				/* pixel centers are aligned, as for align_corners=False */
+				val sy = ((y + 0.5) / scale - 0.5).coerceIn(0.0, image.height - 1.0)
+				val y0 = floor(sy).toInt()
+				val y1 = min(y0 + 1, image.height - 1)
+				val wy = (sy - y0).toFloat()
+				for (x in 0 until width) {
+					val sx = ((x + 0.5) / scale - 0.5).coerceIn(0.0, image.width - 1.0)
+					val x0 = floor(sx).toInt()
+					val x1 = min(x0 + 1, image.width - 1)
+					val wx = (sx - x0).toFloat()
+					for (c in 0 until 3) {
+						val v00 = java.lang.Byte.toUnsignedInt(pixels[3 * (y0 * image.width + x0) + c])
+						val v01 = java.lang.Byte.toUnsignedInt(pixels[3 * (y0 * image.width + x1) + c])
+						val v10 = java.lang.Byte.toUnsignedInt(pixels[3 * (y1 * image.width + x0) + c])
+						val v11 = java.lang.Byte.toUnsignedInt(pixels[3 * (y1 * image.width + x1) + c])
+						val top = v00 + wx * (v01 - v00)
+						val bottom = v10 + wx * (v11 - v10)
+						val value = top + wy * (bottom - top)
+						input.put(c * planeSize + y * INPUT_SIZE + x, (value - PIXEL_MEAN[c]) / PIXEL_STD[c])
+					}
+				}
+			}
+			return input
+		}
+	}
+}
@@ -19,7 +19,11 @@ import org.janelia.saalfeldlab.fx.extensions.nonnull
 import org.janelia.saalfeldlab.fx.ui.NumberField
 import org.janelia.saalfeldlab.fx.ui.ObjectField
 import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_COMPRESS_ENCODING
+import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_EMBEDDING_CACHE_SIZE
+import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_ENCODER_MODEL_LOCATION
+import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_LOCAL_ENCODER
 import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_MODEL_LOCATION
+import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_RAW_TRANSPORT
 import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_RESPONSE_TIMEOUT
 import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig.Companion.DEFAULT_SERVICE_URL
 import org.janelia.saalfeldlab.paintera.serialization.GsonExtensions.get
@@ -50,11 +54,39 @@ class SegmentAnythingConfig : ObservableValueBase<SegmentAnythingConfig>() {
 	private val compressEncodingProperty = SimpleBooleanProperty(DEFAULT_COMPRESS_ENCODING)
 	var compressEncoding: Boolean by compressEncodingProperty.nonnull()
 
+	/**
+	 * Send raw RGB pixels and receive the raw float embedding instead of PNG and base64. Falls back to PNG and base64
+	 * if the service does not support it.
+	 */
+	private val rawTransportProperty = SimpleBooleanProperty(DEFAULT_RAW_TRANSPORT)
+	var rawTransport: Boolean by rawTransportProperty.nonnull()
+
+	/**
+	 * Compute embeddings in process with the image encoder at [encoderModelLocation] instead of requesting them from the service.
+	 */
+	private val localEncoderProperty = SimpleBooleanProperty(DEFAULT_LOCAL_ENCODER)
+	var localEncoder: Boolean by localEncoderProperty.nonnull()
+
+	private val encoderModelLocationProperty = SimpleStringProperty(DEFAULT_ENCODER_MODEL_LOCATION).apply {
+		addListener { _, _, new -> if (new.isBlank()) encoderModelLocation = DEFAULT_ENCODER_MODEL_LOCATION }
+	}
+	var encoderModelLocation: String by encoderModelLocationProperty.nonnull()
+
+	/**
+	 * Budget for embeddings that are cached in the project directory, in MiB. `0` disables the disk cache.
+	 */
+	private val embeddingCacheSizeProperty = SimpleIntegerProperty(DEFAULT_EMBEDDING_CACHE_SIZE).apply {
+		addListener { _, _, new -> if (new == null || new.toInt() < 0) embeddingCacheSize = DEFAULT_EMBEDDING_CACHE_SIZE }
+	}
+	var embeddingCacheSize: Int by embeddingCacheSizeProperty.nonnull()
+
 	internal val allDefault
 		get() = serviceUrl == DEFAULT_SERVICE_URL && modelLocation == DEFAULT_MODEL_LOCATION && responseTimeout == DEFAULT_RESPONSE_TIMEOUT
+				&& embeddingCacheSize == DEFAULT_EMBEDDING_CACHE_SIZE && rawTransport == DEFAULT_RAW_TRANSPORT
+				&& localEncoder == DEFAULT_LOCAL_ENCODER && encoderModelLocation == DEFAULT_ENCODER_MODEL_LOCATION
 
 	@Transient
-	private val observableInvalidationBinding = serviceUrlProperty.createObservableBinding(modelLocationProperty, responseTimeoutProperty, compressEncodingProperty) {
+	private val observableInvalidationBinding = serviceUrlProperty.createObservableBinding(modelLocationProperty, responseTimeoutProperty, compressEncodingProperty, embeddingCacheSizeProperty, rawTransportProperty, localEncoderProperty, encoderModelLocationProperty) {
 		UUID.randomUUID()
 	}.apply { subscribe { _ -> fireValueChangedEvent() } } //trigger the SegmentAnythingConfig listeners
 
@@ -70,6 +102,10 @@ class SegmentAnythingConfig : ObservableValueBase<SegmentAnythingConfig>() {
 		internal const val DEFAULT_MODEL_LOCATION = "sam/sam_vit_h_4b8939.onnx"
 		internal const val DEFAULT_RESPONSE_TIMEOUT = 10 * 1000
 		internal const val DEFAULT_COMPRESS_ENCODING = true
+		internal const val DEFAULT_EMBEDDING_CACHE_SIZE = 1024
+		internal const val DEFAULT_RAW_TRANSPORT = false
+		internal const val DEFAULT_LOCAL_ENCODER = false
+		internal const val DEFAULT_ENCODER_MODEL_LOCATION = "sam/sam_vit_h_4b8939_encoder.onnx"
 	}
 }
 
@@ -86,6 +122,10 @@ class SegmentAnythingConfigNode(val config: SegmentAnythingConfig) : TitledPane(
 		addModelLocationConfigRow(1)
 		addResponseTimeoutConfigRow(2)
 		addCompressEncodingConfigRow(3)
+		addEmbeddingCacheSizeConfigRow(4)
+		addRawTransportConfigRow(5)
+		addLocalEncoderConfigRow(6)
+		addEncoderModelLocationConfigRow(7)
 
 		columnConstraints.add(ColumnConstraints().apply { hgrow = Priority.NEVER })
 		columnConstraints.add(ColumnConstraints().apply { hgrow = Priority.ALWAYS })
@@ -175,6 +215,90 @@ class SegmentAnythingConfigNode(val config: SegmentAnythingConfig) : TitledPane(
 		}
 	}
 
+	private fun GridPane.addEmbeddingCacheSizeConfigRow(row: Int) {
+		Label("Embedding Disk Cache (MiB) ").also {
+			add(it, 0, row)
+			it.alignment = Pos.BASELINE_LEFT
+			it.minWidth = Label.USE_PREF_SIZE
+		}
+		val embeddingCacheSizeField = NumberField.intField(
+			config.embeddingCacheSize,
+			{ it >= 0 },
+			ObjectField.SubmitOn.FOCUS_LOST,
+			ObjectField.SubmitOn.ENTER_PRESSED
+		).also { numberField ->
+			numberField.valueProperty().addListener { _, _, size -> config.embeddingCacheSize = size.toInt() }
+			numberField.textField.also {
+				VBox.setVgrow(it, Priority.NEVER)
+				it.maxWidth = Double.MAX_VALUE
+				it.prefWidth - Double.MAX_VALUE
+				add(it, 1, row)
+			}
+		}
+		Button().also {
+			it.graphic = FontAwesome[FontAwesomeIcon.UNDO]
+			it.onAction = EventHandler { embeddingCacheSizeField.textField.text = "$DEFAULT_EMBEDDING_CACHE_SIZE" }
+			add(it, 2, row)
+		}
+	}
+
+	private fun GridPane.addRawTransportConfigRow(row: Int) {
+		Label("Raw Transport (no PNG/base64)").also {
+			add(it, 0, row)
+			it.alignment = Pos.BASELINE_LEFT
+			it.minWidth = Label.USE_PREF_SIZE
+		}
+		CheckBox().also {
+			it.isSelected = config.rawTransport
+			it.selectedProperty().addListener { _, _, check ->
+				config.rawTransport = check
+			}
+			add(it, 2, row)
+		}
+	}
+
+	private fun GridPane.addLocalEncoderConfigRow(row: Int) {
+		Label("Local Encoder (CPU)").also {
+			add(it, 0, row)
+			it.alignment = Pos.BASELINE_LEFT
+			it.minWidth = Label.USE_PREF_SIZE
+		}
+		CheckBox().also {
+			it.isSelected = config.localEncoder
+			it.selectedProperty().addListener { _, _, check ->
+				config.localEncoder = check
+			}
+			add(it, 2, row)
+		}
+	}
+
+	private fun GridPane.addEncoderModelLocationConfigRow(row: Int) {
+		Label("Encoder Model Location").also {
+			add(it, 0, row)
+			it.alignment = Pos.BASELINE_LEFT
+			it.minWidth = Label.USE_PREF_SIZE
+		}
+		val encoderModelTextField = TextField(config.encoderModelLocation).also {
+			VBox.setVgrow(it, Priority.NEVER)
+			it.maxWidth = Double.MAX_VALUE
+			it.prefWidth - Double.MAX_VALUE
+			it.textProperty().addListener { _, _, new ->
+				if (new.isBlank()) {
+					it.text = DEFAULT_ENCODER_MODEL_LOCATION
+					Platform.runLater { it.positionCaret(0) }
+				} else {
+					config.encoderModelLocation = new
+				}
+			}
+			add(it, 1, row)
+		}
+		Button().also {
+			it.graphic = FontAwesome[FontAwesomeIcon.UNDO]
+			it.onAction = EventHandler { encoderModelTextField.text = DEFAULT_ENCODER_MODEL_LOCATION }
+			add(it, 2, row)
+		}
+	}
+
 	private fun GridPane.addCompressEncodingConfigRow(row: Int) {
 		Label("Compress Encoding").also {
 			add(it, 0, row)
@@ -206,6 +330,14 @@ class SamServiceConfigSerializer : PainteraSerialization.PainteraAdapter<Segment
 				it[src::responseTimeout.name] = src.responseTimeout
 			if (src.compressEncoding != DEFAULT_COMPRESS_ENCODING)
 				it[src::compressEncoding.name] = src.compressEncoding
+			if (src.embeddingCacheSize != DEFAULT_EMBEDDING_CACHE_SIZE)
+				it[src::embeddingCacheSize.name] = src.embeddingCacheSize
+			if (src.rawTransport != DEFAULT_RAW_TRANSPORT)
+				it[src::rawTransport.name] = src.rawTransport
+			if (src.localEncoder != DEFAULT_LOCAL_ENCODER)
+				it[src::localEncoder.name] = src.localEncoder
+			if (src.encoderModelLocation != DEFAULT_ENCODER_MODEL_LOCATION)
+				it[src::encoderModelLocation.name] = src.encoderModelLocation
 		}
 	}
 
@@ -216,6 +348,10 @@ class SamServiceConfigSerializer : PainteraSerialization.PainteraAdapter<Segment
 				it[::modelLocation.name, { model: String -> modelLocation = model }]
 				it[::responseTimeout.name, { timeout: Int -> responseTimeout = timeout }]
 				it[::compressEncoding.name, { compress: Boolean -> compressEncoding = compress }]
+				it[::embeddingCacheSize.name, { size: Int -> embeddingCacheSize = size }]
+				it[::rawTransport.name, { raw: Boolean -> rawTransport = raw }]
+				it[::localEncoder.name, { local: Boolean -> localEncoder = local }]
+				it[::encoderModelLocation.name, { model: String -> encoderModelLocation = model }]
 			}
 		}
 	}
@@ -9,6 +9,8 @@ import javafx.beans.value.ChangeListener
 import javafx.scene.paint.Color
 import kotlinx.coroutines.*
 import kotlinx.coroutines.javafx.awaitPulse
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import net.imglib2.*
 import net.imglib2.algorithm.morphology.distance.DistanceTransform
 import net.imglib2.converter.BiConverter
@@ -65,6 +67,7 @@ import java.util.concurrent.CancellationException
 import java.util.concurrent.atomic.AtomicReference
 import java.util.function.Supplier
 import kotlin.math.absoluteValue
+import kotlin.math.floor
 import kotlin.math.sqrt
 
 private val EMPTY_3D_INTERVAL = Intervals.createMinSize(0, 0, 0, 0, 0, 0)
@@ -85,7 +88,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 
 	internal var interpolationId: Long = Label.INVALID
 
-	private val slicesAndInterpolants = SlicesAndInterpolants()
+	private val slicesAndInterpolants = SlicesAndInterpolants<SliceInfo>()
 
 	val isBusyProperty = SimpleBooleanProperty(false, "Shape Interpolation Controller is Busy")
 	private var isBusy: Boolean by isBusyProperty.nonnull()
@@ -133,8 +136,11 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 
 	private val interpolationSupervisor = SupervisorJob()
 
-	@OptIn(ExperimentalCoroutinesApi::class, DelicateCoroutinesApi::class)
-	private val interpolationScope = CoroutineScope(newSingleThreadContext("Slice Interpolation Context") + interpolationSupervisor)
+	/* pairs of slices are interpolated in parallel, but one interpolation job after the other */
+	@OptIn(ExperimentalCoroutinesApi::class)
+	private val interpolationScope = CoroutineScope(Dispatchers.Default.limitedParallelism(INTERPOLATION_THREADS) + interpolationSupervisor)
+
+	private val interpolationMutex = Mutex()
 
 	private var requestRepaintUpdaterJob: Job = Job().apply { complete() }
 
@@ -323,23 +329,24 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 
 		isBusy = true
 		interpolationScope.async {
-			var updateInterval: RealInterval? = null
-			for ((firstSlice, secondSlice) in slicesAndInterpolants.zipWithNext().reversed()) {
-				ensureActive()
-
-				if (firstSlice.isInterpolant || secondSlice.isInterpolant)
-					continue
-
-				val slice1 = firstSlice.getSlice()
-				val slice2 = secondSlice.getSlice()
-				val interpolant = interpolateBetweenTwoSlices(slice1, slice2, interpolationId)
-				slicesAndInterpolants.add(firstSlice.sliceDepth, interpolant!!)
-				updateInterval = sequenceOf(slice1.globalBoundingBox, slice2.globalBoundingBox, updateInterval)
+			interpolationMutex.withLock {
+				val pairs = slicesAndInterpolants.pairsWithoutInterpolant()
+
+				pairs.map { (depth, slices) ->
+					val (slice1, slice2) = slices
+					launch {
+						val interpolant = interpolateBetweenTwoSlices(slice1, slice2, interpolationId)
+						ensureActive()
+						slicesAndInterpolants.add(depth, interpolant!!)
+					}
+				}.joinAll()
+
+				updateSliceAndInterpolantsCompositeMask()
+				pairs.asSequence()
+					.flatMap { (_, slices) -> sequenceOf(slices.first.globalBoundingBox, slices.second.globalBoundingBox) }
 					.filterNotNull()
 					.reduceOrNull(Intervals::union)
 			}
-			updateSliceAndInterpolantsCompositeMask()
-			updateInterval
 		}.also { job ->
 			job.invokeOnCompletion { cause ->
 				cause?.let {
@@ -376,8 +383,8 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 
 		val globalToSource = source.getSourceTransformForMask(source.currentMask.info).inverse()
 		val slicesUnionSourceInterval = slicesAndInterpolants
-			.filter(SliceOrInterpolant::isSlice).asSequence()
-			.map(SliceOrInterpolant::getSlice)
+			.filter(SliceOrInterpolant<SliceInfo>::isSlice).asSequence()
+			.map(SliceOrInterpolant<SliceInfo>::getSlice)
 			.mapNotNull(SliceInfo::globalBoundingBox)
 			.map { globalToSource.estimateBounds(it)!! }
 			.reduce(Intervals::union)
@@ -761,6 +768,11 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		private val Long.isInterpolationLabel
 			get() = this.toULong() < Label.MAX_ID.toULong()
 
+		private val INTERPOLATION_THREADS = (Runtime.getRuntime().availableProcessors() / 2).coerceAtLeast(1)
+
+		/* tolerance for slices to count as translated versions of each other */
+		private const val TRANSFORM_EPSILON = 1e-6
+
 		private fun interpolateBetweenTwoSlices(
 			slice1: SliceInfo,
 			slice2: SliceInfo,
@@ -824,9 +836,14 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 				.hyperSlice()
 				.zeroMin()
 
-			// compute distance transform on both slices
-			val distanceTransformPair: MutableList<RandomAccessibleInterval<FloatType>> = mutableListOf()
-			for (i in 0..1) {
+			// compute distance transform on both slices, or take them from the slices if they are translations of each other
+			val distanceTransformPair: MutableList<RandomAccessibleInterval<FloatType>> = cachedDistanceTransforms(
+				slice1,
+				slice2,
+				unionInSlice1Initial,
+				slice2InitialInSlice1InitialAtSlice2Depth
+			) ?: mutableListOf()
+			for (i in distanceTransformPair.size..1) {
 				if (Thread.currentThread().isInterrupted) return null
 				val distanceTransform = ArrayImgFactory(FloatType()).create(slices[i]).also {
 					val binarySlice = slices[i]!!.convertRAI(BoolType()) { source, target ->
@@ -857,7 +874,42 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 			return if (Thread.currentThread().isInterrupted) null else InterpolantInfo(interpolatedShapeMask, FinalRealInterval(interpolatedShapeMask.source))
 		}
 
-		private fun <R, B : BooleanType<B>> computeSignedDistanceTransform(
+		/**
+		 * Signed distance transforms of both slices over [unionInSlice1Initial], at the depth of slice 1, from the
+		 * distance transforms that the slices cache. This is only possible if slice 2 is a translation of slice 1, as
+		 * when both are drawn in the same orientation and zoom. The translation is rounded like nearest neighbor
+		 * interpolation of slice 2 would.
+		 *
+		 * @return `null` if the cached distance transforms cannot be used for this pair of slices
+		 */
+		private fun cachedDistanceTransforms(
+			slice1: SliceInfo,
+			slice2: SliceInfo,
+			unionInSlice1Initial: Interval,
+			slice2ToSlice1AtSlice2Depth: AffineTransform3D
+		): MutableList<RandomAccessibleInterval<FloatType>>? {
+
+			if (slice1.maskBoundingBox == null || slice2.maskBoundingBox == null)
+				return null
+			for (row in 0..2) {
+				for (col in 0..2) {
+					if ((slice2ToSlice1AtSlice2Depth[row, col] - if (row == col) 1.0 else 0.0).absoluteValue > TRANSFORM_EPSILON)
+						return null
+				}
+			}
+			if (slice2ToSlice1AtSlice2Depth[2, 3].absoluteValue > TRANSFORM_EPSILON)
+				return null
+
+			val slice1ToSlice2 = LongArray(2) { floor(-slice2ToSlice1AtSlice2Depth[it, 3] + 0.5).toLong() }
+			val unionInSlice1 = FinalInterval(unionInSlice1Initial.minAsLongArray().copyOf(2), unionInSlice1Initial.maxAsLongArray().copyOf(2))
+			val unionInSlice2 = Intervals.translate(unionInSlice1, *slice1ToSlice2)
+
+			val distanceTransform1 = slice1.signedDistanceTransform(unionInSlice1).interval(unionInSlice1).zeroMin()
+			val distanceTransform2 = slice2.signedDistanceTransform(unionInSlice2).interval(unionInSlice2).zeroMin()
+			return mutableListOf(distanceTransform1, distanceTransform2)
+		}
+
+		internal fun <R, B : BooleanType<B>> computeSignedDistanceTransform(
 			mask: RandomAccessibleInterval<B>,
 			target: RandomAccessibleInterval<R>,
 			distanceType: DistanceTransform.DISTANCE_TYPE,
@@ -874,7 +926,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 			}
 		}
 
-		private fun <R : RealType<R>, T> getInterpolatedDistanceTransformMask(
+		internal fun <R : RealType<R>, T> getInterpolatedDistanceTransformMask(
 			dt1: RandomAccessibleInterval<R>,
 			dt2: RandomAccessibleInterval<R>,
 			distance: Double,
@@ -913,11 +965,11 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		private fun computeDistanceBetweenSlices(s1: SliceInfo, s2: SliceInfo) = ViewerMask.maskToMaskTransformation(s2.mask, s1.mask).translation[2]
 	}
 
-	private class SliceOrInterpolant {
-		private val sliceAndDepth: Pair<Double, SliceInfo>?
+	internal class SliceOrInterpolant<S : Any> {
+		private val sliceAndDepth: Pair<Double, S>?
 		private val interpolant: InterpolantInfo?
 
-		constructor(depth: Double, slice: SliceInfo) {
+		constructor(depth: Double, slice: S) {
 			sliceAndDepth = depth to slice
 			interpolant = null
 		}
@@ -934,7 +986,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 			get() = interpolant != null
 
 
-		fun getSlice(): SliceInfo {
+		fun getSlice(): S {
 			return sliceAndDepth!!.second
 		}
 
@@ -966,9 +1018,9 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 	}
 
-	private class SlicesAndInterpolants(
-		private val list : MutableList<SliceOrInterpolant> = Collections.synchronizedList(mutableListOf())
-	) : List<SliceOrInterpolant> by list, Observable {
+	internal class SlicesAndInterpolants<S : Any>(
+		private val list : MutableList<SliceOrInterpolant<S>> = Collections.synchronizedList(mutableListOf())
+	) : List<SliceOrInterpolant<S>> by list, Observable {
 
 		private val listeners = mutableSetOf<InvalidationListener>()
 
@@ -989,7 +1041,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 
 		@Synchronized
-		fun removeSlice(slice: SliceInfo): Boolean {
+		fun removeSlice(slice: S): Boolean {
 			for (idx in indices) {
 				if (idx >= 0 && idx <= size - 1 && get(idx).equals(slice)) {
 					removeIfInterpolant(idx + 1, invalidate = false)
@@ -1004,7 +1056,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 
 		@Synchronized
-		fun removeSliceAtDepth(depth: Double): SliceInfo? {
+		fun removeSliceAtDepth(depth: Double): S? {
 			return getSliceAtDepth(depth)?.also {
 				removeSlice(it)
 			}
@@ -1025,7 +1077,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 			add(depth, SliceOrInterpolant(interpolant))
 		}
 
-		fun add(depth: Double, slice: SliceInfo) {
+		fun add(depth: Double, slice: S) {
 			add(depth, SliceOrInterpolant(depth, slice))
 		}
 
@@ -1036,7 +1088,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 
 		@Synchronized
-		fun add(depth: Double, sliceOrInterpolant: SliceOrInterpolant) {
+		fun add(depth: Double, sliceOrInterpolant: SliceOrInterpolant<S>) {
 			for (idx in this.indices) {
 				if (get(idx).isSlice && get(idx).sliceDepth > depth) {
 					LOG.trace { "Adding Slice: $idx" }
@@ -1062,7 +1114,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 
 		@Synchronized
-		fun getSliceAtDepth(depth: Double): SliceInfo? {
+		fun getSliceAtDepth(depth: Double): S? {
 			for (sliceOrInterpolant in list) {
 				if (sliceOrInterpolant.isSlice && sliceOrInterpolant.sliceDepth == depth) {
 					return sliceOrInterpolant.getSlice()
@@ -1085,8 +1137,8 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 
 		@Synchronized
-		fun previousSlice(depth: Double): SliceInfo? {
-			var prevSlice: SliceInfo? = null
+		fun previousSlice(depth: Double): S? {
+			var prevSlice: S? = null
 			for (sliceOrInterpolant in this) {
 				if (sliceOrInterpolant.isSlice) {
 					prevSlice = if (sliceOrInterpolant.sliceDepth < depth) {
@@ -1100,7 +1152,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 
 		@Synchronized
-		fun nextSlice(depth: Double): SliceInfo? {
+		fun nextSlice(depth: Double): S? {
 			for (sliceOrInterpolant in list) {
 				if (sliceOrInterpolant.isSlice && sliceOrInterpolant.sliceDepth > depth) {
 					return sliceOrInterpolant.getSlice()
@@ -1109,9 +1161,9 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 			return null
 		}
 
-		val slices: List<SliceInfo>
+		val slices: List<S>
 			@Synchronized
-			get() = mutableListOf<SliceInfo>().let {
+			get() = mutableListOf<S>().let {
 				val iterator = iterator()
 				while (iterator.hasNext()) {
 					val element = iterator.next()
@@ -1133,6 +1185,19 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 				it.toList()
 			}
 
+		/**
+		 * Adjacent slices without an interpolant between them. As adding, changing, or removing a slice clears the
+		 * interpolants next to it, these are the pairs that need to be interpolated (again).
+		 *
+		 * @return depth of the first slice and both slices, for each pair
+		 */
+		@Synchronized
+		fun pairsWithoutInterpolant(): List<Pair<Double, Pair<S, S>>> {
+			return zipWithNext()
+				.filter { (firstSlice, secondSlice) -> firstSlice.isSlice && secondSlice.isSlice }
+				.map { (firstSlice, secondSlice) -> firstSlice.sliceDepth to (firstSlice.getSlice() to secondSlice.getSlice()) }
+		}
+
 		@Synchronized
 		fun clearInterpolantsAroundSlice(z: Double) {
 			for (idx in indices) {
@@ -1178,6 +1243,36 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 	val previewProperty = SimpleBooleanProperty(true)
 	var preview: Boolean by previewProperty.nonnull()
 
+	/**
+	 * Signed distance transform of a 2D mask, computed again only if the mask changed or if a larger interval is needed.
+	 *
+	 * @param compute signed distance transform over a domain, with a zero min
+	 */
+	internal class SignedDistanceTransformCache(private val compute: (Interval) -> RandomAccessibleInterval<FloatType>) {
+
+		/* mask version and signed distance transform, the interval grows as needed */
+		private var distanceTransform: Pair<Long, RandomAccessibleInterval<FloatType>>? = null
+
+		/**
+		 * @param version of the mask; a different version than the cached one invalidates the cached result
+		 * @param interval that the result has to cover
+		 * @param labelInterval bounding box of the label in the mask, if any. Only evaluated when computing.
+		 * @return signed distance transform over at least [interval]
+		 */
+		@Synchronized
+		fun get(version: Long, interval: Interval, labelInterval: () -> Interval?): RandomAccessibleInterval<FloatType> {
+
+			val cached = distanceTransform?.takeIf { (cachedVersion, _) -> cachedVersion == version }?.second
+			if (cached != null && Intervals.contains(cached, interval))
+				return cached
+
+			/* background around the whole label, so that distances inside of the label are not cut off */
+			val labelWithBackground = labelInterval()?.let { Intervals.expand(it, 1) }
+			val domain = listOfNotNull(cached, interval, labelWithBackground).reduce { acc, it -> acc union it }
+			return Views.translate(compute(domain), *domain.minAsLongArray()).also { distanceTransform = version to it }
+		}
+	}
+
 	class InterpolantInfo(val dataInterpolant: RealRandomAccessible<UnsignedLongType>, val interval: RealInterval?)
 
 	open class SliceInfo(
@@ -1193,10 +1288,38 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 
 		private val selectionIntervals: MutableList<Interval> = mutableListOf()
 
+		/** Incremented whenever a selection is added to the mask */
+		@Volatile
+		var maskVersion = 0L
+			private set
+
+		/* signed distance transform of the mask at depth 0 */
+		private val distanceTransform = SignedDistanceTransformCache { domain ->
+			val binarySlice = mask.viewerImg
+				.extendValue(Label.INVALID)
+				.hyperSlice()
+				.interval(domain)
+				.zeroMin()
+				.convertRAI(BoolType()) { source, target -> target.set(source.get().isInterpolationLabel) }
+			ArrayImgFactory(FloatType()).create(binarySlice).also {
+				computeSignedDistanceTransform(binarySlice, it, DistanceTransform.DISTANCE_TYPE.EUCLIDIAN)
+			}
+		}
+
 		init {
 			selectionInterval?.let { addSelection(it) }
 		}
 
+		/**
+		 * @return signed distance transform of the mask over at least [interval], in xy of the initial mask at depth 0.
+		 * 	It is computed again only if the mask changed or if [interval] is not covered by the previous result.
+		 */
+		internal fun signedDistanceTransform(interval: Interval): RandomAccessibleInterval<FloatType> {
+			return distanceTransform.get(maskVersion, interval) {
+				maskBoundingBox?.let { FinalInterval(it.minAsLongArray().copyOf(2), it.maxAsLongArray().copyOf(2)) }
+			}
+		}
+
 		private fun computeBoundingBoxInInitialMask(): Interval? {
 			class ShrinkingInterval(
 				val ndim: Int,
@@ -1240,6 +1363,7 @@ class ShapeInterpolationController<D : IntegerType<D>>(
 		}
 
 		fun addSelection(selectionInterval: Interval) {
+			++maskVersion
 			selectionIntervals.add(selectionInterval)
 			maskBoundingBox //recompute the bounding box, incase we "add" TRANSPARENT pixels (that is, erase)
 		}
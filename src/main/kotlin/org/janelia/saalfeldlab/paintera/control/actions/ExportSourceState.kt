@@ -7,10 +7,11 @@ import javafx.scene.layout.Priority
 import javafx.scene.layout.VBox
 import kotlinx.coroutines.*
 import net.imglib2.RandomAccessibleInterval
-import net.imglib2.img.cell.CellGrid
 import net.imglib2.type.NativeType
 import net.imglib2.type.numeric.IntegerType
 import net.imglib2.type.numeric.integer.AbstractIntegerType
+import net.imglib2.util.Intervals
+import net.imglib2.view.Views
 import org.janelia.saalfeldlab.fx.extensions.createObservableBinding
 import org.janelia.saalfeldlab.fx.ui.ExceptionNode
 import org.janelia.saalfeldlab.fx.util.InvokeOnJavaFXApplicationThread
@@ -18,6 +19,7 @@ import org.janelia.saalfeldlab.labels.Label
 import org.janelia.saalfeldlab.n5.DataType
 import org.janelia.saalfeldlab.n5.DatasetAttributes
 import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader
+import org.janelia.saalfeldlab.n5.N5URI
 import org.janelia.saalfeldlab.n5.N5Writer
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils
 import org.janelia.saalfeldlab.n5.universe.metadata.N5SpatialDatasetMetadata
@@ -38,8 +40,6 @@ import org.janelia.saalfeldlab.paintera.ui.dialogs.AnimatedProgressBarAlert
 import org.janelia.saalfeldlab.util.convertRAI
 import org.janelia.saalfeldlab.util.interval
 import org.janelia.saalfeldlab.util.n5.N5Helpers.MAX_ID_KEY
-import org.janelia.saalfeldlab.util.n5.N5Helpers.forEachBlockExists
-import java.util.concurrent.atomic.AtomicInteger
 import kotlin.coroutines.cancellation.CancellationException
 
 class ExportSourceState {
@@ -54,6 +54,8 @@ class ExportSourceState {
 	val segmentFragmentMappingProperty = SimpleBooleanProperty(true)
 	val scaleLevelProperty = SimpleIntegerProperty(0)
 	val dataTypeProperty = SimpleObjectProperty(DataType.UINT64)
+	val exportPyramidProperty = SimpleBooleanProperty(false)
+	val resumeProperty = SimpleBooleanProperty(false)
 
 	private val exportableSourceRAI: RandomAccessibleInterval<out NativeType<*>>?
 		get() {
@@ -89,7 +91,6 @@ class ExportSourceState {
 
 	//TODO Caleb: some future ideas:
 	//  - Export specific label? Maybe only if LabelBlockLookup is present?
-	//  - Export multiscale pyramid
 	//  - Export interval of label source
 	//  - custom fragment to segment mapping
 	fun exportSource(showProgressAlert: Boolean = false): Job? {
@@ -102,21 +103,21 @@ class ExportSourceState {
 
 		val scaleLevel = scaleLevelProperty.value
 		val dataType = dataTypeProperty.value
+		val scaleLevels = scaleLevel..if (exportPyramidProperty.value) source.numMipmapLevels - 1 else scaleLevel
 
 		val metadataState = backend.metadataState
 		val n5 = backend.container as GsonKeyValueN5Reader
-		val sourceMetadata = metadataState.let { it as? MultiScaleMetadataState }?.metadata?.get(scaleLevel) ?: metadataState.metadata as N5SpatialDatasetMetadata
+		val sourceMetadata = metadataState.metadataAt(scaleLevel)
+		val sourceDataset = N5URI.normalizeGroupPath(sourceMetadata.path)
 
-		val exportRAI = exportableSourceRAI!!
-		val cellGrid: CellGrid = source.getCellGrid(0, scaleLevel)
-		val sourceAttributes: DatasetAttributes = sourceMetadata.attributes
+		val exportRAI = exportableSourceRAI!! as RandomAccessibleInterval<IntegerType<*>>
+		val levels = exportLevels(dataset, scaleLevels, dataType, metadataState)
+		val export = PyramidExport(levels, resume = resumeProperty.value)
 
-		val exportAttributes = DatasetAttributes(sourceAttributes.dimensions, sourceAttributes.blockSize, dataType, sourceAttributes.compression)
-
-		val totalBlocks = cellGrid.gridDimensions.reduce { acc, dim -> acc * dim }
-		val count = SimpleIntegerProperty(0)
-		val labelProp = SimpleStringProperty("Blocks Written 0 / $totalBlocks").apply {
-			bind(count.createObservableBinding { "Blocks Written ${it.value} / $totalBlocks" })
+		val totalBlocks = export.totalBlocks
+		val count = SimpleLongProperty(0)
+		val labelProp = SimpleStringProperty("Blocks Exported 0 / $totalBlocks").apply {
+			bind(count.createObservableBinding { "Blocks Exported ${it.value} / $totalBlocks" })
 		}
 		val progressProp = SimpleDoubleProperty(0.0).apply {
 			bind(count.createObservableBinding { it.get().toDouble() / totalBlocks })
@@ -130,19 +131,39 @@ class ExportSourceState {
 			)
 		} else null to null
 
-		val blocksWritten = AtomicInteger(0)
+		val blocksWritten = export.writtenBlocks
 
 		val exportJob = CoroutineScope(Dispatchers.Default).launch {
 			val writer = Paintera.n5Factory.newWriter(exportLocation)
-			exportOmeNGFFMetadata(writer, dataset, scaleLevel, exportAttributes, metadataState)
+			writer.createGroup(dataset)
 			if (maxIdProperty.value > -1)
 				writer.setAttribute(dataset, MAX_ID_KEY, maxIdProperty.value)
-			val scaleLevelDataset = "$dataset/s$scaleLevel"
 
-			forEachBlockExists(n5, sourceMetadata.path, processedBlocks) { cellInterval ->
-				val cellRai = exportRAI.interval(cellInterval)
-				N5Utils.saveBlock(cellRai, writer, scaleLevelDataset, exportAttributes)
+			/* one update per interval instead of one per block */
+			val progressUpdates = processedBlocks?.let { processed ->
+				launch {
+					while (isActive) {
+						val blocks = export.processedBlocks.get()
+						InvokeOnJavaFXApplicationThread { processed.set(blocks) }
+						delay(PROGRESS_UPDATE_INTERVAL_MS)
+					}
+				}
 			}
+
+			export.run(
+				writer,
+				sourceBlockExists = { n5.keyValueAccess.exists(n5.absoluteDataBlockPath(sourceDataset, *it)) },
+				readBlock = { interval ->
+					val labels = LongArray(Intervals.numElements(interval).toInt())
+					var i = 0
+					for (label in Views.flatIterable(exportRAI.interval(interval)))
+						labels[i++] = label.integerLong
+					labels
+				}
+			)
+			exportOmeNGFFMetadata(writer, dataset, scaleLevels, metadataState)
+			progressUpdates?.cancel()
+			processedBlocks?.let { processed -> InvokeOnJavaFXApplicationThread { processed.set(export.processedBlocks.get()) } }
 			Paintera.n5Factory.clearKey(exportLocation)
 		}
 		progressUpdater?.apply {
@@ -167,7 +188,7 @@ class ExportSourceState {
 									Export Location: 
 											$exportLocation
 									Dataset:        $dataset
-									Scale Level:    $scaleLevel
+									Scale Levels:   ${scaleLevels.first} - ${scaleLevels.last}
 									
 									Blocks Written: ${blocksWritten.get()}
 								""".trimIndent()
@@ -205,43 +226,65 @@ class ExportSourceState {
 		return exportJob
 	}
 
+	/**
+	 * The first level has the dimensions and block size of the source at [scaleLevels]`.first`. Each further level
+	 * is downsampled from the previous one by the ratio of their source resolutions, and has the block size of the
+	 * source at that level.
+	 */
+	private fun exportLevels(dataset: String, scaleLevels: IntRange, dataType: DataType, metadataState: MetadataState): List<PyramidExport.Level> {
+
+		val levels = mutableListOf<PyramidExport.Level>()
+		for (scaleLevel in scaleLevels) {
+			val sourceMetadata = metadataState.metadataAt(scaleLevel)
+			val sourceAttributes = sourceMetadata.attributes
+			val previous = levels.lastOrNull()
+			if (previous == null) {
+				val attributes = DatasetAttributes(sourceAttributes.dimensions, sourceAttributes.blockSize, dataType, sourceAttributes.compression)
+				levels += PyramidExport.Level("$dataset/s$scaleLevel", attributes)
+			} else {
+				val previousResolution = metadataState.metadataAt(scaleLevel - 1).resolution
+				val factors = IntArray(sourceAttributes.numDimensions) { d -> maxOf(1, Math.round(sourceMetadata.resolution[d] / previousResolution[d]).toInt()) }
+				val dimensions = LongArray(factors.size) { d -> maxOf(1, (previous.attributes.dimensions[d] + factors[d] - 1) / factors[d]) }
+				val attributes = DatasetAttributes(dimensions, sourceAttributes.blockSize, dataType, sourceAttributes.compression)
+				levels += PyramidExport.Level("$dataset/s$scaleLevel", attributes, factors)
+			}
+		}
+		return levels
+	}
+
 	internal fun exportOmeNGFFMetadata(
 		writer: N5Writer,
 		dataset: String,
-		scaleLevel: Int,
-		datasetAttributes: DatasetAttributes,
+		scaleLevels: IntRange,
 		metadataState: MetadataState,
 	) {
-		val scaleLevelDataset = "$dataset/s$scaleLevel"
-		writer.createGroup(dataset)
-		writer.createDataset(scaleLevelDataset, datasetAttributes)
-
-		val sourceMetadata = metadataState.let { it as? MultiScaleMetadataState }?.metadata?.get(scaleLevel) ?: metadataState.metadata as N5SpatialDatasetMetadata
+		val s0Metadata = metadataState.metadataAt(0)
+		val scaleLevelsMetadata = scaleLevels.map { metadataState.metadataAt(it) }
 
-		val translation = (metadataState as? MultiScaleMetadataState)?.let {
-			if (scaleLevel == 0)
+		val translations = scaleLevels.zip(scaleLevelsMetadata) { scaleLevel, sourceMetadata ->
+			if (metadataState !is MultiScaleMetadataState || scaleLevel == 0)
 				sourceMetadata.offset
 			else {
-				val s0Metadata = it.metadata[0]
 				val s0Resolution = s0Metadata.resolution
 				val s0Offset = s0Metadata.offset
 				DoubleArray(3) { idx ->
 					s0Offset[idx] + (sourceMetadata.resolution[idx] - s0Resolution[idx]) / 2.0
 				}
 			}
-		} ?: sourceMetadata.offset
+		}
 
+		val sourceMetadata = scaleLevelsMetadata.first()
 		val exportMetadata = OmeNgffMetadata.buildForWriting(
-			datasetAttributes.numDimensions,
+			sourceMetadata.attributes.numDimensions,
 			dataset,
 			arrayOf(
 				Axis(Axis.SPACE, "x", sourceMetadata.unit(), false),
 				Axis(Axis.SPACE, "y", sourceMetadata.unit(), false),
 				Axis(Axis.SPACE, "z", sourceMetadata.unit(), false)
 			),
-			arrayOf("s$scaleLevel"),
-			arrayOf(sourceMetadata.resolution),
-			arrayOf(translation)
+			scaleLevels.map { "s$it" }.toTypedArray(),
+			scaleLevelsMetadata.map { it.resolution }.toTypedArray(),
+			translations.toTypedArray()
 		)
 
 		OmeNgffMetadataParser().writeMetadata(
@@ -250,4 +293,10 @@ class ExportSourceState {
 			dataset
 		)
 	}
-}
\ No newline at end of file
+
+	companion object {
+		private const val PROGRESS_UPDATE_INTERVAL_MS = 100L
+
+		private fun MetadataState.metadataAt(scaleLevel: Int) = (this as? MultiScaleMetadataState)?.metadata?.get(scaleLevel) ?: metadata as N5SpatialDatasetMetadata
+	}
+}
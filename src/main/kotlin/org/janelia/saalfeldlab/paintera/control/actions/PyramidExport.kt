@@ -0,0 +1,388 @@
+package org.janelia.saalfeldlab.paintera.control.actions
+
+import gnu.trove.map.hash.TLongIntHashMap
+import io.github.oshai.kotlinlogging.KotlinLogging
+import kotlinx.coroutines.*
+import kotlinx.coroutines.sync.Semaphore
+import net.imglib2.Interval
+import net.imglib2.img.cell.CellGrid
+import net.imglib2.util.IntervalIndexer
+import net.imglib2.util.Intervals
+import org.janelia.saalfeldlab.n5.DataBlock
+import org.janelia.saalfeldlab.n5.DataType
+import org.janelia.saalfeldlab.n5.DatasetAttributes
+import org.janelia.saalfeldlab.n5.GsonKeyValueN5Reader
+import org.janelia.saalfeldlab.n5.N5URI
+import org.janelia.saalfeldlab.n5.N5Writer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Writes a label image and its downsampled pyramid in one pass over the blocks of the first level.
+ *
+ * Blocks of the first level are read by at most [readers] workers, and encoded and written by at most [writers]
+ * workers. At most [maxBlocksInFlight] blocks of the first level are processed at the same time. A finished block
+ * is kept in memory until all blocks of the next level that overlap it are downsampled, by the most frequent label.
+ * Blocks are visited depth first through the pyramid, so each level only keeps the finished blocks of about one block
+ * of the next level.
+ *
+ * If [resume] is set, blocks that already exist in the target are read back instead of recomputed, so that an
+ * interrupted export continues where it stopped. Levels whose dataset attributes changed are exported from scratch.
+ */
+internal class PyramidExport(
+	private val levels: List<Level>,
+	private val readers: Int = Runtime.getRuntime().availableProcessors(),
+	private val writers: Int = Runtime.getRuntime().availableProcessors(),
+	private val maxBlocksInFlight: Int = 2 * readers,
+	private val resume: Boolean = false,
+) {
+
+	/**
+	 * @param dataset target dataset of this level
+	 * @param attributes of the target dataset
+	 * @param factors downsampling factors relative to the previous level, ignored for the first level
+	 */
+	class Level(val dataset: String, val attributes: DatasetAttributes, val factors: IntArray = IntArray(attributes.numDimensions) { 1 }) {
+		internal val grid = CellGrid(attributes.dimensions, attributes.blockSize)
+		internal val numBlocks = Intervals.numElements(*grid.gridDimensions)
+	}
+
+	/** Blocks of all levels that are finished, written or not */
+	val processedBlocks = AtomicLong()
+
+	/** Blocks that were encoded and written */
+	val writtenBlocks = AtomicLong()
+
+	/** Blocks that already existed in the target */
+	val resumedBlocks = AtomicLong()
+
+	val totalBlocks = levels.sumOf { it.numBlocks }
+
+	/** Most finished blocks of all levels that were kept in memory at the same time */
+	val peakFinishedBlocks = AtomicInteger()
+
+	private val numFinishedBlocks = AtomicInteger()
+
+	/* finished blocks, until all overlapping blocks of the next level are downsampled */
+	private val finished = Array(levels.size) { ConcurrentHashMap<Long, Finished>() }
+
+	/* number of blocks of the previous level that a block still waits for */
+	private val pending = Array(levels.size) { ConcurrentHashMap<Long, AtomicInteger>() }
+
+	private val resumable = BooleanArray(levels.size)
+
+	private lateinit var writer: N5Writer
+
+	private class Finished(val data: LongArray?, parents: Int) {
+		val remainingParents = AtomicInteger(parents)
+	}
+
+	init {
+		require(levels.isNotEmpty()) { "Nothing to export" }
+		require(levels.first().attributes.dataType < DataType.FLOAT32) { "Only integer labels can be exported" }
+	}
+
+	/**
+	 * Create the datasets in [writer] and export all blocks.
+	 *
+	 * @param sourceBlockExists whether the block of the first level at the grid position has any data, empty blocks are not written
+	 * @param readBlock labels of the first level in the interval, in flat iteration order
+	 */
+	@OptIn(ExperimentalCoroutinesApi::class)
+	suspend fun run(writer: N5Writer, sourceBlockExists: (LongArray) -> Boolean, readBlock: (Interval) -> LongArray) = coroutineScope {
+
+		this@PyramidExport.writer = writer
+		levels.forEachIndexed { level, it ->
+			resumable[level] = resume && writer.datasetExists(it.dataset) && writer.getDatasetAttributes(it.dataset).let { existing ->
+				existing.dimensions.contentEquals(it.attributes.dimensions)
+						&& existing.blockSize.contentEquals(it.attributes.blockSize)
+						&& existing.dataType == it.attributes.dataType
+			}
+			if (!resumable[level])
+				writer.createDataset(it.dataset, it.attributes)
+		}
+
+		val readDispatcher = Dispatchers.IO.limitedParallelism(readers)
+		val writeDispatcher = Dispatchers.IO.limitedParallelism(writers)
+		val inFlight = Semaphore(maxBlocksInFlight)
+
+		val first = levels.first()
+		val position = LongArray(first.grid.numDimensions())
+		forEachBlockInOrder { index ->
+			first.grid.getCellGridPositionFlat(index, position)
+			val gridPosition = position.clone()
+			inFlight.acquire()
+			launch(readDispatcher) {
+				try {
+					val data = readExisting(0, gridPosition)
+						?: if (sourceBlockExists(gridPosition)) readBlock(blockInterval(first.grid, gridPosition)).also { write(0, gridPosition, it, writeDispatcher) }
+						else null
+					finish(0, index, data, readDispatcher, writeDispatcher)
+				} finally {
+					inFlight.release()
+				}
+			}
+		}
+	}
+
+	private suspend fun finish(level: Int, index: Long, data: LongArray?, readDispatcher: CoroutineDispatcher, writeDispatcher: CoroutineDispatcher) {
+
+		processedBlocks.incrementAndGet()
+		if (level == levels.lastIndex)
+			return
+
+		val parents = parentsOf(level, index)
+		finished[level][index] = Finished(data, parents.size)
+		numFinishedBlocks.incrementAndGet().let { numFinished -> peakFinishedBlocks.accumulateAndGet(numFinished) { a, b -> maxOf(a, b) } }
+		for (parent in parents) {
+			val remaining = pending[level + 1].computeIfAbsent(parent) { AtomicInteger(childrenOf(level + 1, it).size) }
+			if (remaining.decrementAndGet() == 0) {
+				pending[level + 1].remove(parent)
+				val parentLevel = levels[level + 1]
+				val gridPosition = LongArray(parentLevel.grid.numDimensions()).also { parentLevel.grid.getCellGridPositionFlat(parent, it) }
+				val parentData = readExisting(level + 1, gridPosition) ?: withContext(readDispatcher) { downsample(level + 1, parent) }
+					?.also { write(level + 1, gridPosition, it, writeDispatcher) }
+				for (child in childrenOf(level + 1, parent))
+					finished[level][child]?.let {
+						if (it.remainingParents.decrementAndGet() == 0 && finished[level].remove(child) != null)
+							numFinishedBlocks.decrementAndGet()
+					}
+				finish(level + 1, parent, parentData, readDispatcher, writeDispatcher)
+			}
+		}
+	}
+
+	/**
+	 * @return the most frequent label of each voxel's footprint in the previous level, or `null` if all blocks of the previous level in the footprint are empty
+	 */
+	private fun downsample(level: Int, index: Long): LongArray? {
+
+		val target = levels[level]
+		val source = levels[level - 1]
+		val n = target.grid.numDimensions()
+		val gridPosition = LongArray(n).also { target.grid.getCellGridPositionFlat(index, it) }
+		val targetInterval = blockInterval(target.grid, gridPosition)
+		val sourceInterval = footprint(level, targetInterval)
+
+		/* labels of the footprint, assembled from the finished blocks */
+		val footprintDims = sourceInterval.dimensionsAsLongArray()
+		val labels = LongArray(Intervals.numElements(*footprintDims).toInt())
+		var anyData = false
+		val childPosition = LongArray(n)
+		for (child in childrenOf(level, index)) {
+			val data = finished[level - 1][child]?.data ?: continue
+			anyData = true
+			source.grid.getCellGridPositionFlat(child, childPosition)
+			val childInterval = blockInterval(source.grid, childPosition)
+			val overlap = Intervals.intersect(childInterval, sourceInterval)
+			forEachPosition(overlap) { pos ->
+				labels[flatIndex(pos, sourceInterval)] = data[flatIndex(pos, childInterval)]
+			}
+		}
+		if (!anyData)
+			return null
+
+		val factors = target.factors
+		val downsampled = LongArray(Intervals.numElements(targetInterval).toInt())
+		val counts = TLongIntHashMap()
+		val footprintMin = LongArray(n)
+		val footprintMax = LongArray(n)
+		var i = 0
+		forEachPosition(targetInterval) { pos ->
+			for (d in 0 until n) {
+				footprintMin[d] = pos[d] * factors[d]
+				footprintMax[d] = minOf(footprintMin[d] + factors[d], sourceInterval.max(d) + 1) - 1
+			}
+			counts.clear()
+			var mode = 0L
+			var modeCount = 0
+			forEachPosition(Intervals.createMinMax(*footprintMin, *footprintMax)) { footprintPos ->
+				val label = labels[flatIndex(footprintPos, sourceInterval)]
+				val count = counts.adjustOrPutValue(label, 1, 1)
+				if (count > modeCount) {
+					mode = label
+					modeCount = count
+				}
+			}
+			downsampled[i++] = mode
+		}
+		return downsampled
+	}
+
+	private suspend fun write(level: Int, gridPosition: LongArray, data: LongArray, writeDispatcher: CoroutineDispatcher) = withContext(writeDispatcher) {
+
+		val target = levels[level]
+		val blockSize = IntArray(gridPosition.size)
+		target.grid.getCellDimensions(gridPosition, LongArray(gridPosition.size), blockSize)
+		@Suppress("UNCHECKED_CAST")
+		val block = toDataBlock(target.attributes.dataType, blockSize, gridPosition, data) as DataBlock<Any>
+		writer.writeBlock(target.dataset, target.attributes, block)
+		writtenBlocks.incrementAndGet()
+	}
+
+	/**
+	 * @return labels of the block if it already exists in the target and the export is resumed, otherwise `null`
+	 */
+	private fun readExisting(level: Int, gridPosition: LongArray): LongArray? {
+
+		if (!resumable[level])
+			return null
+		val target = levels[level]
+		if (!blockExistsInTarget(target.dataset, gridPosition))
+			return null
+		val block = try {
+			writer.readBlock(target.dataset, target.attributes, *gridPosition)
+		} catch (e: Exception) {
+			/* probably written partially when the export was interrupted */
+			LOG.debug(e) { "Unable to read block ${gridPosition.contentToString()} of ${target.dataset}, exporting it again" }
+			null
+		} ?: return null
+		resumedBlocks.incrementAndGet()
+		return toLongs(target.attributes.dataType, block)
+	}
+
+	private fun blockExistsInTarget(dataset: String, gridPosition: LongArray): Boolean {
+
+		return (writer as? GsonKeyValueN5Reader)?.run {
+			keyValueAccess.exists(absoluteDataBlockPath(N5URI.normalizeGroupPath(dataset), *gridPosition))
+		} ?: true
+	}
+
+	/**
+	 * Visit all blocks of the first level depth first through the pyramid: the blocks of the last level in flat order,
+	 * and for each block, the blocks of the previous level that it is downsampled from, recursively. A block is
+	 * downsampled as soon as all of its children are finished, so each level only keeps the children of about one block
+	 * of the next level. Only children that overlap two blocks of the next level, where block boundaries of the levels
+	 * are not aligned, are kept longer.
+	 */
+	private suspend fun forEachBlockInOrder(action: suspend (Long) -> Unit) {
+
+		val visited = Array(levels.size) { LongArray(((levels[it].numBlocks + 63) / 64).toInt()) }
+
+		suspend fun visit(level: Int, index: Long) {
+			val word = (index ushr 6).toInt()
+			val bit = 1L shl (index and 63).toInt()
+			if (visited[level][word] and bit != 0L)
+				return
+			visited[level][word] = visited[level][word] or bit
+			if (level == 0)
+				action(index)
+			else
+				for (child in childrenOf(level, index))
+					visit(level - 1, child)
+		}
+
+		for (index in 0 until levels.last().numBlocks)
+			visit(levels.lastIndex, index)
+		/* blocks that are not downsampled into any block of the next level */
+		for (index in 0 until levels.first().numBlocks)
+			visit(0, index)
+	}
+
+	/**
+	 * @return voxels of the previous level that [interval] of [level] is downsampled from
+	 */
+	private fun footprint(level: Int, interval: Interval): Interval {
+
+		val factors = levels[level].factors
+		val sourceGrid = levels[level - 1].grid
+		val n = interval.numDimensions()
+		val min = LongArray(n) { d -> minOf(interval.min(d) * factors[d], sourceGrid.imgDimension(d) - 1) }
+		val max = LongArray(n) { d -> maxOf(min[d], minOf((interval.max(d) + 1) * factors[d], sourceGrid.imgDimension(d)) - 1) }
+		return Intervals.createMinMax(*min, *max)
+	}
+
+	private fun childrenOf(level: Int, index: Long): LongArray {
+
+		val grid = levels[level].grid
+		val gridPosition = LongArray(grid.numDimensions()).also { grid.getCellGridPositionFlat(index, it) }
+		return blocksIntersecting(levels[level - 1].grid, footprint(level, blockInterval(grid, gridPosition)))
+	}
+
+	private fun parentsOf(level: Int, index: Long): LongArray {
+
+		val grid = levels[level].grid
+		val parentLevel = levels[level + 1]
+		val interval = blockInterval(grid, LongArray(grid.numDimensions()).also { grid.getCellGridPositionFlat(index, it) })
+		val n = interval.numDimensions()
+		val min = LongArray(n) { d -> minOf(interval.min(d) / parentLevel.factors[d], parentLevel.grid.imgDimension(d) - 1) }
+		val max = LongArray(n) { d -> minOf(interval.max(d) / parentLevel.factors[d], parentLevel.grid.imgDimension(d) - 1) }
+		return blocksIntersecting(parentLevel.grid, Intervals.createMinMax(*min, *max))
+	}
+
+	companion object {
+
+		private val LOG = KotlinLogging.logger { }
+
+		private fun blockInterval(grid: CellGrid, gridPosition: LongArray): Interval {
+
+			val min = LongArray(gridPosition.size)
+			val size = IntArray(gridPosition.size)
+			grid.getCellDimensions(gridPosition, min, size)
+			return Intervals.createMinSize(*min, *size.map { it.toLong() }.toLongArray())
+		}
+
+		private fun blocksIntersecting(grid: CellGrid, interval: Interval): LongArray {
+
+			val n = grid.numDimensions()
+			val min = LongArray(n) { d -> interval.min(d) / grid.cellDimension(d) }
+			val max = LongArray(n) { d -> interval.max(d) / grid.cellDimension(d) }
+			val blocks = LongArray(Intervals.numElements(*LongArray(n) { d -> max[d] - min[d] + 1 }).toInt())
+			var i = 0
+			forEachPosition(Intervals.createMinMax(*min, *max)) { blocks[i++] = IntervalIndexer.positionToIndex(it, grid.gridDimensions) }
+			return blocks
+		}
+
+		/* x fastest, like flat iteration */
+		private inline fun forEachPosition(interval: Interval, action: (LongArray) -> Unit) {
+
+			val n = interval.numDimensions()
+			val pos = interval.minAsLongArray()
+			while (true) {
+				action(pos)
+				var d = 0
+				while (d < n) {
+					if (++pos[d] <= interval.max(d))
+						break
+					pos[d] = interval.min(d)
+					++d
+				}
+				if (d == n)
+					return
+			}
+		}
+
+		private fun flatIndex(pos: LongArray, interval: Interval): Int {
+
+			var index = 0L
+			for (d in pos.indices.reversed())
+				index = index * interval.dimension(d) + (pos[d] - interval.min(d))
+			return index.toInt()
+		}
+
+		internal fun toDataBlock(dataType: DataType, blockSize: IntArray, gridPosition: LongArray, labels: LongArray): DataBlock<*> {
+
+			val block = dataType.createDataBlock(blockSize, gridPosition, labels.size)
+			when (val data = block.data) {
+				is ByteArray -> labels.forEachIndexed { i, label -> data[i] = label.toByte() }
+				is ShortArray -> labels.forEachIndexed { i, label -> data[i] = label.toShort() }
+				is IntArray -> labels.forEachIndexed { i, label -> data[i] = label.toInt() }
+				is LongArray -> labels.copyInto(data)
+				else -> throw IllegalArgumentException("Unsupported data type $dataType")
+			}
+			return block
+		}
+
+		internal fun toLongs(dataType: DataType, block: DataBlock<*>): LongArray {
+
+			return when (val data = block.data) {
+				is ByteArray -> if (dataType == DataType.UINT8) LongArray(data.size) { data[it].toLong() and 0xff } else LongArray(data.size) { data[it].toLong() }
+				is ShortArray -> if (dataType == DataType.UINT16) LongArray(data.size) { data[it].toLong() and 0xffff } else LongArray(data.size) { data[it].toLong() }
+				is IntArray -> if (dataType == DataType.UINT32) LongArray(data.size) { data[it].toLong() and 0xffffffffL } else LongArray(data.size) { data[it].toLong() }
+				is LongArray -> data.copyOf()
+				else -> throw IllegalArgumentException("Unsupported data type $dataType")
+			}
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package org.janelia.saalfeldlab.paintera.control.actions.paint
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder
 import de.jensd.fx.glyphs.fontawesome.FontAwesomeIcon
 import io.github.oshai.kotlinlogging.KotlinLogging
 import javafx.animation.KeyFrame
@@ -29,19 +28,11 @@ import net.imglib2.FinalInterval
 import net.imglib2.FinalRealInterval
 import net.imglib2.Interval
 import net.imglib2.RealInterval
-import net.imglib2.algorithm.convolution.fast_gauss.FastGauss
-import net.imglib2.algorithm.lazy.Lazy
-import net.imglib2.cache.img.CachedCellImg
-import net.imglib2.cache.img.DiskCachedCellImgFactory
-import net.imglib2.cache.img.DiskCachedCellImgOptions
-import net.imglib2.img.basictypeaccess.AccessFlags
 import net.imglib2.img.cell.CellGrid
-import net.imglib2.loops.LoopBuilder
-import net.imglib2.parallel.Parallelization
 import net.imglib2.realtransform.AffineTransform3D
 import net.imglib2.type.numeric.integer.UnsignedLongType
-import net.imglib2.type.numeric.real.DoubleType
 import net.imglib2.util.Intervals
+import net.imglib2.view.Views
 import org.janelia.saalfeldlab.fx.actions.verifyPermission
 import org.janelia.saalfeldlab.fx.extensions.component1
 import org.janelia.saalfeldlab.fx.extensions.component2
@@ -51,7 +42,6 @@ import org.janelia.saalfeldlab.fx.ui.NumberField
 import org.janelia.saalfeldlab.fx.ui.ObjectField.SubmitOn
 import org.janelia.saalfeldlab.fx.util.InvokeOnJavaFXApplicationThread
 import org.janelia.saalfeldlab.labels.blocks.LabelBlockLookupKey
-import org.janelia.saalfeldlab.net.imglib2.view.BundleView
 import org.janelia.saalfeldlab.paintera.Paintera
 import org.janelia.saalfeldlab.paintera.Style.ADD_GLYPH
 import org.janelia.saalfeldlab.paintera.control.actions.MenuAction
@@ -66,10 +56,7 @@ import org.janelia.saalfeldlab.paintera.state.label.ConnectomicsLabelState
 import org.janelia.saalfeldlab.paintera.ui.FontAwesome
 import org.janelia.saalfeldlab.paintera.util.IntervalHelpers.Companion.smallestContainingInterval
 import org.janelia.saalfeldlab.util.*
-import java.util.concurrent.LinkedBlockingQueue
-import java.util.concurrent.RejectedExecutionException
-import java.util.concurrent.ThreadPoolExecutor
-import java.util.concurrent.TimeUnit
+import java.util.BitSet
 import kotlin.math.floor
 import kotlin.math.log10
 import kotlin.math.pow
@@ -79,17 +66,11 @@ import net.imglib2.type.label.Label as Imglib2Label
 
 object SmoothLabel : MenuAction("_Smooth...") {
 
-	private fun newConvolutionExecutor(): ThreadPoolExecutor {
-		val threads = Runtime.getRuntime().availableProcessors()
-		return ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, LinkedBlockingQueue(), ThreadFactoryBuilder().setNameFormat("gaussian-smoothing-%d").build())
-	}
-
 	private val LOG = KotlinLogging.logger {  }
 
 	private var scopeJob: Job? = null
 	private var smoothScope: CoroutineScope = CoroutineScope(Dispatchers.Default)
 	private var smoothJob: Deferred<List<Interval>?>? = null
-	private var convolutionExecutor = newConvolutionExecutor()
 
 	private val replacementLabelProperty = SimpleLongProperty(0).apply {
 		subscribe { prev, next -> activateReplacementLabel(prev.toLong(), next.toLong()) }
@@ -375,8 +356,6 @@ object SmoothLabel : MenuAction("_Smooth...") {
 						paintera.baseView.orthogonalViews().requestRepaint()
 					} finally {
 						smoothing = false
-						/* If any remain on the queue, shut it down */
-						convolutionExecutor.queue.peek()?.let { convolutionExecutor.shutdown() }
 						/* reset for the next loop */
 						resmooth = false
 						finalizeSmoothing = false
@@ -405,7 +384,6 @@ object SmoothLabel : MenuAction("_Smooth...") {
 				paintera.baseView.disabledPropertyBindings -= task
 				smoothTriggerSubscription?.unsubscribe()
 				paintera.baseView.orthogonalViews().setScreenScales(prevScales)
-				convolutionExecutor.shutdown()
 			}
 		}
 	}
@@ -421,7 +399,6 @@ object SmoothLabel : MenuAction("_Smooth...") {
 	}
 
 	private fun cancelActiveSmoothing(reason: String) {
-		convolutionExecutor.shutdown()
 		scopeJob?.cancel(CancellationException(reason))
 		progress = 0.0
 	}
@@ -441,28 +418,23 @@ object SmoothLabel : MenuAction("_Smooth...") {
 		val sourceImg = maskedSource.getReadOnlyDataBackground(0, scale0)
 		val canvasImg = maskedSource.getReadOnlyDataCanvas(0, scale0)
 
-		val bundleSourceImg = BundleView(sourceImg.convert(UnsignedLongType(Imglib2Label.INVALID)) { input, output -> output.set(input.realDouble.toLong()) }.interval(sourceImg)).interval(sourceImg)
+		val labelSourceImg = sourceImg.convert(UnsignedLongType(Imglib2Label.INVALID)) { input, output -> output.set(input.realDouble.toLong()) }.interval(sourceImg)
 
 		val cellGrid = maskedSource.getCellGrid(0, scale0)
-		val labelMask = DiskCachedCellImgFactory(DoubleType(0.0)).create(bundleSourceImg, { labelMaskChunk ->
-			val sourceChunk = bundleSourceImg.interval(labelMaskChunk)
-			val canvasChunk = canvasImg.interval(labelMaskChunk)
-
-			LoopBuilder.setImages(canvasChunk, sourceChunk, labelMaskChunk).multiThreaded().forEachPixel { canvasLabel, sourceBundle, maskVal ->
-				val hasLabel = canvasLabel.get().let { label ->
-					if (label != Imglib2Label.INVALID && label in labels)
-						1.0
-					else null
-				} ?: sourceBundle.get().get().let { label ->
-					if (label != Imglib2Label.INVALID && label in labels)
-						1.0
-					else null
-				}
-				hasLabel?.let { maskVal.set(it) }
+		val labelMask = TiledGaussianSmoothing(cellGrid) { block ->
+			val canvasLabels = Views.flatIterable(canvasImg.interval(block)).cursor()
+			val sourceLabels = Views.flatIterable(labelSourceImg.interval(block)).cursor()
+			val hasLabel = BitSet()
+			var i = 0
+			while (canvasLabels.hasNext()) {
+				val canvasLabel = canvasLabels.next().get()
+				val sourceLabel = sourceLabels.next().get()
+				if ((canvasLabel != Imglib2Label.INVALID && canvasLabel in labels) || (sourceLabel != Imglib2Label.INVALID && sourceLabel in labels))
+					hasLabel.set(i)
+				++i
 			}
-		}, DiskCachedCellImgOptions().cellDimensions(*cellGrid.cellDimensions))
-		var labelRoi: Interval = FinalInterval(blocksWithLabel[0])
-		blocksWithLabel.forEach { labelRoi = labelRoi union it }
+			hasLabel
+		}
 
 		updateSmoothMask = { preview -> smoothMask(labelMask, cellGrid, blocksWithLabel, preview) }
 		resmooth = true
@@ -489,12 +461,12 @@ object SmoothLabel : MenuAction("_Smooth...") {
 		return blocksFromSource + blocksFromCanvas
 	}
 
-	private fun SmoothLabelState.pruneBlock(blocksWithLabel: List<Interval>): List<RealInterval> {
+	private fun SmoothLabelState.pruneBlock(blocksWithLabel: List<Interval>): List<Interval> {
 		val viewsInSourceSpace = viewerIntervalsInSourceSpace()
 
 		/* remove any blocks that don't intersect with them*/
 		return blocksWithLabel
-			.mapNotNull { block -> viewsInSourceSpace.firstOrNull { viewer -> !Intervals.isEmpty(viewer.intersect(block)) } }
+			.filter { block -> viewsInSourceSpace.any { viewer -> !Intervals.isEmpty(viewer.intersect(block)) } }
 			.toList()
 	}
 
@@ -516,7 +488,7 @@ object SmoothLabel : MenuAction("_Smooth...") {
 		return viewsInSourceSpace
 	}
 
-	private suspend fun SmoothLabelState.smoothMask(labelMask: CachedCellImg<DoubleType, *>, cellGrid: CellGrid, blocksWithLabel: List<Interval>, preview: Boolean = false): List<RealInterval> {
+	private suspend fun SmoothLabelState.smoothMask(labelMask: TiledGaussianSmoothing, cellGrid: CellGrid, blocksWithLabel: List<Interval>, preview: Boolean = false): List<RealInterval> {
 
 		/* Just to show that smoothing has started */
 		progress = 0.0 // The listener only always reseting to zero if going backward, so do this first
@@ -528,90 +500,50 @@ object SmoothLabel : MenuAction("_Smooth...") {
 		val levelResolution = getLevelResolution(scale0)
 		val sigma = DoubleArray(3) { kernelSize / levelResolution[it] }
 
-		if (convolutionExecutor.isShutdown) {
-			convolutionExecutor = newConvolutionExecutor()
-		}
-
-		val convolution = FastGauss.convolution(sigma)
-		if (convolutionExecutor.isShutdown) {
-			convolutionExecutor = newConvolutionExecutor()
-		}
-
-
-		val smoothedImg = Lazy.generate(labelMask, cellGrid.cellDimensions, DoubleType(), AccessFlags.setOf()) {}
-
 		paintContext.dataSource.resetMasks()
 		setNewSourceMask(paintContext.dataSource, MaskInfo(0, scale0)) { it >= 0 }
 		val mask = paintContext.dataSource.currentMask
 
-		val smoothOverInterval: suspend CoroutineScope.(RealInterval) -> Job = { slice ->
-			launch {
-				val smoothedSlice = smoothedImg.interval(slice)
-				try {
-					Parallelization.runWithExecutor(convolutionExecutor) { convolution.process(labelMask.extendValue(DoubleType(0.0)), smoothedSlice) }
-				} catch (e : RejectedExecutionException) {
-					if (isActive) {
-						throw e
-					}
-				}
-
-				val labels = BundleView(labelMask).interval(slice).cursor()
-				val smoothed = smoothedSlice.cursor()
-				val maskBundle = BundleView(mask.rai.extendValue(Imglib2Label.INVALID)).interval(slice).cursor()
-
-
-				ensureActive()
-				while (smoothed.hasNext()) {
-					//This is the slow one, check cancellation immediately before and after
-					val smoothness: Double
-					try {
-						smoothness = smoothed.next().get()
-					} catch (e: Exception) {
-						throw CancellationException("Gaussian Convolution Shutdown", e).also { cancel(it) }
-					}
-					val labelVal = labels.next().get()
-					val maskVal = maskBundle.next().get()
-					if (smoothness < 0.5 && labelVal.get() == 1.0) {
-						maskVal.setInteger(replacementLabel)
-					} else if (maskVal.get() == replacementLabel) {
-						maskVal.setInteger(Imglib2Label.INVALID)
-					}
-				}
-			}
-		}
-
+		/* blocks of the label block lookup may not align with the cells of the canvas */
+		val blocks = intervalsToSmoothOver
+			.flatMap { labelMask.blocksIntersecting(it).asIterable() }
+			.distinct()
+			.toLongArray()
 
 		/*Start smoothing */
 		if (!smoothScope.isActive)
 			smoothScope = CoroutineScope(Dispatchers.Default)
 		scopeJob = smoothScope.launch {
-			intervalsToSmoothOver.forEach { smoothOverInterval(it) }
-		}
-
-		/* wait and update progress */
-		val progressUpdateJob = CoroutineScope(Dispatchers.Default).launch {
-			while (scopeJob?.isActive == true) {
-				with(convolutionExecutor) {
-					progress = currentProgressBar.let { currentProgress ->
-						val remaining = 1.0 - currentProgress
-						val numTasksModifier = 1 / log10(taskCount + 10.0)
-						/* Max quarter remaining increments*/
-						currentProgress + (remaining * numTasksModifier).coerceAtMost(.25)
+			/* blocks that were smoothed with this kernel size before are not smoothed again */
+			val removedByBlock = labelMask.smooth(sigma, blocks) { smoothed -> progress = .05 + .9 * smoothed / blocks.size }
+			removedByBlock.forEach { (block, removed) ->
+				launch {
+					val blockPos = LongArray(cellGrid.numDimensions()).also { cellGrid.getCellGridPositionFlat(block, it) }
+					val blockMin = LongArray(blockPos.size)
+					val blockSize = IntArray(blockPos.size)
+					cellGrid.getCellDimensions(blockPos, blockMin, blockSize)
+					val blockInterval = Intervals.createMinSize(*blockMin, *blockSize.map { it.toLong() }.toLongArray())
+
+					val maskCursor = Views.flatIterable(mask.rai.interval(blockInterval)).cursor()
+					var i = 0
+					ensureActive()
+					while (maskCursor.hasNext()) {
+						val maskVal = maskCursor.next()
+						if (removed[i++]) {
+							maskVal.setInteger(replacementLabel)
+						} else if (maskVal.get() == replacementLabel) {
+							maskVal.setInteger(Imglib2Label.INVALID)
+						}
 					}
 				}
-				delay(200)
 			}
 		}
 
-		while (scopeJob?.isActive == true) {
-			delay(50)
-			if (scopeJob?.isCancelled == true) {
-				progress = 0.0
-				progressUpdateJob.cancelAndJoin()
-				throw CancellationException("Smoothing Cancelled")
-			}
+		scopeJob?.join()
+		if (scopeJob?.isCancelled == true) {
+			progress = 0.0
+			throw CancellationException("Smoothing Cancelled")
 		}
-		progressUpdateJob.cancelAndJoin()
 		progress = 1.0
 		return intervalsToSmoothOver
 	}
@@ -0,0 +1,210 @@
+package org.janelia.saalfeldlab.paintera.control.actions.paint
+
+import kotlinx.coroutines.*
+import net.imglib2.Interval
+import net.imglib2.algorithm.gauss3.Gauss3
+import net.imglib2.img.cell.CellGrid
+import net.imglib2.util.IntervalIndexer
+import net.imglib2.util.Intervals
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Gaussian smoothing of a binary label mask, one block of [grid] at a time.
+ *
+ * Each block is convolved together with a halo of the kernel size, in float buffers that are reused between blocks,
+ * so memory for the convolution is bounded by [parallelism]. The label mask is read once per block and kept as one
+ * bit per voxel. The result of a block is the set of its voxels that have the label but are smoothed below 0.5, it is
+ * kept for the current and the previous sigma, so only blocks that were not smoothed with a sigma before are computed.
+ */
+internal class TiledGaussianSmoothing(
+	private val grid: CellGrid,
+	private val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+	/** label mask of a block, in flat iteration order of the block interval */
+	private val readLabelMask: (Interval) -> BitSet,
+) {
+
+	private val labelMasks = ConcurrentHashMap<Long, BitSet>()
+
+	/* results of the most recent sigmas, the last entry is the most recent */
+	private val resultsBySigma = LinkedHashMap<List<Double>, ConcurrentHashMap<Long, BitSet>>()
+
+	private val buffers = ConcurrentLinkedQueue<FloatArray>()
+
+	init {
+		require(grid.numDimensions() == 3) { "Only 3D label masks can be smoothed" }
+	}
+
+	/**
+	 * @param blocks flat indices of the blocks of [grid] to smooth
+	 * @param blockDone called with the number of finished blocks whenever a block is finished
+	 * @return for each block, the voxels that have the label and are smoothed below 0.5, in flat iteration order of the block
+	 */
+	@OptIn(ExperimentalCoroutinesApi::class)
+	suspend fun smooth(sigma: DoubleArray, blocks: LongArray, blockDone: (Int) -> Unit = {}): Map<Long, BitSet> {
+
+		val results = resultsFor(sigma)
+		val halfKernels = Gauss3.halfkernels(sigma).map { kernel -> FloatArray(kernel.size) { kernel[it].toFloat() } }
+		val dispatcher = Dispatchers.Default.limitedParallelism(parallelism)
+		val done = AtomicInteger()
+		coroutineScope {
+			for (block in blocks.distinct()) {
+				if (results.containsKey(block)) {
+					blockDone(done.incrementAndGet())
+					continue
+				}
+				launch(dispatcher) {
+					results[block] = smoothBlock(block, halfKernels)
+					blockDone(done.incrementAndGet())
+				}
+			}
+		}
+		return blocks.associateWith { results[it]!! }
+	}
+
+	@Synchronized
+	private fun resultsFor(sigma: DoubleArray): ConcurrentHashMap<Long, BitSet> {
+
+		val key = sigma.toList()
+		val results = resultsBySigma.remove(key) ?: ConcurrentHashMap()
+		resultsBySigma[key] = results
+		while (resultsBySigma.size > CACHED_SIGMAS)
+			resultsBySigma.remove(resultsBySigma.keys.first())
+		return results
+	}
+
+	private fun CoroutineScope.smoothBlock(block: Long, halfKernels: List<FloatArray>): BitSet {
+
+		val core = blockInterval(block)
+		val labels = labelMask(block)
+		if (labels.isEmpty)
+			return BitSet()
+
+		val halo = IntArray(3) { halfKernels[it].size - 1 }
+		val tileMin = LongArray(3) { core.min(it) - halo[it] }
+		val tileMax = LongArray(3) { core.max(it) + halo[it] }
+		val tile = Intervals.createMinMax(*tileMin, *tileMax)
+		val coreDims = IntArray(3) { core.dimension(it).toInt() }
+		val tileDims = IntArray(3) { tile.dimension(it).toInt() }
+
+		/* label mask of the tile, zero outside of the image */
+		val input = acquire(tileDims[0] * tileDims[1] * tileDims[2])
+		input.fill(0f, 0, tileDims[0] * tileDims[1] * tileDims[2])
+		forEachBlockIntersecting(tile) { neighbor ->
+			val neighborInterval = blockInterval(neighbor)
+			val neighborLabels = labelMask(neighbor)
+			val overlap = Intervals.intersect(neighborInterval, tile)
+			val neighborDims = IntArray(3) { neighborInterval.dimension(it).toInt() }
+			for (z in overlap.min(2)..overlap.max(2))
+				for (y in overlap.min(1)..overlap.max(1)) {
+					val neighborRow = ((z - neighborInterval.min(2)).toInt() * neighborDims[1] + (y - neighborInterval.min(1)).toInt()) * neighborDims[0]
+					val tileRow = ((z - tileMin[2]).toInt() * tileDims[1] + (y - tileMin[1]).toInt()) * tileDims[0]
+					for (x in overlap.min(0)..overlap.max(0))
+						if (neighborLabels[neighborRow + (x - neighborInterval.min(0)).toInt()])
+							input[tileRow + (x - tileMin[0]).toInt()] = 1f
+				}
+		}
+		ensureActive()
+
+		/* separable convolution, each pass only keeps the core along its dimension */
+		val alongX = acquire(coreDims[0] * tileDims[1] * tileDims[2])
+		convolve(input, intArrayOf(tileDims[0], tileDims[1], tileDims[2]), 0, halfKernels[0], alongX)
+		release(input)
+		ensureActive()
+		val alongY = acquire(coreDims[0] * coreDims[1] * tileDims[2])
+		convolve(alongX, intArrayOf(coreDims[0], tileDims[1], tileDims[2]), 1, halfKernels[1], alongY)
+		release(alongX)
+		ensureActive()
+		val smoothed = acquire(coreDims[0] * coreDims[1] * coreDims[2])
+		convolve(alongY, intArrayOf(coreDims[0], coreDims[1], tileDims[2]), 2, halfKernels[2], smoothed)
+		release(alongY)
+
+		val removed = BitSet()
+		var i = labels.nextSetBit(0)
+		while (i >= 0) {
+			if (smoothed[i] < 0.5f)
+				removed.set(i)
+			i = labels.nextSetBit(i + 1)
+		}
+		release(smoothed)
+		return removed
+	}
+
+	private fun labelMask(block: Long) = labelMasks.computeIfAbsent(block) { readLabelMask(blockInterval(it)) }
+
+	private fun blockInterval(block: Long): Interval {
+
+		val gridPosition = LongArray(3)
+		val min = LongArray(3)
+		val size = IntArray(3)
+		grid.getCellGridPositionFlat(block, gridPosition)
+		grid.getCellDimensions(gridPosition, min, size)
+		return Intervals.createMinSize(*min, *LongArray(3) { size[it].toLong() })
+	}
+
+	/**
+	 * @return flat indices of all blocks of [grid] that intersect [interval], e.g. a block of a label block lookup
+	 * that does not align with [grid]
+	 */
+	fun blocksIntersecting(interval: Interval): LongArray {
+		val blocks = mutableListOf<Long>()
+		forEachBlockIntersecting(interval) { blocks += it }
+		return blocks.toLongArray()
+	}
+
+	private inline fun forEachBlockIntersecting(interval: Interval, action: (Long) -> Unit) {
+
+		val gridDims = grid.gridDimensions
+		val min = LongArray(3) { maxOf(0, interval.min(it)) / grid.cellDimension(it) }
+		val max = LongArray(3) { minOf(grid.imgDimension(it) - 1, interval.max(it)) / grid.cellDimension(it) }
+		val position = LongArray(3)
+		for (z in min[2]..max[2])
+			for (y in min[1]..max[1])
+				for (x in min[0]..max[0]) {
+					position[0] = x
+					position[1] = y
+					position[2] = z
+					action(IntervalIndexer.positionToIndex(position, gridDims))
+				}
+	}
+
+	private fun acquire(size: Int) = buffers.poll()?.takeIf { it.size >= size } ?: FloatArray(size)
+
+	private fun release(buffer: FloatArray) {
+		if (buffers.size < parallelism * BUFFERS_PER_TILE)
+			buffers.offer(buffer)
+	}
+
+	companion object {
+
+		private const val CACHED_SIGMAS = 2
+
+		private const val BUFFERS_PER_TILE = 2
+
+		/**
+		 * Convolve [source] of [sourceDims] along [dimension] with the symmetric [halfKernel]. The target is smaller
+		 * than the source by the kernel halo on both sides along [dimension].
+		 */
+		internal fun convolve(source: FloatArray, sourceDims: IntArray, dimension: Int, halfKernel: FloatArray, target: FloatArray) {
+
+			val halo = halfKernel.size - 1
+			val targetDims = sourceDims.clone().also { it[dimension] -= 2 * halo }
+			val stride = (0 until dimension).fold(1) { acc, d -> acc * sourceDims[d] }
+			val offset = halo * stride
+			var t = 0
+			for (z in 0 until targetDims[2])
+				for (y in 0 until targetDims[1]) {
+					val row = (z * sourceDims[1] + y) * sourceDims[0] + offset
+					for (x in 0 until targetDims[0]) {
+						val center = row + x
+						var sum = halfKernel[0] * source[center]
+						for (k in 1..halo)
+							sum += halfKernel[k] * (source[center - k * stride] + source[center + k * stride])
+						target[t++] = sum
+					}
+				}
+		}
+	}
+}
@@ -130,7 +130,7 @@ object PaintLabelMode : AbstractToolMode() {
 
 	private val activeSamTool = painteraActionSet(SEGMENT_ANYTHING__TOGGLE_MODE, PaintActionType.Paint) {
 		KEY_PRESSED(samTool.keyTrigger) {
-			verify { SamEmbeddingLoaderCache.canReachServer }
+			verify { SamEmbeddingLoaderCache.canComputeEmbeddings }
 			verify { activeSourceStateProperty.get() is ConnectomicsLabelState<*, *> }
 			verify { activeTool !is SamTool }
 			verify {
@@ -1,12 +1,13 @@
 package org.janelia.saalfeldlab.paintera.control.paint
 
+import gnu.trove.set.TLongSet
+import gnu.trove.set.hash.TLongHashSet
 import io.github.oshai.kotlinlogging.KotlinLogging
 import javafx.beans.value.ObservableValue
 import kotlinx.coroutines.*
 import kotlinx.coroutines.javafx.awaitPulse
 import net.imglib2.*
-import net.imglib2.algorithm.fill.FloodFill
-import net.imglib2.algorithm.neighborhood.DiamondShape
+import net.imglib2.img.cell.CellGrid
 import net.imglib2.realtransform.AffineTransform3D
 import net.imglib2.type.label.Label
 import net.imglib2.type.label.LabelMultisetType
@@ -16,7 +17,6 @@ import net.imglib2.util.Intervals
 import net.imglib2.util.Util
 import org.janelia.saalfeldlab.bdv.fx.viewer.ViewerPanelFX
 import org.janelia.saalfeldlab.fx.util.InvokeOnJavaFXApplicationThread
-import org.janelia.saalfeldlab.net.imglib2.util.AccessBoxRandomAccessible
 import org.janelia.saalfeldlab.paintera.Paintera.Companion.getPaintera
 import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignment
 import org.janelia.saalfeldlab.paintera.control.paint.ViewerMask.Companion.getGlobalViewerInterval
@@ -26,6 +26,7 @@ import org.janelia.saalfeldlab.paintera.data.mask.exception.MaskInUse
 import org.janelia.saalfeldlab.paintera.util.IntervalHelpers.Companion.smallestContainingInterval
 import org.janelia.saalfeldlab.util.extendValue
 import java.util.concurrent.CancellationException
+import java.util.concurrent.ForkJoinPool
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.function.BooleanSupplier
 import java.util.function.Consumer
@@ -36,7 +37,8 @@ class FloodFill<T : IntegerType<T>>(
 	val source: MaskedSource<T, *>,
 	private val assignment: FragmentSegmentAssignment,
 	val requestRepaint: Consumer<Interval?>,
-	private val isVisible: BooleanSupplier
+	private val isVisible: BooleanSupplier,
+	private val getBlocksForLabel: ((Int, Long) -> Array<Interval>)? = null
 ) {
 
 	fun fillAt(x: Double, y: Double, fillSupplier: (() -> Long?)?): Job {
@@ -113,30 +115,20 @@ class FloodFill<T : IntegerType<T>>(
 			.map { it.getGlobalViewerInterval() }
 			.map { globalToSource.estimateBounds(it) }
 			.map { Intervals.smallestContainingInterval(it) }
-			.collect(Collectors.toList<RealInterval>())
+			.collect(Collectors.toList<Interval>())
 
 		val triggerRefresh = AtomicBoolean(false)
 		var floodFillJob: Job? = null
-		val accessTracker: AccessBoxRandomAccessible<UnsignedLongType> = object : AccessBoxRandomAccessible<UnsignedLongType>(mask.rai.extendValue(UnsignedLongType(1))) {
-			val position: Point = Point(sourceAccess.numDimensions())
+		val isCancelled = BooleanSupplier { floodFillJob?.isCancelled == true }
+		val onBlockFilled = Consumer<Interval> { filled ->
+			if (!triggerRefresh.get() && visibleSourceIntervals.any { !Intervals.isEmpty(Intervals.intersect(it, filled)) })
+				triggerRefresh.set(true)
+		}
 
-			override fun get(): UnsignedLongType {
-				if (floodFillJob?.isCancelled == true || Thread.currentThread().isInterrupted)
-					throw CancellationException("Flood Fill Canceled")
-				synchronized(this) {
-					updateAccessBox()
-				}
-				sourceAccess.localize(position)
-				if (!triggerRefresh.get()) {
-					for (interval in visibleSourceIntervals) {
-						if (Intervals.contains(interval, position)) {
-							triggerRefresh.set(true)
-							break
-						}
-					}
-				}
-				return sourceAccess.get()!!
-			}
+		val fillEngine = if (seedValue is LabelMultisetType) {
+			fillMultisetType(data as RandomAccessibleInterval<LabelMultisetType>, mask.rai, seedLabel, fill, assignment, isCancelled, onBlockFilled)
+		} else {
+			fillPrimitiveType(data, mask.rai, seedLabel, fill, assignment, isCancelled, onBlockFilled)
 		}
 
 		floodFillJob = CoroutineScope(Dispatchers.Default).launch {
@@ -145,21 +137,29 @@ class FloodFill<T : IntegerType<T>>(
 				while (fillContext.isActive) {
 					awaitPulse()
 					if (triggerRefresh.get()) {
-						val repaintInterval = globalToSource.inverse().estimateBounds(accessTracker.createAccessInterval())
-						requestRepaint.accept(repaintInterval.smallestContainingInterval)
+						fillEngine.filledInterval?.let {
+							requestRepaint.accept(globalToSource.inverse().estimateBounds(it).smallestContainingInterval)
+						}
 						triggerRefresh.set(false)
 					}
 					awaitPulse()
 				}
 			}
 
-			if (seedValue is LabelMultisetType) {
-				fillMultisetType(data as RandomAccessibleInterval<LabelMultisetType>, accessTracker, seed, seedLabel, fill, assignment)
-			} else {
-				fillPrimitiveType(data, accessTracker, seed, seedLabel, fill, assignment)
+			val seedPosition = seed.positionAsLongArray()
+			getBlocksForLabel?.let { lookup ->
+				val seedBlock = MaskedSource.affectedBlocks(fillEngine.grid, FinalInterval(seedPosition, seedPosition)).iterator().next()
+				/* a lookup that does not list the seed block is incomplete, e.g. if there is no lookup for this dataset */
+				source.candidateBlocks(fillEngine.grid, level, seedFragments(seedLabel, assignment), lookup)
+					?.takeIf { it.contains(seedBlock) }
+					?.let {
+						LOG.debug { "Restricting fill to ${it.size()} blocks listed in the label block lookup" }
+						fillEngine.setCandidateBlocks(it::contains)
+						fillEngine.setFillUniformBlocks(true)
+					}
 			}
 
-			val sourceInterval = accessTracker.createAccessInterval()
+			val sourceInterval = fillEngine.fill(seed) ?: FinalInterval(seedPosition, seedPosition)
 			val globalInterval = globalToSource.inverse().estimateBounds(sourceInterval).smallestContainingInterval
 
 			LOG.trace { "FloodFill has been completed" }
@@ -201,41 +201,85 @@ class FloodFill<T : IntegerType<T>>(
 
 		private fun fillMultisetType(
 			input: RandomAccessibleInterval<LabelMultisetType>,
-			output: RandomAccessible<UnsignedLongType>,
-			seed: Localizable,
+			output: RandomAccessibleInterval<UnsignedLongType>,
 			seedLabel: Long,
 			fillLabel: Long,
-			assignment: FragmentSegmentAssignment?
-		) {
+			assignment: FragmentSegmentAssignment?,
+			isCancelled: BooleanSupplier,
+			onBlockFilled: Consumer<Interval>
+		): BlockParallelFloodFill<LabelMultisetType> {
 			val predicate = makePredicate<LabelMultisetType>(seedLabel, assignment)
-			FloodFill.fill(
+			return BlockParallelFloodFill(
 				input.extendValue(LabelMultisetType()),
 				output,
-				seed,
-				UnsignedLongType(fillLabel),
-				DiamondShape(1)
-			) { source, target: UnsignedLongType -> predicate(source, target) }
+				fillLabel,
+				{ source, target: UnsignedLongType -> predicate(source, target) },
+				ForkJoinPool.commonPool(),
+				isCancelled,
+				onBlockFilled
+			)
 		}
 
 		private fun <T : IntegerType<T>> fillPrimitiveType(
 			input: RandomAccessibleInterval<T>,
-			output: RandomAccessible<UnsignedLongType>,
-			seed: Localizable,
+			output: RandomAccessibleInterval<UnsignedLongType>,
 			seedLabel: Long,
 			fillLabel: Long,
-			assignment: FragmentSegmentAssignment?
-		) {
+			assignment: FragmentSegmentAssignment?,
+			isCancelled: BooleanSupplier,
+			onBlockFilled: Consumer<Interval>
+		): BlockParallelFloodFill<T> {
 			val extension = input.type.createVariable()
 			extension!!.setInteger(Label.OUTSIDE)
 
 			val predicate = makePredicate<T>(seedLabel, assignment)
-			FloodFill.fill(
+			return BlockParallelFloodFill(
 				input.extendValue(extension),
 				output,
-				seed,
-				UnsignedLongType(fillLabel),
-				DiamondShape(1)
-			) { source, target: UnsignedLongType -> predicate(source, target) }
+				fillLabel,
+				{ source, target: UnsignedLongType -> predicate(source, target) },
+				ForkJoinPool.commonPool(),
+				isCancelled,
+				onBlockFilled
+			)
+		}
+
+		private fun seedFragments(seedLabel: Long, assignment: FragmentSegmentAssignment?): LongArray {
+			return assignment?.getFragments(seedLabel)?.toArray() ?: longArrayOf(seedLabel)
+		}
+
+		/**
+		 * Blocks of [grid] that may contain any of [fragments], according to the label block lookup and the blocks
+		 * that were painted on the canvas, or `null` if the lookup could not be read.
+		 */
+		private fun MaskedSource<*, *>.candidateBlocks(
+			grid: CellGrid,
+			level: Int,
+			fragments: LongArray,
+			getBlocksForLabel: (Int, Long) -> Array<Interval>
+		): TLongSet? {
+			val canvasGrid = getCellGrid(0, level)
+			val canvasBlockPosition = LongArray(canvasGrid.numDimensions())
+			val canvasBlockMin = LongArray(canvasGrid.numDimensions())
+			val canvasBlockSize = IntArray(canvasGrid.numDimensions())
+			val candidates = TLongHashSet()
+			for (fragment in fragments) {
+				val lookupBlocks = try {
+					getBlocksForLabel(level, fragment)
+				} catch (e: Exception) {
+					LOG.debug(e) { "Unable to read label block lookup for fragment $fragment" }
+					return null
+				}
+				lookupBlocks.forEach { candidates.addAll(MaskedSource.affectedBlocks(grid, it)) }
+				getModifiedBlocks(level, fragment).forEach { canvasBlock ->
+					canvasGrid.getCellGridPositionFlat(canvasBlock, canvasBlockPosition)
+					canvasGrid.getCellDimensions(canvasBlockPosition, canvasBlockMin, canvasBlockSize)
+					val canvasBlockMax = LongArray(canvasBlockMin.size) { canvasBlockMin[it] + canvasBlockSize[it] - 1 }
+					candidates.addAll(MaskedSource.affectedBlocks(grid, FinalInterval(canvasBlockMin, canvasBlockMax)))
+					true
+				}
+			}
+			return candidates
 		}
 
 		private fun <T : IntegerType<T>> makePredicate(seedLabel: Long, assignment: FragmentSegmentAssignment?): (T, UnsignedLongType) -> Boolean {
@@ -54,7 +54,8 @@ class Fill3DTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*,
 				dataSource,
 				assignment,
 				{ interval -> paintera.baseView.orthogonalViews().requestRepaint(interval) },
-				{ activeSourceStateProperty.value?.isVisibleProperty?.get() == true }
+				{ activeSourceStateProperty.value?.isVisibleProperty?.get() == true },
+				{ level, label -> getBlocksForLabel(level, label) }
 			)
 		}
 	}
@@ -4,6 +4,7 @@ import ai.onnxruntime.OnnxTensor
 import ai.onnxruntime.OnnxTensorLike
 import ai.onnxruntime.OrtEnvironment
 import ai.onnxruntime.OrtSession
+import ai.onnxruntime.TensorInfo
 import io.github.oshai.kotlinlogging.KotlinLogging
 import net.imglib2.Interval
 import net.imglib2.RandomAccessibleInterval
@@ -49,6 +50,15 @@ class SamPredictor(
 		const val MASK_INPUT = "mask_input"
 		const val HAS_MASK_INPUT = "has_mask_input"
 
+		/**
+		 * Upper bound on the number of prompts decoded in a single run, to bound the size of the output masks, which
+		 * are at the resolution of the original image.
+		 */
+		const val DEFAULT_MAX_BATCH_SIZE = 16
+
+		/* point label that SAM ignores, to pad prompts with fewer points in a batch */
+		private const val PADDING_LABEL = -1f
+
 		/**
 		 * Creates a prediction request with the given points.
 		 * The points must be in the range [0, origImgSize) for each dimension,
@@ -60,6 +70,45 @@ class SamPredictor(
 		fun points(points: List<SamPoint>): PredictionRequest {
 			return SparsePrediction(points)
 		}
+
+		/**
+		 * Decode [requests] in chunks of at most [maxBatchSize] requests with [decodeBatch], which returns one result
+		 * per request of its chunk, in the order of the chunk.
+		 *
+		 * @return the results, in the order of [requests]
+		 */
+		internal fun <R> decodeInBatches(requests: List<SparsePrediction>, maxBatchSize: Int, decodeBatch: (List<SparsePrediction>) -> List<R>): List<R> {
+			return requests.chunked(max(maxBatchSize, 1)).flatMap { chunk ->
+				decodeBatch(chunk).also { check(it.size == chunk.size) { "Expected ${chunk.size} predictions but got ${it.size}" } }
+			}
+		}
+
+		/**
+		 * @return the points of each of [requests]; a prompt without points is a single background point, like in [SparsePrediction.mapParameters]
+		 */
+		internal fun promptPoints(requests: List<SparsePrediction>): List<List<SamPoint>> {
+			return requests.map { request -> request.points.ifEmpty { listOf(SamPoint(0.0, 0.0, SparseLabel.OUT)) } }
+		}
+
+		/**
+		 * Put the scaled coordinates and labels of [prompts] into [coords] and [labels], as `prompts.size x numPoints`
+		 * batches. Prompts with fewer than [numPoints] points are padded with points that SAM ignores.
+		 */
+		internal fun packPrompts(prompts: List<List<SamPoint>>, numPoints: Int, scale: Double, coords: FloatBuffer, labels: FloatBuffer) {
+			for (points in prompts) {
+				for (point in points) {
+					val (scaledX, scaledY) = point.centerScaledCoordinates(scale)
+					coords.put(scaledX.toFloat())
+					coords.put(scaledY.toFloat())
+					labels.put(point.label.ordinal.toFloat())
+				}
+				repeat(numPoints - points.size) {
+					coords.put(0f)
+					coords.put(0f)
+					labels.put(PADDING_LABEL)
+				}
+			}
+		}
 	}
 
 	/* TODO: Evaluate this is correct. I think we are supposed to introduce a half pixel offset somewhere...?
@@ -83,6 +132,22 @@ class SamPredictor(
 	}
 	private val imgSizeTensor = OnnxTensor.createTensor(environment, imgSizeBuffer, longArrayOf(2))
 
+	private val noMaskTensors by lazy { MaskPrediction.noMaskParameters(environment) }
+
+	/* Whether the decoder was exported with a dynamic batch dimension for the prompts */
+	val supportsBatches: Boolean by lazy {
+		(session.inputInfo[POINT_COORDS]?.info as? TensorInfo)?.shape?.firstOrNull() == -1L
+	}
+
+	var maxBatchSize = DEFAULT_MAX_BATCH_SIZE
+		set(value) {
+			field = max(value, 1)
+		}
+
+	/* prompt buffers for batches, reused between runs and grown as necessary. Guarded by this */
+	private var batchCoordsBuffer = allocateDirectFloatBuffer(0)
+	private var batchLabelsBuffer = allocateDirectFloatBuffer(0)
+
 	lateinit var lastPrediction: SamPrediction
 	lateinit var result: RandomAccessibleInterval<NativeType<*>>
 
@@ -93,7 +158,7 @@ class SamPredictor(
 			ORIG_IM_SIZE to imgSizeTensor
 		)
 		/* add the `no-mask` params. If a mask is present, they will be overwritten */
-		params += MaskPrediction.noMaskParameters(environment)
+		params += noMaskTensors
 
 		/* add the parameter maps */
 		requests.map { it.mapParameters(this, environment) }.fold(params) { acc, map ->
@@ -110,6 +175,65 @@ class SamPredictor(
 	}
 
 
+	/**
+	 * Predict a mask for each of [requests] independently, against the same [embedding].
+	 *
+	 * If the decoder supports it, the prompts are padded to the same number of points and decoded together, in
+	 * batches of at most [maxBatchSize] prompts. Otherwise, each prompt is decoded on its own.
+	 *
+	 * @return the predictions, in the order of [requests]
+	 */
+	fun predict(requests: List<SparsePrediction>): List<SamPrediction> {
+		if (!supportsBatches || requests.size == 1)
+			return requests.map { predict(it) }
+		return decodeInBatches(requests, maxBatchSize) { predictBatch(it) }
+	}
+
+	/**
+	 * Combine [predictions] against the current [embedding] into a single prediction of all their objects, i.e. the
+	 * pixel-wise maximum of their masks.
+	 */
+	fun union(predictions: List<SamPrediction>): SamPrediction {
+		require(predictions.isNotEmpty()) { "No predictions to combine" }
+		if (predictions.size == 1)
+			return predictions.first()
+		val output = DecoderOutput.union(predictions.map { it.output to it.batchIndex })
+		return SamPrediction(output, 0, this)
+	}
+
+	private fun predictBatch(requests: List<SparsePrediction>): List<SamPrediction> {
+		val prompts = promptPoints(requests)
+		val batchSize = prompts.size
+		val numPoints = prompts.maxOf { it.size }
+		synchronized(this) {
+			if (batchLabelsBuffer.capacity() < batchSize * numPoints) {
+				batchCoordsBuffer = allocateDirectFloatBuffer(2 * batchSize * numPoints)
+				batchLabelsBuffer = allocateDirectFloatBuffer(batchSize * numPoints)
+			}
+			val coords = batchCoordsBuffer.clear()
+			val labels = batchLabelsBuffer.clear()
+			packPrompts(prompts, numPoints, imgEmbeddingScale, coords, labels)
+			coords.flip()
+			labels.flip()
+
+			OnnxTensor.createTensor(environment, coords, longArrayOf(batchSize.toLong(), numPoints.toLong(), 2)).use { onnxCoords ->
+				OnnxTensor.createTensor(environment, labels, longArrayOf(batchSize.toLong(), numPoints.toLong())).use { onnxLabels ->
+					val params = mutableMapOf<String, OnnxTensorLike>(
+						IMAGE_EMBEDDINGS to embedding,
+						ORIG_IM_SIZE to imgSizeTensor,
+						POINT_COORDS to onnxCoords,
+						POINT_LABELS to onnxLabels
+					)
+					params += noMaskTensors
+					val output = DecoderOutput(session.run(params), batchSize)
+					return List(batchSize) { SamPrediction(output, it, this) }.also {
+						lastPrediction = it.last()
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Converts coordinates in the original image space to embedded image coordinates.
 	 * The image sent to be embedded is always scaled such that the longest dimension is 1024,
@@ -127,27 +251,87 @@ class SamPredictor(
 			}
 	}
 
-	data class SamPrediction(
-		val masks: OnnxTensor,
-		val iouPredictions: OnnxTensor,
-		val lowResMasks: OnnxTensor,
+	/**
+	 * Output tensors of a single decoder run, with a prediction for each of [batchSize] prompts.
+	 * The values are copied from the tensors once, and shared by all predictions of the batch.
+	 */
+	internal open class DecoderOutput(val masks: OnnxTensor, val iouPredictions: OnnxTensor, val lowResMasks: OnnxTensor, val batchSize: Int = 1) {
+
+		constructor(result: OrtSession.Result, batchSize: Int = 1) : this(
+			result[MASKS].get() as OnnxTensor,
+			result[IOU_PREDICTIONS].get() as OnnxTensor,
+			result[LOW_RES_MASKS].get() as OnnxTensor,
+			batchSize
+		)
+
+		open val maskValues: FloatArray by lazy { masks.floatBuffer.array() }
+		open val lowResMaskValues: FloatArray by lazy { lowResMasks.floatBuffer.array() }
+
+		/**
+		 * @return the values of item [index] of a batch of [values], without copying if there is only one
+		 */
+		fun item(values: FloatArray, index: Int): FloatArray {
+			if (batchSize == 1)
+				return values
+			val size = values.size / batchSize
+			return values.copyOfRange(index * size, (index + 1) * size)
+		}
+
+		companion object {
+			const val MASKS = "masks"
+			const val IOU_PREDICTIONS = "iou_predictions"
+			const val LOW_RES_MASKS = "low_res_masks"
+
+			/**
+			 * Single item output with the pixel-wise maximum of the masks of [items], each one an output and the index
+			 * of the item in its batch. The tensors are those of the first item.
+			 */
+			fun union(items: List<Pair<DecoderOutput, Int>>): DecoderOutput {
+				val first = items.first().first
+				val unionMaskValues = pixelwiseMax(items.map { (output, index) -> output.item(output.maskValues, index) })
+				val unionLowResMaskValues = pixelwiseMax(items.map { (output, index) -> output.item(output.lowResMaskValues, index) })
+				return object : DecoderOutput(first.masks, first.iouPredictions, first.lowResMasks) {
+					override val maskValues = unionMaskValues
+					override val lowResMaskValues = unionLowResMaskValues
+				}
+			}
+
+			private fun pixelwiseMax(values: List<FloatArray>): FloatArray {
+				val max = values.first().copyOf()
+				for (other in values.drop(1))
+					for (i in max.indices)
+						if (other[i] > max[i])
+							max[i] = other[i]
+				return max
+			}
+		}
+	}
+
+	/**
+	 * Prediction for one prompt, which is item [batchIndex] of the output of a decoder run.
+	 */
+	class SamPrediction internal constructor(
+		internal val output: DecoderOutput,
+		val batchIndex: Int,
 		val predictor: SamPredictor
 	) {
 
-		val image: RandomAccessibleInterval<FloatType> = ArrayImgs.floats(masks.floatBuffer.array(), predictor.originalImgSize.first.toLong(), predictor.originalImgSize.second.toLong())
+		constructor(result: OrtSession.Result, predictor: SamPredictor) : this(DecoderOutput(result), 0, predictor)
+
+		val masks: OnnxTensor
+			get() = output.masks
+		val iouPredictions: OnnxTensor
+			get() = output.iouPredictions
+		val lowResMasks: OnnxTensor
+			get() = output.lowResMasks
+
+		val image: RandomAccessibleInterval<FloatType> = ArrayImgs.floats(output.item(output.maskValues, batchIndex), predictor.originalImgSize.first.toLong(), predictor.originalImgSize.second.toLong())
 		val lowResImage: RandomAccessibleInterval<FloatType> by lazy {
-			ArrayImgs.floats(lowResMasks.floatBuffer.array(), LOW_RES_MASK_DIM.toLong(), LOW_RES_MASK_DIM.toLong()).interval(lowResIntervalWithoutPadding)
+			ArrayImgs.floats(output.item(output.lowResMaskValues, batchIndex), LOW_RES_MASK_DIM.toLong(), LOW_RES_MASK_DIM.toLong()).interval(lowResIntervalWithoutPadding)
 		}
 		val lowToHighResScale: Double
 		private val lowResIntervalWithoutPadding : Interval
 
-		constructor(result: OrtSession.Result, predictor: SamPredictor) : this(
-			result[MASKS].get() as OnnxTensor,
-			result[IOU_PREDICTIONS].get() as OnnxTensor,
-			result[LOW_RES_MASKS].get() as OnnxTensor,
-			predictor
-		)
-
 		init {
 			with(predictor) {
 				val lowResWidth: Long
@@ -166,9 +350,9 @@ class SamPredictor(
 		}
 
 		companion object {
-			const val MASKS = "masks"
-			const val IOU_PREDICTIONS = "iou_predictions"
-			const val LOW_RES_MASKS = "low_res_masks"
+			const val MASKS = DecoderOutput.MASKS
+			const val IOU_PREDICTIONS = DecoderOutput.IOU_PREDICTIONS
+			const val LOW_RES_MASKS = DecoderOutput.LOW_RES_MASKS
 		}
 	}
 
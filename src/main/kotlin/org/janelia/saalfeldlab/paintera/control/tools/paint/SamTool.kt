@@ -31,22 +31,17 @@ import net.imglib2.FinalInterval
 import net.imglib2.Interval
 import net.imglib2.RandomAccessibleInterval
 import net.imglib2.RealInterval
-import net.imglib2.algorithm.labeling.ConnectedComponents
-import net.imglib2.algorithm.labeling.ConnectedComponents.StructuringElement
 import net.imglib2.histogram.Real1dBinMapper
 import net.imglib2.img.array.ArrayImgs
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory
-import net.imglib2.iterator.IntervalIterator
 import net.imglib2.loops.LoopBuilder
 import net.imglib2.realtransform.*
-import net.imglib2.type.logic.BoolType
 import net.imglib2.type.numeric.integer.UnsignedLongType
 import net.imglib2.type.numeric.real.FloatType
 import net.imglib2.type.volatiles.VolatileFloatType
 import net.imglib2.type.volatiles.VolatileUnsignedLongType
 import net.imglib2.util.Intervals
 import net.imglib2.view.Views
-import org.apache.commons.io.output.NullPrintStream
 import org.janelia.saalfeldlab.bdv.fx.viewer.ViewerPanelFX
 import org.janelia.saalfeldlab.control.VPotControl
 import org.janelia.saalfeldlab.fx.actions.*
@@ -62,7 +57,6 @@ import org.janelia.saalfeldlab.fx.ui.CircleScaleView
 import org.janelia.saalfeldlab.fx.ui.GlyphScaleView
 import org.janelia.saalfeldlab.fx.util.InvokeOnJavaFXApplicationThread
 import org.janelia.saalfeldlab.labels.Label
-import org.janelia.saalfeldlab.net.imglib2.view.BundleView
 import org.janelia.saalfeldlab.paintera.DeviceManager
 import org.janelia.saalfeldlab.paintera.LabelSourceStateKeys.*
 import org.janelia.saalfeldlab.paintera.Paintera
@@ -89,6 +83,7 @@ import org.janelia.saalfeldlab.paintera.util.IntervalHelpers
 import org.janelia.saalfeldlab.paintera.util.IntervalHelpers.Companion.asRealInterval
 import org.janelia.saalfeldlab.paintera.util.IntervalHelpers.Companion.extendBy
 import org.janelia.saalfeldlab.paintera.util.IntervalHelpers.Companion.smallestContainingInterval
+import org.janelia.saalfeldlab.paintera.util.algorithms.ThresholdComponentTree
 import org.janelia.saalfeldlab.paintera.util.algorithms.otsuThresholdPrediction
 import org.janelia.saalfeldlab.util.*
 import java.util.concurrent.CancellationException
@@ -225,7 +220,7 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 			observable.removeListener(setCursorWhenDoneApplying)
 		}
 		paintera.properties.segmentAnythingConfig.subscribe( Runnable {
-			isValidProperty.set(SamEmbeddingLoaderCache.canReachServer)
+			isValidProperty.set(SamEmbeddingLoaderCache.canComputeEmbeddings)
 		})
 	}
 
@@ -313,6 +308,9 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 		paintera.baseView.disabledPropertyBindings -= this
 		lastPrediction?.maskInterval?.let { currentViewerMask?.requestRepaint(it) }
 		viewerMask = null
+		componentTree = null
+		selection = null
+		selectionPaintMask = null
 		estimatedThreshold = null
 		primaryClickLabel = null
 		embeddingRequest = null
@@ -847,10 +845,26 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 
 	var maskPriority = MaskPriority.PREDICTION
 
+	/**
+	 * Whether a prompt of several positive points, and nothing else, marks separate objects, e.g. one point per
+	 * connected component of a shape interpolation slice. If so, each point is predicted on its own, in a batch,
+	 * and the predictions are combined. Otherwise, all points of a prompt select a single object.
+	 */
+	var predictPointsSeparately = false
+
 	private var embeddingRequest: Deferred<OnnxTensor>? = null
 
 	private var currentPrediction: SamPredictor.SamPrediction? = null
 
+	/* post-processing of the current prediction, that is reused when only the threshold changes */
+	private var componentTree: ThresholdComponentTree? = null
+
+	private var selection: ThresholdComponentTree.Selection? = null
+
+	private var selectionPoints: List<SamPoint>? = null
+
+	private var selectionPaintMask: ViewerMask? = null
+
 	private val resetSAMTaskOnException = CoroutineExceptionHandler { _, exception ->
 		LOG.error(exception) { "Error during SAM Prediction " }
 		isBusy = false
@@ -889,7 +903,7 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 
 				val newPredictionRequest = estimateThreshold || currentPrediction == null
 				if (newPredictionRequest) {
-					currentPrediction = runPredictionWithRetry(predictor, predictionRequest)
+					currentPrediction = predict(predictor, predictionRequest)
 				}
 				val prediction = currentPrediction!!
 				val predictionLabel = currentLabelToPaint
@@ -903,92 +917,28 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 
 				val paintMask = viewerMask!!
 
-				val minPoint = longArrayOf(Long.MAX_VALUE, Long.MAX_VALUE)
-				val maxPoint = longArrayOf(Long.MIN_VALUE, Long.MIN_VALUE)
-
-				val predictedImage = currentPrediction!!.image
-
-				var noneAccepted = true
-				val thresholdFilter = BundleView(predictedImage.extendValue(Float.NEGATIVE_INFINITY))
-					.convert(BoolType()) { predictionMaskRA, output ->
-						val predictionType = predictionMaskRA.get()
-						val predictionValue = predictionType.get()
-						val accept = predictionValue >= threshold
-						output.set(accept)
-						if (accept) {
-							noneAccepted = false
-							val pos = predictionMaskRA.positionAsLongArray()
-							minPoint[0] = min(minPoint[0], pos[0])
-							minPoint[1] = min(minPoint[1], pos[1])
-
-							maxPoint[0] = max(maxPoint[0], pos[0])
-							maxPoint[1] = max(maxPoint[1], pos[1])
-						}
-					}
-
-
-				val connectedComponents: RandomAccessibleInterval<UnsignedLongType> = ArrayImgs.unsignedLongs(*predictedImage.dimensionsAsLongArray())
-				/* FIXME: This is annoying, but I don't see a better way around it at the moment.
-				*   `labelAllConnectedComponents` can be interrupted, but doing so causes an
-				*   internal method to `printStackTrace()` on the error. So even when
-				*   It's intentionally and interrupted and handeled, the consol still logs the
-				*   stacktrace to stderr. We temporarily wrap stderr to swalleow it.
-				*   When [https://github.com/imglib/imglib2-algorithm/issues/98] is resolved,
-				*   hopefully this will be as well */
-				val stdErr = System.err
-				System.setErr(NullPrintStream.INSTANCE)
-				try {
-					ConnectedComponents.labelAllConnectedComponents(
-						thresholdFilter,
-						connectedComponents,
-						StructuringElement.FOUR_CONNECTED
-					)
-				} catch (e: InterruptedException) {
-					System.setErr(stdErr)
-					LOG.debug(e) { "Connected Components Interrupted During SAM" }
-					cancel("Connected Components Interrupted During SAM")
-					continue
-				} finally {
-					System.setErr(stdErr)
-				}
+				val predictedImage = prediction.image
+				val (width, height) = predictedImage.dimensionsAsLongArray()
 
+				val tree = componentTree.takeUnless { newPredictionRequest } ?: ThresholdComponentTree.of(predictedImage).also { componentTree = it }
+				/* the mask of the selection backs the paint mask, so it is not reused once the paint mask changes */
+				val currentSelection = selection.takeUnless { newPredictionRequest || selectionPoints != points || selectionPaintMask !== paintMask }
+					?: tree.select(seedPixels(points, tree.width, tree.height)).also {
+						selection = it
+						selectionPoints = points
+						selectionPaintMask = paintMask
+					}
+				val selectionInterval = currentSelection.update(threshold.toFloat())
 
 				val previousPredictionInterval = lastPrediction?.maskInterval?.extendBy(1.0)?.smallestContainingInterval
-				if (noneAccepted) {
+				if (selectionInterval == null) {
 					paintMask.requestRepaint(previousPredictionInterval)
 					lastPrediction = null
 					continue
 				}
-				val acceptedComponents = points.asSequence()
-					.filter { it.label == SamPredictor.SparseLabel.IN }
-					.map { it.x.toLong() to it.y.toLong() }
-					.filter { (x, y) -> thresholdFilter.getAt(x, y).get() }
-					.map { (x, y) -> connectedComponents.getAt(x, y).get() }
-					.toMutableSet()
-
-				points.firstOrNull { it.label == SamPredictor.SparseLabel.TOP_LEFT_BOX }?.let { topLeft ->
-					points.firstOrNull { it.label == SamPredictor.SparseLabel.BOTTOM_RIGHT_BOX }?.let { bottomRight ->
-
-						val minPos = longArrayOf(topLeft.x.toLong(), topLeft.y.toLong())
-						val maxPos = longArrayOf(bottomRight.x.toLong(), bottomRight.y.toLong())
-						val boxIterator = IntervalIterator(FinalInterval(minPos, maxPos))
-						val posInBox = LongArray(2)
-						while (boxIterator.hasNext()) {
-							boxIterator.fwd()
-							boxIterator.localize(posInBox)
-							if (thresholdFilter.getAt(*posInBox).get()) {
-								acceptedComponents += connectedComponents.getAt(*posInBox).get()
-							}
-						}
-					}
-				}
 
-				val selectedComponents = connectedComponents.convertRAI(FloatType()) { source, output ->
-					val value = if (source.get() in acceptedComponents) 1.0f else 0.0f
-					output.set(value)
-				}
+				val selectedComponents = ArrayImgs.floats(currentSelection.mask, width, height)
 
-				val (width, height) = predictedImage.dimensionsAsLongArray()
 				val predictionToViewerScale = Scale2D(setViewer!!.width / width, setViewer!!.height / height)
 				val halfPixelOffset = Translation2D(.5, .5)
 				val translationToViewer = Translation2D(*paintMask.displayPointToMask(0, 0, currentDisplay).positionAsDoubleArray())
@@ -1026,7 +976,7 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 					writableSourceImages = originalBackingImage to originalVolatileBackingImage
 				)
 
-				val predictionInterval3D = Intervals.createMinMax(*minPoint, 0, *maxPoint, 0)
+				val predictionInterval3D = Intervals.createMinMax(*selectionInterval.minAsLongArray(), 0, *selectionInterval.maxAsLongArray(), 0)
 				val predictionIntervalInViewerSpace = predictionToViewerTransform.estimateBounds(predictionInterval3D).smallestContainingInterval
 
 				paintMask.requestRepaint(predictionIntervalInViewerSpace union previousPredictionInterval)
@@ -1035,6 +985,27 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 		}
 	}
 
+	/**
+	 * Pixels of the prediction that select components: the positive points, and all pixels in the box, if any.
+	 */
+	private fun seedPixels(points: List<SamPoint>, width: Int, height: Int): IntArray {
+		val seeds = mutableListOf<Int>()
+		points.asSequence()
+			.filter { it.label == SamPredictor.SparseLabel.IN }
+			.map { it.x.toInt() to it.y.toInt() }
+			.filter { (x, y) -> x in 0 until width && y in 0 until height }
+			.forEach { (x, y) -> seeds += x + y * width }
+
+		points.firstOrNull { it.label == SamPredictor.SparseLabel.TOP_LEFT_BOX }?.let { topLeft ->
+			points.firstOrNull { it.label == SamPredictor.SparseLabel.BOTTOM_RIGHT_BOX }?.let { bottomRight ->
+				for (y in max(topLeft.y.toInt(), 0)..min(bottomRight.y.toInt(), height - 1))
+					for (x in max(topLeft.x.toInt(), 0)..min(bottomRight.x.toInt(), width - 1))
+						seeds += x + y * width
+			}
+		}
+		return seeds.toIntArray()
+	}
+
 	private fun setBestEstimatedThreshold(interval: Interval? = null) {
 		/* [-40..30] seems from testing like a reasonable range to include the vast majority of
 		*  prediction values, excluding perhaps some extreme outliers (which imo is desirable) */
@@ -1084,6 +1055,49 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 		}
 	}
 
+	/**
+	 * Predict a mask for each prompt in [prompts] against the embedding of the current [renderState], in as few decoder
+	 * runs as possible. Unlike [requestPrediction], the predictions are not painted, so that the caller can combine
+	 * them, e.g. when seeding many objects in the same view.
+	 *
+	 * @param prompts independent prompts, each one a list of points and/or a box
+	 * @return the predictions, in the order of [prompts]
+	 */
+	suspend fun predictAll(prompts: List<List<SamPoint>>): List<SamPredictor.SamPrediction> {
+		if (prompts.isEmpty())
+			return emptyList()
+		val session = createOrtSessionTask.await()
+		val imageEmbedding = embeddingRequest?.await() ?: error("SAM is not initialized")
+		val predictor = SamPredictor(ortEnv, session, imageEmbedding, imgWidth to imgHeight)
+		return predictAll(predictor, prompts)
+	}
+
+	private fun predictAll(predictor: SamPredictor, prompts: List<List<SamPoint>>): List<SamPredictor.SamPrediction> {
+		return runPredictionWithRetry(predictor, prompts.map { SamPredictor.points(it) as SparsePrediction })
+	}
+
+	private fun predict(predictor: SamPredictor, predictionRequest: SparsePrediction): SamPredictor.SamPrediction {
+		val points = predictionRequest.points
+		if (predictPointsSeparately && points.size > 1 && points.all { it.label == SamPredictor.SparseLabel.IN })
+			return predictor.union(predictAll(predictor, points.map { listOf(it) }))
+		return runPredictionWithRetry(predictor, predictionRequest)
+	}
+
+	private fun runPredictionWithRetry(predictor: SamPredictor, predictionRequests: List<SparsePrediction>): List<SamPredictor.SamPrediction> {
+		/* see the single request variant below, but with a bounded number of attempts */
+		var attempt = 1
+		while (true) {
+			try {
+				return predictor.predict(predictionRequests)
+			} catch (e: OrtException) {
+				if (attempt >= MAX_BATCH_PREDICTION_ATTEMPTS)
+					throw e
+				LOG.trace { "Attempt $attempt of $MAX_BATCH_PREDICTION_ATTEMPTS failed: ${e.message}" }
+				++attempt
+			}
+		}
+	}
+
 	private fun runPredictionWithRetry(predictor: SamPredictor, vararg predictionRequest: SamPredictor.PredictionRequest): SamPredictor.SamPrediction {
 		/* FIXME: This is a bit hacky, but works for now until a better solution is found.
 		*   Some explenation. When running the SAM predictions, occasionally the following OrtException is thrown:
@@ -1107,6 +1121,9 @@ open class SamTool(activeSourceStateProperty: SimpleObjectProperty<SourceState<*
 		const val SAM_POINT_STYLE = "sam-point"
 		const val SAM_BOX_OVERLAY_STYLE = "sam-box-overlay"
 
+		/* batches are only decoded programmatically, so a persistent failure must not retry forever */
+		private const val MAX_BATCH_PREDICTION_ATTEMPTS = 3
+
 		private enum class SamPointStyle(val styles: Array<String>) {
 			Include(arrayOf(SAM_POINT_STYLE, "sam-include")),
 			Exclude(arrayOf(SAM_POINT_STYLE, "sam-exclude"));
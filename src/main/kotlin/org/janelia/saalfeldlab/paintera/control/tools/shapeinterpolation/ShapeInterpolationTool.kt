@@ -225,6 +225,8 @@ internal class ShapeInterpolationTool(
 		samTool.currentLabelToPaint = controller.interpolationId
 		samTool.viewerMask = viewerMask
 		samTool.maskPriority = SamTool.MaskPriority.MASK
+		/* the interpolant prompt has one point per connected component */
+		samTool.predictPointsSeparately = true
 
 
 		val globalTransform = viewerMask.initialGlobalTransform.copy()
@@ -309,7 +311,7 @@ internal class ShapeInterpolationTool(
 
 					autoSamLeft = KEY_PRESSED(SHAPE_INTERPOLATION__AUTO_SAM__NEW_SLICE_LEFT) {
 						graphic = { ScaleView().apply { styleClass += listOf("auto-sam", "slice-left") } }
-						verify { SamEmbeddingLoaderCache.canReachServer }
+						verify { SamEmbeddingLoaderCache.canComputeEmbeddings }
 						onAction {
 							val depths = sortedSliceDepths.toMutableList()
 							val (firstDepth, firstSpacing, lastDepth, lastSpacing) = edgeDepthsAndSpacing(depths)
@@ -332,7 +334,7 @@ internal class ShapeInterpolationTool(
 					}
 					autoSamBisectAll = KEY_PRESSED(SHAPE_INTERPOLATION__AUTO_SAM__NEW_SLICES_BISECT_ALL) {
 						graphic = { ScaleView().apply { styleClass += listOf("auto-sam", "slice-bisect") } }
-						verify { SamEmbeddingLoaderCache.canReachServer }
+						verify { SamEmbeddingLoaderCache.canComputeEmbeddings }
 						onAction {
 							val depths = sortedSliceDepths.toMutableList()
 							val remainingRequest = SimpleIntegerProperty().apply {
@@ -364,7 +366,7 @@ internal class ShapeInterpolationTool(
 					}
 
 					autoSamBisectCurrent = KEY_PRESSED(SHAPE_INTERPOLATION__AUTO_SAM__NEW_SLICES_BISECT) {
-						verify { SamEmbeddingLoaderCache.canReachServer }
+						verify { SamEmbeddingLoaderCache.canComputeEmbeddings }
 						onAction {
 							val depths = sortedSliceDepths.toMutableList()
 							val (left, right) = depths.zipWithNext().firstOrNull { (left, right) ->
@@ -375,7 +377,7 @@ internal class ShapeInterpolationTool(
 					}
 					autoSamRight = KEY_PRESSED(SHAPE_INTERPOLATION__AUTO_SAM__NEW_SLICE_RIGHT) {
 						graphic = { ScaleView().apply { styleClass += listOf("auto-sam", "slice-right") } }
-						verify { SamEmbeddingLoaderCache.canReachServer }
+						verify { SamEmbeddingLoaderCache.canComputeEmbeddings }
 						onAction {
 							val depths = sortedSliceDepths.toMutableList()
 							val (firstDepth, firstSpacing, lastDepth, lastSpacing) = edgeDepthsAndSpacing(depths)
@@ -406,7 +408,7 @@ internal class ShapeInterpolationTool(
 						}
 					}
 					autoSamCurrent = KEY_PRESSED(SHAPE_INTERPOLATION__AUTO_SAM__NEW_SLICE_HERE) {
-						verify { SamEmbeddingLoaderCache.canReachServer }
+						verify { SamEmbeddingLoaderCache.canComputeEmbeddings }
 						onAction {
 							requestSamPrediction(currentDepth, refresh = true)
 						}
@@ -10,6 +10,7 @@ import javafx.scene.paint.Color
 import kotlinx.coroutines.*
 import net.imglib2.FinalInterval
 import net.imglib2.Interval
+import net.imglib2.cache.CacheLoader
 import net.imglib2.cache.Invalidate
 import net.imglib2.realtransform.AffineTransform3D
 import net.imglib2.type.logic.BoolType
@@ -23,6 +24,9 @@ import org.janelia.saalfeldlab.paintera.data.DataSource
 import org.janelia.saalfeldlab.paintera.data.mask.MaskedSource
 import org.janelia.saalfeldlab.paintera.id.IdService
 import org.janelia.saalfeldlab.paintera.meshes.*
+import org.janelia.saalfeldlab.paintera.meshes.cache.DiskCachedMeshCacheLoader
+import org.janelia.saalfeldlab.paintera.meshes.cache.MeshDiskCache
+import org.janelia.saalfeldlab.paintera.meshes.cache.SegmentFingerprints
 import org.janelia.saalfeldlab.paintera.meshes.cache.SegmentMaskGenerators
 import org.janelia.saalfeldlab.paintera.meshes.cache.SegmentMeshCacheLoader
 import org.janelia.saalfeldlab.paintera.state.label.FragmentLabelMeshCacheKey
@@ -235,7 +239,11 @@ class MeshManagerWithAssignmentForSegments(
 
 		fun LabelBlockLookup.read(level: Int, fragmentId: Long) = read(LabelBlockLookupKey(level, fragmentId))
 
+		/**
+		 * @param meshDiskCache if not `null`, meshes are persisted in and restored from this cache across sessions
+		 */
 		@JvmStatic
+		@JvmOverloads
 		fun <D : IntegerType<D>> fromBlockLookup(
 			dataSource: DataSource<D, *>,
 			selectedSegments: SelectedSegments,
@@ -245,6 +253,7 @@ class MeshManagerWithAssignmentForSegments(
 			labelBlockLookup: LabelBlockLookup,
 			meshManagerExecutors: ExecutorService,
 			meshWorkersExecutors: HashPriorityQueueBasedTaskExecutor<MeshWorkerPriority>,
+			meshDiskCache: MeshDiskCache? = null,
 		): MeshManagerWithAssignmentForSegments {
 			LOG.debug("Data source is type {}", dataSource.javaClass)
 			val actualLookup = (dataSource as? MaskedSource<D ,*>)
@@ -252,13 +261,20 @@ class MeshManagerWithAssignmentForSegments(
 				?: labelBlockLookup
 
 			// Set up mesh caches
+			val segmentFingerprints by lazy { SegmentFingerprints(selectedSegments.assignment) }
 			val segmentMaskGenerators = Array(dataSource.numMipmapLevels) { SegmentMaskGenerators.create<D, BoolType>(dataSource, it) { segment -> selectedSegments.assignment.getFragments(segment) } }
-			val loaders = Array(dataSource.numMipmapLevels) {
-				SegmentMeshCacheLoader(
+			val loaders = Array<CacheLoader<ShapeKey<Long>?, PainteraTriangleMesh?>>(dataSource.numMipmapLevels) {
+				val loader = SegmentMeshCacheLoader(
 					{ dataSource.getDataSource(0, it) },
 					segmentMaskGenerators[it],
 					dataSource.getSourceTransformCopy(0, it)
 				)
+				meshDiskCache?.let { cache -> withDiskCache(loader, cache, dataSource, it, segmentFingerprints) } ?: loader
+			}
+			if (meshDiskCache != null) {
+				(dataSource as? MaskedSource<D, *>)?.addOnCanvasPersistedListener { blocksPerLevel ->
+					blocksPerLevel.forEachIndexed { level, blocks -> meshDiskCache.versions.bump(level, blocks) }
+				}
 			}
 			val getMeshFor = GetMeshFor.FromCache.fromLoaders(*loaders)
 
@@ -275,6 +291,28 @@ class MeshManagerWithAssignmentForSegments(
 				argbStream
 			)
 		}
+
+		private fun <D : IntegerType<D>> withDiskCache(
+			loader: CacheLoader<ShapeKey<Long>?, PainteraTriangleMesh?>,
+			cache: MeshDiskCache,
+			dataSource: DataSource<D, *>,
+			level: Int,
+			segmentFingerprints: SegmentFingerprints,
+		): CacheLoader<ShapeKey<Long>?, PainteraTriangleMesh?> {
+			val maskedSource = dataSource as? MaskedSource<D, *>
+			val grid = maskedSource?.getCellGrid(0, level) ?: dataSource.getGrid(level)
+			val transform = dataSource.getSourceTransformCopy(0, level).rowPackedCopy
+			val sourceFingerprint = MeshDiskCache.hash(level.toLong(), *LongArray(transform.size) { transform[it].toRawBits() })
+			return DiskCachedMeshCacheLoader(
+				loader,
+				cache,
+				level,
+				grid,
+				sourceFingerprint,
+				segmentFingerprints,
+				{ maskedSource?.getModifiedBlocks(level) ?: TLongHashSet() }
+			)
+		}
 	}
 
 	private class CachedLabelBlockLookupWithMaskedSource<D : IntegerType<D>>(
@@ -4,6 +4,7 @@ import bdv.cache.SharedQueue
 import javafx.scene.Node
 import net.imglib2.Interval
 import net.imglib2.realtransform.AffineTransform3D
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget
 import org.janelia.saalfeldlab.paintera.data.DataSource
 import org.janelia.saalfeldlab.paintera.state.metadata.MetadataUtils
 
@@ -29,6 +30,14 @@ interface SourceStateBackend<D, T> {
 
 	var virtualCrop: Interval?
 
+	/**
+	 * Byte budget for cached cells of this source, or `null` if cells are only weakly referenced.
+	 * Backends that do not support a budget ignore it.
+	 */
+	var cellCacheBudget: CellCacheBudget?
+		get() = null
+		set(_) {}
+
 	fun updateTransform(resolution: DoubleArray, translation: DoubleArray) {
 		val newTransform = MetadataUtils.transformFromResolutionOffset(resolution, translation)
 		updateTransform(newTransform)
@@ -2,6 +2,9 @@ package org.janelia.saalfeldlab.paintera.state
 
 import de.jensd.fx.glyphs.fontawesome.FontAwesomeIcon
 import de.jensd.fx.glyphs.fontawesome.FontAwesomeIconView
+import javafx.animation.Animation
+import javafx.animation.KeyFrame
+import javafx.animation.Timeline
 import javafx.beans.property.DoubleProperty
 import javafx.geometry.*
 import javafx.scene.Node
@@ -10,6 +13,7 @@ import javafx.scene.control.Label
 import javafx.scene.control.Separator
 import javafx.scene.control.TextField
 import javafx.scene.layout.*
+import javafx.util.Duration
 import net.imglib2.Interval
 import net.imglib2.realtransform.AffineTransform3D
 import net.imglib2.util.Intervals
@@ -20,6 +24,7 @@ import org.janelia.saalfeldlab.fx.ui.NumberField
 import org.janelia.saalfeldlab.fx.ui.ObjectField.SubmitOn
 import org.janelia.saalfeldlab.fx.ui.SpatialField
 import org.janelia.saalfeldlab.n5.N5Reader
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget
 import org.janelia.saalfeldlab.paintera.paintera
 import org.janelia.saalfeldlab.paintera.state.metadata.MetadataState
 import org.janelia.saalfeldlab.paintera.state.metadata.MultiScaleMetadataState
@@ -48,6 +53,12 @@ interface SourceStateBackendN5<D, T> : SourceStateBackend<D, T> {
 			metadataState.virtualCrop = value
 		}
 
+	override var cellCacheBudget: CellCacheBudget?
+		get() = metadataState.cellCacheBudget
+		set(value) {
+			metadataState.cellCacheBudget = value
+		}
+
 	override fun updateTransform(resolution: DoubleArray, translation: DoubleArray) = metadataState.updateTransform(resolution, translation)
 
 	override fun updateTransform(transform: AffineTransform3D) = metadataState.updateTransform(transform)
@@ -88,6 +99,7 @@ interface SourceStateBackendN5<D, T> : SourceStateBackend<D, T> {
 			children += Separator(Orientation.HORIZONTAL)
 			if (canCropVirtually(metadataState))
 				children += newVirtualCropInputGrid(metadataState)
+			children += newCellCacheBudgetNode(metadataState)
 
 			metadataState.metadata.childrenMetadata.zip(metadataState.scaleTransforms).forEachIndexed { idx, (scale, transform) ->
 				val title = "Scale $idx: ${scale.name}"
@@ -207,6 +219,44 @@ interface SourceStateBackendN5<D, T> : SourceStateBackend<D, T> {
 		return virtualCropGrid
 	}
 
+	private fun newCellCacheBudgetNode(metadataState: MetadataState): Node {
+		val mebibyte = 1L shl 20
+		val budgetLabel = Labels.withTooltip(
+			"Cell Cache (MiB)",
+			"""
+				Keep up to this many MiB of cells of all scale levels in memory.
+				With 0, cells are only weakly referenced and may be dropped by any garbage collection.
+				Enabling the cache applies after the source was reloaded, e.g. by reopening the project.
+			""".trimIndent()
+		)
+		budgetLabel.minWidth = Region.USE_PREF_SIZE
+
+		val usageLabel = Label()
+		val updateUsage = {
+			usageLabel.text = metadataState.cellCacheBudget?.let {
+				"${it.usedBytes / mebibyte} of ${it.budgetBytes / mebibyte} MiB used (${it.retainedCells} cells)"
+			} ?: "Weak references only"
+		}
+		updateUsage()
+
+		val initialBudget = (metadataState.cellCacheBudget?.budgetBytes ?: 0L) / mebibyte
+		val budgetField = NumberField.longField(initialBudget, { it >= 0 }, SubmitOn.ENTER_PRESSED, SubmitOn.FOCUS_LOST)
+		budgetField.valueProperty().subscribe { _, budget ->
+			val budgetBytes = budget.toLong() * mebibyte
+			metadataState.cellCacheBudget?.let { it.budgetBytes = budgetBytes }
+				?: budgetBytes.takeIf { it > 0 }?.let { metadataState.cellCacheBudget = CellCacheBudget(it) }
+			updateUsage()
+		}
+
+		val refreshUsage = Timeline(KeyFrame(Duration.seconds(1.0), { updateUsage() })).apply { cycleCount = Animation.INDEFINITE }
+		usageLabel.sceneProperty().subscribe { scene -> if (scene == null) refreshUsage.stop() else refreshUsage.play() }
+
+		return HBox(budgetLabel, budgetField.textField, usageLabel).apply {
+			spacing = 10.0
+			alignment = Pos.CENTER_LEFT
+		}
+	}
+
 	fun singleScaleMetadataNode(metadataState: MetadataState, asScaleLevel: Boolean = false, transformOverride: AffineTransform3D? = null): Node {
 		val n5ContainerState = metadataState.n5ContainerState
 
@@ -265,6 +315,8 @@ interface SourceStateBackendN5<D, T> : SourceStateBackend<D, T> {
 					children += newVirtualCropInputGrid(metadataState)
 					children += Separator(Orientation.HORIZONTAL)
 				}
+				children += newCellCacheBudgetNode(metadataState)
+				children += Separator(Orientation.HORIZONTAL)
 			}
 
 			children +=  GridPane().apply {
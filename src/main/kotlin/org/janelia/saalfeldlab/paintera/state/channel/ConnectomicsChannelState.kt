@@ -21,6 +21,7 @@ import net.imglib2.type.volatiles.AbstractVolatileRealType
 import net.imglib2.view.composite.RealComposite
 import org.janelia.saalfeldlab.fx.extensions.nonnull
 import org.janelia.saalfeldlab.paintera.PainteraBaseView
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget
 import org.janelia.saalfeldlab.paintera.composition.ARGBCompositeAlphaAdd
 import org.janelia.saalfeldlab.paintera.data.ChannelDataSource
 import org.janelia.saalfeldlab.paintera.serialization.GsonExtensions
@@ -117,6 +118,7 @@ class ConnectomicsChannelState<D, T, CD, CT, V>
 		const val COMPOSITE = "composite"
 		const val CONVERTER = "converter"
 		const val VIRTUAL_CROP = "virtualCrop"
+		const val CELL_CACHE_BUDGET = "cellCacheBudget"
 		const val INTERPOLATION = "interpolation"
 		const val IS_VISIBLE = "isVisible"
 		const val RESOLUTION = "resolution"
@@ -138,6 +140,7 @@ class ConnectomicsChannelState<D, T, CD, CT, V>
 				state.resolution.let { map.add(RESOLUTION, context[it]) }
 				state.offset.let { map.add(OFFSET, context[it]) }
 				state.virtualCrop?.let { map.add(VIRTUAL_CROP, context[it]) }
+				state.backend.cellCacheBudget?.let { map.addProperty(CELL_CACHE_BUDGET, it.budgetBytes) }
 
 			}
 			return map
@@ -173,6 +176,7 @@ class ConnectomicsChannelState<D, T, CD, CT, V>
 				with(GsonExtensions) {
 					val backend = context.fromClassInfo<ConnectomicsChannelBackend<CD, V>>(json, BACKEND)!!
 					backend.virtualCrop = context.get<Interval?>(json, VIRTUAL_CROP)
+					json.get<Long>(CELL_CACHE_BUDGET) { backend.cellCacheBudget = CellCacheBudget(it) }
 
 					ConnectomicsChannelState(
 						backend,
@@ -33,6 +33,9 @@ class CommitHandler<S : SourceState<*, *>>(private val state: S, private val fra
 
 		private val LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass())
 
+		/* remember the choice for the next commit */
+		private var commitInBackground = false
+
 		@JvmStatic
 		@JvmOverloads
 		fun showCommitDialog(
@@ -49,12 +52,20 @@ class CommitHandler<S : SourceState<*, *>>(private val state: S, private val fra
 			val canvasCanBeCommitted = state.dataSource.let { it is MaskedSource && it.affectedBlocks.isNotEmpty() }
 			val commitAssignmentCheckbox = CheckBox("Fragment-segment assignment").also { it.isSelected = assignmentsCanBeCommitted }
 			val commitCanvasCheckbox = CheckBox("Canvas").also { it.isSelected = canvasCanBeCommitted }
+			/* only when the canvas is cleared, the paint can continue in a fresh canvas */
+			val committingInBackground = (state.dataSource as? MaskedSource<*, *>)?.isCommittingInBackgroundProperty()
+			val canCommitInBackground = clearCanvas && committingInBackground != null
+			val commitInBackgroundCheckbox = CheckBox("Continue painting while committing the canvas").also {
+				it.isSelected = commitInBackground
+				committingInBackground?.let { committing -> it.disableProperty().bind(commitCanvasCheckbox.selectedProperty().not().or(committing)) }
+			}
 			val anythingToCommit = assignmentsCanBeCommitted || canvasCanBeCommitted
 			val name = state.nameProperty().get()
 			val dialog = if (anythingToCommit) {
 				val contents = VBox()
 				if (assignmentsCanBeCommitted) contents.children.add(commitAssignmentCheckbox)
 				if (canvasCanBeCommitted) contents.children.add(commitCanvasCheckbox)
+				if (canvasCanBeCommitted && canCommitInBackground) contents.children.add(commitInBackgroundCheckbox)
 				PainteraAlerts.confirmation(okButtonText, cancelButtonText, true).also {
 					(it.dialogPane.lookupButton(ButtonType.CANCEL) as? Button)?.let { closeButton ->
 						closeButton.isVisible = false
@@ -79,7 +90,12 @@ class CommitHandler<S : SourceState<*, *>>(private val state: S, private val fra
 				if (assignmentsCanBeCommitted && commitAssignmentCheckbox.isSelected) fragmentSegmentAssignmentState.persist()
 				state.dataSource.let {
 					if (canvasCanBeCommitted && commitCanvasCheckbox.isSelected && it is MaskedSource) {
-						it.persistCanvas(clearCanvas)
+						if (canCommitInBackground)
+							commitInBackground = commitInBackgroundCheckbox.isSelected
+						if (canCommitInBackground && commitInBackgroundCheckbox.isSelected && !commitInBackgroundCheckbox.isDisabled)
+							it.persistCanvasInBackground()
+						else
+							it.persistCanvas(clearCanvas)
 					}
 				}
 			}
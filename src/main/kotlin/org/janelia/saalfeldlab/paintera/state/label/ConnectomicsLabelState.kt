@@ -44,6 +44,8 @@ import org.janelia.saalfeldlab.paintera.LabelSourceStateKeys
 import org.janelia.saalfeldlab.paintera.LabelSourceStateKeys.*
 import org.janelia.saalfeldlab.paintera.Paintera
 import org.janelia.saalfeldlab.paintera.PainteraBaseView
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget
+import org.janelia.saalfeldlab.paintera.cache.SamEmbeddingLoaderCache
 import org.janelia.saalfeldlab.paintera.composition.ARGBCompositeAlphaYCbCr
 import org.janelia.saalfeldlab.paintera.composition.Composite
 import org.janelia.saalfeldlab.paintera.config.input.KeyAndMouseBindings
@@ -60,6 +62,7 @@ import org.janelia.saalfeldlab.paintera.data.PredicateDataSource
 import org.janelia.saalfeldlab.paintera.data.mask.MaskedSource
 import org.janelia.saalfeldlab.paintera.meshes.ManagedMeshSettings
 import org.janelia.saalfeldlab.paintera.meshes.MeshWorkerPriority
+import org.janelia.saalfeldlab.paintera.meshes.cache.MeshDiskCache
 import org.janelia.saalfeldlab.paintera.meshes.managed.GetBlockListFor
 import org.janelia.saalfeldlab.paintera.meshes.managed.MeshManagerWithAssignmentForSegments
 import org.janelia.saalfeldlab.paintera.paintera
@@ -71,6 +74,7 @@ import org.janelia.saalfeldlab.paintera.serialization.SerializationHelpers.withC
 import org.janelia.saalfeldlab.paintera.serialization.StatefulSerializer
 import org.janelia.saalfeldlab.paintera.state.*
 import org.janelia.saalfeldlab.paintera.stream.*
+import org.janelia.saalfeldlab.paintera.ui.PainteraAlerts
 import org.janelia.saalfeldlab.paintera.viewer3d.ViewFrustum
 import org.janelia.saalfeldlab.util.Colors
 import org.janelia.saalfeldlab.util.HashWrapper
@@ -79,6 +83,8 @@ import org.scijava.plugin.Plugin
 import org.slf4j.LoggerFactory
 import java.lang.invoke.MethodHandles
 import java.lang.reflect.Type
+import java.util.UUID
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ExecutorService
 import java.util.function.*
 import kotlin.collections.component1
@@ -133,11 +139,34 @@ class ConnectomicsLabelState<D : IntegerType<D>, T>(
 		eyeToWorldTransformProperty,
 		this.labelBlockLookup,
 		meshManagerExecutors,
-		meshWorkersExecutors
+		meshWorkersExecutors,
+		createMeshDiskCache()
 	).apply {
 		refreshMeshes()
 	}
 
+	init {
+		(source as? MaskedSource<*, *>)?.let { maskedSource ->
+			/* SAM embeddings of slices through committed blocks are stale */
+			maskedSource.addOnCanvasPersistedListener { SamEmbeddingLoaderCache.invalidatePersistedBlocks(maskedSource, it) }
+		}
+	}
+
+	/**
+	 * Meshes are cached on disk in the project directory, keyed by the N5 container and dataset of the source.
+	 */
+	private fun createMeshDiskCache(): MeshDiskCache? {
+		val n5Backend = backend as? SourceStateBackendN5<*, *> ?: return null
+		return try {
+			val projectDirectory = paintera.projectDirectory.actualDirectory ?: return null
+			val sourceId = UUID.nameUUIDFromBytes("${n5Backend.metadataState.n5ContainerState.uri}:${n5Backend.dataset}".toByteArray())
+			MeshDiskCache(projectDirectory.toPath().resolve("mesh-cache").resolve(sourceId.toString()))
+		} catch (e: Exception) {
+			LOG.warn("Unable to create mesh disk cache for {}. Meshes will not be cached on disk.", n5Backend.dataset, e)
+			null
+		}
+	}
+
 	val meshCacheKeyProperty: ObjectBinding<FragmentLabelMeshCacheKey> = fragmentsInSelectedSegments.createNonNullValueBinding { FragmentLabelMeshCacheKey(it) }
 
 	override fun getMeshCacheKeyBinding(): ObjectBinding<FragmentLabelMeshCacheKey> = meshCacheKeyProperty
@@ -297,6 +326,8 @@ class ConnectomicsLabelState<D : IntegerType<D>, T>(
 	}
 
 	override fun onShutdown(paintera: PainteraBaseView) {
+		/* do not interrupt a commit that runs in the background */
+		(dataSource as? MaskedSource<*, *>)?.backgroundCommit?.let { awaitBackgroundCommit(it) }
 		if (!skipCommit) {
 			promptForCommitIfNecessary(paintera) { index, name ->
 				"""
@@ -310,6 +341,27 @@ class ConnectomicsLabelState<D : IntegerType<D>, T>(
 		skipCommit = false
 	}
 
+	/**
+	 * Wait for [commit] in a dialog, which keeps the application thread responsive until the dialog is closed when the
+	 * commit is done.
+	 */
+	private fun awaitBackgroundCommit(commit: CompletableFuture<Void>) {
+		if (commit.isDone) return
+		val dialog = PainteraAlerts.alert(Alert.AlertType.INFORMATION, false).apply {
+			headerText = "Waiting for the commit of ${nameProperty().get()} in the background."
+			dialogPane.lookupButton(ButtonType.OK).isDisable = true
+		}
+		commit.whenComplete { _, _ ->
+			InvokeOnJavaFXApplicationThread.invoke {
+				/* a dialog without cancel button only closes with a result */
+				dialog.result = ButtonType.OK
+				dialog.close()
+			}
+		}
+		if (!commit.isDone)
+			dialog.showAndWait()
+	}
+
 	internal fun promptForCommitIfNecessary(paintera: PainteraBaseView, prompt: BiFunction<Int, String, String>) : ButtonType? {
 		return CommitHandler.showCommitDialog(
 			this,
@@ -566,6 +618,7 @@ class ConnectomicsLabelState<D : IntegerType<D>, T>(
         const val IS_VISIBLE                      = "isVisible"
         const val RESOLUTION                      = "resolution"
         const val VIRTUAL_CROP                     = "virtualCrop"
+        const val CELL_CACHE_BUDGET               = "cellCacheBudget"
         const val OFFSET                          = "offset"
         const val LABEL_BLOCK_LOOKUP              = "labelBlockLookup"
         const val LOCKED_SEGMENTS                 = "lockedSegments"
@@ -599,6 +652,7 @@ class ConnectomicsLabelState<D : IntegerType<D>, T>(
 				map.add(RESOLUTION, context[state.resolution])
 				map.add(OFFSET, context[state.offset])
 				state.virtualCrop?.let { map.add(VIRTUAL_CROP, context[it]) }
+				state.backend.cellCacheBudget?.let { map.addProperty(CELL_CACHE_BUDGET, it.budgetBytes) }
 				state.labelBlockLookup.takeUnless { state.backend.providesLookup }?.let { map.add(LABEL_BLOCK_LOOKUP, context[it]) }
 				state.lockedSegments.lockedSegmentsCopy().takeIf { it.isNotEmpty() }?.let { map.add(LOCKED_SEGMENTS, context[it]) }
 			}
@@ -647,6 +701,7 @@ class ConnectomicsLabelState<D : IntegerType<D>, T>(
 						val virtualCrop = context.get<Interval?>(json, VIRTUAL_CROP)
 						backend.updateTransform(resolution, offset)
 						backend.virtualCrop = virtualCrop
+						json.get<Long>(CELL_CACHE_BUDGET) { backend.cellCacheBudget = CellCacheBudget(it) }
 
 						val labelBlockLookup: LabelBlockLookup? = if (backend.providesLookup) null else context[json, LABEL_BLOCK_LOOKUP]
 						val state = ConnectomicsLabelState(
@@ -20,6 +20,7 @@ import org.janelia.saalfeldlab.n5.universe.metadata.SpatialMultiscaleMetadata
 import org.janelia.saalfeldlab.n5.universe.metadata.axes.Axis
 import org.janelia.saalfeldlab.n5.universe.metadata.ome.ngff.v04.NgffSingleScaleAxesMetadata
 import org.janelia.saalfeldlab.paintera.Paintera
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget
 import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignmentOnlyLocal
 import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignmentOnlyLocal.NO_INITIAL_LUT_AVAILABLE
 import org.janelia.saalfeldlab.paintera.state.metadata.MetadataState.Companion.isLabel
@@ -51,6 +52,12 @@ interface MetadataState {
 	var channelAxis: Pair<Axis, Int>?
 	var timeAxis: Pair<Axis, Int>?
 	var virtualCrop: Interval?
+
+	/**
+	 * Byte budget for cells of all scale levels, or `null` to only keep weak references to cells.
+	 * Only applies to data opened after it was set.
+	 */
+	var cellCacheBudget: CellCacheBudget?
 	var unit: String
 	var reader: N5Reader
 
@@ -87,6 +94,7 @@ interface MetadataState {
 			target.resolution = source.resolution.copyOf()
 			target.translation = source.translation.copyOf()
 			target.virtualCrop = source.virtualCrop?.let { FinalInterval(it.minAsLongArray(), it.maxAsLongArray()) }
+			target.cellCacheBudget = source.cellCacheBudget
 			target.unit = source.unit
 			target.group = source.group
 		}
@@ -110,6 +118,7 @@ open class SingleScaleMetadataState(
 	override var channelAxis: Pair<Axis, Int>? = metadata.channelAxis
 	override var timeAxis: Pair<Axis, Int>? = metadata.timeAxis
 	override var virtualCrop: Interval? = null
+	override var cellCacheBudget: CellCacheBudget? = null
 	override var unit: String = metadata.unit()
 	override var reader = n5ContainerState.reader
 	override val writer: N5Writer?
@@ -217,6 +226,12 @@ class PainteraDataMultiscaleMetadataState(
 			field = value
 		}
 
+	override var cellCacheBudget: CellCacheBudget? = null
+		set(value) {
+			dataMetadataState.cellCacheBudget = value
+			field = value
+		}
+
 	override fun <D : NativeType<D>, T : Volatile<D>> getData(queue: SharedQueue, priority: Int): Array<ImagesWithTransform<D, T>> {
 		return if (isLabelMultiset) {
 			N5Data.openLabelMultisetMultiscale(dataMetadataState, queue, priority)
@@ -25,6 +25,7 @@ import org.janelia.saalfeldlab.fx.ui.NamedNode
 import org.janelia.saalfeldlab.net.imglib2.converter.ARGBColorConverter
 import org.janelia.saalfeldlab.paintera.PainteraBaseView
 import org.janelia.saalfeldlab.paintera.RawSourceStateKeys
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget
 import org.janelia.saalfeldlab.paintera.composition.Composite
 import org.janelia.saalfeldlab.paintera.composition.CompositeCopy
 import org.janelia.saalfeldlab.paintera.config.input.KeyAndMouseBindings
@@ -176,6 +177,7 @@ open class ConnectomicsRawState<D, T>(
 		const val IS_VISIBLE = "isVisible"
 		const val RESOLUTION = "resolution"
 		const val VIRTUAL_CROP = "virtualCrop"
+		const val CELL_CACHE_BUDGET = "cellCacheBudget"
 		const val OFFSET = "offset"
 	}
 
@@ -199,6 +201,7 @@ open class ConnectomicsRawState<D, T>(
 				map.add(RESOLUTION, context[state.resolution])
 				map.add(OFFSET, context[state.offset])
 				state.virtualCrop?.let { map.add(VIRTUAL_CROP, context[it]) }
+				state.backend.cellCacheBudget?.let { map.addProperty(CELL_CACHE_BUDGET, it.budgetBytes) }
 			}
 			return map
 		}
@@ -238,6 +241,7 @@ open class ConnectomicsRawState<D, T>(
 			val virtualCrop = context.get<RealInterval?>(json, VIRTUAL_CROP) as? Interval
 			backend.updateTransform(resolution, offset)
 			backend.virtualCrop = virtualCrop
+			json.get<Long>(CELL_CACHE_BUDGET) { backend.cellCacheBudget = CellCacheBudget(it) }
 
 			return ConnectomicsRawState(
 				backend,
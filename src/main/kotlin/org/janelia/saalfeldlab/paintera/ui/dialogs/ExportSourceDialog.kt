@@ -193,6 +193,16 @@ object ExportSourceDialog {
 			}, 6, 0)
 			smallOptions.add(Label("Data Type").apply { alignment = Pos.BOTTOM_RIGHT }, 4, 1)
 			smallOptions.add(dataTypeChoices, 6, 1)
+			smallOptions.add(Label("Export Downsampled Levels").apply { alignment = Pos.BOTTOM_RIGHT }, 0, 1)
+			smallOptions.add(CheckBox().apply {
+				state.exportPyramidProperty.bind(selectedProperty())
+				alignment = Pos.CENTER_LEFT
+			}, 2, 1)
+			smallOptions.add(Label("Resume Previous Export").apply { alignment = Pos.BOTTOM_RIGHT }, 0, 2)
+			smallOptions.add(CheckBox().apply {
+				state.resumeProperty.bind(selectedProperty())
+				alignment = Pos.CENTER_LEFT
+			}, 2, 2)
 
 			add(smallOptions, 0, 3, GridPane.REMAINING, 1)
 		}
@@ -59,6 +59,8 @@ enum class PainteraMenuItems(
 	SAVE_3D_PNG_MENU_ITEM("Save 3D As _PNG...", PBK.SAVE_3D_PNG, requiredActionTypes = arrayOf(OrthoslicesContextMenu)),
 	FULL_SCREEN_ITEM("Toggle _Fullscreen", PBK.TOGGLE_FULL_SCREEN, requiredActionTypes = arrayOf(ResizeViewers, ResizePanel)),
 	REPL_ITEM("Show _REPL...", PBK.SHOW_REPL_TABS),
+	TOGGLE_RENDERING_METRICS("Toggle Rendering M_etrics"),
+	TOGGLE_TILED_RENDERING("Toggle _Tiled Rendering"),
 	RESET_VIEWER_POSITIONS("Reset _Viewer Positions", PBK.RESET_VIEWER_POSITIONS, requiredActionTypes = arrayOf(ResizeViewers, ToggleMaximizeViewer, DetachViewer)),
 	SHOW_README("Show _Readme...", PBK.OPEN_README, FontAwesomeIcon.QUESTION),
 	SHOW_KEY_BINDINGS("Show _Key Bindings...", PBK.OPEN_KEY_BINDINGS, FontAwesomeIcon.KEYBOARD_ALT);
@@ -104,6 +106,15 @@ enum class PainteraMenuItems(
 				NEW_CONNECTED_COMPONENT_SOURCE { IntersectingSourceStateOpener.createAndAddVirtualIntersectionSource(baseView, getProjectDirectory) },
 				NEW_THRESHOLDED_SOURCE { ThresholdedRawSourceStateOpenerDialog.createAndAddNewVirtualThresholdSource(baseView, getProjectDirectory) },
 				RESET_VIEWER_POSITIONS { baseView.orthogonalViews().resetPane() },
+				TOGGLE_RENDERING_METRICS {
+					baseView.orthogonalViews().apply {
+						renderingMetricsVisibleProperty().set(!renderingMetricsVisibleProperty().get())
+						drawOverlays()
+					}
+				},
+				TOGGLE_TILED_RENDERING {
+					baseView.orthogonalViews().tiledRenderingProperty().apply { set(!get()) }
+				},
 				RESET_3D_LOCATION_MENU_ITEM { baseView.viewer3D().reset3DAffine() },
 				CENTER_3D_LOCATION_MENU_ITEM { baseView.viewer3D().center3DAffine() },
 				SAVE_3D_PNG_MENU_ITEM { baseView.viewer3D().saveAsPng() }
@@ -78,6 +78,8 @@ private val viewMenu by LazyForeignValue(::paintera) {
 		FULL_SCREEN_ITEM.menu,
 		REPL_ITEM.menu,
 		RESET_VIEWER_POSITIONS.menu,
+		TOGGLE_RENDERING_METRICS.menu,
+		TOGGLE_TILED_RENDERING.menu,
 		viewer3DMenu
 	)
 }
@@ -0,0 +1,344 @@
+package org.janelia.saalfeldlab.paintera.util.algorithms
+
+import net.imglib2.FinalInterval
+import net.imglib2.Interval
+import net.imglib2.RandomAccessibleInterval
+import net.imglib2.type.numeric.real.FloatType
+import net.imglib2.view.Views
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Component tree of the four-connected components of the upper level sets `{ value >= threshold }` of a 2D image,
+ * for all thresholds at once.
+ *
+ * The tree is built once with a union-find over the pixels in order of descending value. A node is created whenever a
+ * pixel starts a new component, or joins two or more components. Pixels that extend a single component are owned by
+ * the current node of that component. The pixels are laid out such that each node covers a contiguous range, its
+ * children first, then its own pixels in order of descending value. The component that contains a pixel at any
+ * threshold is therefore a prefix of the range of one node, and can be queried without another pass over the image.
+ *
+ * Pixels are addressed by their flat index `x + y * width`. `NaN` values are never part of any component.
+ *
+ * @param values pixel values in flat iteration order
+ */
+class ThresholdComponentTree(private val values: FloatArray, val width: Int, val height: Int) {
+
+	init {
+		require(values.size == width * height) { "Expected ${width * height} values but got ${values.size}" }
+	}
+
+	private val numPixels = values.size
+
+	/* node of each pixel at the time it was added */
+	private val owner = IntArray(numPixels)
+
+	private var numNodes = 0
+
+	private var level = FloatArray(INITIAL_CAPACITY)
+
+	private var parent = IntArray(INITIAL_CAPACITY)
+
+	/* children as singly linked lists */
+	private var firstChild = IntArray(INITIAL_CAPACITY)
+
+	private var nextSibling = IntArray(INITIAL_CAPACITY)
+
+	/* own pixels as singly linked lists, in order of descending value */
+	private var firstOwn = IntArray(INITIAL_CAPACITY)
+
+	private var lastOwn = IntArray(INITIAL_CAPACITY)
+
+	private val nextOwn = IntArray(numPixels)
+
+	/* node ranges in the layout */
+	private lateinit var rangeStart: IntArray
+
+	private lateinit var ownStart: IntArray
+
+	private lateinit var rangeEnd: IntArray
+
+	private val layout = IntArray(numPixels)
+
+	init {
+		build()
+		buildLayout()
+	}
+
+	/**
+	 * @return the component that contains pixel [index] at [threshold], as a node of the tree, or `-1` if the pixel is
+	 * below [threshold]
+	 */
+	fun component(index: Int, threshold: Float): Int {
+		if (!(values[index] >= threshold))
+			return -1
+		var node = owner[index]
+		while (parent[node] >= 0 && level[parent[node]] >= threshold)
+			node = parent[node]
+		return node
+	}
+
+	/**
+	 * Call [action] for each pixel of [component] at [threshold].
+	 *
+	 * @param component as returned by [component] for the same [threshold]
+	 */
+	inline fun forEachPixel(component: Int, threshold: Float, action: (Int) -> Unit) {
+		val end = componentEnd(component, threshold)
+		for (i in componentStart(component) until end)
+			action(pixelAt(i))
+	}
+
+	@PublishedApi
+	internal fun pixelAt(layoutIndex: Int) = layout[layoutIndex]
+
+	@PublishedApi
+	internal fun componentStart(component: Int) = rangeStart[component]
+
+	@PublishedApi
+	internal fun componentEnd(component: Int, threshold: Float): Int {
+		/* own pixels are sorted by descending value, find the first one below threshold */
+		var lo = ownStart[component]
+		var hi = rangeEnd[component]
+		while (lo < hi) {
+			val mid = (lo + hi) ushr 1
+			if (values[layout[mid]] >= threshold) lo = mid + 1 else hi = mid
+		}
+		return lo
+	}
+
+	/**
+	 * Selection of all components that contain at least one of [seeds], as a mask that is updated incrementally when
+	 * the threshold changes.
+	 */
+	fun select(seeds: IntArray) = Selection(seeds)
+
+	inner class Selection internal constructor(seeds: IntArray) {
+
+		/**
+		 * `1` for pixels in the selected components, `0` otherwise.
+		 */
+		val mask = FloatArray(numPixels)
+
+		/* distinct owners of the seeds, with the largest value of any seed they own, sorted by descending value */
+		private val seedNodes: IntArray
+
+		private val seedValues: FloatArray
+
+		private var selected = IntArray(0)
+
+		private var selectedThreshold = Float.NaN
+
+		private var bounds: Interval? = null
+
+		init {
+			val maxSeedValue = HashMap<Int, Float>()
+			for (seed in seeds) {
+				val value = values[seed]
+				if (value.isNaN())
+					continue
+				maxSeedValue.merge(owner[seed], value) { a, b -> max(a, b) }
+			}
+			val sorted = maxSeedValue.entries.sortedByDescending { it.value }
+			seedNodes = IntArray(sorted.size) { sorted[it].key }
+			seedValues = FloatArray(sorted.size) { sorted[it].value }
+		}
+
+		/**
+		 * Update [mask] to the components selected at [threshold]. Only the pixels of the previous and the new
+		 * selection are visited, not the whole image.
+		 *
+		 * @return bounding box of the selected pixels, or `null` if no pixels are selected
+		 */
+		fun update(threshold: Float): Interval? {
+			if (threshold == selectedThreshold)
+				return bounds
+
+			val components = LinkedHashSet<Int>()
+			for (i in seedNodes.indices) {
+				if (!(seedValues[i] >= threshold))
+					break
+				var node = seedNodes[i]
+				while (parent[node] >= 0 && level[parent[node]] >= threshold)
+					node = parent[node]
+				components += node
+			}
+
+			for (component in selected)
+				forEachPixel(component, selectedThreshold) { mask[it] = 0.0f }
+
+			var minX = Int.MAX_VALUE
+			var minY = Int.MAX_VALUE
+			var maxX = Int.MIN_VALUE
+			var maxY = Int.MIN_VALUE
+			for (component in components) {
+				forEachPixel(component, threshold) {
+					mask[it] = 1.0f
+					val x = it % width
+					val y = it / width
+					minX = min(minX, x)
+					minY = min(minY, y)
+					maxX = max(maxX, x)
+					maxY = max(maxY, y)
+				}
+			}
+
+			selected = components.toIntArray()
+			selectedThreshold = threshold
+			bounds = if (minX > maxX) null else FinalInterval(longArrayOf(minX.toLong(), minY.toLong()), longArrayOf(maxX.toLong(), maxY.toLong()))
+			return bounds
+		}
+	}
+
+	private fun build() {
+		val order = sortedByDescendingValue()
+		/* union-find over the pixels added so far, -1 for pixels not yet added */
+		val union = IntArray(numPixels) { -1 }
+		val rootNode = IntArray(numPixels)
+		val roots = IntArray(4)
+		val neighbours = IntArray(4)
+
+		fun find(pixel: Int): Int {
+			var root = pixel
+			while (union[root] != root)
+				root = union[root]
+			var current = pixel
+			while (union[current] != root) {
+				val next = union[current]
+				union[current] = root
+				current = next
+			}
+			return root
+		}
+
+		for (pixel in order) {
+			val value = values[pixel]
+			if (value.isNaN())
+				break
+			val x = pixel % width
+			val y = pixel / width
+			var numNeighbours = 0
+			if (x > 0) neighbours[numNeighbours++] = pixel - 1
+			if (x < width - 1) neighbours[numNeighbours++] = pixel + 1
+			if (y > 0) neighbours[numNeighbours++] = pixel - width
+			if (y < height - 1) neighbours[numNeighbours++] = pixel + width
+
+			var numRoots = 0
+			for (n in 0 until numNeighbours) {
+				if (union[neighbours[n]] < 0)
+					continue
+				val root = find(neighbours[n])
+				if ((0 until numRoots).none { roots[it] == root })
+					roots[numRoots++] = root
+			}
+
+			union[pixel] = pixel
+			val node = when (numRoots) {
+				1 -> rootNode[roots[0]]
+				else -> newNode(value).also { node ->
+					for (i in 0 until numRoots) {
+						val child = rootNode[roots[i]]
+						parent[child] = node
+						nextSibling[child] = firstChild[node]
+						firstChild[node] = child
+					}
+				}
+			}
+			/* the new pixel becomes the root, which keeps the trees shallow enough with path compression */
+			for (i in 0 until numRoots)
+				union[roots[i]] = pixel
+			rootNode[pixel] = node
+			owner[pixel] = node
+			if (firstOwn[node] < 0) firstOwn[node] = pixel else nextOwn[lastOwn[node]] = pixel
+			lastOwn[node] = pixel
+			nextOwn[pixel] = -1
+		}
+	}
+
+	private fun buildLayout() {
+		rangeStart = IntArray(numNodes)
+		ownStart = IntArray(numNodes)
+		rangeEnd = IntArray(numNodes)
+		val entered = BooleanArray(numNodes)
+		val stack = IntArray(numNodes)
+		var stackSize = 0
+		var position = 0
+		for (root in 0 until numNodes) {
+			if (parent[root] >= 0)
+				continue
+			stack[stackSize++] = root
+			while (stackSize > 0) {
+				val node = stack[stackSize - 1]
+				if (!entered[node]) {
+					entered[node] = true
+					rangeStart[node] = position
+					var child = firstChild[node]
+					while (child >= 0) {
+						stack[stackSize++] = child
+						child = nextSibling[child]
+					}
+				} else {
+					--stackSize
+					ownStart[node] = position
+					var pixel = firstOwn[node]
+					while (pixel >= 0) {
+						layout[position++] = pixel
+						pixel = nextOwn[pixel]
+					}
+					rangeEnd[node] = position
+				}
+			}
+		}
+	}
+
+	private fun newNode(value: Float): Int {
+		if (numNodes == level.size) {
+			val capacity = min(2 * level.size, numPixels)
+			level = level.copyOf(capacity)
+			parent = parent.copyOf(capacity)
+			firstChild = firstChild.copyOf(capacity)
+			nextSibling = nextSibling.copyOf(capacity)
+			firstOwn = firstOwn.copyOf(capacity)
+			lastOwn = lastOwn.copyOf(capacity)
+		}
+		val node = numNodes++
+		level[node] = value
+		parent[node] = -1
+		firstChild[node] = -1
+		nextSibling[node] = -1
+		firstOwn[node] = -1
+		lastOwn[node] = -1
+		return node
+	}
+
+	/**
+	 * Sort the pixels by packing the value, mapped to an `Int` that preserves the order of floats, and the pixel index
+	 * into a `Long`, which is considerably faster than sorting boxed indices with a comparator.
+	 * `NaN` values are sorted last.
+	 */
+	private fun sortedByDescendingValue(): IntArray {
+		val keys = LongArray(numPixels) { pixel ->
+			val value = values[pixel]
+			val bits = java.lang.Float.floatToIntBits(value)
+			val sortable = if (value.isNaN()) Int.MIN_VALUE else bits xor ((bits shr 31) and Int.MAX_VALUE)
+			(sortable.toLong() shl 32) or pixel.toLong()
+		}
+		keys.sort()
+		return IntArray(numPixels) { keys[numPixels - 1 - it].toInt() }
+	}
+
+	companion object {
+
+		private const val INITIAL_CAPACITY = 1024
+
+		@JvmStatic
+		fun of(image: RandomAccessibleInterval<FloatType>): ThresholdComponentTree {
+			require(image.numDimensions() == 2) { "Expected 2D image but got ${image.numDimensions()} dimensions" }
+			val values = FloatArray(Math.toIntExact(image.size()))
+			var i = 0
+			for (pixel in Views.flatIterable(image))
+				values[i++] = pixel.get()
+			return ThresholdComponentTree(values, image.dimension(0).toInt(), image.dimension(1).toInt())
+		}
+	}
+}
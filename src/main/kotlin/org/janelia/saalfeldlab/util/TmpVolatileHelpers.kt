@@ -13,6 +13,9 @@ import net.imglib2.cache.volatiles.CacheHints
 import net.imglib2.img.basictypeaccess.AccessFlags
 import net.imglib2.img.basictypeaccess.volatiles.VolatileArrayDataAccess
 import net.imglib2.type.NativeType
+import org.janelia.saalfeldlab.paintera.cache.BoundedVolatileCache
+import org.janelia.saalfeldlab.paintera.cache.CellCacheBudget
+import org.janelia.saalfeldlab.paintera.cache.CellWeights
 
 @Deprecated("Use this until cache is exposed in VolatileViews.wrapAsVolatile")
 class TmpVolatileHelpers {
@@ -22,10 +25,12 @@ class TmpVolatileHelpers {
 	companion object {
 		@Deprecated("Use this until cache is exposed in VolatileViews.wrapAsVolatile", ReplaceWith("VolatileViews.wrapAsVolatile(cachedcellImg, queue, hints)"))
 		@JvmStatic
+		@JvmOverloads
 		fun <D, T, A> createVolatileCachedCellImgWithInvalidate(
 			cachedCellImg: CachedCellImg<D, A>,
 			queue: SharedQueue,
 			hints: CacheHints,
+			cacheBudget: CellCacheBudget? = null
 		): RaiWithInvalidate<T> where D : NativeType<D>, T : NativeType<T>, T : Volatile<D>, A : VolatileArrayDataAccess<A> {
 
 			val dType = cachedCellImg.createLinkedType()
@@ -39,9 +44,13 @@ class TmpVolatileHelpers {
 			val dirty = flags.contains(AccessFlags.DIRTY)
 
 			val createInvalid = CreateInvalidVolatileCell.get<T, A>(grid, tType, dirty)
-			val volatileCache = WeakRefVolatileCache(cache, queue, createInvalid)
-			val volatileImg = VolatileCachedCellImg(grid, tType, hints, volatileCache)
-			return RaiWithInvalidate<T>(volatileImg, volatileCache)
+			return if (cacheBudget == null) {
+				val volatileCache = WeakRefVolatileCache(cache, queue, createInvalid)
+				RaiWithInvalidate(VolatileCachedCellImg(grid, tType, hints, volatileCache), volatileCache)
+			} else {
+				val volatileCache = BoundedVolatileCache.fromCache(cache, queue, createInvalid, cacheBudget, CellWeights::weigh)
+				RaiWithInvalidate(VolatileCachedCellImg(grid, tType, hints, volatileCache), volatileCache)
+			}
 		}
 	}
 
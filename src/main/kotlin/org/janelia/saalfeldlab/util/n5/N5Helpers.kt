@@ -309,6 +309,8 @@ object N5Helpers {
 	/**
 	 * Get id-service for n5 `container` and `dataset`.
 	 * Requires write access on the attributes of `dataset` and attribute `"maxId": <maxId>` in `dataset`.
+	 * If `n5` is writable, ids are leased in blocks of [N5IdService.DEFAULT_LEASE_SIZE] to avoid an attribute write per id,
+	 * and ids continue after the last lease in `"leasedMaxId"`, if any.
 	 *
 	 * @param n5      container
 	 * @param dataset dataset
@@ -320,11 +322,13 @@ object N5Helpers {
 	fun idService(n5: N5Reader, dataset: String?): IdService {
 		LOG.debug { "Requesting id service for $n5:$dataset" }
 		val maxId = n5.getAttribute(dataset, "maxId", Long::class.java)
-		LOG.debug { "Found maxId=$maxId" }
+		val leasedMaxId = n5.getAttribute(dataset, N5IdService.LEASED_MAX_ID_KEY, Long::class.java)
+		LOG.debug { "Found maxId=$maxId leasedMaxId=$leasedMaxId" }
 		return when {
 			maxId == null && n5 is N5Writer -> throw MaxIDNotSpecified("Required attribute `maxId` not specified for dataset `$dataset` in container `$n5`.")
 			maxId == null -> N5IdService(n5, dataset, 1)
-			else -> N5IdService(n5, dataset, maxId)
+			/* ids up to the last lease may have been handed out without being written to maxId before a crash */
+			else -> N5IdService(n5, dataset, leasedMaxId?.let { IdService.max(maxId, it) } ?: maxId, N5IdService.DEFAULT_LEASE_SIZE)
 		}
 	}
 
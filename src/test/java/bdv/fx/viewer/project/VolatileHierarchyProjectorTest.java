@@ -0,0 +1,80 @@
+package bdv.fx.viewer.project;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.volatiles.VolatileDoubleType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.bdv.fx.viewer.project.VolatileHierarchyProjector;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VolatileHierarchyProjectorTest {
+
+	private static final int SIZE = 128;
+
+	private static final int TILE_SIZE = 64;
+
+	@Test
+	public void testOnlyIncompleteTilesAreRevisited() {
+
+		/* 1 in the top left tile, 0 everywhere else */
+		final ArrayImg<DoubleType, ?> topLeftTile = ArrayImgs.doubles(SIZE, SIZE);
+		Views.interval(topLeftTile, new long[]{0, 0}, new long[]{TILE_SIZE - 1, TILE_SIZE - 1}).forEach(t -> t.set(1.0));
+
+		final AtomicBoolean topLeftTileMissing = new AtomicBoolean(true);
+		final AtomicInteger level0Accesses = new AtomicInteger();
+		final RandomAccessible<VolatileDoubleType> level0 = Converters.convert(
+				(RandomAccessible<DoubleType>)Views.extendZero(topLeftTile),
+				(s, t) -> {
+					level0Accesses.incrementAndGet();
+					t.get().set(2.0);
+					t.setValid(!(s.get() == 1.0 && topLeftTileMissing.get()));
+				},
+				new VolatileDoubleType());
+		final RandomAccessible<VolatileDoubleType> level1 = Converters.convert(
+				(RandomAccessible<DoubleType>)Views.extendZero(topLeftTile),
+				(s, t) -> {
+					t.get().set(1.0);
+					t.setValid(true);
+				},
+				new VolatileDoubleType());
+
+		final ArrayImg<ARGBType, IntArray> target = ArrayImgs.argbs(SIZE, SIZE);
+		final VolatileHierarchyProjector<VolatileDoubleType, ARGBType> projector = new VolatileHierarchyProjector<>(
+				List.of(level0, level1),
+				(s, t) -> t.set((int)s.get().get()),
+				target,
+				ArrayImgs.bytes(SIZE, SIZE),
+				TaskExecutors.singleThreaded(),
+				TILE_SIZE);
+
+		assertTrue(projector.map(true));
+		assertFalse(projector.isValid());
+		assertEquals(1, target.getAt(0, 0).get());
+		assertEquals(2, target.getAt(SIZE - 1, SIZE - 1).get());
+
+		level0Accesses.set(0);
+		topLeftTileMissing.set(false);
+		assertTrue(projector.map(false));
+		assertTrue(projector.isValid());
+		assertEquals(TILE_SIZE * TILE_SIZE, level0Accesses.get());
+		assertEquals(2, target.getAt(0, 0).get());
+
+		level0Accesses.set(0);
+		assertTrue(projector.map(false));
+		assertEquals(0, level0Accesses.get());
+	}
+}
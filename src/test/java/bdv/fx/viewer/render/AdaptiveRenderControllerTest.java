@@ -0,0 +1,82 @@
+package bdv.fx.viewer.render;
+
+import org.janelia.saalfeldlab.bdv.fx.viewer.render.AdaptiveRenderController;
+import org.janelia.saalfeldlab.bdv.fx.viewer.render.RenderingMetrics;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveRenderControllerTest {
+
+	private static final long MILLIS = 1000000L;
+
+	private static final double[] SCREEN_SCALES = {1.0, 0.5, 0.25};
+
+	@Test
+	public void testMaxScreenScaleFollowsRenderTime() {
+
+		final AdaptiveRenderController controller = new AdaptiveRenderController(40 * MILLIS);
+		controller.setAdaptive(true);
+		assertEquals(2, controller.getMaxScreenScaleIndex(SCREEN_SCALES.length));
+
+		/* full resolution is extrapolated to 16 * 1ms, well within the target */
+		controller.frameRendered(2, MILLIS, SCREEN_SCALES);
+		assertEquals(0, controller.getMaxScreenScaleIndex(SCREEN_SCALES.length));
+		assertEquals(40 * MILLIS - 16 * MILLIS, controller.getIoBudget()[0]);
+
+		/* full resolution is too slow, half resolution is extrapolated from quarter resolution to 4ms */
+		for (int i = 0; i < 50; ++i)
+			controller.frameRendered(0, 100 * MILLIS, SCREEN_SCALES);
+		assertEquals(1, controller.getMaxScreenScaleIndex(SCREEN_SCALES.length));
+		assertTrue(controller.getIoBudget()[0] > 0);
+		assertEquals(controller.getIoBudget()[0] / 10, controller.getIoBudget()[1]);
+	}
+
+	@Test
+	public void testPartialFramesAreExtrapolatedToTheWholeScreen() {
+
+		final AdaptiveRenderController controller = new AdaptiveRenderController(40 * MILLIS);
+		controller.setAdaptive(true);
+
+		/* a small repaint is fast but is not measured */
+		controller.frameRendered(0, MILLIS, 0.01, SCREEN_SCALES);
+		assertTrue(Double.isNaN(controller.getRenderNanos(0)));
+		assertEquals(2, controller.getMaxScreenScaleIndex(SCREEN_SCALES.length));
+
+		/* half the screen in 30ms takes 60ms for the whole screen, too slow for full resolution */
+		controller.frameRendered(0, 30 * MILLIS, 0.5, SCREEN_SCALES);
+		assertEquals(60 * MILLIS, controller.getRenderNanos(0), 1.0);
+		assertEquals(1, controller.getMaxScreenScaleIndex(SCREEN_SCALES.length));
+	}
+
+	@Test
+	public void testNotAdaptive() {
+
+		final AdaptiveRenderController controller = new AdaptiveRenderController(40 * MILLIS);
+		/* opt-in */
+		assertFalse(controller.isAdaptive());
+		controller.setAdaptive(true);
+		controller.setAdaptive(false);
+		controller.frameRendered(2, MILLIS, SCREEN_SCALES);
+		assertEquals(2, controller.getMaxScreenScaleIndex(SCREEN_SCALES.length));
+		assertArrayEquals(AdaptiveRenderController.DEFAULT_IO_BUDGET, controller.getIoBudget());
+	}
+
+	@Test
+	public void testLatencyHistogramPercentiles() {
+
+		final RenderingMetrics.LatencyHistogram histogram = new RenderingMetrics.LatencyHistogram();
+		assertTrue(Double.isNaN(histogram.percentileNanos(0.5)));
+		for (int i = 0; i < 99; ++i)
+			histogram.record(MILLIS);
+		histogram.record(100 * MILLIS);
+
+		assertEquals(100, histogram.getCount());
+		final double median = histogram.percentileNanos(0.5);
+		assertTrue(median >= MILLIS && median < 2 * MILLIS);
+		assertTrue(histogram.percentileNanos(1.0) >= 100 * MILLIS);
+	}
+}
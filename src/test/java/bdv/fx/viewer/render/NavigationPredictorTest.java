@@ -0,0 +1,77 @@
+package bdv.fx.viewer.render;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import org.janelia.saalfeldlab.bdv.fx.viewer.render.NavigationPredictor;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NavigationPredictorTest {
+
+	private static final long MILLIS = 1000000L;
+
+	@Test
+	public void testSteadyScrollIsExtrapolated() {
+
+		final NavigationPredictor predictor = new NavigationPredictor(3, 500 * MILLIS);
+		final AffineTransform3D transform = new AffineTransform3D();
+
+		assertEquals(NavigationPredictor.Outcome.NONE, predictor.update(transform, 0));
+		assertTrue(predictor.predict(0).isEmpty());
+
+		transform.translate(0, 0, -1);
+		assertEquals(NavigationPredictor.Outcome.NONE, predictor.update(transform, 20 * MILLIS));
+		/* a single step is not enough to tell a direction */
+		assertTrue(predictor.predict(20 * MILLIS).isEmpty());
+
+		transform.translate(0, 0, -1);
+		predictor.update(transform, 40 * MILLIS);
+		final List<AffineTransform3D> predicted = predictor.predict(40 * MILLIS);
+		assertEquals(3, predicted.size());
+		for (int i = 0; i < predicted.size(); ++i)
+			assertEquals(-3 - i, predicted.get(i).get(2, 3), 1e-9);
+
+		/* the user skipped one section */
+		transform.translate(0, 0, -2);
+		assertEquals(NavigationPredictor.Outcome.HIT, predictor.update(transform, 60 * MILLIS));
+	}
+
+	@Test
+	public void testChangeOfDirectionIsMiss() {
+
+		final NavigationPredictor predictor = new NavigationPredictor(3, 500 * MILLIS);
+		final AffineTransform3D transform = new AffineTransform3D();
+		for (int i = 0; i < 3; ++i) {
+			transform.translate(10, 0, 0);
+			predictor.update(transform, i * 20 * MILLIS);
+		}
+		assertEquals(3, predictor.predict(40 * MILLIS).size());
+
+		transform.translate(0, 10, 0);
+		assertEquals(NavigationPredictor.Outcome.MISS, predictor.update(transform, 60 * MILLIS));
+		assertTrue(predictor.predict(60 * MILLIS).isEmpty());
+
+		/* an unchanged transform, e.g. a repaint after loading, does not evaluate or predict anything */
+		assertEquals(NavigationPredictor.Outcome.NONE, predictor.update(transform, 80 * MILLIS));
+	}
+
+	@Test
+	public void testPausedNavigationIsNotExtrapolated() {
+
+		final NavigationPredictor predictor = new NavigationPredictor(3, 500 * MILLIS);
+		final AffineTransform3D transform = new AffineTransform3D();
+		for (int i = 0; i < 3; ++i) {
+			transform.translate(0, 0, 1);
+			predictor.update(transform, i * 20 * MILLIS);
+		}
+		assertTrue(predictor.predict(1000 * MILLIS).isEmpty());
+
+		/* the first step after a pause starts a new motion */
+		transform.translate(0, 0, 1);
+		predictor.update(transform, 2000 * MILLIS);
+		assertTrue(predictor.predict(2000 * MILLIS).isEmpty());
+	}
+}
@@ -0,0 +1,37 @@
+package bdv.fx.viewer.render;
+
+import bdv.cache.CacheControl;
+import bdv.cache.SharedQueue;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import org.janelia.saalfeldlab.bdv.fx.viewer.render.MultiResolutionRendererGeneric;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PredictedPrefetchTest {
+
+	@Test
+	public void testPredictedCellsAreEnqueuedWithLowestPriority() {
+
+		final SharedQueue queue = new SharedQueue(1, 7);
+		try {
+			final CacheHints hints = MultiResolutionRendererGeneric.predictedCacheHints(queue);
+			assertEquals(6, hints.getQueuePriority());
+			assertEquals(LoadingStrategy.VOLATILE, hints.getLoadingStrategy());
+			assertFalse(hints.isEnqueuToFront());
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void testNothingIsPredictedWithoutKnownPriorities() {
+
+		final CacheControl cacheControl = () -> {
+		};
+		assertNull(MultiResolutionRendererGeneric.predictedCacheHints(cacheControl));
+	}
+}
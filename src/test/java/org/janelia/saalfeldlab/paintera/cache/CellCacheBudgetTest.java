@@ -0,0 +1,75 @@
+package org.janelia.saalfeldlab.paintera.cache;
+
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileLongArray;
+import net.imglib2.img.cell.Cell;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CellCacheBudgetTest {
+
+	private static final long WEIGHT = 100;
+
+	@Test
+	public void testFrequentCellsSurviveScan() {
+
+		final Object owner = new Object();
+		final CellCacheBudget budget = new CellCacheBudget(10 * WEIGHT);
+
+		for (long key = 0; key < 10; ++key)
+			budget.loaded(owner, key, new Object(), WEIGHT);
+		for (int access = 0; access < 5; ++access)
+			for (long key = 0; key < 10; ++key)
+				budget.accessed(owner, key);
+
+		/* a pan over a large region loads many cells once */
+		for (long key = 100; key < 200; ++key)
+			budget.loaded(owner, key, new Object(), WEIGHT);
+
+		for (long key = 0; key < 10; ++key)
+			assertTrue(budget.isRetained(owner, key));
+		assertEquals(10, budget.getRetainedCells());
+		assertEquals(10 * WEIGHT, budget.getUsedBytes());
+		assertEquals(50, budget.getHits());
+		assertEquals(110, budget.getLoads());
+	}
+
+	@Test
+	public void testBudgetIsRespected() {
+
+		final Object owner = new Object();
+		final Object otherOwner = new Object();
+		final CellCacheBudget budget = new CellCacheBudget(10 * WEIGHT);
+
+		for (long key = 0; key < 5; ++key) {
+			budget.loaded(owner, key, new Object(), WEIGHT);
+			budget.loaded(otherOwner, key, new Object(), WEIGHT);
+		}
+		assertEquals(10 * WEIGHT, budget.getUsedBytes());
+
+		budget.setBudgetBytes(6 * WEIGHT);
+		assertEquals(6, budget.getRetainedCells());
+		assertEquals(6 * WEIGHT, budget.getUsedBytes());
+
+		budget.invalidateAll(owner);
+		for (long key = 0; key < 5; ++key)
+			assertFalse(budget.isRetained(owner, key));
+		assertEquals(budget.getRetainedCells() * WEIGHT, budget.getUsedBytes());
+
+		/* cells that are larger than the budget are never retained */
+		budget.loaded(owner, 42L, new Object(), 7 * WEIGHT);
+		assertFalse(budget.isRetained(owner, 42L));
+	}
+
+	@Test
+	public void testCellWeights() {
+
+		final Cell<VolatileLongArray> cell = new Cell<>(new int[]{4, 4, 4}, new long[]{0, 0, 0}, new VolatileLongArray(64, true));
+		assertEquals(CellWeights.weigh(cell.getData()) + 96, CellWeights.weigh(cell));
+		assertEquals(16 + 64 * 8, CellWeights.weigh(cell.getData()));
+		assertEquals(16 + 3, CellWeights.arrayBytes(new byte[3]));
+		assertEquals(0, CellWeights.arrayBytes(null));
+	}
+}
@@ -0,0 +1,146 @@
+package org.janelia.saalfeldlab.paintera.cache;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class SamEmbeddingDiskCacheTest {
+
+	private static final long[] SHAPE = {1, 2, 4, 4};
+
+	/* header with 4 dimensions and 32 floats */
+	private static final long ENTRY_BYTES = 100 + 32 * Float.BYTES;
+
+	@Test
+	public void testRoundTrip(@TempDir final Path tmp) throws IOException {
+
+		final SamEmbeddingDiskCache cache = new SamEmbeddingDiskCache(tmp);
+		assertNull(cache.get(1, SHAPE));
+
+		cache.put(1, slice(0), SHAPE, embedding(3.0f));
+		final FloatBuffer cached = cache.get(1, SHAPE);
+		assertNotNull(cached);
+		assertEquals(32, cached.remaining());
+		for (int i = 0; i < 32; ++i)
+			assertEquals(3.0f + i, cached.get(i));
+		assertNull(cache.get(1, new long[]{1, 1, 4, 8}));
+		assertNull(cache.get(2, SHAPE));
+		assertEquals(ENTRY_BYTES, cache.getUsedBytes());
+
+		/* entries survive restarts */
+		final SamEmbeddingDiskCache restarted = new SamEmbeddingDiskCache(tmp);
+		assertEquals(1, restarted.size());
+		assertNotNull(restarted.get(1, SHAPE));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedAreEvicted(@TempDir final Path tmp) throws IOException {
+
+		final SamEmbeddingDiskCache cache = new SamEmbeddingDiskCache(tmp, 2 * ENTRY_BYTES);
+		cache.put(1, slice(0), SHAPE, embedding(1.0f));
+		cache.put(2, slice(1), SHAPE, embedding(2.0f));
+		assertNotNull(cache.get(1, SHAPE));
+
+		cache.put(3, slice(2), SHAPE, embedding(3.0f));
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(1, SHAPE));
+		assertNull(cache.get(2, SHAPE));
+		assertNotNull(cache.get(3, SHAPE));
+
+		cache.setBudgetBytes(ENTRY_BYTES);
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get(3, SHAPE));
+
+		/* entries that do not fit into the budget are not stored */
+		cache.setBudgetBytes(0);
+		cache.put(4, slice(3), SHAPE, embedding(4.0f));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	@Test
+	public void testInvalidateRegion(@TempDir final Path tmp) throws IOException {
+
+		final SamEmbeddingDiskCache cache = new SamEmbeddingDiskCache(tmp);
+		cache.put(1, slice(0), SHAPE, embedding(1.0f));
+		cache.put(2, slice(5), SHAPE, embedding(2.0f));
+		cache.put(3, slice(10), SHAPE, embedding(3.0f));
+
+		assertEquals(2, cache.invalidate(new FinalRealInterval(new double[]{10, 10, 4}, new double[]{20, 20, 12})));
+		assertNotNull(cache.get(1, SHAPE));
+		assertNull(cache.get(2, SHAPE));
+		assertNull(cache.get(3, SHAPE));
+		assertEquals(ENTRY_BYTES, cache.getUsedBytes());
+
+		/* invalidated entries are not picked up again after restart */
+		assertEquals(1, new SamEmbeddingDiskCache(tmp).size());
+	}
+
+	@Test
+	public void testInvalidateRegions(@TempDir final Path tmp) throws IOException {
+
+		final SamEmbeddingDiskCache cache = new SamEmbeddingDiskCache(tmp);
+		cache.put(1, slice(0), SHAPE, embedding(1.0f));
+		cache.put(2, slice(5), SHAPE, embedding(2.0f));
+		cache.put(3, slice(7), SHAPE, embedding(3.0f));
+		cache.put(4, slice(10), SHAPE, embedding(4.0f));
+
+		/* slice 7 is within the bounding box of both regions, but does not intersect either of them */
+		assertEquals(2, cache.invalidate(List.of(
+				new FinalRealInterval(new double[]{10, 10, 4}, new double[]{20, 20, 6}),
+				new FinalRealInterval(new double[]{10, 10, 9}, new double[]{20, 20, 11}))));
+		assertNotNull(cache.get(1, SHAPE));
+		assertNull(cache.get(2, SHAPE));
+		assertNotNull(cache.get(3, SHAPE));
+		assertNull(cache.get(4, SHAPE));
+		assertEquals(0, cache.invalidate(List.of()));
+	}
+
+	@Test
+	public void testEntriesMarkedAsDeletedAreRemovedOnRestart(@TempDir final Path tmp) throws IOException {
+
+		final SamEmbeddingDiskCache cache = new SamEmbeddingDiskCache(tmp);
+		cache.put(1, slice(0), SHAPE, embedding(1.0f));
+		cache.put(2, slice(5), SHAPE, embedding(2.0f));
+
+		/* as if entry 1 could not be deleted when it was invalidated */
+		final Path path = cache.pathFor(1);
+		Files.write(SamEmbeddingDiskCache.tombstoneFor(path), new byte[0]);
+
+		final SamEmbeddingDiskCache restarted = new SamEmbeddingDiskCache(tmp);
+		assertEquals(1, restarted.size());
+		assertNull(restarted.get(1, SHAPE));
+		assertNotNull(restarted.get(2, SHAPE));
+		assertFalse(Files.exists(path));
+		assertFalse(Files.exists(SamEmbeddingDiskCache.tombstoneFor(path)));
+
+		/* a new entry for the same key replaces the tombstone */
+		restarted.put(1, slice(0), SHAPE, embedding(3.0f));
+		assertEquals(2, new SamEmbeddingDiskCache(tmp).size());
+	}
+
+	private static RealInterval slice(final double z) {
+
+		return new FinalRealInterval(new double[]{0, 0, z}, new double[]{100, 100, z});
+	}
+
+	private static FloatBuffer embedding(final float offset) {
+
+		final FloatBuffer data = FloatBuffer.allocate(32);
+		for (int i = 0; i < 32; ++i)
+			data.put(offset + i);
+		return data.flip();
+	}
+}
@@ -0,0 +1,157 @@
+package org.janelia.saalfeldlab.paintera.control.paint;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.algorithm.fill.FloodFill;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.label.Label;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.net.imglib2.util.AccessedBlocksRandomAccessible;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlockParallelFloodFillTest {
+
+	private static final long[] DIMENSIONS = {23, 17, 19};
+
+	private static final long FILL = 7;
+
+	private static final BiPredicate<UnsignedLongType, UnsignedLongType> IS_ONE =
+			(source, target) -> source.get() == 1 && target.get() == Label.INVALID;
+
+	@Test
+	public void testSameAsSingleThreadedFill() {
+
+		final ArrayImg<UnsignedLongType, LongArray> labels = randomLabels(42);
+		final Point seed = new Point(11, 8, 9);
+		labels.getAt(seed).set(1);
+
+		final ArrayImg<UnsignedLongType, LongArray> expected = invalidMask();
+		FloodFill.fill(Views.extendZero(labels), Views.extendValue(expected, new UnsignedLongType(1)), seed, new UnsignedLongType(FILL), new DiamondShape(1), IS_ONE);
+
+		final ArrayImg<UnsignedLongType, LongArray> mask = invalidMask();
+		final AccessedBlocksRandomAccessible<UnsignedLongType> tracker = new AccessedBlocksRandomAccessible<>(mask, new CellGrid(DIMENSIONS, new int[]{4, 5, 3}));
+		final Interval filled = new BlockParallelFloodFill<>(Views.extendZero(labels), tracker, FILL, IS_ONE, ForkJoinPool.commonPool(), null, null).fill(seed);
+
+		assertArrayEquals(expected.update(null).getCurrentStorageArray(), mask.update(null).getCurrentStorageArray());
+
+		final long[] min = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+		final long[] max = {Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+		final Cursor<UnsignedLongType> cursor = mask.localizingCursor();
+		while (cursor.hasNext()) {
+			if (cursor.next().get() != FILL)
+				continue;
+			for (int d = 0; d < 3; ++d) {
+				min[d] = Math.min(min[d], cursor.getLongPosition(d));
+				max[d] = Math.max(max[d], cursor.getLongPosition(d));
+			}
+		}
+		assertArrayEquals(min, filled.minAsLongArray());
+		assertArrayEquals(max, filled.maxAsLongArray());
+
+		/* only blocks with filled voxels are registered with the tracker */
+		final CellGrid grid = tracker.getGrid();
+		final long[] blockPosition = new long[3];
+		final long[] blockMin = new long[3];
+		final int[] blockSize = new int[3];
+		for (final long block : tracker.listBlocks()) {
+			grid.getCellGridPositionFlat(block, blockPosition);
+			grid.getCellDimensions(blockPosition, blockMin, blockSize);
+			final Interval blockInterval = Intervals.createMinSize(blockMin[0], blockMin[1], blockMin[2], blockSize[0], blockSize[1], blockSize[2]);
+			boolean containsFill = false;
+			for (final UnsignedLongType value : Views.interval(mask, blockInterval))
+				containsFill |= value.get() == FILL;
+			assertTrue(containsFill);
+		}
+	}
+
+	@Test
+	public void testUniformBlocksAndCandidates() {
+
+		final ArrayImg<UnsignedLongType, LongArray> labels = randomLabels(7);
+		/* uniform slab through the middle, so that whole blocks are filled at once */
+		Views.interval(labels, Intervals.createMinMax(0, 0, 6, 22, 16, 11)).forEach(value -> value.set(1));
+		final Point seed = new Point(11, 8, 9);
+
+		final ArrayImg<UnsignedLongType, LongArray> expected = invalidMask();
+		FloodFill.fill(Views.extendZero(labels), Views.extendValue(expected, new UnsignedLongType(1)), seed, new UnsignedLongType(FILL), new DiamondShape(1), IS_ONE);
+
+		final ArrayImg<UnsignedLongType, LongArray> mask = invalidMask();
+		final CellGrid grid = new CellGrid(DIMENSIONS, new int[]{4, 4, 3});
+		final BlockParallelFloodFill<UnsignedLongType> fill = new BlockParallelFloodFill<>(Views.extendZero(labels), mask, grid, FILL, IS_ONE, ForkJoinPool.commonPool(), null, null);
+		fill.setFillUniformBlocks(true);
+		fill.setCandidateBlocks(block -> true);
+		fill.fill(seed);
+		assertArrayEquals(expected.update(null).getCurrentStorageArray(), mask.update(null).getCurrentStorageArray());
+
+		/* blocks that are not candidates are never visited */
+		final ArrayImg<UnsignedLongType, LongArray> restrictedMask = invalidMask();
+		final BlockParallelFloodFill<UnsignedLongType> restrictedFill = new BlockParallelFloodFill<>(Views.extendZero(labels), restrictedMask, grid, FILL, IS_ONE, ForkJoinPool.commonPool(), null, null);
+		final long[] seedBlock = {11 / 4, 8 / 4, 9 / 3};
+		restrictedFill.setCandidateBlocks(block -> {
+			final long[] position = new long[3];
+			grid.getCellGridPositionFlat(block, position);
+			return Arrays.equals(position, seedBlock);
+		});
+		final Interval filled = restrictedFill.fill(seed);
+		assertArrayEquals(new long[]{8, 8, 9}, filled.minAsLongArray());
+		assertArrayEquals(new long[]{11, 11, 11}, filled.maxAsLongArray());
+	}
+
+	@Test
+	public void testSeedThatDoesNotMatch() {
+
+		final ArrayImg<UnsignedLongType, LongArray> labels = randomLabels(1);
+		final Point seed = new Point(0, 0, 0);
+		labels.getAt(seed).set(2);
+		assertNull(new BlockParallelFloodFill<>(Views.extendZero(labels), invalidMask(), FILL, IS_ONE, ForkJoinPool.commonPool(), null, null).fill(seed));
+	}
+
+	@Test
+	public void testCancel() {
+
+		final ArrayImg<UnsignedLongType, LongArray> labels = ArrayImgs.unsignedLongs(DIMENSIONS);
+		labels.forEach(value -> value.set(1));
+		final BlockParallelFloodFill<UnsignedLongType> fill = new BlockParallelFloodFill<>(
+				Views.extendZero(labels),
+				invalidMask(),
+				FILL,
+				IS_ONE,
+				ForkJoinPool.commonPool(),
+				() -> true,
+				null);
+		assertThrows(CancellationException.class, () -> fill.fill(new Point(3, 3, 3)));
+	}
+
+	private static ArrayImg<UnsignedLongType, LongArray> randomLabels(final long seed) {
+
+		final Random rng = new Random(seed);
+		final ArrayImg<UnsignedLongType, LongArray> labels = ArrayImgs.unsignedLongs(DIMENSIONS);
+		labels.forEach(value -> value.set(rng.nextInt(10) < 6 ? 1 : 2));
+		return labels;
+	}
+
+	private static ArrayImg<UnsignedLongType, LongArray> invalidMask() {
+
+		final ArrayImg<UnsignedLongType, LongArray> mask = ArrayImgs.unsignedLongs(DIMENSIONS);
+		mask.forEach(value -> value.set(Label.INVALID));
+		return mask;
+	}
+}
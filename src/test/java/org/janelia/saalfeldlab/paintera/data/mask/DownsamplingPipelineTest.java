@@ -0,0 +1,81 @@
+package org.janelia.saalfeldlab.paintera.data.mask;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DownsamplingPipelineTest {
+
+	/* block b at level l is computed from blocks 2b and 2b + 1 at level l - 1 */
+	private static final DownsamplingPipeline.Dependencies DEPENDENCIES = (level, block, interval) -> new long[]{2 * block, 2 * block + 1};
+
+	@Test
+	public void testBlocksAreDownsampledWithinTheIntervalOfTheirLevel() throws InterruptedException, ExecutionException {
+
+		final Interval[] intervals = {null, new FinalInterval(64, 64, 64), new FinalInterval(32, 32, 32)};
+		final List<String> notified = Collections.synchronizedList(new ArrayList<>());
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final DownsamplingPipeline pipeline = new DownsamplingPipeline(
+					executor,
+					new TLongSet[]{null, set(0, 1), set(0)},
+					intervals,
+					(level, block, interval) -> {
+						assertSame(intervals[level], interval);
+						return DEPENDENCIES.contributingBlocks(level, block, interval);
+					},
+					(level, block, interval) -> {
+						assertSame(intervals[level], interval);
+						return set(level);
+					},
+					(level, block, labels) -> notified.add(level + "-" + block + ":" + labels.contains(level)));
+			pipeline.start().get();
+			assertTrue(pipeline.isCompletedNormally());
+			assertTrue(pipeline.getRemainingBlocks()[2].isEmpty());
+			assertSame(intervals, pipeline.getIntervals());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(3, notified.size());
+		assertTrue(notified.containsAll(List.of("1-0:true", "1-1:true", "2-0:true")));
+	}
+
+	@Test
+	public void testUnionOfRemainingBlocksAndIntervals() {
+
+		final TLongSet[] merged = DownsamplingPipeline.union(
+				new TLongSet[]{null, set(0), set(0)},
+				new TLongSet[]{null, set(1), null});
+		assertNull(merged[0]);
+		assertEquals(set(0, 1), merged[1]);
+		assertEquals(set(0), merged[2]);
+
+		final Interval[] mergedIntervals = DownsamplingPipeline.union(
+				new Interval[]{null, new FinalInterval(new long[]{0, 0, 0}, new long[]{9, 9, 9}), null},
+				new Interval[]{null, new FinalInterval(new long[]{5, 5, 5}, new long[]{19, 19, 19}), new FinalInterval(4, 4, 4)});
+		assertNull(mergedIntervals[0]);
+		assertTrue(Intervals.equals(new FinalInterval(new long[]{0, 0, 0}, new long[]{19, 19, 19}), mergedIntervals[1]));
+		assertTrue(Intervals.equals(new FinalInterval(4, 4, 4), mergedIntervals[2]));
+	}
+
+	private static TLongSet set(final long... values) {
+
+		return new TLongHashSet(values);
+	}
+}
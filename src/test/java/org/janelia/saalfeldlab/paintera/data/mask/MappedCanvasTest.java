@@ -0,0 +1,172 @@
+package org.janelia.saalfeldlab.paintera.data.mask;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.label.Label;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MappedCanvasTest {
+
+	private static final long[][] DIMENSIONS = {{20, 20, 20}, {10, 10, 10}};
+
+	private static final int[][] BLOCK_SIZES = {{8, 8, 8}, {8, 8, 8}};
+
+	@TempDir
+	Path root;
+
+	@Test
+	public void testPaintIsRestoredAfterReopening() throws IOException {
+
+		final Path directory = root.resolve("canvas-1");
+		try (final MappedCanvas canvas = new MappedCanvas(directory, "labels", DIMENSIONS, BLOCK_SIZES)) {
+			assertFalse(canvas.hasPaint());
+			assertEquals(Label.INVALID, get(canvas, 0, 3, 4, 5));
+			/* reading does not allocate */
+			assertFalse(canvas.hasPaint());
+			set(canvas, 0, 5, 9, 10, 17);
+			set(canvas, 0, 19, 19, 19, 23);
+			set(canvas, 1, 1, 1, 1, 17);
+			assertTrue(canvas.hasPaint());
+		}
+
+		try (final MappedCanvas canvas = new MappedCanvas(directory, "labels", DIMENSIONS, BLOCK_SIZES)) {
+			assertEquals(17, get(canvas, 0, 5, 9, 10));
+			assertEquals(23, get(canvas, 0, 19, 19, 19));
+			assertEquals(Label.INVALID, get(canvas, 0, 5, 9, 11));
+			assertEquals(17, get(canvas, 1, 1, 1, 1));
+
+			/* block (0, 1, 1) and block (2, 2, 2) in a 3 x 3 x 3 grid */
+			final long[] blocks = canvas.paintedBlocks();
+			Arrays.sort(blocks);
+			assertArrayEquals(new long[]{12, 26}, blocks);
+
+			final Map<Long, long[]>[] blocksByLabel = canvas.paintedBlocksByLabel();
+			assertArrayEquals(new long[]{12}, blocksByLabel[0].get(17L));
+			assertArrayEquals(new long[]{26}, blocksByLabel[0].get(23L));
+			assertArrayEquals(new long[]{0}, blocksByLabel[1].get(17L));
+			assertEquals(1, blocksByLabel[1].size());
+		}
+	}
+
+	@Test
+	public void testOnlyUnlockedCanvasesWithPaintAreRecoverable() throws IOException {
+
+		new MappedCanvas(root.resolve("empty"), "labels", DIMENSIONS, BLOCK_SIZES).close();
+		try (final MappedCanvas other = new MappedCanvas(root.resolve("other"), "other labels", DIMENSIONS, BLOCK_SIZES)) {
+			set(other, 0, 0, 0, 0, 1);
+		}
+		final MappedCanvas painted = new MappedCanvas(root.resolve("painted"), "labels", DIMENSIONS, BLOCK_SIZES);
+		set(painted, 0, 0, 0, 0, 1);
+
+		assertEquals(List.of(), MappedCanvas.listRecoverable(root, "labels"));
+		assertThrows(IOException.class, () -> new MappedCanvas(root.resolve("painted"), "labels", DIMENSIONS, BLOCK_SIZES));
+		painted.close();
+		assertEquals(List.of(root.resolve("painted")), MappedCanvas.listRecoverable(root, "labels"));
+
+		painted.delete();
+		assertFalse(Files.exists(root.resolve("painted")));
+		assertEquals(List.of(), MappedCanvas.listRecoverable(root, "labels"));
+	}
+
+	@Test
+	public void testCanvasesWithPaintAreKeptAndEmptyCanvasesAreDeleted() throws IOException {
+
+		try (final MappedCanvas older = new MappedCanvas(root.resolve("older"), "labels", DIMENSIONS, BLOCK_SIZES)) {
+			set(older, 0, 0, 0, 0, 1);
+		}
+		Files.setLastModifiedTime(root.resolve("older").resolve("blocks.wal"), FileTime.fromMillis(0));
+		try (final MappedCanvas newer = new MappedCanvas(root.resolve("newer"), "labels", DIMENSIONS, BLOCK_SIZES)) {
+			set(newer, 0, 0, 0, 0, 2);
+		}
+		new MappedCanvas(root.resolve("empty"), "other labels", DIMENSIONS, BLOCK_SIZES).close();
+		Files.createDirectories(root.resolve("unrelated"));
+
+		/* most recent first, older canvases may belong to other projects and still hold paint */
+		assertEquals(List.of(root.resolve("newer"), root.resolve("older")), MappedCanvas.listRecoverable(root, "labels"));
+		assertTrue(Files.exists(root.resolve("newer")));
+		assertTrue(Files.exists(root.resolve("older")));
+		assertTrue(MappedCanvas.isRecoverable(root.resolve("older"), "labels"));
+		assertFalse(Files.exists(root.resolve("empty")));
+		assertTrue(Files.exists(root.resolve("unrelated")));
+	}
+
+	@Test
+	public void testCanvasFileGrowsWithPaint() throws IOException {
+
+		final long[][] dimensions = {{4096, 4096, 4096}};
+		final int[][] blockSizes = {{64, 64, 64}};
+		try (final MappedCanvas canvas = new MappedCanvas(root.resolve("large"), "labels", dimensions, blockSizes)) {
+			set(canvas, 0, 0, 0, 0, 1);
+		}
+		/* one 2 MiB slot after the header, not a full segment */
+		assertTrue(Files.size(root.resolve("large").resolve("level-0.canvas")) < 8L << 20);
+	}
+
+	@Test
+	public void testCanvasSizeDoesNotDependOnTheGrid() throws IOException {
+
+		/* 2^48 cells */
+		final long[][] dimensions = {{1L << 20, 1L << 20, 1L << 20}};
+		final int[][] blockSizes = {{16, 16, 16}};
+		final Path directory = root.resolve("huge");
+		try (final MappedCanvas canvas = new MappedCanvas(directory, "labels", dimensions, blockSizes)) {
+			set(canvas, 0, (1L << 20) - 1, (1L << 20) - 1, (1L << 20) - 1, 3);
+		}
+		/* the header and a single segment */
+		assertTrue(Files.size(directory.resolve("level-0.canvas")) <= 2L << 20);
+		try (final MappedCanvas canvas = new MappedCanvas(directory, "labels", dimensions, blockSizes)) {
+			assertEquals(3, get(canvas, 0, (1L << 20) - 1, (1L << 20) - 1, (1L << 20) - 1));
+			assertEquals(Label.INVALID, get(canvas, 0, 0, 0, 0));
+			assertArrayEquals(new long[]{(1L << 48) - 1}, canvas.paintedBlocks());
+		}
+	}
+
+	@Test
+	public void testCanvasIsHeldOncePerJvm() throws IOException {
+
+		final Path directory = root.resolve("canvas");
+		try (final MappedCanvas canvas = new MappedCanvas(directory, "labels", DIMENSIONS, BLOCK_SIZES)) {
+			set(canvas, 0, 0, 0, 0, 1);
+			assertThrows(IOException.class, () -> new MappedCanvas(root.resolve("other").resolve("..").resolve("canvas"), "labels", DIMENSIONS, BLOCK_SIZES));
+			/* probing does not release the lock of the open canvas */
+			assertEquals(List.of(), MappedCanvas.listRecoverable(root, "labels"));
+			assertThrows(IOException.class, () -> new MappedCanvas(directory, "labels", DIMENSIONS, BLOCK_SIZES));
+		}
+		new MappedCanvas(directory, "labels", DIMENSIONS, BLOCK_SIZES).close();
+	}
+
+	@Test
+	public void testCanvasWithOtherDimensionsIsRejected() throws IOException {
+
+		final Path directory = root.resolve("canvas");
+		new MappedCanvas(directory, "labels", DIMENSIONS, BLOCK_SIZES).close();
+		assertThrows(IOException.class, () -> new MappedCanvas(directory, "labels", new long[][]{{20, 20, 21}, {10, 10, 10}}, BLOCK_SIZES));
+	}
+
+	private static long get(final MappedCanvas canvas, final int level, final long... position) {
+
+		return canvas.getImg(level).randomAccess().setPositionAndGet(position).get();
+	}
+
+	private static void set(final MappedCanvas canvas, final int level, final long x, final long y, final long z, final long label) {
+
+		final RandomAccess<UnsignedLongType> access = canvas.getImg(level).randomAccess();
+		access.setPosition(new long[]{x, y, z});
+		access.get().set(label);
+	}
+}
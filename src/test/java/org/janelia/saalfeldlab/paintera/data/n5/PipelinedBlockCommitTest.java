@@ -0,0 +1,74 @@
+package org.janelia.saalfeldlab.paintera.data.n5;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.janelia.saalfeldlab.paintera.data.mask.persist.PersistCanvas.BlockDiff;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PipelinedBlockCommitTest {
+
+	@Test
+	public void testBlockDiffsAndProgressPerLevel() throws IOException {
+
+		final List<String> committed = Collections.synchronizedList(new ArrayList<>());
+		final TLongObjectMap<long[]> level1Sources = new TLongObjectHashMap<>();
+		level1Sources.put(0, new long[]{0, 1});
+		level1Sources.put(1, new long[]{2, 3});
+		final TLongObjectMap<long[]> level2Sources = new TLongObjectHashMap<>();
+		level2Sources.put(0, new long[]{0, 1});
+
+		final List<PipelinedBlockCommit.Level> levels = List.of(
+				new PipelinedBlockCommit.Level(new long[]{0, 1, 2, 3}, null, block -> record(committed, 0, block)),
+				new PipelinedBlockCommit.Level(new long[]{0, 1}, level1Sources, block -> record(committed, 1, block)),
+				new PipelinedBlockCommit.Level(new long[]{0}, level2Sources, block -> record(committed, 2, block)));
+
+		final List<Double> progress = Collections.synchronizedList(new ArrayList<>());
+		final ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			final List<TLongObjectMap<BlockDiff>> diffs = new PipelinedBlockCommit(executor, levels, progress::add).run();
+			assertEquals(3, diffs.size());
+			assertEquals(4, diffs.get(0).size());
+			assertEquals(2, diffs.get(1).size());
+			assertEquals(1, diffs.get(2).size());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(7, committed.size());
+		assertEquals(7, progress.size());
+		assertEquals(1.0, Collections.max(progress));
+		assertEquals(1.0 / 7, Collections.min(progress));
+	}
+
+	@Test
+	public void testFailurePropagates() {
+
+		final List<PipelinedBlockCommit.Level> levels = List.of(
+				new PipelinedBlockCommit.Level(new long[]{0, 1}, null, block -> {
+					throw new IOException("Unable to write block " + block);
+				}));
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			assertThrows(IOException.class, () -> new PipelinedBlockCommit(executor, levels, fraction -> {}).run());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static BlockDiff record(final List<String> committed, final int level, final long block) {
+
+		committed.add(level + "-" + block);
+		return new BlockDiff();
+	}
+}
@@ -0,0 +1,84 @@
+package org.janelia.saalfeldlab.paintera.id;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.util.n5.N5Helpers;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class N5IdServiceTest {
+
+	private static final String DATASET = "labels";
+
+	@Test
+	public void testLeasedIdsAreNotReusedAfterRestart(@TempDir final Path tmp) throws IOException, N5Helpers.MaxIDNotSpecified {
+
+		final N5FSWriter n5 = new N5FSWriter(tmp.toAbsolutePath().toString());
+		n5.createGroup(DATASET);
+		n5.setAttribute(DATASET, "maxId", 10L);
+
+		final N5IdService service = new N5IdService(n5, DATASET, 10, 100);
+		assertTrue(service.isLeasing());
+		assertEquals(11, service.next());
+		assertArrayEquals(LongStream.rangeClosed(12, 20).toArray(), service.next(9));
+		assertEquals(21, service.next());
+
+		assertTrue(n5.getAttribute(DATASET, N5IdService.LEASED_MAX_ID_KEY, Long.class) >= 21);
+
+		/* simulate a crash before the max id is written: a new service continues after the persisted lease */
+		n5.setAttribute(DATASET, N5IdService.MAX_ID_KEY, 10L);
+		final IdService restarted = N5Helpers.idService(n5, DATASET);
+		assertTrue(restarted.next() > 21);
+	}
+
+	@Test
+	public void testMaxIdIsTheMaxIdInUse(@TempDir final Path tmp) throws InterruptedException, ExecutionException {
+
+		final N5FSWriter n5 = new N5FSWriter(tmp.toAbsolutePath().toString());
+		n5.createGroup(DATASET);
+
+		final N5IdService service = new N5IdService(n5, DATASET, 0, 100);
+		service.next(5);
+		service.awaitBackgroundWrites();
+		assertEquals(5L, n5.getAttribute(DATASET, N5IdService.MAX_ID_KEY, Long.class));
+		assertTrue(n5.getAttribute(DATASET, N5IdService.LEASED_MAX_ID_KEY, Long.class) >= 100);
+
+		service.invalidate(42);
+		service.awaitBackgroundWrites();
+		assertEquals(43L, n5.getAttribute(DATASET, N5IdService.MAX_ID_KEY, Long.class));
+	}
+
+	@Test
+	public void testLeaseIsExtendedWhenExhausted(@TempDir final Path tmp) {
+
+		final N5FSWriter n5 = new N5FSWriter(tmp.toAbsolutePath().toString());
+		n5.createGroup(DATASET);
+
+		final N5IdService service = new N5IdService(n5, DATASET, 0, 10);
+		final long[] ids = service.next(25);
+		assertArrayEquals(LongStream.rangeClosed(1, 25).toArray(), ids);
+		assertTrue(n5.getAttribute(DATASET, N5IdService.LEASED_MAX_ID_KEY, Long.class) >= 25);
+		assertTrue(service.isInvalidated(25));
+	}
+
+	@Test
+	public void testWithoutLeasing(@TempDir final Path tmp) {
+
+		final N5FSWriter n5 = new N5FSWriter(tmp.toAbsolutePath().toString());
+		n5.createGroup(DATASET);
+
+		final N5IdService service = new N5IdService(n5, DATASET, 0);
+		assertEquals(1, service.next());
+		assertEquals(1L, n5.getAttribute(DATASET, "maxId", Long.class));
+		assertArrayEquals(new long[]{2, 3}, service.next(2));
+		assertEquals(3L, n5.getAttribute(DATASET, "maxId", Long.class));
+	}
+}
@@ -0,0 +1,93 @@
+package org.janelia.saalfeldlab.paintera.meshes;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.logic.BoolType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the triangle soup path ({@link MarchingCubes#generateMesh()} and vertex deduplication in {@link Mesh})
+ * with the indexed path ({@link MarchingCubes#generateIndexedMesh()}) on blocks of blobby segments, the way
+ * {@link org.janelia.saalfeldlab.paintera.meshes.cache.AbstractMeshCacheLoader} meshes a segment in a block.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.janelia.saalfeldlab.paintera.meshes.MarchingCubesBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MarchingCubesBenchmark {
+
+	@Param({"32", "64"})
+	public int blockSize;
+
+	@Param({"3", "20"})
+	public int numSegments;
+
+	private RandomAccessible<BoolType> mask;
+
+	private Interval interval;
+
+	private Interval meshInterval;
+
+	private final AffineTransform3D transform = new AffineTransform3D();
+
+	@Setup
+	public void setup() {
+
+		final RandomAccessibleInterval<UnsignedLongType> labels = MarchingCubesTest.segmentBlock(new Random(blockSize + numSegments), blockSize, numSegments);
+		mask = Views.extendZero(Converters.convert(labels, (s, t) -> t.set(s.get() == 1), new BoolType()));
+		/* same block layout and padding as in AbstractMeshCacheLoader with two smoothing iterations */
+		interval = new FinalInterval(new long[]{4, 4, 4}, new long[]{blockSize - 5, blockSize - 5, blockSize - 5});
+		meshInterval = Intervals.expand(interval, 4);
+		transform.scale(4.0, 4.0, 40.0);
+	}
+
+	@Benchmark
+	public PainteraTriangleMesh triangleSoup() {
+
+		final float[] vertices = new MarchingCubes<>(mask, meshInterval).generateMesh();
+		final Mesh mesh = new Mesh(vertices, interval, transform, true);
+		mesh.averageNormals();
+		return mesh.asPainteraTriangleMesh();
+	}
+
+	@Benchmark
+	public PainteraTriangleMesh indexed() {
+
+		final MarchingCubes.IndexedMesh indexedMesh = new MarchingCubes<>(mask, meshInterval).generateIndexedMesh();
+		final Mesh mesh = new Mesh(indexedMesh, interval, transform, true);
+		mesh.averageNormals();
+		return mesh.asPainteraTriangleMesh();
+	}
+
+	public static void main(final String... args) throws RunnerException {
+
+		new Runner(new OptionsBuilder().include(MarchingCubesBenchmark.class.getSimpleName()).build()).run();
+	}
+}
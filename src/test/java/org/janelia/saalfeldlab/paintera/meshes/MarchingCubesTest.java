@@ -0,0 +1,96 @@
+package org.janelia.saalfeldlab.paintera.meshes;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BoolType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.view.Views;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class MarchingCubesTest {
+
+	@Test
+	public void testIndexedMeshMatchesTriangleSoup() {
+
+		final RandomAccessibleInterval<UnsignedLongType> labels = segmentBlock(new Random(100), 32, 5);
+		final RandomAccessibleInterval<BoolType> mask = Converters.convert(
+				labels,
+				(s, t) -> t.set(s.get() == 1),
+				new BoolType());
+		final Interval interval = new FinalInterval(new long[]{2, 3, 4}, new long[]{27, 28, 29});
+
+		final MarchingCubes<BoolType> marchingCubes = new MarchingCubes<>(Views.extendZero(mask), interval);
+		final float[] soup = marchingCubes.generateMesh();
+		final MarchingCubes.IndexedMesh indexed = marchingCubes.generateIndexedMesh();
+
+		assertFalse(soup.length == 0);
+		assertEquals(soup.length, 3 * indexed.getIndices().length);
+
+		final Set<List<Float>> soupVertices = new HashSet<>();
+		final List<List<Float>> soupTriangles = new ArrayList<>();
+		for (int i = 0; i < soup.length; i += 9) {
+			final List<Float> triangle = new ArrayList<>();
+			for (int k = 0; k < 9; ++k)
+				triangle.add(soup[i + k]);
+			soupTriangles.add(triangle);
+			for (int k = 0; k < 9; k += 3)
+				soupVertices.add(Arrays.asList(soup[i + k], soup[i + k + 1], soup[i + k + 2]));
+		}
+
+		final float[] vertices = indexed.getVertices();
+		final int[] indices = indexed.getIndices();
+		final List<List<Float>> indexedTriangles = new ArrayList<>();
+		for (int i = 0; i < indices.length; i += 3) {
+			final List<Float> triangle = new ArrayList<>();
+			for (int k = 0; k < 3; ++k)
+				for (int d = 0; d < 3; ++d)
+					triangle.add(vertices[3 * indices[i + k] + d]);
+			indexedTriangles.add(triangle);
+		}
+
+		assertEquals(soupVertices.size(), vertices.length / 3);
+		assertEquals(new HashSet<>(soupTriangles), new HashSet<>(indexedTriangles));
+	}
+
+	/**
+	 * Block of {@code numSegments} segments with ids {@code 1..numSegments}, each a union of overlapping spheres.
+	 */
+	static ArrayImg<UnsignedLongType, LongArray> segmentBlock(final Random rng, final int size, final int numSegments) {
+
+		final ArrayImg<UnsignedLongType, LongArray> labels = ArrayImgs.unsignedLongs(size, size, size);
+		for (int segment = 1; segment <= numSegments; ++segment) {
+			final double[] center = {rng.nextDouble() * size, rng.nextDouble() * size, rng.nextDouble() * size};
+			for (int sphere = 0; sphere < 8; ++sphere) {
+				final double radius = size / 10.0 + rng.nextDouble() * size / 6.0;
+				final Cursor<UnsignedLongType> cursor = labels.localizingCursor();
+				while (cursor.hasNext()) {
+					cursor.fwd();
+					final double dx = cursor.getDoublePosition(0) - center[0];
+					final double dy = cursor.getDoublePosition(1) - center[1];
+					final double dz = cursor.getDoublePosition(2) - center[2];
+					if (dx * dx + dy * dy + dz * dz < radius * radius)
+						cursor.get().set(segment);
+				}
+				for (int d = 0; d < 3; ++d)
+					center[d] = Math.min(Math.max(center[d] + (rng.nextDouble() - 0.5) * radius, 0), size - 1);
+			}
+		}
+		return labels;
+	}
+}
@@ -0,0 +1,93 @@
+package org.janelia.saalfeldlab.paintera.meshes.cache;
+
+import org.janelia.saalfeldlab.paintera.meshes.PainteraTriangleMesh;
+import org.janelia.saalfeldlab.paintera.meshes.ShapeKey;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class MeshDiskCacheTest {
+
+	private static final ShapeKey<Long> KEY = new ShapeKey<>(1L, 0, 0, 0.5, 2, 0.25, true, new long[]{0, 0, 0}, new long[]{63, 63, 63});
+
+	private static final PainteraTriangleMesh MESH = new PainteraTriangleMesh(
+			new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0},
+			new float[]{0, 0, 1, 0, 0, 1, 0, 0, 1},
+			new int[]{0, 1, 2});
+
+	@Test
+	public void testRoundTrip(@TempDir final Path tmp) throws IOException {
+
+		final MeshDiskCache cache = new MeshDiskCache(tmp);
+		final long version = cache.getVersions().version(0, new long[]{0, 1});
+		assertNull(cache.get(KEY, 3, version));
+
+		cache.put(KEY, 3, version, MESH);
+		final PainteraTriangleMesh cached = cache.get(KEY, 3, version);
+		assertNotNull(cached);
+		assertArrayEquals(MESH.getVertices(), cached.getVertices());
+		assertArrayEquals(MESH.getNormals(), cached.getNormals());
+		assertArrayEquals(MESH.getIndices(), cached.getIndices());
+
+		assertNull(cache.get(KEY, 4, version));
+		final ShapeKey<Long> otherKey = new ShapeKey<>(1L, 0, 0, 0.5, 3, 0.25, true, new long[]{0, 0, 0}, new long[]{63, 63, 63});
+		assertNull(cache.get(otherKey, 3, version));
+	}
+
+	@Test
+	public void testVersionsArePersistedAndInvalidateEntries(@TempDir final Path tmp) throws IOException {
+
+		final MeshDiskCache cache = new MeshDiskCache(tmp);
+		final long version = cache.getVersions().version(1, new long[]{5, 6});
+		cache.put(KEY, 3, version, MESH);
+
+		cache.getVersions().bump(1, new long[]{7});
+		assertNotNull(cache.get(KEY, 3, cache.getVersions().version(1, new long[]{5, 6})));
+
+		cache.getVersions().bump(1, new long[]{6});
+		final long bumped = cache.getVersions().version(1, new long[]{5, 6});
+		assertNotEquals(version, bumped);
+		assertNull(cache.get(KEY, 3, bumped));
+
+		final MeshDiskCache reopened = new MeshDiskCache(tmp);
+		assertEquals(bumped, reopened.getVersions().version(1, new long[]{5, 6}));
+
+		reopened.getVersions().bump(1, null);
+		assertNotEquals(bumped, reopened.getVersions().version(1, new long[]{5, 6}));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntriesAreEvicted(@TempDir final Path tmp) throws IOException {
+
+		final MeshDiskCache unbounded = new MeshDiskCache(tmp);
+		unbounded.put(KEY, 1, 0, MESH);
+		final long entryBytes = unbounded.getTotalBytes();
+		unbounded.clear();
+
+		final MeshDiskCache cache = new MeshDiskCache(tmp, 2 * entryBytes);
+		cache.put(KEY, 1, 0, MESH);
+		cache.put(KEY, 2, 0, MESH);
+		assertNotNull(cache.get(KEY, 1, 0));
+		cache.put(KEY, 3, 0, MESH);
+
+		assertEquals(2 * entryBytes, cache.getTotalBytes());
+		assertNotNull(cache.get(KEY, 1, 0));
+		assertNull(cache.get(KEY, 2, 0));
+		assertNotNull(cache.get(KEY, 3, 0));
+
+		final MeshDiskCache reopened = new MeshDiskCache(tmp, entryBytes);
+		assertEquals(entryBytes, reopened.getTotalBytes());
+		try (final var files = Files.list(tmp)) {
+			assertEquals(1, files.filter(p -> p.getFileName().toString().endsWith(".mesh")).count());
+		}
+	}
+}
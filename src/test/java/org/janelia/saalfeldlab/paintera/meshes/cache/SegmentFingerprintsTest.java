@@ -0,0 +1,31 @@
+package org.janelia.saalfeldlab.paintera.meshes.cache;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignmentOnlyLocal;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class SegmentFingerprintsTest {
+
+	@Test
+	public void testFingerprintsChangeWithTheAssignment() {
+
+		final TLongLongHashMap lut = new TLongLongHashMap(new long[]{1, 2}, new long[]{10, 10});
+		final FragmentSegmentAssignmentOnlyLocal assignment = new FragmentSegmentAssignmentOnlyLocal(
+				() -> lut,
+				new FragmentSegmentAssignmentOnlyLocal.DoesNotPersist());
+		final SegmentFingerprints fingerprints = new SegmentFingerprints(assignment);
+
+		final long before = fingerprints.applyAsLong(10L);
+		assertEquals(SegmentFingerprints.fingerprint(new TLongHashSet(new long[]{2, 1})), before);
+		assertEquals(before, fingerprints.applyAsLong(10L));
+
+		assignment.apply(assignment.getMergeAction(3, 1, () -> 11).orElseThrow());
+		final long after = fingerprints.applyAsLong(assignment.getSegment(1));
+		assertNotEquals(before, after);
+		assertEquals(SegmentFingerprints.fingerprint(assignment.getFragments(assignment.getSegment(1))), after);
+	}
+}
@@ -0,0 +1,114 @@
+package org.janelia.saalfeldlab.paintera.stream;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.type.label.Label;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompiledColorTableTest {
+
+	@Test
+	public void testLookup() {
+
+		final Random random = new Random(1);
+		final TLongIntHashMap colors = new TLongIntHashMap();
+		for (int i = 0; i < 1000; ++i)
+			colors.put(random.nextLong(), random.nextInt());
+		colors.put(Label.INVALID, 1);
+		colors.put(Label.TRANSPARENT, 2);
+
+		final CompiledColorTable table = CompiledColorTable.of(colors);
+		assertEquals(colors.size() - 1, table.size());
+		colors.forEachEntry((id, argb) -> {
+			if (id == Label.TRANSPARENT)
+				assertEquals(-1, table.indexOf(id));
+			else
+				assertEquals(argb, table.valueAt(table.indexOf(id)));
+			return true;
+		});
+		assertEquals(-1, table.indexOf(12345));
+		assertEquals(-1, CompiledColorTable.EMPTY.indexOf(12345));
+	}
+
+	@Test
+	public void testStreamColorsMatchWithAndWithoutTable() {
+
+		final ModalGoldenAngleSaturatedHighlightingARGBStream compiled = new ModalGoldenAngleSaturatedHighlightingARGBStream();
+		final ModalGoldenAngleSaturatedHighlightingARGBStream notCompiled = new ModalGoldenAngleSaturatedHighlightingARGBStream();
+		notCompiled.setCompiledColorTable(false);
+
+		/* enough ids to compile several tables */
+		for (long id = 1; id < 2000; ++id)
+			assertEquals(notCompiled.argb(id), compiled.argb(id));
+		assertEquals(notCompiled.argb(Label.INVALID), compiled.argb(Label.INVALID));
+		assertEquals(0, compiled.argb(Label.TRANSPARENT));
+
+		/* selection changes are picked up by the compiled table */
+		final int unselected = compiled.argb(7);
+		compiled.getSelectedSegments().getSelectedIds().activate(7);
+		notCompiled.getSelectedSegments().getSelectedIds().activate(7);
+		assertNotEquals(unselected, compiled.argb(7));
+		for (long id = 1; id < 2000; ++id)
+			assertEquals(notCompiled.argb(id), compiled.argb(id));
+
+		compiled.setAlpha(0x77);
+		notCompiled.setAlpha(0x77);
+		for (long id = 1; id < 2000; ++id)
+			assertEquals(notCompiled.argb(id), compiled.argb(id));
+	}
+
+	@Test
+	public void testFewNewIdsAreAddedToALargeTable() throws InterruptedException {
+
+		final ModalGoldenAngleSaturatedHighlightingARGBStream stream = new ModalGoldenAngleSaturatedHighlightingARGBStream();
+		for (long id = 1; id < 10000; ++id)
+			stream.argb(id);
+
+		/* far fewer new ids than half of the table */
+		stream.argb(20000);
+		Thread.sleep(200);
+		stream.argb(20001);
+		assertTrue(stream.isInColorTable(20000));
+		assertTrue(stream.isInColorTable(20001));
+	}
+
+	@Test
+	public void testIdsThatAreNotLookedUpAreDropped() {
+
+		final TLongIntHashMap colors = new TLongIntHashMap();
+		for (long id = 1; id <= 4; ++id)
+			colors.put(id, (int)id);
+
+		/* ids are added to the table when they are looked up */
+		final CompiledColorTable added = CompiledColorTable.of(colors).withMarksAfterUpdate(CompiledColorTable.EMPTY);
+		assertEquals(Set.of(1L, 2L, 3L, 4L), recentIds(added));
+
+		/* ids survive one change without being looked up */
+		final CompiledColorTable recompiled = CompiledColorTable.of(colors).withMarksAfterRecompile(added);
+		assertEquals(Set.of(1L, 2L, 3L, 4L), recentIds(recompiled));
+		recompiled.markUsed(recompiled.indexOf(1));
+
+		/* but are dropped after the next change */
+		final CompiledColorTable recompiledAgain = CompiledColorTable.of(colors).withMarksAfterRecompile(recompiled);
+		assertEquals(Set.of(1L), recentIds(recompiledAgain));
+
+		/* marks are kept when ids are added */
+		colors.put(5, 5);
+		final CompiledColorTable updated = CompiledColorTable.of(colors).withMarksAfterUpdate(recompiledAgain);
+		assertEquals(Set.of(1L, 5L), recentIds(updated));
+	}
+
+	private static Set<Long> recentIds(final CompiledColorTable table) {
+
+		final Set<Long> ids = new HashSet<>();
+		table.forEachRecentId(ids::add);
+		return ids;
+	}
+}
@@ -0,0 +1,81 @@
+package org.janelia.saalfeldlab.paintera.stream;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.label.LabelMultisetEntry;
+import net.imglib2.type.label.LabelMultisetEntryList;
+import net.imglib2.type.label.LabelMultisetType;
+import net.imglib2.type.label.LongMappedAccessData;
+import net.imglib2.type.label.VolatileLabelMultisetArray;
+import net.imglib2.type.numeric.ARGBType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HighlightingStreamConverterLabelMultisetTypeTest {
+
+	/**
+	 * @return two pixels that share the same multiset of fragment 1 (3 times) and fragment 2 (once)
+	 */
+	private static ArrayImg<LabelMultisetType, VolatileLabelMultisetArray> sharedMultisets() {
+
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage(0);
+		final LabelMultisetEntryList list = new LabelMultisetEntryList(listData, 0);
+		list.createListAt(listData, 0);
+		list.add(new LabelMultisetEntry(1, 3));
+		list.add(new LabelMultisetEntry(2, 1));
+		final VolatileLabelMultisetArray access = new VolatileLabelMultisetArray(new int[]{0, 0}, listData, list.getSizeInBytes(), true, new long[]{1, 1});
+		final ArrayImg<LabelMultisetType, VolatileLabelMultisetArray> img = new ArrayImg<>(access, new long[]{2}, new LabelMultisetType().getEntitiesPerPixel());
+		img.setLinkedType(new LabelMultisetType(img));
+		return img;
+	}
+
+	private static int[] convert(final HighlightingStreamConverterLabelMultisetType converter, final ArrayImg<LabelMultisetType, ?> img) {
+
+		final int[] colors = new int[(int)img.size()];
+		final ARGBType color = new ARGBType();
+		final Cursor<LabelMultisetType> cursor = img.cursor();
+		for (int i = 0; cursor.hasNext(); ++i) {
+			converter.convert(cursor.next(), color);
+			colors[i] = color.get();
+		}
+		return colors;
+	}
+
+	@Test
+	public void testBlendedColorIsCachedForSharedMultisets() {
+
+		final ModalGoldenAngleSaturatedHighlightingARGBStream stream = new ModalGoldenAngleSaturatedHighlightingARGBStream();
+		final HighlightingStreamConverterLabelMultisetType converter = new HighlightingStreamConverterLabelMultisetType(stream);
+		final ArrayImg<LabelMultisetType, VolatileLabelMultisetArray> img = sharedMultisets();
+
+		final int[] colors = convert(converter, img);
+		assertEquals(colors[0], colors[1]);
+		assertNotEquals(stream.argb(1), colors[0]);
+		assertNotEquals(stream.argb(2), colors[0]);
+		assertEquals(colors[0], convert(converter, img)[1]);
+	}
+
+	@Test
+	public void testBlendedColorIsUpdatedWhenSelectionChanges() {
+
+		final ModalGoldenAngleSaturatedHighlightingARGBStream stream = new ModalGoldenAngleSaturatedHighlightingARGBStream();
+		final HighlightingStreamConverterLabelMultisetType converter = new HighlightingStreamConverterLabelMultisetType(stream);
+		final ArrayImg<LabelMultisetType, VolatileLabelMultisetArray> img = sharedMultisets();
+		final int unselected = convert(converter, img)[0];
+
+		final long generation = stream.getColorGeneration();
+		stream.getSelectedSegments().getSelectedIds().activate(2);
+		assertTrue(stream.getColorGeneration() > generation);
+
+		final int selected = convert(converter, img)[0];
+		assertNotEquals(unselected, selected);
+		/* same as blending from scratch */
+		assertEquals(convert(new HighlightingStreamConverterLabelMultisetType(stream), img)[0], selected);
+
+		stream.getSelectedSegments().getSelectedIds().deactivateAll();
+		assertEquals(unselected, convert(converter, img)[0]);
+	}
+}
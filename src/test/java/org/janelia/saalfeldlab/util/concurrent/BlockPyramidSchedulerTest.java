@@ -0,0 +1,143 @@
+package org.janelia.saalfeldlab.util.concurrent;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BlockPyramidSchedulerTest {
+
+	/* block b at level l depends on blocks 2b and 2b + 1 at level l - 1 */
+	private static final BlockPyramidScheduler.Dependencies DEPENDENCIES = (level, block) -> new long[]{2 * block, 2 * block + 1};
+
+	@Test
+	public void testBlocksRunAfterTheirDependencies() throws InterruptedException, ExecutionException {
+
+		final List<String> run = Collections.synchronizedList(new ArrayList<>());
+		final List<String> done = new ArrayList<>();
+		final ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			final BlockPyramidScheduler<String> scheduler = new BlockPyramidScheduler<>(
+					executor,
+					new TLongSet[]{set(0, 1, 2, 3), set(0, 1), set(0)},
+					DEPENDENCIES,
+					(level, block) -> {
+						run.add(level + "-" + block);
+						return level + "-" + block;
+					},
+					(level, block, result) -> done.add(result));
+			scheduler.start().get();
+			assertTrue(scheduler.isCompletedNormally());
+			for (final TLongSet remaining : scheduler.getRemainingBlocks())
+				assertTrue(remaining.isEmpty());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(7, run.size());
+		assertEquals(7, done.size());
+		assertTrue(run.indexOf("1-0") > Math.max(run.indexOf("0-0"), run.indexOf("0-1")));
+		assertTrue(run.indexOf("1-1") > Math.max(run.indexOf("0-2"), run.indexOf("0-3")));
+		assertTrue(run.indexOf("2-0") > Math.max(run.indexOf("1-0"), run.indexOf("1-1")));
+	}
+
+	@Test
+	public void testDependenciesOutsideOfThePreviousLevelAreIgnored() throws InterruptedException, ExecutionException, TimeoutException {
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			/* block 1 at level 1 depends on blocks 2 and 3 at level 0, which are not scheduled */
+			final BlockPyramidScheduler<Void> scheduler = new BlockPyramidScheduler<>(
+					executor,
+					new TLongSet[]{set(0, 1), set(0, 1), null},
+					DEPENDENCIES,
+					(level, block) -> null,
+					(level, block, result) -> {});
+			scheduler.start().get(10, TimeUnit.SECONDS);
+			assertTrue(scheduler.isCompletedNormally());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCancelKeepsRemainingBlocks() throws InterruptedException {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		final List<String> done = new ArrayList<>();
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final BlockPyramidScheduler<Void> scheduler = new BlockPyramidScheduler<>(
+					executor,
+					new TLongSet[]{null, set(0), set(0)},
+					DEPENDENCIES,
+					(level, block) -> {
+						started.countDown();
+						proceed.await();
+						return null;
+					},
+					(level, block, result) -> done.add(level + "-" + block));
+			scheduler.start();
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			scheduler.cancel();
+			proceed.countDown();
+			scheduler.awaitRunning();
+
+			assertFalse(scheduler.isCompletedNormally());
+			assertThrows(CancellationException.class, () -> scheduler.getCompletion().get());
+			assertTrue(done.isEmpty());
+			final TLongSet[] remaining = scheduler.getRemainingBlocks();
+			assertNull(remaining[0]);
+			assertEquals(set(0), remaining[1]);
+			assertEquals(set(0), remaining[2]);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailureCompletesExceptionally() {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final BlockPyramidScheduler<Void> scheduler = new BlockPyramidScheduler<>(
+					executor,
+					new TLongSet[]{set(0, 1), set(0)},
+					DEPENDENCIES,
+					(level, block) -> {
+						throw new IOException("Unable to process block " + block);
+					},
+					(level, block, result) -> {});
+			final ExecutionException e = assertThrows(ExecutionException.class, () -> scheduler.start().get());
+			assertInstanceOf(IOException.class, e.getCause());
+			assertFalse(scheduler.isCompletedNormally());
+			assertEquals(set(0), scheduler.getRemainingBlocks()[1]);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static TLongSet set(final long... values) {
+
+		return new TLongHashSet(values);
+	}
+}
@@ -0,0 +1,85 @@
+package org.janelia.saalfeldlab.util.n5;
+
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.paintera.control.assignment.FragmentSegmentAssignmentOnlyLocal;
+import org.janelia.saalfeldlab.paintera.control.assignment.UnableToPersist;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class N5FragmentSegmentAssignmentPersisterTest {
+
+	private static final String DATASET = "labels/fragment-segment-assignment";
+
+	@Test
+	public void testAppendAndRead(@TempDir final Path tmp) throws UnableToPersist {
+
+		final N5FSWriter n5 = new N5FSWriter(tmp.toAbsolutePath().toString());
+		final N5FragmentSegmentAssignmentPersister persister = new N5FragmentSegmentAssignmentPersister(n5, DATASET);
+
+		persister.persist(new long[]{1, 2, 3}, new long[]{10, 10, 20});
+		persister.append(new long[]{3, 4}, new long[]{10, 10});
+		persister.append(new long[]{1, 5}, new long[]{FragmentSegmentAssignmentOnlyLocal.IncrementalPersister.REMOVED, 5});
+
+		final TLongLongMap expected = new TLongLongHashMap();
+		expected.put(2, 10);
+		expected.put(3, 10);
+		expected.put(4, 10);
+		expected.put(5, 5);
+		assertEquals(expected, new N5FragmentSegmentAssignmentInitialLut(n5, DATASET).get());
+		assertTrue(N5FragmentSegmentAssignmentPersister.isJournaled(n5, DATASET));
+		/* appended blocks only hold the appended rows */
+		assertEquals(2 * N5FragmentSegmentAssignmentPersister.ROWS_PER_BLOCK + 2, n5.getDatasetAttributes(DATASET).getDimensions()[0]);
+	}
+
+	@Test
+	public void testAppendToLegacyLut(@TempDir final Path tmp) throws UnableToPersist {
+
+		final N5FSWriter n5 = new N5FSWriter(tmp.toAbsolutePath().toString());
+		final DatasetAttributes attributes = new DatasetAttributes(new long[]{3, 2}, new int[]{3, 2}, DataType.UINT32, new RawCompression());
+		n5.createDataset(DATASET, attributes);
+		n5.writeBlock(DATASET, attributes, new IntArrayDataBlock(new int[]{3, 2}, new long[]{0, 0}, new int[]{1, 2, 3, 10, 10, 20}));
+		assertFalse(N5FragmentSegmentAssignmentPersister.isJournaled(n5, DATASET));
+
+		final N5FragmentSegmentAssignmentPersister persister = new N5FragmentSegmentAssignmentPersister(n5, DATASET);
+		persister.append(new long[]{3}, new long[]{10});
+
+		final TLongLongMap expected = new TLongLongHashMap();
+		expected.put(1, 10);
+		expected.put(2, 10);
+		expected.put(3, 10);
+		assertEquals(expected, new N5FragmentSegmentAssignmentInitialLut(n5, DATASET).get());
+		assertTrue(N5FragmentSegmentAssignmentPersister.isJournaled(n5, DATASET));
+	}
+
+	@Test
+	public void testAssignmentAppendsModifiedFragments(@TempDir final Path tmp) throws UnableToPersist {
+
+		final N5FSWriter n5 = new N5FSWriter(tmp.toAbsolutePath().toString());
+		final N5FragmentSegmentAssignmentPersister persister = new N5FragmentSegmentAssignmentPersister(n5, DATASET);
+		persister.persist(new long[]{1, 2}, new long[]{10, 10});
+
+		final N5FragmentSegmentAssignmentInitialLut initialLut = new N5FragmentSegmentAssignmentInitialLut(n5, DATASET);
+		final FragmentSegmentAssignmentOnlyLocal assignment = new FragmentSegmentAssignmentOnlyLocal(initialLut, persister);
+		assignment.apply(assignment.getMergeAction(2, 3, () -> 11).orElseThrow());
+		assignment.persist();
+		assignment.apply(assignment.getDetachAction(1, 10).orElseThrow());
+		assignment.persist();
+
+		final FragmentSegmentAssignmentOnlyLocal reloaded = new FragmentSegmentAssignmentOnlyLocal(initialLut, persister);
+		assertEquals(1, reloaded.getSegment(1));
+		assertEquals(reloaded.getSegment(2), reloaded.getSegment(3));
+		assertEquals(assignment.getSegment(3), reloaded.getSegment(3));
+	}
+}
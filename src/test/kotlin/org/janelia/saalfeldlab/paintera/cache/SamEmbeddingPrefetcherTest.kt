@@ -0,0 +1,134 @@
+package org.janelia.saalfeldlab.paintera.cache
+
+import bdv.fx.viewer.render.RenderUnitState
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CompletableJob
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import net.imglib2.realtransform.AffineTransform3D
+import org.janelia.saalfeldlab.paintera.cache.SamEmbeddingPrefetcher.Companion.shiftedAlongNormal
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class SamEmbeddingPrefetcherTest {
+
+	private val jobs = LinkedHashMap<RenderUnitState, CompletableJob>()
+
+	private val loaded = HashSet<RenderUnitState>()
+
+	private val prefetcher = SamEmbeddingPrefetcher(
+		{ state -> Job().also { jobs[state] = it } },
+		{ state -> state in loaded },
+		lookahead = 3,
+		maxConcurrent = 2
+	)
+
+	private val origin = RenderUnitState(AffineTransform3D().apply { scale(2.0) }, 0, emptyList(), 64, 48)
+
+	private fun slice(z: Double) = origin.shiftedAlongNormal(z)
+
+	private fun complete(state: RenderUnitState) {
+		loaded += state
+		jobs[state]!!.complete()
+	}
+
+	@Test
+	fun `unknown direction prefetches both neighbours`() {
+		prefetcher.requested(origin)
+		assertEquals(listOf(slice(1.0), slice(-1.0)), jobs.keys.toList())
+		assertEquals(0L, prefetcher.hits + prefetcher.misses)
+	}
+
+	@Test
+	fun `stepping through the stack prefetches ahead with bounded concurrency`() {
+		prefetcher.requested(origin)
+		complete(slice(1.0))
+		complete(slice(-1.0))
+
+		prefetcher.requested(slice(1.0))
+		assertEquals(1L, prefetcher.hits)
+		/* only two prefetches run at a time */
+		assertEquals(listOf(slice(2.0), slice(3.0)), jobs.keys.drop(2))
+
+		complete(slice(2.0))
+		assertEquals(slice(4.0), jobs.keys.last())
+
+		prefetcher.requested(slice(2.0))
+		assertEquals(2L, prefetcher.hits)
+		assertEquals(0L, prefetcher.misses)
+		assertEquals(0L, prefetcher.cancelled)
+		assertTrue(jobs[slice(3.0)]!!.isActive)
+		assertTrue(jobs[slice(4.0)]!!.isActive)
+	}
+
+	@Test
+	fun `change of direction cancels prefetches`() {
+		prefetcher.requested(origin)
+		complete(slice(1.0))
+		complete(slice(-1.0))
+		prefetcher.requested(slice(1.0))
+		complete(slice(2.0))
+		prefetcher.requested(slice(2.0))
+
+		/* step back */
+		prefetcher.requested(slice(1.0))
+		assertEquals(2L, prefetcher.hits)
+		assertEquals(1L, prefetcher.misses)
+		assertTrue(jobs[slice(3.0)]!!.isCancelled)
+		assertTrue(jobs[slice(4.0)]!!.isCancelled)
+		assertEquals(2L, prefetcher.cancelled)
+		/* slice -1 is loaded already */
+		assertEquals(listOf(slice(0.0), slice(-2.0)), jobs.keys.toList().takeLast(2))
+		assertEquals(2.0 / 3.0, prefetcher.hitRate, 1e-9)
+	}
+
+	@Test
+	fun `predicted states count as hits only when they are ready`() {
+		prefetcher.requested(origin)
+		prefetcher.requested(slice(1.0))
+		assertEquals(0L, prefetcher.hits)
+		assertEquals(1L, prefetcher.misses)
+	}
+
+	@Test
+	fun `cancelled prefetches count against the limit until they finish`() = runBlocking {
+		val encoded = CompletableDeferred<Unit>()
+		val started = LinkedHashMap<RenderUnitState, Job>()
+		val blocking = SamEmbeddingPrefetcher(
+			{ state ->
+				/* like an encode that does not check for cancellation */
+				launch(start = CoroutineStart.UNDISPATCHED) { withContext(NonCancellable) { encoded.await() } }.also { started[state] = it }
+			},
+			{ false },
+			lookahead = 1,
+			maxConcurrent = 2
+		)
+		blocking.requested(origin)
+		blocking.requested(slice(5.0))
+		assertEquals(2L, blocking.cancelled)
+		/* the cancelled prefetches are still running */
+		assertEquals(listOf(slice(1.0), slice(-1.0)), started.keys.toList())
+
+		encoded.complete(Unit)
+		started.values.toList().forEach { it.join() }
+		assertEquals(listOf(slice(1.0), slice(-1.0), slice(10.0)), started.keys.toList())
+	}
+
+	@Test
+	fun `step size is detected and other navigation is not extrapolated`() {
+		prefetcher.requested(origin)
+		prefetcher.requested(slice(5.0))
+		assertTrue(slice(10.0) in jobs)
+		assertEquals(5.0, SamEmbeddingPrefetcher.stepAlongNormal(origin, slice(5.0)), 1e-9)
+
+		val panned = RenderUnitState(slice(5.0).transform.copy().apply { translate(3.0, 0.0, 0.0) }, 0, emptyList(), 64, 48)
+		assertEquals(0.0, SamEmbeddingPrefetcher.stepAlongNormal(slice(5.0), panned))
+		val resized = RenderUnitState(slice(5.0).transform, 0, emptyList(), 32, 48)
+		assertEquals(0.0, SamEmbeddingPrefetcher.stepAlongNormal(slice(5.0), resized))
+	}
+}
@@ -0,0 +1,67 @@
+package org.janelia.saalfeldlab.paintera.cache
+
+import org.apache.http.impl.client.HttpClientBuilder
+import org.janelia.saalfeldlab.paintera.cache.SamEmbeddingTransport.Protocol
+import org.janelia.saalfeldlab.paintera.cache.SamEmbeddingTransport.RgbImage
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class SamEmbeddingTransportTest {
+
+	private val shape = longArrayOf(1, 4, 8, 8)
+
+	private val numElements = shape.fold(1L) { n, s -> n * s }.toInt()
+
+	private val image = RgbImage(5, 3, ByteArray(3 * 5 * 3) { 200.toByte() })
+
+	private val png = { ByteArrayInputStream(byteArrayOf(0x89.toByte(), 'P'.code.toByte(), 'N'.code.toByte(), 'G'.code.toByte())) }
+
+	@Test
+	fun `raw request returns little-endian floats`() {
+		SamServiceStandIn(numElements).use { service ->
+			val transport = SamEmbeddingTransport { HttpClientBuilder.create().build() }
+			val embedding = transport.requestEmbedding(service.url, Protocol.RAW, true, "session", shape, { image }, png)
+			assertEmbedding(200.0f, embedding)
+			assertEquals(1, service.rawRequests.get())
+			assertEquals(0, service.pngRequests.get())
+		}
+	}
+
+	@Test
+	fun `png request returns base64 decoded floats`() {
+		SamServiceStandIn(numElements).use { service ->
+			val transport = SamEmbeddingTransport { HttpClientBuilder.create().build() }
+			val embedding = transport.requestEmbedding(service.url, Protocol.PNG, false, null, shape, { error("must not render raw image") }, png)
+			assertEmbedding(SamServiceStandIn.PNG_OFFSET, embedding)
+			assertEquals(0, service.rawRequests.get())
+			assertEquals(1, service.pngRequests.get())
+		}
+	}
+
+	@Test
+	fun `falls back to png if raw is not supported`() {
+		SamServiceStandIn(numElements, supportsRaw = false).use { service ->
+			val transport = SamEmbeddingTransport { HttpClientBuilder.create().build() }
+			assertEmbedding(SamServiceStandIn.PNG_OFFSET, transport.requestEmbedding(service.url, Protocol.RAW, true, null, shape, { image }, png))
+			assertEquals(1, service.pngRequests.get())
+
+			/* the service is not asked for raw embeddings again */
+			var rendered = false
+			transport.requestEmbedding(service.url, Protocol.RAW, true, null, shape, { rendered = true; image }, png)
+			assertTrue(!rendered)
+			assertEquals(2, service.pngRequests.get())
+		}
+	}
+
+	private fun assertEmbedding(offset: Float, embedding: FloatBuffer) {
+		assertTrue(embedding.isDirect)
+		assertEquals(ByteOrder.nativeOrder(), embedding.order())
+		assertEquals(numElements, embedding.remaining())
+		for (i in 0 until numElements)
+			assertEquals(offset + i, embedding.get(i))
+	}
+}
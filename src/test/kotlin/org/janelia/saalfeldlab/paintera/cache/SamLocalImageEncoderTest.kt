@@ -0,0 +1,43 @@
+package org.janelia.saalfeldlab.paintera.cache
+
+import org.janelia.saalfeldlab.paintera.cache.SamEmbeddingTransport.RgbImage
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+
+class SamLocalImageEncoderTest {
+
+	private val planeSize = 1024 * 1024
+
+	@Test
+	fun `uniform image is normalized and padded`() {
+		val image = RgbImage(4, 2, ByteArray(3 * 4 * 2) { i -> byteArrayOf(200.toByte(), 100, 0)[i % 3] })
+		val input = SamLocalImageEncoder.preprocess(image)
+		assertEquals(3 * planeSize, input.capacity())
+
+		val expected = floatArrayOf((200 - 123.675f) / 58.395f, (100 - 116.28f) / 57.12f, (0 - 103.53f) / 57.375f)
+		for (c in 0 until 3) {
+			/* longest side is scaled to 1024, so the image covers the top half */
+			assertEquals(expected[c], input.get(c * planeSize), 1e-5f)
+			assertEquals(expected[c], input.get(c * planeSize + 511 * 1024 + 1023), 1e-5f)
+			assertEquals(0.0f, input.get(c * planeSize + 512 * 1024))
+			assertEquals(0.0f, input.get(c * planeSize + 1023 * 1024 + 1023))
+		}
+	}
+
+	@Test
+	fun `resize interpolates between pixel centers`() {
+		/* 2 x 1 image, black on the left and white on the right */
+		val image = RgbImage(2, 1, byteArrayOf(0, 0, 0, 255.toByte(), 255.toByte(), 255.toByte()))
+		val input = SamLocalImageEncoder.preprocess(image)
+		val std = 58.395f
+		val mean = 123.675f
+		fun red(x: Int) = input.get(x) * std + mean
+
+		/* pixel centers are at 255.5 and 767.5 in the resized image, values are clamped outside */
+		assertEquals(0.0f, red(0), 1e-3f)
+		assertEquals(0.0f, red(255), 1e-3f)
+		assertEquals(255.0f / 2, (red(511) + red(512)) / 2, 1e-3f)
+		assertEquals(255.0f, red(768), 1e-3f)
+		assertEquals(255.0f, red(1023), 1e-3f)
+	}
+}
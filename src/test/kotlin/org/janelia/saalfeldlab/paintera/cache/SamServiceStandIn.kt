@@ -0,0 +1,73 @@
+package org.janelia.saalfeldlab.paintera.cache
+
+import com.amazonaws.util.Base64
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import org.janelia.saalfeldlab.paintera.config.SegmentAnythingConfig
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Local stand-in for the embedding endpoint of the SAM service.
+ *
+ * The embedding that is returned has `embedding[i] = offset + i`. For raw requests, `offset` is the red value of the
+ * first pixel. The stand-in does not decode PNG requests and uses [PNG_OFFSET] instead.
+ *
+ * @param supportsRaw respond with `400` to raw requests, like services that predate the raw format
+ */
+class SamServiceStandIn(private val numElements: Int, private val supportsRaw: Boolean = true) : AutoCloseable {
+
+	val rawRequests = AtomicInteger()
+
+	val pngRequests = AtomicInteger()
+
+	private val server = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0).apply {
+		createContext("/${SegmentAnythingConfig.EMBEDDING_REQUEST_ENDPOINT}") { exchange -> exchange.use { handle(it) } }
+		start()
+	}
+
+	val url: String
+		get() = "http://${server.address.hostString}:${server.address.port}"
+
+	private fun handle(exchange: HttpExchange) {
+		val query = exchange.requestURI.query?.split("&")?.associate { it.substringBefore("=") to it.substringAfter("=", "") } ?: emptyMap()
+		val body = exchange.requestBody.readAllBytes()
+		if (query[SamEmbeddingTransport.FORMAT_PARAMETER] == SamEmbeddingTransport.RAW_FORMAT) {
+			if (!supportsRaw) {
+				exchange.sendResponseHeaders(400, -1)
+				return
+			}
+			rawRequests.incrementAndGet()
+			val width = query["width"]!!.toInt()
+			val height = query["height"]!!.toInt()
+			if (body.size != 3 * width * height) {
+				exchange.sendResponseHeaders(422, -1)
+				return
+			}
+			val embedding = embedding(java.lang.Byte.toUnsignedInt(body[0]).toFloat())
+			exchange.sendResponseHeaders(200, embedding.size.toLong())
+			exchange.responseBody.write(embedding)
+		} else {
+			pngRequests.incrementAndGet()
+			val embedding = Base64.encode(embedding(PNG_OFFSET))
+			exchange.sendResponseHeaders(200, embedding.size.toLong())
+			exchange.responseBody.write(embedding)
+		}
+	}
+
+	private fun embedding(offset: Float): ByteArray {
+		val embedding = ByteBuffer.allocate(numElements * Float.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+		for (i in 0 until numElements)
+			embedding.putFloat(offset + i)
+		return embedding.array()
+	}
+
+	override fun close() = server.stop(0)
+
+	companion object {
+		const val PNG_OFFSET = 1000.0f
+	}
+}
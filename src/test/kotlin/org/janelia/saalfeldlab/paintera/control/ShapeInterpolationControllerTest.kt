@@ -0,0 +1,213 @@
+package org.janelia.saalfeldlab.paintera.control
+
+import io.github.oshai.kotlinlogging.KotlinLogging
+import net.imglib2.FinalInterval
+import net.imglib2.Interval
+import net.imglib2.RandomAccessibleInterval
+import net.imglib2.algorithm.morphology.distance.DistanceTransform
+import net.imglib2.img.array.ArrayImgs
+import net.imglib2.realtransform.AffineTransform3D
+import net.imglib2.type.label.Label
+import net.imglib2.type.numeric.integer.UnsignedLongType
+import net.imglib2.type.numeric.real.FloatType
+import net.imglib2.util.ConstantUtils
+import net.imglib2.util.Intervals
+import org.janelia.saalfeldlab.paintera.control.ShapeInterpolationController.InterpolantInfo
+import org.janelia.saalfeldlab.paintera.control.ShapeInterpolationController.SignedDistanceTransformCache
+import org.janelia.saalfeldlab.paintera.control.ShapeInterpolationController.SlicesAndInterpolants
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class ShapeInterpolationControllerTest {
+
+	companion object {
+		private val LOG = KotlinLogging.logger { }
+
+		/* interactive target for interpolating again after a slice was edited */
+		private const val INTERACTIVE_TARGET_MILLIS = 100L
+
+		private val INTERPOLANT = InterpolantInfo(ConstantUtils.constantRealRandomAccessible(UnsignedLongType(1), 3), null)
+
+		private fun interval(min: Long, max: Long) = FinalInterval(longArrayOf(min, min), longArrayOf(max, max))
+	}
+
+	/**
+	 * Counts how often the signed distance transform of its mask is computed.
+	 */
+	private class CountingSlice(val name: String) {
+
+		var version = 0L
+
+		var numComputed = 0
+
+		private val distanceTransform = SignedDistanceTransformCache { domain ->
+			++numComputed
+			ArrayImgs.floats(*domain.dimensionsAsLongArray())
+		}
+
+		fun signedDistanceTransform(interval: Interval) = distanceTransform.get(version, interval) { null }
+
+		override fun toString() = name
+	}
+
+	/**
+	 * Interpolate all pairs without an interpolant, like [ShapeInterpolationController.interpolateBetweenSlices].
+	 *
+	 * @return the pairs that were interpolated
+	 */
+	private fun SlicesAndInterpolants<CountingSlice>.interpolate(): List<Pair<CountingSlice, CountingSlice>> {
+		return pairsWithoutInterpolant().map { (depth, slices) ->
+			slices.first.signedDistanceTransform(interval(0, 9))
+			slices.second.signedDistanceTransform(interval(0, 9))
+			add(depth, INTERPOLANT)
+			slices
+		}
+	}
+
+	@Test
+	fun `editing a slice interpolates only the pairs next to it`() {
+
+		val slicesAndInterpolants = SlicesAndInterpolants<CountingSlice>()
+		val slices = listOf(0.0, 10.0, 20.0, 30.0).map { depth -> CountingSlice("$depth").also { slicesAndInterpolants.add(depth, it) } }
+		val (slice0, slice10, slice20, slice30) = slices
+
+		assertEquals(listOf(slice0 to slice10, slice10 to slice20, slice20 to slice30), slicesAndInterpolants.interpolate())
+		assertEquals(3, slicesAndInterpolants.interpolants.size)
+		/* slices that are part of two pairs are computed once */
+		assertEquals(listOf(1, 1, 1, 1), slices.map { it.numComputed })
+
+		/* nothing changed */
+		assertTrue(slicesAndInterpolants.interpolate().isEmpty())
+
+		++slice20.version
+		slicesAndInterpolants.clearInterpolantsAroundSlice(20.0)
+		assertEquals(1, slicesAndInterpolants.interpolants.size)
+
+		assertEquals(listOf(slice10 to slice20, slice20 to slice30), slicesAndInterpolants.interpolate())
+		assertEquals(3, slicesAndInterpolants.interpolants.size)
+		/* unchanged slices reuse their distance transforms */
+		assertEquals(listOf(1, 1, 2, 1), slices.map { it.numComputed })
+	}
+
+	@Test
+	fun `cached distance transform is reused until the mask changes`() {
+
+		var numComputed = 0
+		val cache = SignedDistanceTransformCache { domain ->
+			++numComputed
+			ArrayImgs.floats(*domain.dimensionsAsLongArray())
+		}
+
+		val distanceTransform = cache.get(0, interval(0, 9)) { null }
+		assertEquals(1, numComputed)
+		assertTrue(Intervals.equals(interval(0, 9), distanceTransform))
+
+		/* covered by the cached result */
+		assertSame(distanceTransform, cache.get(0, interval(2, 5)) { null })
+		assertEquals(1, numComputed)
+
+		/* the cached interval grows */
+		val grown = cache.get(0, interval(5, 14)) { null }
+		assertEquals(2, numComputed)
+		assertTrue(Intervals.equals(interval(0, 14), grown))
+
+		/* the mask changed, the label is included with one pixel of background */
+		val changed = cache.get(1, interval(0, 1)) { interval(5, 8) }
+		assertEquals(3, numComputed)
+		assertTrue(Intervals.equals(interval(0, 9), changed))
+		assertSame(changed, cache.get(1, interval(0, 9)) { interval(5, 8) })
+		assertEquals(3, numComputed)
+	}
+
+	/**
+	 * Interpolation after editing one slice of a typical size: the distance transform of the edited slice, and one plane
+	 * of each of the two interpolants next to it. The distance transforms of the other slices are cached. This does not
+	 * include rendering.
+	 */
+	private class EditedInterpolation(private val size: Long = 512L) {
+
+		private val distance = 10.0
+
+		private fun disk(radius: Long) = ArrayImgs.bits(size, size).also { img ->
+			val access = img.randomAccess()
+			for (y in 0 until size) {
+				for (x in 0 until size) {
+					val dx = x - size / 2
+					val dy = y - size / 2
+					access.setPositionAndGet(x, y).set(dx * dx + dy * dy <= radius * radius)
+				}
+			}
+		}
+
+		private fun signedDistanceTransform(radius: Long): RandomAccessibleInterval<FloatType> {
+			val mask = disk(radius)
+			return ArrayImgs.floats(size, size).also {
+				ShapeInterpolationController.computeSignedDistanceTransform(mask, it, DistanceTransform.DISTANCE_TYPE.EUCLIDIAN)
+			}
+		}
+
+		private fun midPlaneArea(dt1: RandomAccessibleInterval<FloatType>, dt2: RandomAccessibleInterval<FloatType>): Long {
+			val interpolant = ShapeInterpolationController.getInterpolatedDistanceTransformMask(
+				dt1,
+				dt2,
+				distance,
+				UnsignedLongType(1),
+				AffineTransform3D(),
+				UnsignedLongType(Label.INVALID)
+			)
+			val access = interpolant.realRandomAccess()
+			var area = 0L
+			for (y in 0 until size) {
+				for (x in 0 until size) {
+					access.setPosition(doubleArrayOf(x.toDouble(), y.toDouble(), distance / 2))
+					if (access.get().get() == 1L) ++area
+				}
+			}
+			return area
+		}
+
+		private val previous = signedDistanceTransform(100)
+
+		private val next = signedDistanceTransform(200)
+
+		/**
+		 * @return areas of the mid planes between the previous and the edited slice, and between the edited and the next slice
+		 */
+		fun interpolateAfterEdit(): Pair<Long, Long> {
+			val edited = signedDistanceTransform(150)
+			return midPlaneArea(previous, edited) to midPlaneArea(edited, next)
+		}
+	}
+
+	@Test
+	fun `interpolated shapes after an edit are between the slices`() {
+
+		val (area1, area2) = EditedInterpolation().interpolateAfterEdit()
+		assertTrue(area1 > Math.PI * 100 * 100 && area1 < Math.PI * 150 * 150, "area $area1")
+		assertTrue(area2 > Math.PI * 150 * 150 && area2 < Math.PI * 200 * 200, "area $area2")
+	}
+
+	/**
+	 * Wall clock time depends on the machine, so this only runs with the `run-performance-tests` profile.
+	 */
+	@Test
+	@Tag("performance")
+	fun `interpolating again after an edit is interactive`() {
+
+		val interpolation = EditedInterpolation()
+
+		/* warm up */
+		repeat(3) { interpolation.interpolateAfterEdit() }
+
+		val millis = (0 until 5).minOf {
+			val start = System.nanoTime()
+			interpolation.interpolateAfterEdit()
+			(System.nanoTime() - start) / 1_000_000
+		}
+		LOG.info { "Interpolating 512x512 slices again after an edit took $millis ms" }
+		assertTrue(millis < INTERACTIVE_TARGET_MILLIS, "Interpolating again after an edit took $millis ms")
+	}
+}
@@ -24,6 +24,7 @@ import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.BeforeAll
 import org.junit.jupiter.api.Test
 import java.nio.file.Paths
+import java.util.UUID
 import java.util.concurrent.Executors
 
 
@@ -64,7 +65,8 @@ class ExportSourceStateTest {
 	val source = let {
 		val queue = SharedQueue(1)
 		val dataSource = N5DataSource(metadataState, "export_test", queue, 1)
-		val canvasPath = "$TEMP_TEST_N5/cache"
+		/* canvas directories are locked while open, each test gets its own */
+		val canvasPath = "$TEMP_TEST_N5/cache/${UUID.randomUUID()}"
 		Masks.maskedSource(dataSource, queue, canvasPath, { canvasPath }, CommitCanvasN5(metadataState), Executors.newSingleThreadExecutor()) as MaskedSource
 	}
 
@@ -147,4 +149,77 @@ class ExportSourceStateTest {
 		regressionTestAtScaleLevel(2, TEMP_TEST_ZARR, tmpZarr)
 	}
 
+	@Test
+	fun `pyramid export downsamples each level by the most frequent label`() {
+
+		runBlocking {
+			newExportState("pyramid", 0).apply {
+				exportPyramidProperty.set(true)
+			}.exportSource()!!.join()
+		}
+
+		val expectedImg = N5Utils.open(labelBackend.container, "scalar_export_s0/s0") as RandomAccessibleInterval<AbstractIntegerType<*>>
+		val s0 = N5Utils.open(tmpN5, "pyramid/s0") as RandomAccessibleInterval<AbstractIntegerType<*>>
+		val s0Iter = s0.view().cursor()
+		for (expected in expectedImg.view().cursor())
+			assertEquals(expected.integerLong, s0Iter.next().integerLong)
+
+		for (level in 1 until source.numMipmapLevels) {
+			val previous = N5Utils.open(tmpN5, "pyramid/s${level - 1}") as RandomAccessibleInterval<AbstractIntegerType<*>>
+			val downsampled = N5Utils.open(tmpN5, "pyramid/s$level") as RandomAccessibleInterval<AbstractIntegerType<*>>
+			assertArrayEquals(LongArray(3) { (previous.dimension(it) + 1) / 2 }, downsampled.dimensionsAsLongArray())
+
+			val previousAccess = previous.randomAccess()
+			val cursor = downsampled.view().cursor()
+			while (cursor.hasNext()) {
+				val actual = cursor.next().integerLong
+				/* most frequent label of the 2x2x2 footprint, on ties the first one to reach the count in flat iteration order */
+				val counts = HashMap<Long, Int>()
+				var mode = 0L
+				var modeCount = 0
+				for (z in 0..1) for (y in 0..1) for (x in 0..1) {
+					val pos = longArrayOf(2 * cursor.getLongPosition(0) + x, 2 * cursor.getLongPosition(1) + y, 2 * cursor.getLongPosition(2) + z)
+					if ((0..2).all { pos[it] < previous.dimension(it) }) {
+						val label = previousAccess.setPositionAndGet(*pos).integerLong
+						val count = (counts[label] ?: 0) + 1
+						counts[label] = count
+						if (count > modeCount) {
+							mode = label
+							modeCount = count
+						}
+					}
+				}
+				assertEquals(mode, actual) { "s$level at ${cursor.positionAsLongArray().contentToString()}" }
+			}
+		}
+	}
+
+	@Test
+	fun `resumed export keeps existing blocks and exports missing blocks`() {
+
+		runBlocking { newExportState("resume", 0).exportSource()!!.join() }
+
+		val attributes = tmpN5.getDatasetAttributes("resume/s0")
+		val existing = DataType.UINT8.createDataBlock(attributes.blockSize, longArrayOf(0, 0, 0)).apply {
+			(data as ByteArray).fill(7)
+		}
+		tmpN5.writeBlock("resume/s0", attributes, existing)
+		tmpN5.deleteBlock("resume/s0", 1, 0, 0)
+
+		runBlocking {
+			newExportState("resume", 0).apply {
+				resumeProperty.set(true)
+			}.exportSource()!!.join()
+		}
+
+		val expectedImg = N5Utils.open(labelBackend.container, "scalar_export_s0/s0") as RandomAccessibleInterval<AbstractIntegerType<*>>
+		val actualImg = N5Utils.open(tmpN5, "resume/s0") as RandomAccessibleInterval<AbstractIntegerType<*>>
+		val actualIter = actualImg.view().cursor()
+		for (expected in expectedImg.view().cursor()) {
+			val actual = actualIter.next()
+			val inExistingBlock = (0..2).all { actualIter.getLongPosition(it) < attributes.blockSize[it] }
+			assertEquals(if (inExistingBlock) 7L else expected.integerLong, actual.integerLong)
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package org.janelia.saalfeldlab.paintera.control.actions
+
+import kotlinx.coroutines.runBlocking
+import net.imglib2.util.Intervals
+import org.janelia.saalfeldlab.n5.DataType
+import org.janelia.saalfeldlab.n5.DatasetAttributes
+import org.janelia.saalfeldlab.n5.N5FSWriter
+import org.janelia.saalfeldlab.n5.RawCompression
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class PyramidExportTest {
+
+	@TempDir
+	lateinit var tmp: Path
+
+	@Test
+	fun `finished blocks are bounded by the children of one block per level`() {
+
+		/* 16 x 16 x 16 blocks at the first level, one block at the last level */
+		val levels = listOf(64L, 32L, 16L, 8L, 4L).mapIndexed { level, size ->
+			val attributes = DatasetAttributes(longArrayOf(size, size, size), intArrayOf(4, 4, 4), DataType.UINT8, RawCompression())
+			PyramidExport.Level("s$level", attributes, intArrayOf(2, 2, 2))
+		}
+		val maxBlocksInFlight = 4
+		val export = PyramidExport(levels, readers = 2, writers = 2, maxBlocksInFlight = maxBlocksInFlight)
+		runBlocking {
+			export.run(N5FSWriter(tmp.toString()), { true }) { interval -> LongArray(Intervals.numElements(interval).toInt()) { 1L } }
+		}
+		assertEquals(export.totalBlocks, export.processedBlocks.get())
+
+		/*
+		 * Each level keeps the 8 children of the block of the next level that is being downsampled, and some children of
+		 * the next block while blocks are in flight. In flat order, the first level alone would keep a whole slab of
+		 * 16 x 16 blocks before the first block of the second level is done.
+		 */
+		val levelsWithFinishedBlocks = levels.size - 1
+		val bound = levelsWithFinishedBlocks * 2 * 8 + maxBlocksInFlight
+		assertTrue(export.peakFinishedBlocks.get() <= bound, "${export.peakFinishedBlocks.get()} finished blocks kept, expected at most $bound")
+	}
+}
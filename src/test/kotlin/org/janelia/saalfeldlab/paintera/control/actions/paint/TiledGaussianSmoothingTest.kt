@@ -0,0 +1,110 @@
+package org.janelia.saalfeldlab.paintera.control.actions.paint
+
+import kotlinx.coroutines.runBlocking
+import net.imglib2.algorithm.gauss3.Gauss3
+import net.imglib2.img.array.ArrayImgs
+import net.imglib2.img.cell.CellGrid
+import net.imglib2.util.IntervalIndexer
+import net.imglib2.util.Intervals
+import net.imglib2.view.Views
+import java.util.BitSet
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.abs
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class TiledGaussianSmoothingTest {
+
+	private val dims = longArrayOf(40, 35, 30)
+	private val grid = CellGrid(dims, intArrayOf(16, 16, 16))
+
+	/* a sphere with a thin spike, the spike is removed by smoothing */
+	private fun hasLabel(x: Long, y: Long, z: Long): Boolean {
+		val (dx, dy, dz) = Triple(x - 20, y - 17, z - 15)
+		return dx * dx + dy * dy + dz * dz < 100 || (y == 17L && z == 15L && x in 20L..38L)
+	}
+
+	private val reads = AtomicInteger()
+
+	private val smoothing = TiledGaussianSmoothing(grid, 2) { block ->
+		reads.incrementAndGet()
+		val labels = BitSet()
+		val position = LongArray(3)
+		for (i in 0 until Intervals.numElements(block)) {
+			IntervalIndexer.indexToPositionWithOffset(i, block.dimensionsAsLongArray(), block.minAsLongArray(), position)
+			if (hasLabel(position[0], position[1], position[2]))
+				labels.set(i.toInt())
+		}
+		labels
+	}
+
+	private val allBlocks = LongArray(grid.gridDimensions.reduce { acc, dim -> acc * dim }.toInt()) { it.toLong() }
+
+	@Test
+	fun `tiles match the Gaussian of the whole image`() = runBlocking {
+
+		val sigma = doubleArrayOf(2.0, 2.0, 1.5)
+		val removedByBlock = smoothing.smooth(sigma, allBlocks)
+
+		val labels = ArrayImgs.doubles(*dims)
+		val labelCursor = labels.localizingCursor()
+		while (labelCursor.hasNext()) {
+			val label = labelCursor.next()
+			if (hasLabel(labelCursor.getLongPosition(0), labelCursor.getLongPosition(1), labelCursor.getLongPosition(2)))
+				label.set(1.0)
+		}
+		val smoothed = ArrayImgs.doubles(*dims)
+		Gauss3.gauss(sigma, Views.extendZero(labels), smoothed)
+
+		val gridPosition = LongArray(3)
+		val min = LongArray(3)
+		val size = IntArray(3)
+		var removedAny = false
+		removedByBlock.forEach { (block, removed) ->
+			grid.getCellGridPositionFlat(block, gridPosition)
+			grid.getCellDimensions(gridPosition, min, size)
+			val access = smoothed.randomAccess()
+			val position = LongArray(3)
+			for (i in 0 until size.fold(1) { acc, s -> acc * s }) {
+				IntervalIndexer.indexToPositionWithOffset(i.toLong(), LongArray(3) { size[it].toLong() }, min, position)
+				val value = access.setPositionAndGet(*position).get()
+				val expected = hasLabel(position[0], position[1], position[2]) && value < 0.5
+				/* float and double convolution may disagree right at the threshold */
+				if (abs(value - 0.5) > 1e-4)
+					assertEquals(expected, removed[i], "at ${position.contentToString()}")
+				removedAny = removedAny || removed[i]
+			}
+		}
+		assertTrue(removedAny)
+	}
+
+	@Test
+	fun `intervals are mapped to all blocks they intersect`() {
+
+		/* grid of 3 x 3 x 2 blocks, the interval is not aligned with the blocks and extends beyond the image */
+		val interval = Intervals.createMinMax(10, 0, 0, 20, 15, 40)
+		val gridDims = grid.gridDimensions
+		val expected = listOf(0L, 1L).flatMap { z -> listOf(0L).flatMap { y -> listOf(0L, 1L).map { x -> IntervalIndexer.positionToIndex(longArrayOf(x, y, z), gridDims) } } }
+		assertEquals(expected.sorted(), smoothing.blocksIntersecting(interval).sorted())
+
+		/* a block of the grid only intersects itself */
+		assertEquals(listOf(4L), smoothing.blocksIntersecting(Intervals.createMinMax(16, 16, 0, 31, 31, 15)).toList())
+		assertTrue(smoothing.blocksIntersecting(Intervals.createMinMax(50, 0, 0, 60, 10, 10)).isEmpty())
+	}
+
+	@Test
+	fun `results are reused for the last sigma and labels are read once`() = runBlocking {
+
+		val small = doubleArrayOf(1.0, 1.0, 1.0)
+		val large = doubleArrayOf(3.0, 3.0, 3.0)
+		val first = smoothing.smooth(small, allBlocks)
+		assertEquals(allBlocks.size, reads.get())
+
+		smoothing.smooth(large, allBlocks)
+		val again = smoothing.smooth(small, allBlocks)
+		allBlocks.forEach { assertSame(first[it], again[it]) }
+		assertEquals(allBlocks.size, reads.get())
+	}
+}
@@ -0,0 +1,78 @@
+package org.janelia.saalfeldlab.paintera.control.tools.paint
+
+import ai.onnxruntime.OnnxTensor
+import ai.onnxruntime.OrtEnvironment
+import org.janelia.saalfeldlab.paintera.control.tools.paint.SamPredictor.SamPoint
+import org.janelia.saalfeldlab.paintera.control.tools.paint.SamPredictor.SparseLabel
+import org.janelia.saalfeldlab.paintera.control.tools.paint.SamPredictor.SparsePrediction
+import org.junit.jupiter.api.Test
+import java.nio.FloatBuffer
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class SamPredictorTest {
+
+	@Test
+	fun `prompts are padded to the same number of points`() {
+		val requests = listOf(
+			SparsePrediction(listOf(SamPoint(1.0, 2.0, SparseLabel.IN), SamPoint(3.0, 4.0, SparseLabel.OUT))),
+			SparsePrediction(listOf()),
+			SparsePrediction(listOf(SamPoint(5.0, 6.0, SparseLabel.IN)))
+		)
+		val prompts = SamPredictor.promptPoints(requests)
+		assertEquals(listOf(2, 1, 1), prompts.map { it.size })
+
+		val coords = FloatBuffer.allocate(2 * 3 * 2)
+		val labels = FloatBuffer.allocate(3 * 2)
+		SamPredictor.packPrompts(prompts, 2, 2.0, coords, labels)
+		assertEquals(0, coords.remaining())
+		assertEquals(0, labels.remaining())
+
+		/* a prompt without points is a background point, padding points are ignored by SAM */
+		assertContentEquals(floatArrayOf(1f, 0f, 0f, -1f, 1f, -1f), labels.array())
+		assertContentEquals(floatArrayOf(3f, 5f, 7f, 9f, 1f, 1f, 0f, 0f, 11f, 13f, 0f, 0f), coords.array())
+	}
+
+	@Test
+	fun `batches are chunked and keep the input order`() {
+		val requests = List(5) { SparsePrediction(listOf(SamPoint(it.toDouble(), 0.0, SparseLabel.IN))) }
+		val batchSizes = mutableListOf<Int>()
+		val results = SamPredictor.decodeInBatches(requests, 2) { batch ->
+			batchSizes += batch.size
+			batch.map { it.points.first().x.toInt() }
+		}
+		assertEquals(listOf(2, 2, 1), batchSizes)
+		assertEquals(listOf(0, 1, 2, 3, 4), results)
+
+		/* at least one prompt per batch */
+		batchSizes.clear()
+		SamPredictor.decodeInBatches(requests, 0) { batch -> batch.also { batchSizes += it.size } }
+		assertEquals(listOf(1, 1, 1, 1, 1), batchSizes)
+
+		/* a batch must have a prediction for each of its prompts */
+		assertFailsWith<IllegalStateException> { SamPredictor.decodeInBatches(requests, 2) { it.drop(1) } }
+	}
+
+	@Test
+	fun `items of a batch are split in order and combined by their maximum`() {
+		val environment = OrtEnvironment.getEnvironment()
+		fun tensor(vararg values: Float) = OnnxTensor.createTensor(environment, FloatBuffer.wrap(values), longArrayOf(2, 1, 2, 2))
+		tensor(0f, 5f, 1f, 1f, 3f, 0f, 0f, 2f).use { masks ->
+			tensor(1f, 1f, 1f, 1f, 2f, 2f, 2f, 2f).use { lowResMasks ->
+				OnnxTensor.createTensor(environment, FloatBuffer.wrap(floatArrayOf(0.5f, 0.9f)), longArrayOf(2, 1)).use { iouPredictions ->
+					val output = SamPredictor.DecoderOutput(masks, iouPredictions, lowResMasks, 2)
+					assertContentEquals(floatArrayOf(0f, 5f, 1f, 1f), output.item(output.maskValues, 0))
+					assertContentEquals(floatArrayOf(3f, 0f, 0f, 2f), output.item(output.maskValues, 1))
+
+					val union = SamPredictor.DecoderOutput.union(listOf(output to 0, output to 1))
+					assertEquals(1, union.batchSize)
+					assertContentEquals(floatArrayOf(3f, 5f, 1f, 2f), union.maskValues)
+					assertContentEquals(floatArrayOf(2f, 2f, 2f, 2f), union.lowResMaskValues)
+					/* the combined output does not modify the batch */
+					assertContentEquals(floatArrayOf(0f, 5f, 1f, 1f), output.item(output.maskValues, 0))
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.janelia.saalfeldlab.paintera.data.mask
+
+import bdv.cache.SharedQueue
+import gnu.trove.map.TLongObjectMap
+import gnu.trove.set.hash.TLongHashSet
+import javafx.application.Platform
+import javafx.beans.property.ReadOnlyDoubleProperty
+import javafx.beans.property.SimpleDoubleProperty
+import net.imglib2.FinalInterval
+import net.imglib2.Interval
+import net.imglib2.cache.img.CachedCellImg
+import net.imglib2.type.numeric.integer.UnsignedLongType
+import net.imglib2.view.Views
+import org.janelia.saalfeldlab.fx.util.InvokeOnJavaFXApplicationThread
+import org.janelia.saalfeldlab.paintera.data.mask.persist.PersistCanvas
+import org.janelia.saalfeldlab.paintera.data.mask.persist.UnableToPersistCanvas
+import org.janelia.saalfeldlab.paintera.data.n5.N5DataSource
+import org.janelia.saalfeldlab.paintera.state.metadata.MetadataUtils
+import org.janelia.saalfeldlab.paintera.state.metadata.PainteraDataMultiscaleMetadataState
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.UUID
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class MaskedSourceBackgroundCommitTest {
+
+	companion object {
+
+		private val EXPORT_TEST_N5 = Paths.get(MaskedSourceBackgroundCommitTest::class.java.getResource("/export_tests/export_test.n5")!!.toURI()).toAbsolutePath().toString()
+		private const val LABEL_MULTISET_DATASET = "paintera_labels"
+
+		private const val LABEL = 42L
+		private const val NEW_LABEL = 43L
+
+		@BeforeAll
+		@JvmStatic
+		fun startToolkit() {
+			try {
+				Platform.startup {}
+			} catch (e: IllegalStateException) {
+				/* already started by another test */
+			}
+			Platform.setImplicitExit(false)
+		}
+	}
+
+	@TempDir
+	lateinit var tmp: Path
+
+	/**
+	 * Blocks each commit until [result] is completed, and fails the commit if it is completed with `false`.
+	 */
+	private class GatedPersistCanvas : PersistCanvas {
+
+		val result = CompletableFuture<Boolean>()
+
+		val committedBlocks = TLongHashSet()
+
+		override fun persistCanvas(canvas: CachedCellImg<UnsignedLongType, *>, blockIds: LongArray): List<TLongObjectMap<PersistCanvas.BlockDiff>> {
+			if (!result.get(10, TimeUnit.SECONDS))
+				throw UnableToPersistCanvas("Failed on purpose")
+			synchronized(committedBlocks) { committedBlocks.addAll(blockIds) }
+			return listOf()
+		}
+
+		override fun getProgressProperty(): ReadOnlyDoubleProperty = SimpleDoubleProperty()
+	}
+
+	private fun maskedSource(persist: PersistCanvas): MaskedSource<*, *> {
+		val metadataState = MetadataUtils.createMetadataState(EXPORT_TEST_N5, LABEL_MULTISET_DATASET)!! as PainteraDataMultiscaleMetadataState
+		val queue = SharedQueue(1)
+		val dataSource = N5DataSource(metadataState, "background_commit_test", queue, 1)
+		val nextCanvasPath = { tmp.resolve(UUID.randomUUID().toString()).toString() }
+		return Masks.maskedSource(dataSource, queue, nextCanvasPath(), nextCanvasPath, persist, Executors.newSingleThreadExecutor()) as MaskedSource<*, *>
+	}
+
+	private fun MaskedSource<*, *>.paint(label: Long, interval: Interval) {
+		val mask = generateMask(MaskInfo(0, 0)) { it == label }
+		Views.interval(mask.rai, interval).forEach { it.set(label) }
+		applyMaskOverIntervals(mask, listOf(interval), SimpleDoubleProperty()) { it == label }
+	}
+
+	private fun MaskedSource<*, *>.canvasLabel(vararg position: Long) = getReadOnlyDataCanvas(0, 0).randomAccess().setPositionAndGet(*position).get()
+
+	private fun MaskedSource<*, *>.modifiedBlocksByLevel(label: Long) = (0 until numMipmapLevels).map { TLongHashSet(getModifiedBlocks(it, label)) }
+
+	/* property updates are posted to the application thread */
+	private fun awaitApplicationThread() = InvokeOnJavaFXApplicationThread.invokeAndWait {}
+
+	@Test
+	fun `committed canvas is shown until the commit is done`() {
+
+		val persist = GatedPersistCanvas()
+		val source = maskedSource(persist)
+		source.paint(LABEL, FinalInterval(longArrayOf(0, 0, 0), longArrayOf(9, 9, 9)))
+		val paintedBlocks = TLongHashSet(source.getModifiedBlocks(0))
+		assertFalse(paintedBlocks.isEmpty())
+
+		val commit = source.persistCanvasInBackground()
+		awaitApplicationThread()
+		assertTrue(source.isCommittingInBackgroundProperty().get())
+		assertEquals(LABEL, source.canvasLabel(5, 5, 5))
+		assertEquals(paintedBlocks, TLongHashSet(source.getModifiedBlocks(0)))
+
+		persist.result.complete(true)
+		commit.get(10, TimeUnit.SECONDS)
+		awaitApplicationThread()
+		assertFalse(source.isCommittingInBackgroundProperty().get())
+		assertEquals(paintedBlocks, persist.committedBlocks)
+		assertTrue(source.getModifiedBlocks(0).isEmpty())
+	}
+
+	@Test
+	fun `failed commit is merged below paint of the meantime`() {
+
+		val persist = GatedPersistCanvas()
+		val source = maskedSource(persist)
+		source.paint(LABEL, FinalInterval(longArrayOf(0, 0, 0), longArrayOf(9, 9, 9)))
+		val commit = source.persistCanvasInBackground()
+
+		/* paint while committing, overlapping the committed paint */
+		source.paint(NEW_LABEL, FinalInterval(longArrayOf(5, 5, 5), longArrayOf(14, 14, 14)))
+		assertEquals(LABEL, source.canvasLabel(2, 2, 2))
+		assertEquals(NEW_LABEL, source.canvasLabel(7, 7, 7))
+
+		persist.result.complete(false)
+		assertThrows(ExecutionException::class.java) { commit.get(10, TimeUnit.SECONDS) }
+		awaitApplicationThread()
+		assertFalse(source.isCommittingInBackgroundProperty().get())
+		assertEquals(LABEL, source.canvasLabel(2, 2, 2))
+		assertEquals(NEW_LABEL, source.canvasLabel(7, 7, 7))
+		assertEquals(NEW_LABEL, source.canvasLabel(12, 12, 12))
+		assertFalse(source.getModifiedBlocks(0, LABEL).isEmpty())
+		assertFalse(source.getModifiedBlocks(0, NEW_LABEL).isEmpty())
+	}
+
+	@Test
+	fun `failed commit restores modified blocks of all levels`() {
+
+		val persist = GatedPersistCanvas()
+		val source = maskedSource(persist)
+		assertTrue(source.numMipmapLevels > 1)
+		source.paint(LABEL, FinalInterval(longArrayOf(0, 0, 0), longArrayOf(9, 9, 9)))
+		val modifiedBlocks = source.modifiedBlocksByLevel(LABEL)
+		modifiedBlocks.forEachIndexed { level, blocks -> assertFalse(blocks.isEmpty(), "level $level") }
+
+		val commit = source.persistCanvasInBackground()
+		persist.result.complete(false)
+		assertThrows(ExecutionException::class.java) { commit.get(10, TimeUnit.SECONDS) }
+
+		val restoredBlocks = source.modifiedBlocksByLevel(LABEL)
+		modifiedBlocks.forEachIndexed { level, blocks -> assertTrue(restoredBlocks[level].containsAll(blocks), "level $level") }
+		assertEquals(modifiedBlocks[0], TLongHashSet(source.affectedBlocks))
+	}
+}
@@ -0,0 +1,87 @@
+package org.janelia.saalfeldlab.paintera.util.algorithms
+
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class ThresholdComponentTreeTest {
+
+	@Test
+	fun `components match flood fill at all thresholds`() {
+		val random = Random(42)
+		val width = 23
+		val height = 17
+		/* coarse values to get plateaus, and some NaN */
+		val values = FloatArray(width * height) { if (random.nextInt(50) == 0) Float.NaN else random.nextInt(-8, 8).toFloat() }
+		val tree = ThresholdComponentTree(values, width, height)
+		val seeds = IntArray(5) { random.nextInt(values.size) }
+		val selection = tree.select(seeds)
+
+		/* also visit thresholds in non-monotonic order, to exercise clearing of the previous selection */
+		val thresholds = (-9..9).map { it.toFloat() } + listOf(2.5f, -3.5f, 7.0f, -9.0f, 0.5f)
+		for (threshold in thresholds) {
+			val expected = BooleanArray(values.size)
+			for (seed in seeds)
+				floodFill(values, width, height, seed, threshold, expected)
+
+			val bounds = selection.update(threshold)
+			for (i in values.indices)
+				assertEquals(if (expected[i]) 1.0f else 0.0f, selection.mask[i], "pixel $i at threshold $threshold")
+
+			val selected = expected.indices.filter { expected[it] }
+			if (selected.isEmpty()) {
+				assertNull(bounds)
+			} else {
+				assertEquals(selected.minOf { it % width }.toLong(), bounds!!.min(0))
+				assertEquals(selected.minOf { it / width }.toLong(), bounds.min(1))
+				assertEquals(selected.maxOf { it % width }.toLong(), bounds.max(0))
+				assertEquals(selected.maxOf { it / width }.toLong(), bounds.max(1))
+			}
+
+			for (seed in seeds) {
+				val component = BooleanArray(values.size).also { floodFill(values, width, height, seed, threshold, it) }
+				val node = tree.component(seed, threshold)
+				if (node < 0) {
+					assertEquals(0, component.count { it })
+				} else {
+					val pixels = mutableSetOf<Int>()
+					tree.forEachPixel(node, threshold) { pixels += it }
+					assertEquals(component.indices.filter { component[it] }.toSet(), pixels)
+				}
+			}
+		}
+	}
+
+	@Test
+	fun `components merge at the lowest value on the path between them`() {
+		/* two peaks separated by a valley of 1 */
+		val values = floatArrayOf(5f, 4f, 1f, 3f, 6f)
+		val tree = ThresholdComponentTree(values, 5, 1)
+		assertEquals(tree.component(0, 2f), tree.component(1, 2f))
+		assert(tree.component(0, 2f) != tree.component(4, 2f))
+		assertEquals(tree.component(0, 1f), tree.component(4, 1f))
+		assertEquals(-1, tree.component(2, 1.5f))
+	}
+
+	private fun floodFill(values: FloatArray, width: Int, height: Int, seed: Int, threshold: Float, filled: BooleanArray) {
+		if (!(values[seed] >= threshold) || filled[seed])
+			return
+		val queue = ArrayDeque<Int>().apply { add(seed) }
+		filled[seed] = true
+		while (queue.isNotEmpty()) {
+			val pixel = queue.removeFirst()
+			val x = pixel % width
+			val y = pixel / width
+			listOfNotNull(
+				(pixel - 1).takeIf { x > 0 },
+				(pixel + 1).takeIf { x < width - 1 },
+				(pixel - width).takeIf { y > 0 },
+				(pixel + width).takeIf { y < height - 1 }
+			).filter { !filled[it] && values[it] >= threshold }.forEach {
+				filled[it] = true
+				queue.add(it)
+			}
+		}
+	}
+}